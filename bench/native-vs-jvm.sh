@@ -0,0 +1,73 @@
+#!/usr/bin/env bash
+#
+# Copyright 2016 Peter May
+# Author: Peter May
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+# http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+# Compares the shaded jar against the native executable.
+#
+#   startup:    mean wall time of RUNS invocations checksumming a single small TIFF, one process per run
+#               (the shell-loop case)
+#   throughput: wall time and MB/s for one invocation over all supplied files, with -a so every byte is read
+#
+# Build both first:  mvn -Pnative package
+# Usage:             bench/native-vs-jvm.sh [RUNS] <tiff>...
+#
+set -euo pipefail
+
+RUNS=20
+if [[ $# -gt 0 && "$1" =~ ^[0-9]+$ ]]; then
+    RUNS=$1
+    shift
+fi
+if [[ $# -eq 0 ]]; then
+    set -- src/test/resources/*.tiff
+fi
+
+JAR=$(ls target/tifixity-*.jar | grep -v original | head -n 1)
+NATIVE=target/tifixity
+[[ -f "$JAR" ]] || { echo "No jar in target/; run mvn -Pnative package" >&2; exit 1; }
+[[ -x "$NATIVE" ]] || { echo "No native executable at $NATIVE; run mvn -Pnative package" >&2; exit 1; }
+
+now() { date +%s%N; }
+
+bytes=$(cat "$@" | wc -c)
+
+bench() {
+    local name=$1; shift
+    local start end total=0
+
+    for ((i=0; i<RUNS; i++)); do
+        start=$(now)
+        "$@" "$SMALL" > /dev/null
+        end=$(now)
+        total=$((total + end - start))
+    done
+    local startup_ms=$((total / RUNS / 1000000))
+
+    start=$(now)
+    "$@" -a "${FILES[@]}" > /dev/null
+    end=$(now)
+    local elapsed_ns=$((end - start))
+    local mbs=$(awk -v b="$bytes" -v ns="$elapsed_ns" 'BEGIN { printf "%.1f", (b / 1048576) / (ns / 1e9) }')
+
+    printf "%-8s startup %6d ms/run   throughput %8d ms  %8s MB/s\n" "$name" "$startup_ms" $((elapsed_ns / 1000000)) "$mbs"
+}
+
+FILES=("$@")
+SMALL=$1
+
+echo "runs=$RUNS files=${#FILES[@]} bytes=$bytes"
+bench jvm    java -jar "$JAR"
+bench native "$NATIVE"
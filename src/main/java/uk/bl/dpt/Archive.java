@@ -0,0 +1,545 @@
+/**
+ * Copyright 2016 Peter May
+ * Author: Peter May
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.bl.dpt;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Reads the TIFF members of TAR and ZIP archives without extracting them.
+ *
+ * Members of an uncompressed TAR file and stored (uncompressed) ZIP entries are read in place, as byte ranges
+ * of the archive. Members that have to be decompressed (deflated ZIP entries and the members of a gzipped TAR)
+ * or that arrive on a stream are read once into memory, or into a temporary file if larger than the memory
+ * limit, and released as soon as they have been visited. Members are recognised as TIFFs by their header, not
+ * their name.
+ */
+public class Archive {
+
+    /** Default limit on the size of a member buffered in memory */
+    public static final long DEFAULT_MEMORY_LIMIT = 64L*1024*1024;
+
+    private static final int BLOCKSIZE = 512;               // TAR header and padding block size
+    private static final int MAX_EXTENSION = 1024*1024;     // largest TAR long name or extended header read
+    private static final int EOCD_SIGNATURE     = 0x06054b50;
+    private static final int ZIP64_LOCATOR      = 0x07064b50;
+    private static final int ZIP64_EOCD         = 0x06064b50;
+    private static final int CENTRAL_SIGNATURE  = 0x02014b50;
+    private static final int LOCAL_SIGNATURE    = 0x04034b50;
+
+    /**
+     * Callback receiving each TIFF member of an archive. The source is only valid during the call.
+     */
+    public interface MemberVisitor {
+        void visit(String name, ByteSource member) throws IOException, NoSuchAlgorithmException;
+    }
+
+    private Archive(){}
+
+    /**
+     * Visits each TIFF member of the specified ZIP, TAR or gzipped TAR file, in archive order.
+     * @param archive       the archive file
+     * @param memoryLimit   the largest member to buffer in memory when it cannot be read in place
+     * @param visitor       the callback to receive each TIFF member
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    public static void read(Path archive, long memoryLimit, MemberVisitor visitor)
+            throws IOException, NoSuchAlgorithmException {
+        ByteSource source = ByteSource.of(archive);
+        byte[] magic = new byte[4];
+        int count;
+        try (SeekableByteChannel sbc = source.open()) {
+            count = readFully(Channels.newInputStream(sbc), magic, 0, magic.length);
+        }
+
+        int signature = count>=4 ? ByteBuffer.wrap(magic).order(ByteOrder.LITTLE_ENDIAN).getInt() : 0;
+        if(signature==LOCAL_SIGNATURE || signature==EOCD_SIGNATURE){
+            readZip(source, memoryLimit, visitor);
+        } else if(count>=2 && (magic[0]&0xFF)==0x1f && (magic[1]&0xFF)==0x8b){
+            // through the source, so that the throttle limits gzipped archives too
+            try (InputStream in = new GZIPInputStream(Channels.newInputStream(source.open()), 64*1024)){
+                readTar(in, memoryLimit, visitor);
+            }
+        } else {
+            readTar(source, memoryLimit, visitor);
+        }
+    }
+
+    /**
+     * Visits each TIFF member of a TAR stream, such as standard input, in a single pass.
+     * @param in            the TAR stream
+     * @param memoryLimit   the largest member to buffer in memory
+     * @param visitor       the callback to receive each TIFF member
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    public static void readTar(InputStream in, long memoryLimit, MemberVisitor visitor)
+            throws IOException, NoSuchAlgorithmException {
+        byte[] block = new byte[BLOCKSIZE];
+        TarHeader pending = new TarHeader();
+
+        while(true){
+            if(readFully(in, block, 0, BLOCKSIZE)<BLOCKSIZE || isZero(block)){
+                return;
+            }
+            TarHeader header = TarHeader.parse(block, pending);
+            long padded = padded(header.size);
+
+            if(header.isExtension()){
+                byte[] data = new byte[(int) header.size];
+                if(readFully(in, data, 0, data.length)<data.length){
+                    throw new EOFException("Truncated TAR header");
+                }
+                skipFully(in, padded-header.size);
+                pending.extend(header.type, data);
+                continue;
+            }
+            pending = new TarHeader();
+
+            if(header.isFile() && header.size>=8){
+                // only buffer members whose header says TIFF
+                byte[] start = new byte[8];
+                readFully(in, start, 0, start.length);
+                if(isTiff(start)){
+                    InputStream member = new SequenceInput(start, in, header.size-start.length);
+                    visitBuffered(header.name, member, header.size, memoryLimit, visitor);
+                } else {
+                    skipFully(in, header.size-start.length);
+                }
+                skipFully(in, padded-header.size);
+            } else {
+                skipFully(in, padded);
+            }
+        }
+    }
+
+    /**
+     * Visits each TIFF member of an uncompressed TAR file, reading each member in place.
+     */
+    private static void readTar(ByteSource source, long memoryLimit, MemberVisitor visitor)
+            throws IOException, NoSuchAlgorithmException {
+        long size = source.size();
+        ByteBuffer block = ByteBuffer.allocate(BLOCKSIZE);
+        TarHeader pending = new TarHeader();
+
+        try (SeekableByteChannel sbc = source.open()) {
+            long position = 0;
+            while(position+BLOCKSIZE<=size){
+                readAt(sbc, position, block);
+                if(isZero(block.array())){
+                    return;
+                }
+                TarHeader header = TarHeader.parse(block.array(), pending);
+                long data = position+BLOCKSIZE;
+                position = data+padded(header.size);
+
+                if(header.isExtension()){
+                    ByteBuffer ext = ByteBuffer.allocate((int) header.size);
+                    readAt(sbc, data, ext);
+                    pending.extend(header.type, ext.array());
+                    continue;
+                }
+                pending = new TarHeader();
+
+                if(header.isFile() && data+header.size<=size){
+                    ByteSource member = RangeSource.of(source, data, header.size);
+                    if(isTiff(member)){
+                        visitor.visit(header.name, member);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Visits each TIFF member of a ZIP file. Stored entries are read in place; deflated entries are inflated
+     * once into a buffer.
+     */
+    private static void readZip(ByteSource source, long memoryLimit, MemberVisitor visitor)
+            throws IOException, NoSuchAlgorithmException {
+        try (SeekableByteChannel sbc = source.open()) {
+            long size = sbc.size();
+
+            // find the end of central directory record, followed by a comment of up to 64KB
+            int tail = (int) Math.min(size, 22+0xFFFF);
+            ByteBuffer end = ByteBuffer.allocate(tail).order(ByteOrder.LITTLE_ENDIAN);
+            readAt(sbc, size-tail, end);
+            int eocd = tail-22;
+            while(eocd>=0 && end.getInt(eocd)!=EOCD_SIGNATURE){
+                eocd--;
+            }
+            if(eocd<0){
+                throw new IOException("Not a ZIP file (no end of central directory)");
+            }
+
+            long entries = end.getShort(eocd+10) & 0xFFFF;
+            long directory = end.getInt(eocd+16) & 0xFFFFFFFFL;
+            if(eocd>=20 && end.getInt(eocd-20)==ZIP64_LOCATOR){
+                ByteBuffer zip64 = ByteBuffer.allocate(56).order(ByteOrder.LITTLE_ENDIAN);
+                readAt(sbc, end.getLong(eocd-20+8), zip64);
+                if(zip64.getInt(0)!=ZIP64_EOCD){
+                    throw new IOException("Invalid ZIP64 end of central directory");
+                }
+                entries = zip64.getLong(32);
+                directory = zip64.getLong(48);
+            }
+
+            ByteBuffer fixed = ByteBuffer.allocate(46).order(ByteOrder.LITTLE_ENDIAN);
+            ByteBuffer local = ByteBuffer.allocate(30).order(ByteOrder.LITTLE_ENDIAN);
+            long position = directory;
+            for(long e=0; e<entries; e++){
+                readAt(sbc, position, fixed);
+                if(fixed.getInt(0)!=CENTRAL_SIGNATURE){
+                    throw new IOException("Invalid ZIP central directory entry at "+position);
+                }
+                int flags = fixed.getShort(8) & 0xFFFF;
+                int method = fixed.getShort(10) & 0xFFFF;
+                long compressed = fixed.getInt(20) & 0xFFFFFFFFL;
+                long uncompressed = fixed.getInt(24) & 0xFFFFFFFFL;
+                int nameLength = fixed.getShort(28) & 0xFFFF;
+                int extraLength = fixed.getShort(30) & 0xFFFF;
+                int commentLength = fixed.getShort(32) & 0xFFFF;
+                long header = fixed.getInt(42) & 0xFFFFFFFFL;
+
+                ByteBuffer variable = ByteBuffer.allocate(nameLength+extraLength).order(ByteOrder.LITTLE_ENDIAN);
+                readAt(sbc, position+46, variable);
+                position += 46+nameLength+extraLength+commentLength;
+
+                Charset charset = (flags & 0x800)!=0 ? StandardCharsets.UTF_8 : StandardCharsets.ISO_8859_1;
+                String name = new String(variable.array(), 0, nameLength, charset);
+
+                // ZIP64 extended information replaces the 32-bit fields that are saturated
+                for(int x=nameLength; x+4<=variable.capacity(); ){
+                    int id = variable.getShort(x) & 0xFFFF;
+                    int length = variable.getShort(x+2) & 0xFFFF;
+                    if(id==0x0001){
+                        int field = x+4;
+                        if(uncompressed==0xFFFFFFFFL && field+8<=x+4+length){ uncompressed = variable.getLong(field); field += 8; }
+                        if(compressed==0xFFFFFFFFL && field+8<=x+4+length){ compressed = variable.getLong(field); field += 8; }
+                        if(header==0xFFFFFFFFL && field+8<=x+4+length){ header = variable.getLong(field); }
+                    }
+                    x += 4+length;
+                }
+
+                if(name.endsWith("/") || uncompressed<8){
+                    continue;
+                }
+                if((flags & 0x1)!=0 || (method!=0 && method!=8)){
+                    throw new IOException("Unsupported ZIP entry "+name+" (encrypted or compression method "+method+")");
+                }
+
+                readAt(sbc, header, local);
+                if(local.getInt(0)!=LOCAL_SIGNATURE){
+                    throw new IOException("Invalid ZIP local header for "+name);
+                }
+                long data = header+30+(local.getShort(26) & 0xFFFF)+(local.getShort(28) & 0xFFFF);
+                ByteSource stored = RangeSource.of(source, data, compressed);
+
+                if(method==0){
+                    if(isTiff(stored)){
+                        visitor.visit(name, stored);
+                    }
+                } else {
+                    Inflater inflater = new Inflater(true);
+                    try (InputStream in = new InflaterInputStream(Channels.newInputStream(stored.open()), inflater, 64*1024)){
+                        byte[] start = new byte[8];
+                        if(readFully(in, start, 0, start.length)==start.length && isTiff(start)){
+                            visitBuffered(name, new SequenceInput(start, in, uncompressed-start.length),
+                                          uncompressed, memoryLimit, visitor);
+                        }
+                    } finally {
+                        inflater.end();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads a member from a stream into memory, or a temporary file if larger than the memory limit, and
+     * visits it. The buffer is released when the visitor returns.
+     */
+    private static void visitBuffered(String name, InputStream in, long size, long memoryLimit, MemberVisitor visitor)
+            throws IOException, NoSuchAlgorithmException {
+        if(size<=memoryLimit && size<=Integer.MAX_VALUE-8){
+            byte[] data = new byte[(int) size];
+            if(readFully(in, data, 0, data.length)<data.length){
+                throw new EOFException("Truncated archive member "+name);
+            }
+            visitor.visit(name, ByteSource.of(ByteBuffer.wrap(data)));
+            return;
+        }
+
+        Path temp = Files.createTempFile("tifixity", ".tif");
+        try {
+            try (OutputStream out = Files.newOutputStream(temp)){
+                byte[] buf = new byte[64*1024];
+                long remaining = size;
+                while(remaining>0){
+                    int count = in.read(buf, 0, (int) Math.min(buf.length, remaining));
+                    if(count<0){
+                        throw new EOFException("Truncated archive member "+name);
+                    }
+                    out.write(buf, 0, count);
+                    remaining -= count;
+                }
+            }
+            visitor.visit(name, ByteSource.of(temp));
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Returns true if the bytes start with a TIFF header (II*\0 or MM\0*).
+     */
+    static boolean isTiff(byte[] header){
+        return header.length>=4
+               && (header[0]=='I' && header[1]=='I' && header[2]==42 && header[3]==0
+                   || header[0]=='M' && header[1]=='M' && header[2]==0 && header[3]==42);
+    }
+
+    private static boolean isTiff(ByteSource source) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(4);
+        try (SeekableByteChannel sbc = source.open()) {
+            readAt(sbc, 0, header);
+        }
+        return isTiff(header.array());
+    }
+
+    private static boolean isZero(byte[] block){
+        for(byte b: block){
+            if(b!=0) return false;
+        }
+        return true;
+    }
+
+    private static long padded(long size){
+        return (size+BLOCKSIZE-1)/BLOCKSIZE*BLOCKSIZE;
+    }
+
+    /**
+     * Fills the buffer from the specified position, failing if the channel ends first.
+     */
+    private static void readAt(SeekableByteChannel sbc, long position, ByteBuffer buf) throws IOException {
+        buf.clear();
+        sbc.position(position);
+        while(buf.hasRemaining()){
+            if(sbc.read(buf)<0){
+                throw new EOFException("Unexpected end of archive at "+sbc.position());
+            }
+        }
+    }
+
+    private static int readFully(InputStream in, byte[] b, int off, int len) throws IOException {
+        int total = 0;
+        while(total<len){
+            int count = in.read(b, off+total, len-total);
+            if(count<0){
+                break;
+            }
+            total += count;
+        }
+        return total;
+    }
+
+    private static void skipFully(InputStream in, long count) throws IOException {
+        byte[] buf = null;
+        while(count>0){
+            long skipped = in.skip(count);
+            if(skipped<=0){
+                // skip is not guaranteed to make progress (e.g. on some decompressing streams)
+                if(buf==null) buf = new byte[8192];
+                int read = in.read(buf, 0, (int) Math.min(buf.length, count));
+                if(read<0){
+                    throw new EOFException("Truncated TAR archive");
+                }
+                skipped = read;
+            }
+            count -= skipped;
+        }
+    }
+
+    /**
+     * The fields of a TAR header block used here, including those set by preceding GNU long name ('L') and
+     * POSIX extended ('x') headers.
+     */
+    private static class TarHeader {
+        private String  name;
+        private long    size = -1;
+        private char    type;
+
+        /**
+         * Parses a header block, using any name and size from the preceding extension headers.
+         */
+        static TarHeader parse(byte[] block, TarHeader pending) throws IOException {
+            TarHeader header = new TarHeader();
+            header.type = (char) block[156];
+            header.size = pending.size>=0 && header.type!='L' && header.type!='x' ? pending.size : number(block, 124, 12);
+            if(header.size<0){
+                throw new IOException("Invalid TAR member size: "+header.size);
+            }
+            if(header.isExtension() && header.size>MAX_EXTENSION){
+                // read into memory, so refuse rather than allocate whatever the header claims
+                throw new IOException("TAR extension header too large: "+header.size+" bytes");
+            }
+
+            String name = string(block, 0, 100);
+            if(string(block, 257, 5).equals("ustar")){
+                String prefix = string(block, 345, 155);
+                if(!prefix.isEmpty()){
+                    name = prefix+"/"+name;
+                }
+            }
+            header.name = pending.name!=null ? pending.name : name;
+            return header;
+        }
+
+        boolean isFile(){
+            return type=='0' || type==0 || type=='7';
+        }
+
+        boolean isExtension(){
+            return type=='L' || type=='x' || type=='g';
+        }
+
+        /**
+         * Applies the data of an extension header to the next header.
+         */
+        void extend(char type, byte[] data) throws IOException {
+            if(type=='L'){
+                name = string(data, 0, data.length);
+            } else if(type=='x'){
+                // records of the form "<length> <key>=<value>\n"
+                int pos = 0;
+                while(pos<data.length){
+                    int space = pos;
+                    while(space<data.length && data[space]!=' ') space++;
+                    if(space>=data.length) break;
+                    int length = integer(data, pos, space-pos);
+                    if(length<space-pos+2 || pos+length>data.length) break;
+                    String record = new String(data, space+1, pos+length-space-2, StandardCharsets.UTF_8);
+                    int equals = record.indexOf('=');
+                    if(equals>0){
+                        String key = record.substring(0, equals);
+                        String value = record.substring(equals+1);
+                        if(key.equals("path")){
+                            name = value;
+                        } else if(key.equals("size")){
+                            try {
+                                size = Long.parseLong(value);
+                            } catch (NumberFormatException nfe){
+                                throw new IOException("Invalid TAR size record: "+value);
+                            }
+                        }
+                    }
+                    pos += length;
+                }
+            }
+        }
+
+        private static int integer(byte[] b, int off, int len) throws IOException {
+            String number = new String(b, off, len, StandardCharsets.US_ASCII).trim();
+            try {
+                return Integer.parseInt(number);
+            } catch (NumberFormatException nfe){
+                throw new IOException("Invalid TAR record length: "+number);
+            }
+        }
+
+        private static String string(byte[] b, int off, int len){
+            int end = off;
+            while(end<off+len && b[end]!=0) end++;
+            return new String(b, off, end-off, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Parses an octal number field, or a base-256 field (for sizes of 8GB and over).
+         */
+        private static long number(byte[] b, int off, int len) throws IOException {
+            if((b[off] & 0x80)!=0){
+                long value = b[off] & 0x7F;
+                for(int i=1; i<len; i++){
+                    value = (value<<8) | (b[off+i] & 0xFF);
+                }
+                return value;
+            }
+            String octal = string(b, off, len).trim();
+            try {
+                return octal.isEmpty() ? 0 : Long.parseLong(octal, 8);
+            } catch (NumberFormatException nfe){
+                throw new IOException("Invalid TAR header number: "+octal);
+            }
+        }
+    }
+
+    /**
+     * An InputStream returning already-read bytes followed by a fixed number of bytes of another stream.
+     * Closing it leaves the other stream open.
+     */
+    private static class SequenceInput extends InputStream {
+        private final byte[]        start;
+        private final InputStream   rest;
+        private int     position = 0;
+        private long    remaining;
+
+        SequenceInput(byte[] start, InputStream rest, long remaining){
+            this.start = start;
+            this.rest = rest;
+            this.remaining = remaining;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1)<0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if(position<start.length){
+                int count = Math.min(len, start.length-position);
+                System.arraycopy(start, position, b, off, count);
+                position += count;
+                return count;
+            }
+            if(remaining<=0){
+                return -1;
+            }
+            int count = rest.read(b, off, (int) Math.min(len, remaining));
+            if(count>0){
+                remaining -= count;
+            }
+            return count;
+        }
+    }
+}
@@ -0,0 +1,540 @@
+/**
+ * Copyright 2016 Peter May
+ * Author: Peter May
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.bl.dpt;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * A compact, sorted binary manifest of file checksums, memory-mapped for lookup by path without reading the
+ * whole manifest into the heap.
+ *
+ * The file holds a 32-byte header, the records in the order they were added (see {@link ManifestRecord}) and
+ * an index of 16-byte entries, each the 64-bit FNV-1a hash of a record's path and the record's offset, sorted
+ * by hash. A lookup is a binary search of the index followed by a comparison of the paths of the (usually one)
+ * records with a matching hash. The index is built by an external merge sort while the manifest is written,
+ * so a manifest of any number of files is built with a bounded heap. If a path is added more than once a
+ * lookup returns the first record added.
+ */
+public final class BinaryManifest implements Closeable {
+
+    /**
+     * Receives each record of a manifest.
+     */
+    public interface RecordVisitor {
+        void visit(ManifestRecord record) throws IOException;
+    }
+
+    private static final int    MAGIC = 0x5446584D;     // "TFXM"
+    private static final int    VERSION = 1;
+    private static final int    HEADER = 32;            // magic (4), version (4), count (8), index offset (8),
+                                                        // shard index (4) and count (4), 0 if not a shard
+    private static final int    ENTRY = 16;             // path hash (8), record offset (8)
+    private static final long   SEGMENT = 1L<<30;       // bytes per mapping
+    private static final int    OVERLAP = 64<<20;       // mappings overlap so no record spans two; the largest record
+    private static final int    RUN = 4<<20;            // index entries sorted in memory before spilling to disk
+    private static final int    FIRST_RUN = 1024;       // index entries allocated for at first; grown up to RUN
+
+    private final FileChannel           channel;
+    private final MappedByteBuffer[]    segments;
+    private final long                  count;
+    private final long                  indexOffset;
+    private final Shard                 shard;
+
+    private BinaryManifest(FileChannel channel) throws IOException {
+        this.channel = channel;
+        long size = channel.size();
+        ByteBuffer header = ByteBuffer.allocate(HEADER);
+        if(size<HEADER || channel.read(header, 0)!=HEADER || header.getInt(0)!=MAGIC){
+            throw new IOException("Not a binary manifest");
+        }
+        if(header.getInt(4)!=VERSION){
+            throw new IOException("Unsupported binary manifest version "+header.getInt(4));
+        }
+        this.count = header.getLong(8);
+        this.indexOffset = header.getLong(16);
+        int shardCount = header.getInt(28);
+        this.shard = shardCount>0 ? new Shard(header.getInt(24), shardCount) : null;
+        if(count<0 || indexOffset<HEADER || indexOffset+count*ENTRY!=size){
+            throw new IOException("Corrupt binary manifest");
+        }
+
+        segments = new MappedByteBuffer[(int) ((size+SEGMENT-1)/SEGMENT)];
+        for(int i=0; i<segments.length; i++){
+            long start = i*SEGMENT;
+            segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT+OVERLAP, size-start));
+        }
+    }
+
+    /**
+     * Opens a binary manifest for lookup.
+     * @param file  the manifest file
+     * @return
+     * @throws IOException if the file is not a binary manifest
+     */
+    public static BinaryManifest open(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            return new BinaryManifest(channel);
+        } catch (IOException e){
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Creates a binary manifest, replacing any existing file.
+     * @param file  the manifest file
+     * @return a writer to add the records to
+     * @throws IOException
+     */
+    public static Writer create(Path file) throws IOException {
+        return new Writer(file, RUN);
+    }
+
+    /**
+     * Creates a binary manifest, replacing any existing file, sorting at most the specified number of index
+     * entries in memory.
+     * @param file      the manifest file
+     * @param runSize   the index entries sorted in memory before spilling to disk
+     * @return a writer to add the records to
+     * @throws IOException
+     */
+    static Writer create(Path file, int runSize) throws IOException {
+        return new Writer(file, runSize);
+    }
+
+    /**
+     * Returns true if the specified file is a binary manifest.
+     * @param file  the file
+     * @return
+     * @throws IOException
+     */
+    public static boolean isBinary(Path file) throws IOException {
+        try (InputStream in = Files.newInputStream(file)) {
+            byte[] magic = new byte[4];
+            return in.read(magic)==4 && ByteBuffer.wrap(magic).getInt()==MAGIC;
+        }
+    }
+
+    /**
+     * Returns the number of records in the manifest.
+     * @return
+     */
+    public long size(){
+        return count;
+    }
+
+    /**
+     * Returns the shard of the files this manifest was written for, or null if it covers all files.
+     * @return
+     */
+    public Shard getShard(){
+        return shard;
+    }
+
+    /**
+     * Returns the record of the specified file, or null if it is not in the manifest.
+     * @param file  the file (see {@link StripManifest#key})
+     * @return
+     */
+    public ManifestRecord get(String file){
+        return find(StripManifest.key(file));
+    }
+
+    /**
+     * Returns the record of the specified file in a manifest written under --shard, whose records are keyed by
+     * their path relative to the shard root, or null if it is not in the manifest.
+     * @param file  the file
+     * @param root  the shard root (see {@link Shard#relativePath})
+     * @return
+     */
+    public ManifestRecord get(String file, Path root){
+        return find(Shard.relativePath(file, root));
+    }
+
+    private ManifestRecord find(String key){
+        byte[] path = key.getBytes(StandardCharsets.UTF_8);
+        long hash = hash(path);
+
+        // find the first index entry with the hash
+        long low = 0, high = count;
+        while(low<high){
+            long mid = (low+high)>>>1;
+            if(entryHash(mid)<hash){
+                low = mid+1;
+            } else {
+                high = mid;
+            }
+        }
+        for(long i=low; i<count && entryHash(i)==hash; i++){
+            long offset = entryOffset(i);
+            ByteBuffer segment = segment(offset);
+            int local = (int) (offset%SEGMENT);
+            if(ManifestRecord.hasPath(segment, local, path)){
+                return ManifestRecord.read(segment, local);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Passes each record to the visitor in the order they were added.
+     * @param visitor   the callback to receive the records
+     * @throws IOException
+     */
+    public void forEach(RecordVisitor visitor) throws IOException {
+        Iterator<ManifestRecord> records = iterator();
+        while(records.hasNext()){
+            visitor.visit(records.next());
+        }
+    }
+
+    /**
+     * Returns an iterator over the records in the order they were added.
+     * @return
+     */
+    public Iterator<ManifestRecord> iterator(){
+        return new Iterator<ManifestRecord>() {
+            private long offset = HEADER;
+
+            @Override
+            public boolean hasNext() {
+                return offset<indexOffset;
+            }
+
+            @Override
+            public ManifestRecord next() {
+                if(!hasNext()){
+                    throw new NoSuchElementException();
+                }
+                ByteBuffer segment = segment(offset);
+                int local = (int) (offset%SEGMENT);
+                offset += 4+segment.getInt(local);
+                return ManifestRecord.read(segment, local);
+            }
+        };
+    }
+
+    private ByteBuffer segment(long offset){
+        return segments[(int) (offset/SEGMENT)];
+    }
+
+    private long entryHash(long entry){
+        long offset = indexOffset+entry*ENTRY;
+        return segment(offset).getLong((int) (offset%SEGMENT));
+    }
+
+    private long entryOffset(long entry){
+        long offset = indexOffset+entry*ENTRY+8;
+        return segment(offset).getLong((int) (offset%SEGMENT));
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Returns the 64-bit FNV-1a hash of a path.
+     */
+    static long hash(byte[] path){
+        long hash = 0xcbf29ce484222325L;
+        for(byte b: path){
+            hash ^= b & 0xFF;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * Writes the records of a new binary manifest. The manifest is complete, and can be opened, once the
+     * writer is closed.
+     */
+    public static final class Writer implements Closeable {
+
+        private final Path              file;
+        private final FileChannel       out;
+        private final ByteBuffer        buffer = ByteBuffer.allocate(64*1024);
+        private long                    position = HEADER;
+        private long                    count = 0;
+
+        private final int               runSize;
+        private long[]                  hashes;
+        private long[]                  offsets;
+        private int                     run = 0;
+        private final List<Path>        spills = new ArrayList<>();
+        private Shard                   shard = null;
+
+        Writer(Path file, int runSize) throws IOException {
+            this.file = file;
+            this.runSize = runSize;
+            // grown as records are added, so that small manifests stay small
+            this.hashes = new long[Math.min(runSize, FIRST_RUN)];
+            this.offsets = new long[hashes.length];
+            this.out = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                        StandardOpenOption.TRUNCATE_EXISTING);
+            out.position(HEADER);
+        }
+
+        /**
+         * Records that the manifest holds the files of the specified shard.
+         * @param shard the shard, or null if the manifest covers all files
+         */
+        public void setShard(Shard shard){
+            this.shard = shard;
+        }
+
+        /**
+         * Adds a record to the manifest.
+         * @param record    the record
+         * @throws IOException
+         */
+        public void add(ManifestRecord record) throws IOException {
+            int length = record.binaryLength();
+            if(length>OVERLAP){
+                throw new IOException("Manifest record too large: "+record.getPath());
+            }
+            if(buffer.remaining()<length){
+                flush();
+            }
+            if(length<=buffer.capacity()){
+                record.write(buffer);
+            } else {
+                ByteBuffer large = ByteBuffer.allocate(length);
+                record.write(large);
+                large.flip();
+                while(large.hasRemaining()){
+                    out.write(large);
+                }
+            }
+
+            if(run==runSize){
+                spill();
+            } else if(run==hashes.length){
+                int grown = (int) Math.min(runSize, 2L*hashes.length);
+                hashes = Arrays.copyOf(hashes, grown);
+                offsets = Arrays.copyOf(offsets, grown);
+            }
+            hashes[run] = hash(record.getPath().getBytes(StandardCharsets.UTF_8));
+            offsets[run] = position;
+            run++;
+            position += length;
+            count++;
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            while(buffer.hasRemaining()){
+                out.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        private void putLong(long value) throws IOException {
+            if(buffer.remaining()<8){
+                flush();
+            }
+            buffer.putLong(value);
+        }
+
+        /**
+         * Sorts the current run of index entries and writes it to a temporary file.
+         */
+        private void spill() throws IOException {
+            sort(hashes, offsets, 0, run-1);
+            Path spill = Files.createTempFile(file.toAbsolutePath().getParent(), "manifest", ".run");
+            spills.add(spill);
+            try (DataOutputStream runOut = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(spill)))) {
+                for(int i=0; i<run; i++){
+                    runOut.writeLong(hashes[i]);
+                    runOut.writeLong(offsets[i]);
+                }
+            }
+            run = 0;
+        }
+
+        /**
+         * Writes the index and header, completing the manifest.
+         * @throws IOException
+         */
+        @Override
+        public void close() throws IOException {
+            try {
+                flush();
+                long indexOffset = position;
+                if(spills.isEmpty()){
+                    sort(hashes, offsets, 0, run-1);
+                    for(int i=0; i<run; i++){
+                        putLong(hashes[i]);
+                        putLong(offsets[i]);
+                    }
+                } else {
+                    if(run>0){
+                        spill();
+                    }
+                    merge();
+                }
+                flush();
+
+                ByteBuffer header = ByteBuffer.allocate(HEADER);
+                header.putInt(MAGIC).putInt(VERSION).putLong(count).putLong(indexOffset);
+                header.putInt(shard==null ? 0 : shard.getIndex()).putInt(shard==null ? 0 : shard.getCount()).flip();
+                while(header.hasRemaining()){
+                    out.write(header, header.position());
+                }
+            } finally {
+                out.close();
+                for(Path spill: spills){
+                    Files.deleteIfExists(spill);
+                }
+            }
+        }
+
+        /**
+         * Merges the sorted runs into the index.
+         */
+        private void merge() throws IOException {
+            PriorityQueue<RunReader> queue = new PriorityQueue<>();
+            try {
+                for(Path spill: spills){
+                    RunReader reader = new RunReader(spill);
+                    if(reader.next()){
+                        queue.add(reader);
+                    } else {
+                        reader.close();
+                    }
+                }
+                while(!queue.isEmpty()){
+                    RunReader reader = queue.poll();
+                    putLong(reader.hash);
+                    putLong(reader.offset);
+                    if(reader.next()){
+                        queue.add(reader);
+                    } else {
+                        reader.close();
+                    }
+                }
+            } finally {
+                for(RunReader reader: queue){
+                    reader.close();
+                }
+            }
+        }
+
+        /**
+         * Sorts the parallel arrays by hash, then offset, between the inclusive bounds.
+         */
+        private static void sort(long[] hashes, long[] offsets, int low, int high){
+            while(high-low>16){
+                int mid = (low+high)>>>1;
+                long pivotHash = hashes[mid], pivotOffset = offsets[mid];
+                int i = low, j = high;
+                while(i<=j){
+                    while(compare(hashes[i], offsets[i], pivotHash, pivotOffset)<0){
+                        i++;
+                    }
+                    while(compare(hashes[j], offsets[j], pivotHash, pivotOffset)>0){
+                        j--;
+                    }
+                    if(i<=j){
+                        swap(hashes, offsets, i++, j--);
+                    }
+                }
+                // recurse into the smaller part so the stack depth is logarithmic
+                if(j-low<high-i){
+                    sort(hashes, offsets, low, j);
+                    low = i;
+                } else {
+                    sort(hashes, offsets, i, high);
+                    high = j;
+                }
+            }
+            for(int i=low+1; i<=high; i++){
+                for(int j=i; j>low && compare(hashes[j], offsets[j], hashes[j-1], offsets[j-1])<0; j--){
+                    swap(hashes, offsets, j, j-1);
+                }
+            }
+        }
+
+        private static int compare(long hashA, long offsetA, long hashB, long offsetB){
+            int c = Long.compare(hashA, hashB);
+            return c!=0 ? c : Long.compare(offsetA, offsetB);
+        }
+
+        private static void swap(long[] hashes, long[] offsets, int a, int b){
+            long h = hashes[a];
+            hashes[a] = hashes[b];
+            hashes[b] = h;
+            long o = offsets[a];
+            offsets[a] = offsets[b];
+            offsets[b] = o;
+        }
+    }
+
+    /**
+     * Reads the entries of one sorted run during the merge.
+     */
+    private static final class RunReader implements Comparable<RunReader>, Closeable {
+        private final DataInputStream   in;
+        private long                    hash;
+        private long                    offset;
+
+        RunReader(Path run) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(Files.newInputStream(run)));
+        }
+
+        boolean next() throws IOException {
+            try {
+                hash = in.readLong();
+                offset = in.readLong();
+                return true;
+            } catch (EOFException e){
+                return false;
+            }
+        }
+
+        @Override
+        public int compareTo(RunReader other){
+            return Writer.compare(hash, offset, other.hash, other.offset);
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,312 @@
+/**
+ * Copyright 2016 Peter May
+ * Author: Peter May
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.bl.dpt;
+
+import uk.bl.dpt.codec.HorizontalPredictor;
+import uk.bl.dpt.codec.StripDecoder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SeekableByteChannel;
+import java.util.Arrays;
+
+/**
+ * Reads and decodes the blocks (strips or tiles) of one subfile.
+ *
+ * Blocks are numbered as in StripOffsets/TileOffsets: plane by plane for planar images, then row of blocks
+ * by row of blocks, then left to right. A decoded block holds uncompressed samples with any horizontal
+ * predictor reversed and with 16 and 32-bit samples in big-endian order.
+ */
+class BlockDecoder {
+
+    private final Tiff          tiff;
+    private final int           subFile;
+    private final StripDecoder  decoder;
+    private final Integer[]     offsets;
+    private final Integer[]     lengths;
+
+    private final long      width;
+    private final long      height;
+    private final long      blockWidth;
+    private final long      blockLength;
+    private final boolean   tiled;
+    private final boolean   planar;
+    private final int       samplesPerPixel;
+    private final int[]     bitsPerSample;
+    private final int       predictor;
+    private final int       blocksAcross;
+    private final int       blocksDown;
+
+    /**
+     * Creates a block decoder for the specified subfile.
+     * @param tiff      the TIFF file
+     * @param subFile   the subfile index (0 indexed)
+     * @throws IOException  if the compression or predictor is not supported
+     */
+    BlockDecoder(Tiff tiff, int subFile) throws IOException {
+        this.tiff = tiff;
+        this.subFile = subFile;
+        this.decoder = StripDecoder.forCompression(tiff.getCompression(subFile));
+        this.offsets = tiff.getImageDataOffsets(subFile);
+        this.lengths = tiff.getImageDataLengths(subFile);
+
+        this.width = tiff.getImageWidth(subFile);
+        this.height = tiff.getImageLength(subFile);
+        this.tiled = tiff.isTiled(subFile);
+        this.blockWidth = tiled ? tiff.getTileWidth(subFile) : width;
+        this.blockLength = tiled ? tiff.getTileLength(subFile) : tiff.getRowsPerStrip(subFile);
+        this.planar = tiff.getPlanarConfiguration(subFile)==2;
+        this.samplesPerPixel = tiff.getSamplesPerPixel(subFile);
+        this.bitsPerSample = tiff.getBitsPerSample(subFile);
+        this.predictor = tiff.getPredictor(subFile);
+
+        if(blockWidth<=0 || blockLength<=0){
+            throw new IOException("Invalid "+(tiled ? "tile" : "strip")+" dimensions");
+        }
+        if(predictor!=1 && predictor!=2){
+            throw new IOException("Unsupported predictor: "+predictor);
+        }
+        long maxBlockBytes = tiff.getLimits().getMaxBlockBytes();
+        for(int plane=0; plane<(planar ? samplesPerPixel : 1); plane++){
+            // in floating point, as corrupt dimensions can overflow a long
+            if((double) blockWidth*bitsPerPixel(plane)/8>maxBlockBytes){
+                throw new TiffFormatException("Rows of "+blockWidth+" pixels are too large to decode");
+            }
+        }
+        long across = (width+blockWidth-1)/blockWidth;
+        long down = (height+blockLength-1)/blockLength;
+        if(across*down>Integer.MAX_VALUE){
+            throw new TiffFormatException("Too many "+(tiled ? "tiles" : "strips")+": "+across+" x "+down);
+        }
+        this.blocksAcross = (int) across;
+        this.blocksDown = (int) down;
+    }
+
+    long getWidth(){
+        return width;
+    }
+
+    long getHeight(){
+        return height;
+    }
+
+    long getBlockWidth(){
+        return blockWidth;
+    }
+
+    long getBlockLength(){
+        return blockLength;
+    }
+
+    boolean isPlanar(){
+        return planar;
+    }
+
+    int getSamplesPerPixel(){
+        return samplesPerPixel;
+    }
+
+    int[] getBitsPerSample(){
+        return bitsPerSample;
+    }
+
+    int getBlocksAcross(){
+        return blocksAcross;
+    }
+
+    int getBlocksDown(){
+        return blocksDown;
+    }
+
+    /**
+     * Returns the number of blocks recorded in the IFD
+     * @return
+     */
+    int numberOfBlocks(){
+        return offsets.length;
+    }
+
+    /**
+     * Returns the index of the block for the specified plane, row of blocks and column of blocks.
+     * @param plane     the sample plane (0 for chunky images)
+     * @param down      the row of blocks
+     * @param across    the column of blocks
+     * @return
+     */
+    int blockIndex(int plane, int down, int across){
+        return (plane*blocksDown+down)*blocksAcross+across;
+    }
+
+    /**
+     * Returns the sample plane held in the specified block (0 for chunky images).
+     * @param block the block index
+     * @return
+     */
+    int planeOf(int block){
+        return planar ? (int) Math.min(block/((long) blocksAcross*blocksDown), samplesPerPixel-1) : 0;
+    }
+
+    /**
+     * Returns the number of bits per pixel in the specified plane: one sample for planar images, all
+     * samples for chunky images.
+     * @param plane the sample plane
+     * @return
+     */
+    long bitsPerPixel(int plane){
+        if(planar){
+            return bitsPerSample[plane];
+        }
+        long total = 0;
+        for(int b: bitsPerSample){
+            total += b;
+        }
+        return total;
+    }
+
+    /**
+     * Returns the width of every sample in the specified plane, or 0 if the samples differ in width.
+     * @param plane the sample plane
+     * @return
+     */
+    int sampleBits(int plane){
+        if(planar){
+            return bitsPerSample[plane];
+        }
+        for(int b: bitsPerSample){
+            if(b!=bitsPerSample[0]){
+                return 0;
+            }
+        }
+        return bitsPerSample[0];
+    }
+
+    /**
+     * Returns the number of bytes in each row of the specified block.
+     * @param block the block index
+     * @return
+     */
+    int blockRowBytes(int block){
+        return (int) ((blockWidth*bitsPerPixel(planeOf(block))+7)/8);
+    }
+
+    /**
+     * Returns the number of rows held in the specified block. Tiles are always full size; the last strip
+     * of a plane may be short.
+     * @param block the block index
+     * @return
+     * @throws TiffFormatException  if the image has no rows of blocks
+     */
+    long rowsInBlock(int block) throws TiffFormatException {
+        if(blocksDown==0){
+            throw new TiffFormatException("No rows of "+(tiled ? "tiles" : "strips")+" to decode");
+        }
+        if(tiled){
+            return blockLength;
+        }
+        long firstRow = (block%blocksDown)*blockLength;
+        return Math.max(0, Math.min(blockLength, height-firstRow));
+    }
+
+    /**
+     * Returns the number of stored (compressed) bytes of the specified block, as recorded in the IFD.
+     * @param block the block index
+     * @return
+     */
+    long storedLength(int block){
+        return lengths[block] & 0xFFFFFFFFL;
+    }
+
+    /**
+     * Returns the number of bytes the specified block decodes to.
+     * @param block the block index
+     * @return
+     * @throws TiffFormatException  if the image has no rows of blocks
+     */
+    long decodedLength(int block) throws TiffFormatException {
+        return rowsInBlock(block)*blockRowBytes(block);
+    }
+
+    /**
+     * Reads the stored (compressed) bytes of the specified block. The array is shorter if the file is truncated.
+     * @param sbc   the channel to read from
+     * @param block the block index
+     * @return
+     * @throws IOException
+     */
+    byte[] readBlock(SeekableByteChannel sbc, int block) throws IOException {
+        Events.StripRead event = new Events.StripRead();
+        event.begin();
+        long offset = offsets[block] & 0xFFFFFFFFL;
+        // never allocate more than the file can supply
+        long length = Math.max(0, Math.min(lengths[block] & 0xFFFFFFFFL, sbc.size()-offset));
+        if(length>tiff.getLimits().getMaxBlockBytes()){
+            throw new TiffFormatException("Block too large to read: "+length+" bytes");
+        }
+        ByteBuffer buf = ByteBuffer.allocate((int) length);
+        sbc.position(offset);
+        while(buf.hasRemaining() && sbc.read(buf)>-1){
+            // keep reading until the block is complete or the file ends
+        }
+        Events.commit(event, tiff, subFile, block, offset, buf.position());
+        return buf.position()==buf.capacity() ? buf.array() : Arrays.copyOf(buf.array(), buf.position());
+    }
+
+    /**
+     * Decodes the stored bytes of the specified block. Safe to call from several threads at once.
+     * @param block     the block index
+     * @param stored    the stored bytes, as returned by {@link #readBlock}
+     * @return  the decoded block; shorter than the expected block size if the stored data is truncated
+     * @throws IOException  if the block cannot be decoded
+     */
+    byte[] decodeBlock(int block, byte[] stored) throws IOException {
+        int rowBytes = blockRowBytes(block);
+        long size = decodedLength(block);
+        if(size>tiff.getLimits().getMaxBlockBytes()){
+            throw new TiffFormatException("Block too large to decode: "+size+" bytes");
+        }
+        byte[] decoded = new byte[(int) size];
+        int n = decoder.decode(stored, stored.length, decoded);
+
+        int plane = planeOf(block);
+        int sampleBits = sampleBits(plane);
+        if(predictor==2){
+            HorizontalPredictor.undo(decoded, n, rowBytes, planar ? 1 : samplesPerPixel, sampleBits,
+                                     tiff.getByteOrder());
+        }
+        if(tiff.getByteOrder()==ByteOrder.LITTLE_ENDIAN && (sampleBits==16 || sampleBits==32)){
+            swapBytes(decoded, n, sampleBits/8);
+        }
+        return n==decoded.length ? decoded : Arrays.copyOf(decoded, n);
+    }
+
+    /**
+     * Reverses the byte order of each sample in place.
+     * @param data      the sample data
+     * @param length    the number of valid bytes
+     * @param width     the width of each sample in bytes
+     */
+    private static void swapBytes(byte[] data, int length, int width){
+        for(int i=0; i+width<=length; i+=width){
+            for(int a=i, b=i+width-1; a<b; a++, b--){
+                byte t = data[a];
+                data[a] = data[b];
+                data[b] = t;
+            }
+        }
+    }
+}
@@ -0,0 +1,162 @@
+/**
+ * Copyright 2016 Peter May
+ * Author: Peter May
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.bl.dpt;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Path;
+
+/**
+ * A {@link ByteSource} reading a TIFF held in memory. Position 0 is the buffer's position when the source was
+ * created. Digests take ranges straight from the buffer (see {@link #slice}) rather than reading them through
+ * the channel.
+ */
+class BufferSource implements ByteSource {
+
+    private final ByteBuffer buffer;
+
+    BufferSource(ByteBuffer buffer){
+        this.buffer = buffer.slice().asReadOnlyBuffer();
+    }
+
+    @Override
+    public SeekableByteChannel open(){
+        return new View(buffer.duplicate());
+    }
+
+    @Override
+    public long size(){
+        return buffer.capacity();
+    }
+
+    @Override
+    public Path getPath(){
+        return null;
+    }
+
+    /**
+     * Returns a source reading the specified range of this source's buffer, truncated at the end of the buffer.
+     * @param offset    the start of the range
+     * @param length    the length of the range
+     * @return
+     */
+    BufferSource slice(long offset, long length){
+        ByteBuffer range = buffer.duplicate();
+        int start = (int) Math.min(offset, range.capacity());
+        range.limit((int) Math.min(range.capacity(), start+length));
+        range.position(start);
+        return new BufferSource(range);
+    }
+
+    /**
+     * Returns the specified range of the buffer behind a channel opened from a BufferSource, for hashing without
+     * copying, or null if the channel does not read from memory. The range is truncated at the end of the buffer.
+     * @param sbc       a channel, possibly opened from a BufferSource
+     * @param offset    the start of the range
+     * @param length    the length of the range
+     * @return
+     */
+    static ByteBuffer slice(SeekableByteChannel sbc, long offset, long length){
+        if(!(sbc instanceof View)){
+            return null;
+        }
+        ByteBuffer range = ((View) sbc).data.duplicate();
+        int start = (int) Math.min(offset, range.capacity());
+        range.limit((int) Math.min(range.capacity(), start+length));
+        range.position(start);
+        return range;
+    }
+
+    /**
+     * A read-only channel over the buffer, with its own position.
+     */
+    private static class View implements SeekableByteChannel {
+        private final ByteBuffer data;
+        private long    position = 0;
+        private boolean open = true;
+
+        View(ByteBuffer data){
+            this.data = data;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            checkOpen();
+            if(position>=data.limit()){
+                return -1;
+            }
+            ByteBuffer src = data.duplicate();
+            src.position((int) position);
+            src.limit((int) Math.min(data.limit(), position+dst.remaining()));
+            int count = src.remaining();
+            dst.put(src);
+            position += count;
+            return count;
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public long position() throws IOException {
+            checkOpen();
+            return position;
+        }
+
+        @Override
+        public SeekableByteChannel position(long newPosition) throws IOException {
+            checkOpen();
+            if(newPosition<0){
+                throw new IllegalArgumentException("Negative position: "+newPosition);
+            }
+            position = newPosition;
+            return this;
+        }
+
+        @Override
+        public long size() throws IOException {
+            checkOpen();
+            return data.limit();
+        }
+
+        @Override
+        public SeekableByteChannel truncate(long size) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() {
+            open = false;
+        }
+
+        private void checkOpen() throws ClosedChannelException {
+            if(!open){
+                throw new ClosedChannelException();
+            }
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/**
+ * Copyright 2016 Peter May
+ * Author: Peter May
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.bl.dpt;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Per-thread buffers reused across files, so that parsing and digesting allocate little beyond their results.
+ *
+ * Each thread has one buffer per purpose; a caller must be finished with a buffer before asking for the same
+ * purpose again. Buffers are returned cleared, limited to the requested size and in big-endian order. Requests
+ * larger than {@link #MAX_POOLED} are allocated afresh rather than pinned to the thread.
+ */
+final class Buffers {
+
+    /** Size of the buffer used to stream file data into digests */
+    static final int READ_SIZE = 64*1024;
+
+    static final int MAX_POOLED = 1024*1024;
+
+    private static final ThreadLocal<Buffers> LOCAL = new ThreadLocal<Buffers>() {
+        @Override
+        protected Buffers initialValue() {
+            return new Buffers();
+        }
+    };
+
+    private static final int STRUCTURE = 0;
+    private static final int VALUE     = 1;
+
+    private final ByteBuffer    read = ByteBuffer.allocate(READ_SIZE);
+    private final ByteBuffer[]  pooled = { ByteBuffer.allocate(4096), ByteBuffer.allocate(1024) };
+
+    private Buffers(){
+    }
+
+    /**
+     * Returns this thread's buffer for streaming file data, of {@link #READ_SIZE} bytes.
+     * @return
+     */
+    static ByteBuffer read(){
+        ByteBuffer buf = LOCAL.get().read;
+        buf.clear();
+        return buf.order(ByteOrder.BIG_ENDIAN);
+    }
+
+    /**
+     * Returns this thread's buffer for file structures (headers and IFDs), limited to the specified size.
+     * @param size  the number of bytes needed
+     * @return
+     */
+    static ByteBuffer structure(int size){
+        return LOCAL.get().get(STRUCTURE, size);
+    }
+
+    /**
+     * Returns this thread's buffer for tag values, limited to the specified size.
+     * @param size  the number of bytes needed
+     * @return
+     */
+    static ByteBuffer value(int size){
+        return LOCAL.get().get(VALUE, size);
+    }
+
+    /**
+     * Returns the pooled buffer for the specified purpose, growing it if it is too small.
+     */
+    private ByteBuffer get(int purpose, int size){
+        if(size>MAX_POOLED){
+            return ByteBuffer.allocate(size);
+        }
+        ByteBuffer buf = pooled[purpose];
+        if(size>buf.capacity()){
+            buf = ByteBuffer.allocate(Math.min(MAX_POOLED, Math.max(size, 2*buf.capacity())));
+            pooled[purpose] = buf;
+        }
+        buf.clear();
+        buf.limit(size);
+        return buf.order(ByteOrder.BIG_ENDIAN);
+    }
+}
@@ -0,0 +1,114 @@
+/**
+ * Copyright 2016 Peter May
+ * Author: Peter May
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.bl.dpt;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Path;
+
+/**
+ * A source of TIFF bytes that the parser and digests read from: a file, an open channel or a buffer in memory.
+ *
+ * Each call to {@link #open()} returns a new read-only channel with its own position, so a source may be read
+ * by several threads at once. Closing such a channel does not close the source; the caller that supplied an
+ * open channel or buffer remains responsible for it.
+ */
+public interface ByteSource {
+
+    /**
+     * Opens a new read-only channel over the source, positioned at the start.
+     * @return
+     * @throws IOException
+     */
+    SeekableByteChannel open() throws IOException;
+
+    /**
+     * Returns the size of the source in bytes.
+     * @return
+     * @throws IOException
+     */
+    long size() throws IOException;
+
+    /**
+     * Returns the path of the file the source reads from, or null if it is not a file.
+     * @return
+     */
+    Path getPath();
+
+    /**
+     * Returns a source reading the specified file. Each channel opens the file afresh and is throttled by
+     * {@link IOThrottle#GLOBAL}.
+     * @param path  the file to read
+     * @return
+     */
+    static ByteSource of(Path path){
+        return new PathSource(path);
+    }
+
+    /**
+     * Returns a source reading the specified file, with or without direct I/O regardless of
+     * {@link #setDirectIO}. Each channel opens the file afresh and is throttled by {@link IOThrottle#GLOBAL}.
+     * @param path      the file to read
+     * @param directIO  true to read the file with direct I/O, where supported
+     * @return
+     */
+    static ByteSource of(Path path, boolean directIO){
+        return new PathSource(path, directIO);
+    }
+
+    /**
+     * Sets whether files opened through {@link #of(Path)} sources are read with direct I/O, bypassing the
+     * operating system's page cache so that a full scan does not evict other applications' data. Falls back to
+     * ordinary reads where direct I/O is not supported. Off by default.
+     * @param enabled   true to read files with direct I/O
+     */
+    static void setDirectIO(boolean enabled){
+        PathSource.directIO = enabled;
+    }
+
+    /**
+     * Returns a source reading an open file channel, using positional reads that leave the channel's own
+     * position unchanged. Reads are throttled by {@link IOThrottle#GLOBAL}.
+     * @param channel   the channel to read
+     * @return
+     */
+    static ByteSource of(FileChannel channel){
+        return new ChannelSource(channel);
+    }
+
+    /**
+     * Returns a source reading an open seekable channel. Reads are serialised on the channel, whose position
+     * is changed by each read. Reads are throttled by {@link IOThrottle#GLOBAL}.
+     * @param channel   the channel to read
+     * @return
+     */
+    static ByteSource of(SeekableByteChannel channel){
+        return channel instanceof FileChannel ? of((FileChannel) channel) : new ChannelSource(channel);
+    }
+
+    /**
+     * Returns a source reading the remaining bytes of the specified buffer, which is not modified. Ranges are
+     * hashed directly from the buffer without copying.
+     * @param buffer    the buffer holding the TIFF
+     * @return
+     */
+    static ByteSource of(ByteBuffer buffer){
+        return new BufferSource(buffer);
+    }
+}
@@ -0,0 +1,133 @@
+/**
+ * Copyright 2016 Peter May
+ * Author: Peter May
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.bl.dpt;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Path;
+
+/**
+ * A {@link ByteSource} reading a channel opened by the caller. Each channel returned by {@link #open()} keeps its
+ * own position and reads at that position: a {@link FileChannel} is read with positional reads, any other
+ * channel by seeking and reading while holding the channel's lock.
+ */
+class ChannelSource implements ByteSource {
+
+    private final SeekableByteChannel channel;
+
+    ChannelSource(SeekableByteChannel channel){
+        this.channel = channel;
+    }
+
+    @Override
+    public SeekableByteChannel open() throws IOException {
+        return new ThrottledChannel(new View(), IOThrottle.GLOBAL);
+    }
+
+    @Override
+    public long size() throws IOException {
+        return channel.size();
+    }
+
+    @Override
+    public Path getPath(){
+        return null;
+    }
+
+    /**
+     * Reads from the channel at the specified position.
+     */
+    private int read(ByteBuffer dst, long position) throws IOException {
+        if(channel instanceof FileChannel){
+            return ((FileChannel) channel).read(dst, position);
+        }
+        synchronized (channel) {
+            channel.position(position);
+            return channel.read(dst);
+        }
+    }
+
+    /**
+     * An independent read-only view of the channel. Closing the view leaves the channel open.
+     */
+    private class View implements SeekableByteChannel {
+        private long    position = 0;
+        private boolean open = true;
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            checkOpen();
+            int count = ChannelSource.this.read(dst, position);
+            if(count>0){
+                position += count;
+            }
+            return count;
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public long position() throws IOException {
+            checkOpen();
+            return position;
+        }
+
+        @Override
+        public SeekableByteChannel position(long newPosition) throws IOException {
+            checkOpen();
+            if(newPosition<0){
+                throw new IllegalArgumentException("Negative position: "+newPosition);
+            }
+            position = newPosition;
+            return this;
+        }
+
+        @Override
+        public long size() throws IOException {
+            checkOpen();
+            return channel.size();
+        }
+
+        @Override
+        public SeekableByteChannel truncate(long size) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open && channel.isOpen();
+        }
+
+        @Override
+        public void close() {
+            open = false;
+        }
+
+        private void checkOpen() throws ClosedChannelException {
+            if(!isOpen()){
+                throw new ClosedChannelException();
+            }
+        }
+    }
+}
@@ -0,0 +1,228 @@
+/**
+ * Copyright 2016 Peter May
+ * Author: Peter May
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.bl.dpt;
+
+import com.sun.nio.file.ExtendedOpenOption;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A read-only {@link SeekableByteChannel} on a file opened with {@link ExtendedOpenOption#DIRECT}, so that reads
+ * bypass (and do not evict) the operating system's page cache.
+ *
+ * Direct reads must start at a block-aligned offset, into a block-aligned buffer, for a whole number of blocks.
+ * The channel therefore reads aligned windows of the file into its own direct buffer and copies out the bytes
+ * asked for; the bytes either side of a strip that an aligned read over-reads are kept and serve the next read
+ * if it falls within the same window. Callers see ordinary channel semantics.
+ *
+ * Where the platform or filesystem does not support direct I/O, the file is read through the page cache
+ * instead. Physical reads are throttled by the specified {@link IOThrottle}.
+ */
+class DirectChannel implements SeekableByteChannel {
+
+    /** Default size of the aligned read window */
+    static final int WINDOW = 1024*1024;
+
+    // Default-sized windows, aligned for any block size dividing POOL_ALIGNMENT, are reused across channels
+    private static final int POOL_ALIGNMENT = 4096;
+    private static final int POOL_SIZE = 2*Runtime.getRuntime().availableProcessors();
+    private static final ConcurrentLinkedQueue<ByteBuffer> POOL = new ConcurrentLinkedQueue<>();
+
+    private final Path          path;
+    private final IOThrottle    throttle;
+    private final FileChannel   channel;
+    private SeekableByteChannel fallback;
+    private final long          alignment;
+    private final boolean       pooled;
+    private ByteBuffer          window;
+
+    private long    windowStart = 0;    // file offset of the first byte in the window
+    private int     windowLength = 0;   // number of valid bytes in the window
+    private long    position = 0;
+
+    private DirectChannel(Path path, IOThrottle throttle, FileChannel channel, int alignment, int windowSize){
+        this.path = path;
+        this.throttle = throttle;
+        this.channel = channel;
+        this.alignment = alignment;
+        this.pooled = windowSize==WINDOW && POOL_ALIGNMENT%alignment==0;
+        if(pooled){
+            ByteBuffer buf = POOL.poll();
+            this.window = buf!=null ? buf : ByteBuffer.allocateDirect(WINDOW+POOL_ALIGNMENT).alignedSlice(POOL_ALIGNMENT);
+        } else {
+            int size = Math.max(alignment, windowSize/alignment*alignment);
+            this.window = ByteBuffer.allocateDirect(size+alignment).alignedSlice(alignment);
+        }
+    }
+
+    /**
+     * Opens the specified file for direct reads with the default window size, or for ordinary reads if direct
+     * I/O is not supported.
+     * @param path      the file to open
+     * @param throttle  the throttle for physical reads
+     * @return
+     * @throws IOException
+     */
+    static SeekableByteChannel open(Path path, IOThrottle throttle) throws IOException {
+        return open(path, throttle, WINDOW);
+    }
+
+    /**
+     * Opens the specified file for direct reads, or for ordinary reads if direct I/O is not supported.
+     * @param path          the file to open
+     * @param throttle      the throttle for physical reads
+     * @param windowSize    the size of the aligned read window (rounded down to a whole number of blocks)
+     * @return
+     * @throws IOException
+     */
+    static SeekableByteChannel open(Path path, IOThrottle throttle, int windowSize) throws IOException {
+        FileChannel channel;
+        int alignment;
+        try {
+            alignment = (int) Files.getFileStore(path).getBlockSize();
+            channel = FileChannel.open(path, StandardOpenOption.READ, ExtendedOpenOption.DIRECT);
+        } catch (UnsupportedOperationException | IOException e){
+            // no direct I/O here (or no such file, which the ordinary open reports)
+            return new ThrottledChannel(Files.newByteChannel(path), throttle);
+        }
+        return new DirectChannel(path, throttle, channel, alignment, windowSize);
+    }
+
+    /**
+     * Returns true if reads are bypassing the page cache.
+     * @return
+     */
+    boolean isDirect(){
+        return fallback==null;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        if(!isOpen()){
+            throw new ClosedChannelException();
+        }
+        if(fallback!=null){
+            fallback.position(position);
+            int n = fallback.read(dst);
+            if(n>0){
+                position += n;
+            }
+            return n;
+        }
+
+        int total = 0;
+        while(dst.hasRemaining()){
+            if(position<windowStart || position>=windowStart+windowLength){
+                if(!fill(position)){
+                    break;
+                }
+                if(fallback!=null){
+                    int n = read(dst);
+                    return total>0 ? total+Math.max(0, n) : n;
+                }
+            }
+            int from = (int) (position-windowStart);
+            int n = Math.min(dst.remaining(), windowLength-from);
+            window.limit(from+n).position(from);
+            dst.put(window);
+            position += n;
+            total += n;
+        }
+        return total==0 && dst.hasRemaining() ? -1 : total;
+    }
+
+    /**
+     * Reads the aligned window containing the specified offset.
+     * @param offset    the file offset needed
+     * @return  false if the offset is at or beyond the end of the file
+     * @throws IOException
+     */
+    private boolean fill(long offset) throws IOException {
+        long start = offset-offset%alignment;
+        window.clear();
+        int n;
+        try {
+            // a direct read returns short only at the end of the file
+            n = channel.read(window, start);
+        } catch (IOException e){
+            // some filesystems accept the open but not the reads
+            channel.close();
+            fallback = new ThrottledChannel(Files.newByteChannel(path), throttle);
+            windowLength = 0;
+            return true;
+        }
+        windowStart = start;
+        windowLength = Math.max(0, n);
+        throttle.acquire(windowLength);
+        return offset<windowStart+windowLength;
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public long position() {
+        return position;
+    }
+
+    @Override
+    public SeekableByteChannel position(long newPosition) {
+        if(newPosition<0){
+            throw new IllegalArgumentException("Negative position");
+        }
+        position = newPosition;
+        return this;
+    }
+
+    @Override
+    public long size() throws IOException {
+        return fallback!=null ? fallback.size() : channel.size();
+    }
+
+    @Override
+    public SeekableByteChannel truncate(long size) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return fallback!=null ? fallback.isOpen() : channel.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+        if(fallback!=null){
+            fallback.close();
+        }
+        if(pooled && window!=null && POOL.size()<POOL_SIZE){
+            POOL.offer(window);
+        }
+        window = null;
+    }
+}
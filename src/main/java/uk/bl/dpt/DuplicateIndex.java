@@ -0,0 +1,360 @@
+/**
+ * Copyright 2016 Peter May
+ * Author: Peter May
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.bl.dpt;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An index of image digests finding files that hold the same image, under different names or with different
+ * metadata, across a whole collection.
+ *
+ * The index is an open-addressing hash table (linear probing) in a memory-mapped file, so it holds hundreds of
+ * millions of entries with next to no Java heap. Each 32-byte slot holds a 16-byte MD5 image digest, the
+ * number of files with that digest and the position of the latest of them in an append-only log of file names;
+ * each log record points back to the previous file with the same digest. The table doubles when it is 70% full.
+ * Both files are created in the specified directory and deleted when the index is closed.
+ */
+public final class DuplicateIndex implements Closeable {
+
+    /**
+     * Receives each group of files with the same image digest.
+     */
+    public interface GroupVisitor {
+        void visit(String digest, List<Member> members) throws IOException;
+    }
+
+    /**
+     * A subfile in a duplicate group.
+     */
+    public static final class Member {
+        private final String    file;
+        private final int       subFile;
+
+        Member(String file, int subFile){
+            this.file = file;
+            this.subFile = subFile;
+        }
+
+        public String getFile(){
+            return file;
+        }
+
+        public int getSubFile(){
+            return subFile;
+        }
+
+        @Override
+        public String toString(){
+            return file+" ["+subFile+"]";
+        }
+    }
+
+    private static final int    SLOT = 32;          // digest (16), log position (8), count (4), unused (4)
+    private static final int    HEAD = 16;
+    private static final int    COUNT = 24;
+    private static final long   SEGMENT = 1L<<30;   // bytes of table per mapping
+    private static final double LOAD = 0.7;
+    private static final int    LOG_BUFFER = 64*1024;
+
+    private final Path          dir;
+    private Path                tableFile;
+    private FileChannel         table;
+    private MappedByteBuffer[]  segments;
+    private long                capacity;           // slots, a power of 2
+    private long                used = 0;           // distinct digests
+    private long                entries = 0;
+
+    private final Path          logFile;
+    private final FileChannel   log;
+    private final ByteBuffer    logBuffer = ByteBuffer.allocate(LOG_BUFFER);
+    private long                logSize = 0;        // bytes written, including those still buffered
+
+    /**
+     * Creates an empty index with its files in the specified directory.
+     * @param dir       the directory to hold the index files
+     * @param expected  the expected number of distinct digests, to size the table (it grows if exceeded)
+     * @throws IOException
+     */
+    public DuplicateIndex(Path dir, long expected) throws IOException {
+        this.dir = dir;
+        long slots = 1024;
+        while(slots*LOAD<expected){
+            slots <<= 1;
+        }
+        this.logFile = Files.createTempFile(dir, "duplicates", ".log");
+        this.log = FileChannel.open(logFile, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        createTable(slots);
+    }
+
+    /**
+     * Returns the number of subfiles added.
+     * @return
+     */
+    public long size(){
+        return entries;
+    }
+
+    /**
+     * Returns the number of distinct image digests added.
+     * @return
+     */
+    public long distinct(){
+        return used;
+    }
+
+    /**
+     * Adds a subfile's image digest to the index.
+     * @param digest    the hex image digest (32 hex digits)
+     * @param file      the file
+     * @param subFile   the subfile index
+     * @return  the number of subfiles now in the index with the same digest
+     * @throws IOException
+     */
+    public int add(String digest, String file, int subFile) throws IOException {
+        if(digest.length()!=32){
+            throw new IllegalArgumentException("Not an MD5 digest: "+digest);
+        }
+        long high = Long.parseUnsignedLong(digest.substring(0, 16), 16);
+        long low = Long.parseUnsignedLong(digest.substring(16), 16);
+
+        long slot = high & (capacity-1);
+        while(true){
+            ByteBuffer segment = segments[(int) (slot*SLOT/SEGMENT)];
+            int offset = (int) (slot*SLOT%SEGMENT);
+            int count = segment.getInt(offset+COUNT);
+            if(count==0){
+                segment.putLong(offset, high);
+                segment.putLong(offset+8, low);
+                segment.putLong(offset+HEAD, append(-1, file, subFile));
+                segment.putInt(offset+COUNT, 1);
+                entries++;
+                if(++used>capacity*LOAD){
+                    grow();
+                }
+                return 1;
+            }
+            if(segment.getLong(offset)==high && segment.getLong(offset+8)==low){
+                segment.putLong(offset+HEAD, append(segment.getLong(offset+HEAD), file, subFile));
+                segment.putInt(offset+COUNT, count+1);
+                entries++;
+                return count+1;
+            }
+            slot = (slot+1) & (capacity-1);
+        }
+    }
+
+    /**
+     * Adds the image digests in a file's Tifixity output ("Image MD5 [n]: ..." lines). For archive output the
+     * digests are attributed to the member named by the preceding "File: ..." line.
+     * @param file      the file the output is for
+     * @param output    the output
+     * @throws IOException
+     */
+    public void addOutput(String file, String output) throws IOException {
+        String current = file;
+        for(String line: output.split("\n")){
+            if(line.startsWith("File: ")){
+                current = line.substring(6);
+            } else if(line.startsWith("Image MD5 [")){
+                int close = line.indexOf("]: ");
+                if(close>0){
+                    add(line.substring(close+3).trim(), current, Integer.parseInt(line.substring(11, close)));
+                }
+            }
+        }
+    }
+
+    /**
+     * Passes each group of two or more subfiles with the same image digest to the visitor, members in the order
+     * they were added. Groups are visited in table order.
+     * @param visitor   the callback to receive the groups
+     * @throws IOException
+     */
+    public void forEachGroup(GroupVisitor visitor) throws IOException {
+        flushLog();
+        for(long slot=0; slot<capacity; slot++){
+            ByteBuffer segment = segments[(int) (slot*SLOT/SEGMENT)];
+            int offset = (int) (slot*SLOT%SEGMENT);
+            if(segment.getInt(offset+COUNT)>1){
+                List<Member> members = new ArrayList<>();
+                for(long record=segment.getLong(offset+HEAD); record>=0; ){
+                    record = readRecord(record, members);
+                }
+                Collections.reverse(members);
+                visitor.visit(String.format("%016x%016x", segment.getLong(offset), segment.getLong(offset+8)),
+                              members);
+            }
+        }
+    }
+
+    /**
+     * Prints each group of duplicate images.
+     * @param out   the stream to print to
+     * @return  the number of groups
+     * @throws IOException
+     */
+    public long report(final PrintStream out) throws IOException {
+        final long[] groups = new long[1];
+        forEachGroup(new GroupVisitor() {
+            @Override
+            public void visit(String digest, List<Member> members) {
+                out.print("Duplicate image "+digest+" ("+members.size()+" subfiles):\n");
+                for(Member member: members){
+                    out.print("  "+member+"\n");
+                }
+                groups[0]++;
+            }
+        });
+        return groups[0];
+    }
+
+    /**
+     * Closes the index and deletes its files.
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        segments = null;
+        table.close();
+        log.close();
+        Files.deleteIfExists(tableFile);
+        Files.deleteIfExists(logFile);
+    }
+
+    /**
+     * Creates and maps an empty table file with the specified number of slots.
+     */
+    private void createTable(long slots) throws IOException {
+        tableFile = Files.createTempFile(dir, "duplicates", ".table");
+        table = FileChannel.open(tableFile, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        capacity = slots;
+        long bytes = slots*SLOT;
+        segments = new MappedByteBuffer[(int) ((bytes+SEGMENT-1)/SEGMENT)];
+        for(int i=0; i<segments.length; i++){
+            // mapping past the end extends the file with zeros (sparse where supported)
+            segments[i] = table.map(FileChannel.MapMode.READ_WRITE, i*SEGMENT, Math.min(SEGMENT, bytes-i*SEGMENT));
+        }
+    }
+
+    /**
+     * Doubles the table, re-inserting every occupied slot.
+     */
+    private void grow() throws IOException {
+        MappedByteBuffer[] oldSegments = segments;
+        long oldCapacity = capacity;
+        FileChannel oldTable = table;
+        Path oldFile = tableFile;
+
+        createTable(oldCapacity*2);
+        for(long slot=0; slot<oldCapacity; slot++){
+            ByteBuffer from = oldSegments[(int) (slot*SLOT/SEGMENT)];
+            int fromOffset = (int) (slot*SLOT%SEGMENT);
+            if(from.getInt(fromOffset+COUNT)==0){
+                continue;
+            }
+            long target = from.getLong(fromOffset) & (capacity-1);
+            while(true){
+                ByteBuffer to = segments[(int) (target*SLOT/SEGMENT)];
+                int toOffset = (int) (target*SLOT%SEGMENT);
+                if(to.getInt(toOffset+COUNT)==0){
+                    for(int i=0; i<SLOT; i+=8){
+                        to.putLong(toOffset+i, from.getLong(fromOffset+i));
+                    }
+                    break;
+                }
+                target = (target+1) & (capacity-1);
+            }
+        }
+
+        oldTable.close();
+        try {
+            Files.deleteIfExists(oldFile);
+        } catch (IOException e){
+            // still mapped on some platforms; removed when the JVM exits
+            oldFile.toFile().deleteOnExit();
+        }
+    }
+
+    /**
+     * Appends a log record: the previous record with the same digest, the subfile and the file name.
+     * @return  the position of the record
+     */
+    private long append(long previous, String file, int subFile) throws IOException {
+        byte[] name = file.getBytes(StandardCharsets.UTF_8);
+        int length = 16+name.length;
+        if(logBuffer.remaining()<length){
+            flushLog();
+        }
+        long position = logSize;
+        if(length>logBuffer.capacity()){
+            ByteBuffer record = ByteBuffer.allocate(length);
+            record.putLong(previous).putInt(subFile).putInt(name.length).put(name).flip();
+            while(record.hasRemaining()){
+                log.write(record, logSize+record.position());
+            }
+        } else {
+            logBuffer.putLong(previous).putInt(subFile).putInt(name.length).put(name);
+        }
+        logSize += length;
+        return position;
+    }
+
+    private void flushLog() throws IOException {
+        logBuffer.flip();
+        long position = logSize-logBuffer.remaining();
+        while(logBuffer.hasRemaining()){
+            position += log.write(logBuffer, position);
+        }
+        logBuffer.clear();
+    }
+
+    /**
+     * Reads the log record at the specified position into the members list.
+     * @return  the position of the previous record with the same digest, or -1
+     */
+    private long readRecord(long position, List<Member> members) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(16);
+        readFully(header, position);
+        header.flip();
+        long previous = header.getLong();
+        int subFile = header.getInt();
+        ByteBuffer name = ByteBuffer.allocate(header.getInt());
+        readFully(name, position+16);
+        members.add(new Member(new String(name.array(), StandardCharsets.UTF_8), subFile));
+        return previous;
+    }
+
+    private void readFully(ByteBuffer buf, long position) throws IOException {
+        while(buf.hasRemaining()){
+            if(log.read(buf, position+buf.position())<0){
+                throw new IOException("Truncated duplicate index log");
+            }
+        }
+    }
+}
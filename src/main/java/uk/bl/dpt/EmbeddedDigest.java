@@ -0,0 +1,332 @@
+/**
+ * Copyright 2016 Peter May
+ * Author: Peter May
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.bl.dpt;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Image checksums stored in the TIFF itself, in a private tag of each IFD, so a file can be verified without
+ * a separate database.
+ *
+ * Embedding is append-only: a copy of every IFD, with the tag added, is written at the end of the file together
+ * with the tag values, and only then is the header repointed to the new chain. The image data and the existing
+ * tag values are not moved or rewritten, so the write is proportional to the metadata and the image checksums
+ * are unchanged. A crash before the header is repointed leaves the original file intact apart from unreferenced
+ * bytes at its end. The old IFDs remain in the file, unreferenced, so the full and non-image data checksums do
+ * change. Verifying reads the embedded checksums and recalculates only the image data.
+ */
+public final class EmbeddedDigest {
+
+    /** The private tag holding a subfile's image checksum, as ASCII "MD5 " followed by the hex digest */
+    public static final int TAG = 65100;
+
+    private static final String PREFIX = "MD5 ";
+
+    // the parser keys tags by their signed 16-bit value
+    private static final int KEY = (short) TAG;
+
+    /**
+     * The embedded and calculated image checksums of one file.
+     */
+    public static class Result {
+        private final String    file;
+        private final String[]  embedded;
+        private final String[]  computed;
+        private final boolean   written;
+
+        Result(String file, String[] embedded, String[] computed, boolean written){
+            this.file = file;
+            this.embedded = embedded;
+            this.computed = computed;
+            this.written = written;
+        }
+
+        /**
+         * Returns the number of subfiles.
+         * @return
+         */
+        public int numberOfSubfiles(){
+            return computed.length;
+        }
+
+        /**
+         * Returns the image checksum embedded in the specified subfile, or null if none.
+         * @param subFile   the subfile index (0 indexed)
+         * @return
+         */
+        public String getEmbedded(int subFile){
+            return embedded[subFile];
+        }
+
+        /**
+         * Returns the image checksum calculated for the specified subfile.
+         * @param subFile   the subfile index (0 indexed)
+         * @return
+         */
+        public String getComputed(int subFile){
+            return computed[subFile];
+        }
+
+        /**
+         * Returns true if this check embedded the checksums in the file.
+         * @return
+         */
+        public boolean isWritten(){
+            return written;
+        }
+
+        /**
+         * Returns true if every subfile has an embedded checksum.
+         * @return
+         */
+        public boolean isEmbedded(){
+            for(String e: embedded){
+                if(e==null){
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Returns true if every subfile has an embedded checksum matching its image data.
+         * @return
+         */
+        public boolean isOK(){
+            return isEmbedded() && differences().isEmpty();
+        }
+
+        /**
+         * Returns a description of each subfile whose embedded checksum does not match its image data.
+         */
+        private List<String> differences(){
+            List<String> differences = new ArrayList<>();
+            for(int i=0; i<computed.length; i++){
+                if(embedded[i]!=null && !embedded[i].equals(computed[i])){
+                    differences.add("Image MD5 ["+i+"]: embedded "+embedded[i]+", calculated "+computed[i]);
+                }
+            }
+            return differences;
+        }
+
+        @Override
+        public String toString(){
+            List<String> differences = differences();
+            if(!differences.isEmpty()){
+                StringBuilder sb = new StringBuilder("FAIL ").append(file);
+                for(String d: differences){
+                    sb.append("\n  ").append(d);
+                }
+                return sb.toString();
+            }
+            if(written){
+                return "EMBEDDED "+file;
+            }
+            return (isEmbedded() ? "OK " : "UNKNOWN ")+file;
+        }
+    }
+
+    private EmbeddedDigest(){
+    }
+
+    /**
+     * Returns the image checksum embedded in the specified subfile, or null if none.
+     * @param tiff      the TIFF file
+     * @param subFile   the subfile index (0 indexed)
+     * @return
+     */
+    public static String getEmbedded(Tiff tiff, int subFile){
+        IFD.DirectoryEntry entry = tiff.getIFD(subFile).getDirectoryEntry(KEY);
+        if(entry==null || entry.getType()!=IFDType.ASCII){
+            return null;
+        }
+        StringBuilder value = new StringBuilder();
+        for(Object c: entry.getValue()){
+            if((Character) c==0){
+                break;
+            }
+            value.append((char) (Character) c);
+        }
+        return value.toString().startsWith(PREFIX) ? value.substring(PREFIX.length()) : null;
+    }
+
+    /**
+     * Checks the embedded image checksums of the specified file against its image data.
+     * @param file  the TIFF file to verify
+     * @return
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    public static Result verify(String file) throws IOException, NoSuchAlgorithmException {
+        Tiff tiff = TiffFileHandler.loadTiff(ByteSource.of(Paths.get(file)));
+        return check(file, tiff);
+    }
+
+    /**
+     * Embeds the image checksum of each subfile in the specified file, unless the file already holds them.
+     * A file whose embedded checksums do not match its image data is left unchanged, so the mismatch is not
+     * lost; the result reports it.
+     * @param file  the TIFF file to update
+     * @return
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     * @throws TiffFormatException  if the file is malformed or would grow beyond 4GB
+     */
+    public static Result embed(String file) throws IOException, NoSuchAlgorithmException {
+        Path path = Paths.get(file);
+        Tiff tiff = TiffFileHandler.loadTiff(ByteSource.of(path));
+        Result result = check(file, tiff);
+        if(result.isEmbedded() || !result.differences().isEmpty()){
+            return result;
+        }
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            append(channel, tiff, result.computed);
+        }
+        return new Result(file, result.computed, result.computed, true);
+    }
+
+    /**
+     * Reads the embedded checksums of a loaded TIFF and calculates its image checksums.
+     */
+    private static Result check(String file, Tiff tiff) throws IOException, NoSuchAlgorithmException {
+        int subfiles = tiff.numberOfIFDs();
+        String[] embedded = new String[subfiles];
+        String[] computed = new String[subfiles];
+        for(int i=0; i<subfiles; i++){
+            embedded[i] = getEmbedded(tiff, i);
+            computed[i] = Tifixity.calculateImageDigest(tiff, i);
+        }
+        return new Result(file, embedded, computed, false);
+    }
+
+    /**
+     * Appends a copy of each IFD holding its checksum, then points the header at the first copy.
+     */
+    private static void append(FileChannel channel, Tiff tiff, String[] checksums) throws IOException {
+        ByteOrder order = tiff.getByteOrder();
+        int subfiles = tiff.numberOfIFDs();
+        long end = channel.size();
+        long start = end+(end & 1);     // IFDs and values begin on a word boundary
+
+        // lay out each subfile's value followed by its IFD, whose entries keep pointing at the existing values
+        List<List<byte[]>> entries = new ArrayList<>();
+        byte[][] values = new byte[subfiles][];
+        long[] valueOffsets = new long[subfiles];
+        long[] ifdOffsets = new long[subfiles];
+        long position = start;
+        for(int i=0; i<subfiles; i++){
+            values[i] = (PREFIX+checksums[i]+"\0").getBytes(StandardCharsets.US_ASCII);
+            valueOffsets[i] = position;
+            position += values[i].length+(values[i].length & 1);
+
+            List<byte[]> ifd = readEntries(channel, tiff.getIFD(i).getOffset(), order);
+            ifd.add(ByteBuffer.allocate(12).order(order).putShort((short) TAG).putShort(IFDType.ASCII.getTypeValue())
+                              .putInt(values[i].length).putInt((int) valueOffsets[i]).array());
+            sort(ifd, order);
+            entries.add(ifd);
+            ifdOffsets[i] = position;
+            position += 2+12*ifd.size()+4;
+        }
+        if(position>0xFFFFFFFFL){
+            throw new TiffFormatException("Appending the IFDs would take the file beyond 4GB");
+        }
+
+        ByteBuffer out = ByteBuffer.allocate((int) (position-end)).order(order);
+        out.position((int) (start-end));
+        for(int i=0; i<subfiles; i++){
+            out.put(values[i]);
+            out.position((int) (ifdOffsets[i]-end));
+            out.putShort((short) entries.get(i).size());
+            for(byte[] entry: entries.get(i)){
+                out.put(entry);
+            }
+            out.putInt(i+1<subfiles ? (int) ifdOffsets[i+1] : 0);
+        }
+        out.flip();
+        write(channel, out, end);
+        channel.force(false);
+
+        // only now is the new chain reachable
+        ByteBuffer header = ByteBuffer.allocate(4).order(order);
+        header.putInt(0, (int) ifdOffsets[0]);
+        write(channel, header, 4);
+        channel.force(false);
+    }
+
+    /**
+     * Reads the 12-byte entries of the IFD at the specified offset, leaving out any for {@link #TAG}.
+     */
+    private static List<byte[]> readEntries(FileChannel channel, long offset, ByteOrder order) throws IOException {
+        ByteBuffer count = ByteBuffer.allocate(2).order(order);
+        readFully(channel, count, offset);
+        int n = count.getShort(0) & 0xFFFF;
+
+        ByteBuffer buf = ByteBuffer.allocate(12*n).order(order);
+        readFully(channel, buf, offset+2);
+        List<byte[]> entries = new ArrayList<>(n+1);
+        for(int i=0; i<n; i++){
+            if((buf.getShort(12*i) & 0xFFFF)!=TAG){
+                byte[] entry = new byte[12];
+                buf.position(12*i);
+                buf.get(entry);
+                entries.add(entry);
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Sorts IFD entries into ascending tag order, as TIFF requires.
+     */
+    private static void sort(List<byte[]> entries, final ByteOrder order){
+        entries.sort(new Comparator<byte[]>() {
+            @Override
+            public int compare(byte[] a, byte[] b) {
+                return Integer.compare(ByteBuffer.wrap(a).order(order).getShort(0) & 0xFFFF,
+                                       ByteBuffer.wrap(b).order(order).getShort(0) & 0xFFFF);
+            }
+        });
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+        while(buf.hasRemaining()){
+            int n = channel.read(buf, position);
+            if(n<0){
+                throw new TiffFormatException("Truncated IFD at offset "+position);
+            }
+            position += n;
+        }
+    }
+
+    private static void write(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+        while(buf.hasRemaining()){
+            position += channel.write(buf, position);
+        }
+    }
+}
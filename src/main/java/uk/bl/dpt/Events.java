@@ -0,0 +1,164 @@
+/**
+ * Copyright 2016 Peter May
+ * Author: Peter May
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.bl.dpt;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Java Flight Recorder events for the parse, strip read and digest phases of checksumming a file.
+ *
+ * Events are disabled unless a recording enables them (e.g. `-XX:StartFlightRecording`), when they cost a flag
+ * check. Fields are only filled in for events that will be committed. Each event's duration is built in.
+ */
+final class Events {
+
+    private Events(){
+    }
+
+    @Name("uk.bl.dpt.Parse")
+    @Label("Parse TIFF")
+    @Category("Tifixity")
+    @Description("Reading a TIFF's header and IFDs")
+    static final class Parse extends Event {
+        @Label("File")
+        String path;
+
+        @Label("Bytes Read")
+        @DataAmount
+        long bytes;
+
+        @Label("IFDs")
+        int ifds;
+    }
+
+    @Name("uk.bl.dpt.StripRead")
+    @Label("Read Strip")
+    @Category("Tifixity")
+    @Description("Reading (and, for stored data digests, hashing) one strip or tile")
+    static final class StripRead extends Event {
+        @Label("File")
+        String path;
+
+        @Label("Subfile")
+        int subFile;
+
+        @Label("Strip")
+        int strip;
+
+        @Label("Offset")
+        long offset;
+
+        @Label("Length")
+        @DataAmount
+        long length;
+    }
+
+    @Name("uk.bl.dpt.Digest")
+    @Label("Digest")
+    @Category("Tifixity")
+    @Description("Calculating one checksum of a TIFF")
+    static final class Digest extends Event {
+        @Label("File")
+        String path;
+
+        @Label("Kind")
+        @Description("file, image, strip, pixel, raster, planes or ifd")
+        String kind;
+
+        @Label("Subfile")
+        @Description("-1 for whole-file checksums")
+        int subFile;
+
+        @Label("Bytes")
+        @Description("Bytes of the file covered by the checksum")
+        @DataAmount
+        long bytes;
+    }
+
+    /**
+     * Ends and, if the recording wants it, commits a parse event.
+     * @param event the started event
+     * @param tiff  the parsed TIFF
+     * @param bytes the number of bytes read by the parser
+     */
+    static void commit(Parse event, Tiff tiff, long bytes){
+        event.end();
+        if(event.shouldCommit()){
+            event.path = pathOf(tiff);
+            event.bytes = bytes;
+            event.ifds = tiff.numberOfIFDs();
+            event.commit();
+        }
+    }
+
+    /**
+     * Ends and, if the recording wants it, commits a strip read event.
+     * @param event     the started event
+     * @param tiff      the TIFF read from
+     * @param subFile   the subfile index
+     * @param strip     the strip index
+     * @param offset    the offset of the strip
+     * @param length    the length of the strip
+     */
+    static void commit(StripRead event, Tiff tiff, int subFile, int strip, long offset, long length){
+        event.end();
+        if(event.shouldCommit()){
+            event.path = pathOf(tiff);
+            event.subFile = subFile;
+            event.strip = strip;
+            event.offset = offset;
+            event.length = length;
+            event.commit();
+        }
+    }
+
+    /**
+     * Ends and, if the recording wants it, commits a digest event.
+     * @param event     the started event
+     * @param tiff      the TIFF checksummed
+     * @param kind      the kind of checksum
+     * @param subFile   the subfile index, or -1 for the whole file
+     * @param bytes     the bytes covered, or -1 for all the image data of the subfile
+     */
+    static void commit(Digest event, Tiff tiff, String kind, int subFile, long bytes){
+        event.end();
+        if(event.shouldCommit()){
+            event.path = pathOf(tiff);
+            event.kind = kind;
+            event.subFile = subFile;
+            event.bytes = bytes>=0 ? bytes : imageBytes(tiff, subFile);
+            event.commit();
+        }
+    }
+
+    private static String pathOf(Tiff tiff){
+        return tiff.getFilePath()==null ? "" : tiff.getFilePath().toString();
+    }
+
+    private static long imageBytes(Tiff tiff, int subFile){
+        long total = 0;
+        for(Integer length: tiff.getImageDataLengths(subFile)){
+            total += length & 0xFFFFFFFFL;
+        }
+        return total;
+    }
+}
@@ -75,6 +75,7 @@ public class IFD {
      */
     public void addDirectoryEntry(Integer tagValue, IFDType type, int count, long offset, Object[] value) {
         switch(type){
+            case BYTE:
             case ASCII:
                 directory.put(tagValue, new DirectoryEntry<>(tagValue, type, count, offset, (Character[]) value));
                 break;
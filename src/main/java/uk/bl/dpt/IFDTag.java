@@ -62,6 +62,10 @@ public enum IFDTag {
     WhitePoint (318),                   // ext; TIFF 6.0 Section 20
     PrimaryChromaticities (319),        // ext; TIFF 6.0 Section 20
     ColorMap (320),
+    TileWidth (322),                    // ext; TIFF 6.0 Section 15
+    TileLength (323),                   // ext; TIFF 6.0 Section 15
+    TileOffsets (324),                  // ext; TIFF 6.0 Section 15
+    TileByteCounts (325),               // ext; TIFF 6.0 Section 15
     ExtraSamples (338),
     Copyright (33432),
     UNKNOWN (-1);
@@ -0,0 +1,269 @@
+/**
+ * Copyright 2016 Peter May
+ * Author: Peter May
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.bl.dpt;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Limits the rate of file reads to a budget of bytes per second and read operations (IOPS) per second.
+ *
+ * Each budget is a token bucket holding up to one second of tokens. A read takes its tokens as soon as it
+ * returns, for the bytes it actually read, and, if the bucket is overdrawn, the reading thread sleeps until
+ * the debt has been repaid; reads larger than the bucket therefore still proceed, just more slowly. One
+ * instance, {@link #GLOBAL}, is shared by every channel opened through {@link #open(Path)}, so the budget
+ * holds across all reader threads.
+ *
+ * The limits may be changed while running, through JMX (uk.bl.dpt:type=IOThrottle) or a control file
+ * (see {@link #watch(Path, long)}).
+ */
+public class IOThrottle implements IOThrottleMBean {
+
+    /** Control file property holding the bytes per second limit */
+    public static final String BYTES_PER_SECOND = "bytes.per.second";
+    /** Control file property holding the read operations per second limit */
+    public static final String OPERATIONS_PER_SECOND = "iops";
+
+    /** The throttle shared by all file reads; unlimited until configured */
+    public static final IOThrottle GLOBAL = new IOThrottle(0, 0);
+
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final Bucket bytes = new Bucket();
+    private final Bucket operations = new Bucket();
+
+    private long bytesRead  = 0;
+    private long operationCount = 0;
+
+    /**
+     * Creates a throttle with the specified limits.
+     * @param bytesPerSecond        maximum bytes read per second, or 0 for unlimited
+     * @param operationsPerSecond   maximum read operations per second, or 0 for unlimited
+     */
+    public IOThrottle(long bytesPerSecond, long operationsPerSecond){
+        long now = System.nanoTime();
+        bytes.setRate(bytesPerSecond, now);
+        operations.setRate(operationsPerSecond, now);
+    }
+
+    /**
+     * Opens a read channel on the specified file, throttled by the {@link #GLOBAL} throttle.
+     * @param path  the file to open
+     * @return
+     * @throws IOException
+     */
+    public static SeekableByteChannel open(Path path) throws IOException {
+        return new ThrottledChannel(Files.newByteChannel(path), GLOBAL);
+    }
+
+    /**
+     * Charges a read of the specified number of bytes, blocking until the budgets are back in credit.
+     * @param count the number of bytes read
+     * @throws InterruptedIOException if interrupted while waiting
+     */
+    public void acquire(long count) throws InterruptedIOException {
+        long wait;
+        synchronized (this) {
+            long now = System.nanoTime();
+            bytesRead += count;
+            operationCount++;
+            wait = Math.max(bytes.take(count, now), operations.take(1, now));
+        }
+        if(wait>0){
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (InterruptedException ie){
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while throttled");
+            }
+        }
+    }
+
+    @Override
+    public synchronized long getBytesPerSecond(){
+        return bytes.rate;
+    }
+
+    @Override
+    public synchronized void setBytesPerSecond(long bytesPerSecond){
+        bytes.setRate(bytesPerSecond, System.nanoTime());
+    }
+
+    @Override
+    public synchronized long getOperationsPerSecond(){
+        return operations.rate;
+    }
+
+    @Override
+    public synchronized void setOperationsPerSecond(long operationsPerSecond){
+        operations.setRate(operationsPerSecond, System.nanoTime());
+    }
+
+    @Override
+    public synchronized long getBytesRead(){
+        return bytesRead;
+    }
+
+    @Override
+    public synchronized long getOperations(){
+        return operationCount;
+    }
+
+    /**
+     * Registers this throttle with the platform MBean server as uk.bl.dpt:type=IOThrottle.
+     * @throws JMException
+     */
+    public void registerMBean() throws JMException {
+        ObjectName name = new ObjectName("uk.bl.dpt:type=IOThrottle");
+        if(!ManagementFactory.getPlatformMBeanServer().isRegistered(name)){
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+        }
+    }
+
+    /**
+     * Applies the limits in the specified control file, a properties file with the optional keys
+     * {@value #BYTES_PER_SECOND} and {@value #OPERATIONS_PER_SECOND}. Missing keys leave that limit unchanged.
+     * @param controlFile   the control file to read
+     * @throws IOException
+     */
+    public void load(Path controlFile) throws IOException {
+        Properties control = new Properties();
+        try (InputStream in = Files.newInputStream(controlFile)){
+            control.load(in);
+        }
+
+        try {
+            String value = control.getProperty(BYTES_PER_SECOND);
+            if(value!=null){
+                setBytesPerSecond(Long.parseLong(value.trim()));
+            }
+            value = control.getProperty(OPERATIONS_PER_SECOND);
+            if(value!=null){
+                setOperationsPerSecond(Long.parseLong(value.trim()));
+            }
+        } catch (NumberFormatException nfe){
+            throw new IOException("Invalid throttle control file "+controlFile+": "+nfe.getMessage());
+        }
+    }
+
+    /**
+     * Applies the control file now, then starts a daemon thread that re-applies it whenever it is modified.
+     * @param controlFile   the control file to watch
+     * @param intervalMillis    how often to check the file for changes
+     * @return the watching thread
+     */
+    public Thread watch(final Path controlFile, final long intervalMillis){
+        final long initial = reload(controlFile, Long.MIN_VALUE);
+        Thread watcher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long lastModified = initial;
+                while(true){
+                    try {
+                        Thread.sleep(intervalMillis);
+                    } catch (InterruptedException ie){
+                        return;
+                    }
+                    lastModified = reload(controlFile, lastModified);
+                }
+            }
+        }, "tifixity-throttle-control");
+        watcher.setDaemon(true);
+        watcher.start();
+        return watcher;
+    }
+
+    /**
+     * Applies the control file if it has been modified since the specified time.
+     * @param controlFile   the control file
+     * @param lastModified  the modification time when the file was last applied
+     * @return the modification time of the file as now applied
+     */
+    private long reload(Path controlFile, long lastModified){
+        long modified;
+        try {
+            modified = Files.getLastModifiedTime(controlFile).toMillis();
+        } catch (IOException ioe){
+            // keep the current limits until the file (re)appears
+            return lastModified;
+        }
+
+        if(modified!=lastModified){
+            try {
+                load(controlFile);
+                if(Tifixity.verbose){
+                    System.err.println("Throttle: "+getBytesPerSecond()+" bytes/s, "+getOperationsPerSecond()+" IOPS");
+                }
+            } catch (IOException ioe){
+                // reported once; the file is retried when it is next modified
+                System.err.println(ioe.getMessage());
+            }
+        }
+        return modified;
+    }
+
+    /**
+     * A token bucket holding at most one second of tokens, which may be overdrawn.
+     */
+    private static final class Bucket {
+        private long rate = 0;          // tokens per second, 0 = unlimited
+        private double tokens = 0;
+        private long updated = 0;
+
+        void setRate(long newRate, long now){
+            refill(now);
+            newRate = Math.max(0, newRate);
+            if(newRate==0){
+                tokens = 0;
+            } else if(rate==0){
+                tokens = newRate;                       // newly limited: start with a full bucket
+            } else {
+                tokens = Math.min(tokens, newRate);     // never carry more than one second of credit
+            }
+            rate = newRate;
+        }
+
+        /**
+         * Takes the tokens and returns how long (ns) the caller must wait before the bucket is back in credit.
+         */
+        long take(long count, long now){
+            if(rate==0){
+                return 0;
+            }
+            refill(now);
+            tokens -= count;
+            return tokens>=0 ? 0 : (long) Math.ceil(-tokens*NANOS_PER_SECOND/rate);
+        }
+
+        private void refill(long now){
+            if(rate>0){
+                tokens = Math.min(rate, tokens+(double)(now-updated)*rate/NANOS_PER_SECOND);
+            }
+            updated = now;
+        }
+    }
+}
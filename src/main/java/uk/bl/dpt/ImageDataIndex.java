@@ -0,0 +1,218 @@
+/**
+ * Copyright 2016 Peter May
+ * Author: Peter May
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.bl.dpt;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Immutable, sorted index of the byte ranges within a TIFF file that hold image data.
+ *
+ * Ranges are half-open [start, end) and are held in two parallel primitive arrays. Overlapping
+ * or touching strips are merged when the index is built, so the ranges are disjoint and in
+ * ascending order. Everything not covered by a range is non-image data.
+ */
+public final class ImageDataIndex {
+
+    /**
+     * Callback receiving a half-open byte range [start, end).
+     */
+    public interface RangeConsumer {
+        void accept(long start, long end) throws IOException;
+    }
+
+    private static final ImageDataIndex EMPTY = new ImageDataIndex(new long[0], new long[0]);
+
+    private final long[] starts;
+    private final long[] ends;
+
+    private ImageDataIndex(long[] starts, long[] ends){
+        this.starts = starts;
+        this.ends = ends;
+    }
+
+    /**
+     * Builds an index from unsorted strip offsets and lengths. Empty strips are ignored.
+     * @param offsets   the start offset of each strip
+     * @param lengths   the length (in bytes) of each strip
+     * @param count     the number of strips to read from the arrays
+     * @return
+     */
+    public static ImageDataIndex build(long[] offsets, long[] lengths, int count){
+        long[] s = new long[count];
+        long[] e = new long[count];
+        int n = 0;
+        for(int i=0; i<count; i++){
+            if(lengths[i]>0){
+                s[n] = offsets[i];
+                e[n] = offsets[i]+lengths[i];
+                n++;
+            }
+        }
+        if(n==0){
+            return EMPTY;
+        }
+
+        // The union of the ranges only depends on the multiset of starts and ends, so
+        // both arrays can be sorted independently and swept with a depth counter.
+        Arrays.sort(s, 0, n);
+        Arrays.sort(e, 0, n);
+
+        long[] mergedStarts = new long[n];
+        long[] mergedEnds = new long[n];
+        int merged = 0;
+        int depth = 0;
+        int i = 0, j = 0;
+        while(j<n){
+            // process a start before an end at the same offset so touching strips merge
+            if(i<n && s[i]<=e[j]){
+                if(depth++==0){
+                    mergedStarts[merged] = s[i];
+                }
+                i++;
+            } else {
+                if(--depth==0){
+                    mergedEnds[merged++] = e[j];
+                }
+                j++;
+            }
+        }
+
+        if(merged<n){
+            mergedStarts = Arrays.copyOf(mergedStarts, merged);
+            mergedEnds = Arrays.copyOf(mergedEnds, merged);
+        }
+        return new ImageDataIndex(mergedStarts, mergedEnds);
+    }
+
+    /**
+     * Builds an index covering the image data of every subfile in the specified TIFF.
+     * @param tiff  the {@link Tiff} to index
+     * @return
+     */
+    public static ImageDataIndex build(Tiff tiff){
+        int total = 0;
+        for(int i=0; i<tiff.numberOfIFDs(); i++){
+            total += tiff.getImageDataOffsets(i).length;
+        }
+
+        long[] offsets = new long[total];
+        long[] lengths = new long[total];
+        int n = 0;
+        for(int i=0; i<tiff.numberOfIFDs(); i++){
+            Integer[] imgData = tiff.getImageDataOffsets(i);
+            Integer[] imgLength = tiff.getImageDataLengths(i);
+
+            for(int j=0; j<imgData.length; j++){
+                // TIFF offsets and counts are unsigned 32-bit values
+                offsets[n] = imgData[j] & 0xFFFFFFFFL;
+                lengths[n] = imgLength[j] & 0xFFFFFFFFL;
+                n++;
+            }
+        }
+        return build(offsets, lengths, n);
+    }
+
+    /**
+     * Returns the number of disjoint image data ranges.
+     * @return
+     */
+    public int size(){
+        return starts.length;
+    }
+
+    /**
+     * Returns the first byte offset of the specified range.
+     * @param range the range index
+     * @return
+     */
+    public long getStart(int range){
+        return starts[range];
+    }
+
+    /**
+     * Returns the byte offset immediately after the specified range.
+     * @param range the range index
+     * @return
+     */
+    public long getEnd(int range){
+        return ends[range];
+    }
+
+    /**
+     * Returns the index of the range containing the specified offset, or -1 if the offset is
+     * not image data.
+     * @param offset    the byte offset in the file
+     * @return
+     */
+    public int indexOf(long offset){
+        int range = floor(offset);
+        if(range>=0 && offset<ends[range]){
+            return range;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns true if the byte at the specified offset is image data.
+     * @param offset    the byte offset in the file
+     * @return
+     */
+    public boolean isImageData(long offset){
+        return indexOf(offset)>=0;
+    }
+
+    /**
+     * Returns the index of the last range starting at or before the specified offset, or -1 if none.
+     * @param offset    the byte offset in the file
+     * @return
+     */
+    private int floor(long offset){
+        int pos = Arrays.binarySearch(starts, offset);
+        return pos>=0 ? pos : -pos-2;
+    }
+
+    /**
+     * Passes each image data range to the consumer in ascending order.
+     * @param consumer  the callback to receive the ranges
+     * @throws IOException
+     */
+    public void forEachImageRange(RangeConsumer consumer) throws IOException {
+        for(int i=0; i<starts.length; i++){
+            consumer.accept(starts[i], ends[i]);
+        }
+    }
+
+    /**
+     * Passes each non-image data range of a file of the specified length to the consumer in ascending order.
+     * @param length    the length of the file in bytes
+     * @param consumer  the callback to receive the ranges
+     * @throws IOException
+     */
+    public void forEachNonImageRange(long length, RangeConsumer consumer) throws IOException {
+        long pos = 0;
+        for(int i=0; i<starts.length && starts[i]<length; i++){
+            if(starts[i]>pos){
+                consumer.accept(pos, starts[i]);
+            }
+            pos = Math.max(pos, ends[i]);
+        }
+        if(pos<length){
+            consumer.accept(pos, length);
+        }
+    }
+}
@@ -0,0 +1,210 @@
+/**
+ * Copyright 2016 Peter May
+ * Author: Peter May
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.bl.dpt;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Append-only journal of completed batch results, so that an interrupted run can be resumed.
+ *
+ * Each record is one line: the file's absolute path, a tab, and the file's output with backslashes and
+ * newlines escaped. Records are buffered and written, then forced to disk, every {@code syncEvery} records
+ * or {@code syncMillis} milliseconds, whichever comes first. A crash can therefore lose at most the unsynced
+ * records, which are simply processed again on resume. A partial last line left by a crash is ignored
+ * when reading and removed before appending. The journal is safe to use from several threads.
+ */
+public class Journal implements Closeable {
+
+    public static final int     DEFAULT_SYNC_EVERY  = 1000;
+    public static final long    DEFAULT_SYNC_MILLIS = 5000;
+
+    private final FileChannel   channel;
+    private final int           syncEvery;
+    private final long          syncMillis;
+    private final StringBuilder pending = new StringBuilder();
+    private int                 pendingRecords = 0;
+    private long                lastSync;
+
+    /**
+     * Opens a journal for appending, creating it if necessary.
+     * @param path          the journal file
+     * @param syncEvery     the maximum number of records buffered before a sync
+     * @param syncMillis    the maximum time in milliseconds between syncs while records are being added
+     * @throws IOException
+     */
+    public Journal(Path path, int syncEvery, long syncMillis) throws IOException {
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                        StandardOpenOption.WRITE);
+        this.syncEvery = syncEvery;
+        this.syncMillis = syncMillis;
+        this.lastSync = System.currentTimeMillis();
+
+        // drop any partial record left by a crash
+        long end = lastCompleteRecordEnd();
+        channel.truncate(end);
+        channel.position(end);
+    }
+
+    /**
+     * Opens a journal for appending with the default sync policy.
+     * @param path  the journal file
+     * @throws IOException
+     */
+    public Journal(Path path) throws IOException {
+        this(path, DEFAULT_SYNC_EVERY, DEFAULT_SYNC_MILLIS);
+    }
+
+    /**
+     * Returns the offset just after the last newline in the journal, or 0 if there is none.
+     */
+    private long lastCompleteRecordEnd() throws IOException {
+        long size = channel.size();
+        ByteBuffer buf = ByteBuffer.allocate(4096);
+        long end = size;
+        while(end>0){
+            long start = Math.max(0, end-buf.capacity());
+            buf.clear();
+            buf.limit((int) (end-start));
+            channel.read(buf, start);
+            for(int i=buf.position()-1; i>=0; i--){
+                if(buf.get(i)=='\n'){
+                    return start+i+1;
+                }
+            }
+            end = start;
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the key a file is journaled under: its absolute, normalised path.
+     * @param file  the file
+     * @return
+     */
+    public static String key(String file){
+        return StripManifest.key(file);
+    }
+
+    /**
+     * Reads the keys of every complete record in a journal. Returns an empty set if the journal does not exist.
+     * @param path  the journal file
+     * @return
+     * @throws IOException
+     */
+    public static Set<String> readCompleted(Path path) throws IOException {
+        Set<String> completed = new HashSet<>();
+        if(!Files.exists(path)){
+            return completed;
+        }
+        // a line at a time, as a long run's journal may be larger than the heap; a decoder that replaces bad
+        // bytes, as a crash may leave part of a character at the end
+        try (Reader reader = new BufferedReader(new InputStreamReader(Files.newInputStream(path),
+                                                                      StandardCharsets.UTF_8))) {
+            StringBuilder key = new StringBuilder();
+            boolean keyEnded = false;   // only the key, before the tab, is kept
+            char[] buf = new char[8192];
+            int n;
+            while((n = reader.read(buf))>-1){
+                for(int i=0; i<n; i++){
+                    if(buf[i]=='\n'){
+                        if(keyEnded && key.length()>0){
+                            completed.add(key.toString());
+                        }
+                        key.setLength(0);
+                        keyEnded = false;
+                    } else if(buf[i]=='\t'){
+                        keyEnded = true;
+                    } else if(!keyEnded){
+                        key.append(buf[i]);
+                    }
+                }
+            }
+            // anything left has no newline: a partial record
+        }
+        return completed;
+    }
+
+    /**
+     * Adds a completed file's output to the journal, syncing if the batch size or interval is reached.
+     * @param file      the file that was processed
+     * @param output    the output produced for the file
+     * @throws IOException
+     */
+    public synchronized void append(String file, String output) throws IOException {
+        pending.append(key(file)).append('\t');
+        for(int i=0; i<output.length(); i++){
+            char c = output.charAt(i);
+            switch(c){
+                case '\\':
+                    pending.append("\\\\");
+                    break;
+                case '\n':
+                    pending.append("\\n");
+                    break;
+                default:
+                    pending.append(c);
+            }
+        }
+        pending.append('\n');
+        pendingRecords++;
+
+        if(pendingRecords>=syncEvery || System.currentTimeMillis()-lastSync>=syncMillis){
+            sync();
+        }
+    }
+
+    /**
+     * Writes all buffered records and forces them to disk.
+     * @throws IOException
+     */
+    public synchronized void sync() throws IOException {
+        if(pendingRecords>0){
+            ByteBuffer buf = StandardCharsets.UTF_8.encode(pending.toString());
+            while(buf.hasRemaining()){
+                channel.write(buf);
+            }
+            channel.force(false);
+            pending.setLength(0);
+            pendingRecords = 0;
+        }
+        lastSync = System.currentTimeMillis();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if(!channel.isOpen()){
+            return;
+        }
+        try {
+            sync();
+        } finally {
+            channel.close();
+        }
+    }
+}
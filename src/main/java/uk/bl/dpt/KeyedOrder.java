@@ -0,0 +1,102 @@
+/**
+ * Copyright 2016 Peter May
+ * Author: Peter May
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.bl.dpt;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * A {@link WorkOrder} sorting files by a string key, ties keeping their original order.
+ */
+abstract class KeyedOrder implements WorkOrder {
+
+    // Sorts after any real key
+    private static final String LAST = "\uFFFF";
+
+    static final WorkOrder ARGUMENTS = new WorkOrder() {
+        @Override
+        public int[] order(String[] files) {
+            int[] order = new int[files.length];
+            for(int i=0; i<order.length; i++){
+                order[i] = i;
+            }
+            return order;
+        }
+    };
+
+    static final WorkOrder INODE = new KeyedOrder() {
+        @Override
+        String key(String file) {
+            try {
+                Path path = Paths.get(file);
+                // fixed width hex, so that the keys sort numerically
+                return String.format("%016x%016x", ((Number) Files.getAttribute(path, "unix:dev")).longValue(),
+                                     ((Number) Files.getAttribute(path, "unix:ino")).longValue());
+            } catch (IOException | UnsupportedOperationException | IllegalArgumentException e){
+                return LAST;
+            }
+        }
+    };
+
+    static final WorkOrder DIRECTORY = new KeyedOrder() {
+        @Override
+        String key(String file) {
+            try {
+                Path parent = Paths.get(file).toAbsolutePath().normalize().getParent();
+                return parent==null ? "" : parent.toString();
+            } catch (InvalidPathException e){
+                return LAST;
+            }
+        }
+    };
+
+    /**
+     * Returns the sort key of the specified file.
+     * @param file  the file
+     * @return
+     */
+    abstract String key(String file);
+
+    @Override
+    public int[] order(String[] files) {
+        final String[] keys = new String[files.length];
+        Integer[] indexes = new Integer[files.length];
+        for(int i=0; i<files.length; i++){
+            keys[i] = key(files[i]);
+            indexes[i] = i;
+        }
+
+        // stable, so files with equal keys stay in their original order
+        Arrays.sort(indexes, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return keys[a].compareTo(keys[b]);
+            }
+        });
+
+        int[] order = new int[files.length];
+        for(int i=0; i<order.length; i++){
+            order[i] = indexes[i];
+        }
+        return order;
+    }
+}
@@ -0,0 +1,412 @@
+/**
+ * Copyright 2016 Peter May
+ * Author: Peter May
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.bl.dpt;
+
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Converts manifests between the binary ({@link BinaryManifest}), text and NDJSON forms. Records are streamed,
+ * so manifests of any size are converted with a bounded heap.
+ *
+ * The text form extends the {@link StripManifest} lines, tab separated with the file's path last, and the
+ * lines of one file are contiguous:
+ * <pre>
+ *   file      &lt;size&gt; &lt;modified&gt; &lt;path&gt;
+ *   full      &lt;md5&gt; &lt;path&gt;
+ *   remaining &lt;md5&gt; &lt;path&gt;
+ *   image     &lt;subfile&gt; &lt;md5&gt; &lt;path&gt;
+ *   ifd       &lt;subfile&gt; &lt;md5&gt; &lt;path&gt;
+ *   strip     &lt;subfile&gt; &lt;strip&gt; &lt;md5&gt; &lt;path&gt;
+ * </pre>
+ * The NDJSON form is one object per line:
+ * <pre>
+ *   {"path":..., "size":..., "modified":..., "full":..., "remaining":..., "image":[...], "ifd":[...], "strips":[[...]]}
+ * </pre>
+ * with null for checksums that were not recorded.
+ */
+public final class ManifestConverter {
+
+    /**
+     * The forms of a manifest.
+     */
+    public enum Format { BINARY, TEXT, NDJSON }
+
+    private ManifestConverter(){
+    }
+
+    /**
+     * Returns the form of a manifest: binary if it starts with the binary manifest header, otherwise NDJSON if
+     * its name ends in .ndjson or .jsonl, otherwise text.
+     * @param file  the manifest file
+     * @return
+     * @throws IOException
+     */
+    public static Format formatOf(Path file) throws IOException {
+        if(Files.exists(file) && BinaryManifest.isBinary(file)){
+            return Format.BINARY;
+        }
+        return formatOfName(file);
+    }
+
+    /**
+     * Returns the form of a manifest to be written, from its name: binary for .bin, NDJSON for .ndjson or
+     * .jsonl, otherwise text.
+     * @param file  the manifest file
+     * @return
+     */
+    public static Format formatOfName(Path file){
+        String name = file.getFileName().toString().toLowerCase();
+        if(name.endsWith(".bin")){
+            return Format.BINARY;
+        }
+        if(name.endsWith(".ndjson") || name.endsWith(".jsonl")){
+            return Format.NDJSON;
+        }
+        return Format.TEXT;
+    }
+
+    /**
+     * Converts a manifest, choosing the forms from the files (see {@link #formatOf} and {@link #formatOfName}).
+     * @param in    the manifest to read
+     * @param out   the manifest to write
+     * @return the number of records converted
+     * @throws IOException
+     */
+    public static long convert(Path in, Path out) throws IOException {
+        return convert(in, formatOf(in), out, formatOfName(out));
+    }
+
+    /**
+     * Converts a manifest between the specified forms.
+     * @param in        the manifest to read
+     * @param inFormat  its form
+     * @param out       the manifest to write
+     * @param outFormat its form
+     * @return the number of records converted
+     * @throws IOException
+     */
+    public static long convert(Path in, Format inFormat, Path out, Format outFormat) throws IOException {
+        final long[] count = {0};
+        try (final Sink sink = sink(out, outFormat)) {
+            read(in, inFormat, new BinaryManifest.RecordVisitor() {
+                @Override
+                public void visit(ManifestRecord record) throws IOException {
+                    sink.visit(record);
+                    count[0]++;
+                }
+            });
+        }
+        return count[0];
+    }
+
+    /**
+     * Receives the records of a manifest being written, which is complete once the sink is closed.
+     */
+    interface Sink extends BinaryManifest.RecordVisitor, Closeable {
+    }
+
+    /**
+     * Returns a sink writing a manifest in the specified form.
+     * @param out       the manifest to write
+     * @param format    its form
+     * @return
+     * @throws IOException
+     */
+    static Sink sink(Path out, Format format) throws IOException {
+        if(format==Format.BINARY){
+            final BinaryManifest.Writer writer = BinaryManifest.create(out);
+            return new Sink() {
+                @Override
+                public void visit(ManifestRecord record) throws IOException {
+                    writer.add(record);
+                }
+
+                @Override
+                public void close() throws IOException {
+                    writer.close();
+                }
+            };
+        }
+        final boolean json = format==Format.NDJSON;
+        final Writer writer = Files.newBufferedWriter(out, StandardCharsets.UTF_8);
+        return new Sink() {
+            @Override
+            public void visit(ManifestRecord record) throws IOException {
+                writer.write(json ? toJSON(record) : toText(record));
+            }
+
+            @Override
+            public void close() throws IOException {
+                writer.close();
+            }
+        };
+    }
+
+    /**
+     * Passes each record of a manifest to the visitor in the order they appear.
+     * @param in        the manifest to read
+     * @param format    its form
+     * @param visitor   the callback to receive the records
+     * @throws IOException
+     */
+    public static void read(Path in, Format format, BinaryManifest.RecordVisitor visitor) throws IOException {
+        switch(format){
+            case BINARY:
+                try (BinaryManifest manifest = BinaryManifest.open(in)) {
+                    manifest.forEach(visitor);
+                }
+                break;
+            case NDJSON:
+                try (BufferedReader reader = Files.newBufferedReader(in, StandardCharsets.UTF_8)) {
+                    String line;
+                    while((line = reader.readLine())!=null){
+                        if(!line.trim().isEmpty()){
+                            visitor.visit(fromJSON(line));
+                        }
+                    }
+                }
+                break;
+            default:
+                readText(in, visitor);
+        }
+    }
+
+    /**
+     * Returns the text manifest lines of a record.
+     * @param record    the record
+     * @return
+     */
+    public static String toText(ManifestRecord record){
+        String path = record.getPath();
+        StringBuilder lines = new StringBuilder();
+        if(record.getSize()>=0 || record.getModified()>=0){
+            lines.append("file\t").append(record.getSize()).append('\t').append(record.getModified()).append('\t')
+                 .append(path).append('\n');
+        }
+        if(record.getFullDigest()!=null){
+            lines.append("full\t").append(record.getFullDigest()).append('\t').append(path).append('\n');
+        }
+        if(record.getRemainingDigest()!=null){
+            lines.append("remaining\t").append(record.getRemainingDigest()).append('\t').append(path).append('\n');
+        }
+        for(int i=0; i<record.numberOfSubfiles(); i++){
+            if(record.getImageDigest(i)!=null){
+                lines.append("image\t").append(i).append('\t').append(record.getImageDigest(i)).append('\t')
+                     .append(path).append('\n');
+            }
+        }
+        for(int i=0; i<record.numberOfSubfiles(); i++){
+            if(record.getIFDDigest(i)!=null){
+                lines.append("ifd\t").append(i).append('\t').append(record.getIFDDigest(i)).append('\t')
+                     .append(path).append('\n');
+            }
+        }
+        for(int i=0; i<record.numberOfSubfiles(); i++){
+            String[] strips = record.getStripDigests(i);
+            for(int j=0; strips!=null && j<strips.length; j++){
+                lines.append("strip\t").append(i).append('\t').append(j).append('\t').append(strips[j]).append('\t')
+                     .append(path).append('\n');
+            }
+        }
+        return lines.toString();
+    }
+
+    /**
+     * Reads a text manifest, gathering the contiguous lines of each file into one record.
+     */
+    private static void readText(Path in, BinaryManifest.RecordVisitor visitor) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(in, StandardCharsets.UTF_8)) {
+            String path = null;
+            long size = -1, modified = -1;
+            StringBuilder output = new StringBuilder();
+            String line;
+            while((line = reader.readLine())!=null){
+                int tab = line.lastIndexOf('\t');
+                if(tab<0){
+                    continue;
+                }
+                String linePath = line.substring(tab+1);
+                if(!linePath.equals(path)){
+                    if(path!=null){
+                        visitor.visit(ManifestRecord.fromOutput(path, size, modified, output.toString()));
+                    }
+                    path = linePath;
+                    size = -1;
+                    modified = -1;
+                    output.setLength(0);
+                }
+
+                String[] fields = line.split("\t");
+                try {
+                    switch(fields[0]){
+                        case "file":
+                            size = Long.parseLong(fields[1]);
+                            modified = Long.parseLong(fields[2]);
+                            break;
+                        case "full":
+                            output.append("Full MD5: ").append(fields[1]).append('\n');
+                            break;
+                        case "remaining":
+                            output.append("Remaining MD5: ").append(fields[1]).append('\n');
+                            break;
+                        case "image":
+                            output.append("Image MD5 [").append(Integer.parseInt(fields[1])).append("]: ")
+                                  .append(fields[2]).append('\n');
+                            break;
+                        default:
+                            // ifd and strip lines are read by ManifestRecord as they are
+                            output.append(line).append('\n');
+                    }
+                } catch (NumberFormatException | ArrayIndexOutOfBoundsException e){
+                    throw new IOException("Malformed manifest line: "+line);
+                }
+            }
+            if(path!=null){
+                visitor.visit(ManifestRecord.fromOutput(path, size, modified, output.toString()));
+            }
+        }
+    }
+
+    /**
+     * Returns the NDJSON line of a record.
+     * @param record    the record
+     * @return
+     */
+    public static String toJSON(ManifestRecord record){
+        int subfiles = record.numberOfSubfiles();
+        StringBuilder json = new StringBuilder("{\"path\":");
+        quote(json, record.getPath());
+        json.append(",\"size\":").append(record.getSize());
+        json.append(",\"modified\":").append(record.getModified());
+        json.append(",\"full\":");
+        quote(json, record.getFullDigest());
+        json.append(",\"remaining\":");
+        quote(json, record.getRemainingDigest());
+        json.append(",\"image\":[");
+        for(int i=0; i<subfiles; i++){
+            if(i>0) json.append(',');
+            quote(json, record.getImageDigest(i));
+        }
+        json.append("],\"ifd\":[");
+        for(int i=0; i<subfiles; i++){
+            if(i>0) json.append(',');
+            quote(json, record.getIFDDigest(i));
+        }
+        json.append("],\"strips\":[");
+        for(int i=0; i<subfiles; i++){
+            if(i>0) json.append(',');
+            String[] strips = record.getStripDigests(i);
+            if(strips==null){
+                json.append("null");
+            } else {
+                json.append('[');
+                for(int j=0; j<strips.length; j++){
+                    if(j>0) json.append(',');
+                    quote(json, strips[j]);
+                }
+                json.append(']');
+            }
+        }
+        return json.append("]}\n").toString();
+    }
+
+    private static void quote(StringBuilder json, String value){
+        if(value==null){
+            json.append("null");
+            return;
+        }
+        json.append('"');
+        for(int i=0; i<value.length(); i++){
+            char c = value.charAt(i);
+            if(c=='"' || c=='\\'){
+                json.append('\\').append(c);
+            } else if(c<0x20){
+                json.append(String.format("\\u%04x", (int) c));
+            } else {
+                json.append(c);
+            }
+        }
+        json.append('"');
+    }
+
+    /**
+     * Returns the record on an NDJSON line.
+     * @param line  the line
+     * @return
+     * @throws IOException if the line is not a manifest record
+     */
+    @SuppressWarnings("unchecked")
+    public static ManifestRecord fromJSON(String line) throws IOException {
+        Object value;
+        try {
+            value = new JSONParser().parse(line);
+        } catch (ParseException | RuntimeException e){
+            throw new IOException("Malformed manifest line: "+line);
+        }
+        if(!(value instanceof Map) || !(((Map<String, Object>) value).get("path") instanceof String)){
+            throw new IOException("Malformed manifest line: "+line);
+        }
+        Map<String, Object> object = (Map<String, Object>) value;
+        try {
+            List<Object> strips = (List<Object>) object.get("strips");
+            String[][] stripArray = null;
+            if(strips!=null && !strips.isEmpty()){
+                stripArray = new String[strips.size()][];
+                for(int i=0; i<stripArray.length; i++){
+                    stripArray[i] = strings((List<Object>) strips.get(i));
+                }
+            }
+            return new ManifestRecord((String) object.get("path"), number(object.get("size")),
+                                      number(object.get("modified")), (String) object.get("full"),
+                                      (String) object.get("remaining"), strings((List<Object>) object.get("image")),
+                                      strings((List<Object>) object.get("ifd")), stripArray);
+        } catch (ClassCastException cce){
+            throw new IOException("Malformed manifest line: "+line);
+        }
+    }
+
+    private static long number(Object value){
+        return value==null ? -1 : (Long) value;
+    }
+
+    /**
+     * Returns the strings of a JSON array, or null if the array is missing or holds only nulls.
+     */
+    private static String[] strings(List<Object> list){
+        if(list==null){
+            return null;
+        }
+        String[] array = new String[list.size()];
+        boolean any = false;
+        for(int i=0; i<array.length; i++){
+            array[i] = (String) list.get(i);
+            any |= array[i]!=null;
+        }
+        return any ? array : null;
+    }
+}
@@ -0,0 +1,344 @@
+/**
+ * Copyright 2016 Peter May
+ * Author: Peter May
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.bl.dpt;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+
+/**
+ * Merges the binary manifests written by the shards of a multi-node run (see {@link Shard}) into one manifest
+ * sorted by path, checking that together they cover every shard exactly once.
+ *
+ * The records are sorted by an external merge sort: runs of records are sorted in memory and written to
+ * temporary binary manifests beside the output, then merged, so the heap needed does not grow with the
+ * collection. A path found more than once is an overlap; only its first record (in the order of the inputs)
+ * is kept.
+ */
+public final class ManifestMerge {
+
+    private static final int    RUN = 100000;           // records sorted in memory before spilling to disk
+    private static final int    EXAMPLES = 10;          // overlapping paths listed in a result
+
+    /**
+     * The outcome of a merge.
+     */
+    public static final class Result {
+        private long                        records = 0;
+        private int                         shardCount = 0;
+        private final List<Integer>         missing = new ArrayList<>();
+        private final List<String>          duplicates = new ArrayList<>();
+        private final List<String>          inconsistent = new ArrayList<>();
+        private long                        overlaps = 0;
+        private final List<String>          overlapExamples = new ArrayList<>();
+
+        /**
+         * Returns the number of records written.
+         * @return
+         */
+        public long getRecords(){
+            return records;
+        }
+
+        /**
+         * Returns the number of shards the inputs were written for, or 0 if none was written for a shard.
+         * @return
+         */
+        public int getShardCount(){
+            return shardCount;
+        }
+
+        /**
+         * Returns the indexes of the shards with no input: gaps in the coverage of the collection.
+         * @return
+         */
+        public List<Integer> getMissingShards(){
+            return Collections.unmodifiableList(missing);
+        }
+
+        /**
+         * Returns the shards with more than one input, each with its inputs.
+         * @return
+         */
+        public List<String> getDuplicateShards(){
+            return Collections.unmodifiableList(duplicates);
+        }
+
+        /**
+         * Returns the inputs that were not written for a shard, or for a different number of shards.
+         * @return
+         */
+        public List<String> getInconsistentInputs(){
+            return Collections.unmodifiableList(inconsistent);
+        }
+
+        /**
+         * Returns the number of records dropped because their path was already merged.
+         * @return
+         */
+        public long getOverlaps(){
+            return overlaps;
+        }
+
+        /**
+         * Returns the first few paths found more than once.
+         * @return
+         */
+        public List<String> getOverlapExamples(){
+            return Collections.unmodifiableList(overlapExamples);
+        }
+
+        /**
+         * Returns true if the inputs covered every shard exactly once, with no path in more than one record.
+         * @return
+         */
+        public boolean isClean(){
+            return missing.isEmpty() && duplicates.isEmpty() && inconsistent.isEmpty() && overlaps==0;
+        }
+
+        @Override
+        public String toString(){
+            StringBuilder report = new StringBuilder();
+            report.append("Merged records: ").append(records).append("\n");
+            if(shardCount>0){
+                report.append("Shards: ").append(shardCount).append("\n");
+            }
+            for(int shard: missing){
+                report.append("Missing shard: ").append(shard).append("/").append(shardCount).append("\n");
+            }
+            for(String duplicate: duplicates){
+                report.append("Duplicate shard: ").append(duplicate).append("\n");
+            }
+            for(String input: inconsistent){
+                report.append("Inconsistent input: ").append(input).append("\n");
+            }
+            if(overlaps>0){
+                report.append("Overlapping records: ").append(overlaps).append("\n");
+                for(String path: overlapExamples){
+                    report.append("  ").append(path).append("\n");
+                }
+            }
+            report.append(isClean() ? "Merge OK" : "Merge has problems");
+            return report.toString();
+        }
+    }
+
+    private static final Comparator<ManifestRecord> BY_PATH = new Comparator<ManifestRecord>() {
+        @Override
+        public int compare(ManifestRecord a, ManifestRecord b) {
+            return a.getPath().compareTo(b.getPath());
+        }
+    };
+
+    private ManifestMerge(){
+    }
+
+    /**
+     * Merges binary manifests into one manifest sorted by path, in the form given by the output's name (see
+     * {@link ManifestConverter#formatOfName}).
+     * @param inputs    the binary manifests of the shards
+     * @param out       the manifest to write
+     * @return
+     * @throws IOException
+     */
+    public static Result merge(List<Path> inputs, Path out) throws IOException {
+        return merge(inputs, out, RUN);
+    }
+
+    static Result merge(List<Path> inputs, Path out, int runSize) throws IOException {
+        Result result = new Result();
+        List<BinaryManifest> manifests = new ArrayList<>();
+        List<Path> runs = new ArrayList<>();
+        try {
+            for(Path input: inputs){
+                manifests.add(BinaryManifest.open(input));
+            }
+            checkShards(inputs, manifests, result);
+
+            // sort runs of records by path, spilling all but a lone run to disk
+            List<ManifestRecord> run = new ArrayList<>();
+            for(BinaryManifest manifest: manifests){
+                Iterator<ManifestRecord> records = manifest.iterator();
+                while(records.hasNext()){
+                    run.add(records.next());
+                    if(run.size()==runSize){
+                        runs.add(spill(run, out, runSize));
+                    }
+                }
+            }
+
+            try (ManifestConverter.Sink sink = ManifestConverter.sink(out, ManifestConverter.formatOfName(out))) {
+                if(runs.isEmpty()){
+                    Collections.sort(run, BY_PATH);
+                    write(run.iterator(), sink, result);
+                } else {
+                    if(!run.isEmpty()){
+                        runs.add(spill(run, out, runSize));
+                    }
+                    mergeRuns(runs, sink, result);
+                }
+            }
+        } finally {
+            for(BinaryManifest manifest: manifests){
+                manifest.close();
+            }
+            for(Path run: runs){
+                Files.deleteIfExists(run);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Checks that the inputs cover each shard exactly once.
+     */
+    private static void checkShards(List<Path> inputs, List<BinaryManifest> manifests, Result result){
+        TreeMap<Integer, List<Path>> byShard = new TreeMap<>();
+        for(int i=0; i<manifests.size(); i++){
+            Shard shard = manifests.get(i).getShard();
+            if(shard!=null && result.shardCount==0){
+                result.shardCount = shard.getCount();
+            }
+        }
+        for(int i=0; i<manifests.size(); i++){
+            Shard shard = manifests.get(i).getShard();
+            if(result.shardCount==0){
+                continue;       // a merge of manifests that were not sharded
+            }
+            if(shard==null || shard.getCount()!=result.shardCount){
+                result.inconsistent.add(inputs.get(i)+" ("+(shard==null ? "not a shard" : "shard "+shard)+")");
+                continue;
+            }
+            if(!byShard.containsKey(shard.getIndex())){
+                byShard.put(shard.getIndex(), new ArrayList<Path>());
+            }
+            byShard.get(shard.getIndex()).add(inputs.get(i));
+        }
+        for(int i=0; i<result.shardCount; i++){
+            List<Path> shardInputs = byShard.get(i);
+            if(shardInputs==null){
+                result.missing.add(i);
+            } else if(shardInputs.size()>1){
+                result.duplicates.add(i+"/"+result.shardCount+" "+shardInputs);
+            }
+        }
+    }
+
+    /**
+     * Writes a sorted run to a temporary binary manifest beside the output and empties it.
+     */
+    private static Path spill(List<ManifestRecord> run, Path out, int runSize) throws IOException {
+        Collections.sort(run, BY_PATH);
+        Path file = Files.createTempFile(out.toAbsolutePath().getParent(), "merge", ".run");
+        try (BinaryManifest.Writer writer = BinaryManifest.create(file, runSize)) {
+            for(ManifestRecord record: run){
+                writer.add(record);
+            }
+        }
+        run.clear();
+        return file;
+    }
+
+    /**
+     * The next record of one sorted run during the merge. Ties are broken by run, so the first input wins.
+     */
+    private static final class Head implements Comparable<Head> {
+        final int                       run;
+        final Iterator<ManifestRecord>  records;
+        ManifestRecord                  record;
+
+        Head(int run, Iterator<ManifestRecord> records){
+            this.run = run;
+            this.records = records;
+        }
+
+        boolean next(){
+            record = records.hasNext() ? records.next() : null;
+            return record!=null;
+        }
+
+        @Override
+        public int compareTo(Head other){
+            int c = BY_PATH.compare(record, other.record);
+            return c!=0 ? c : Integer.compare(run, other.run);
+        }
+    }
+
+    private static void mergeRuns(List<Path> runs, ManifestConverter.Sink sink, Result result) throws IOException {
+        List<BinaryManifest> open = new ArrayList<>();
+        try {
+            final PriorityQueue<Head> queue = new PriorityQueue<>();
+            for(int i=0; i<runs.size(); i++){
+                BinaryManifest run = BinaryManifest.open(runs.get(i));
+                open.add(run);
+                Head head = new Head(i, run.iterator());
+                if(head.next()){
+                    queue.add(head);
+                }
+            }
+            write(new Iterator<ManifestRecord>() {
+                @Override
+                public boolean hasNext() {
+                    return !queue.isEmpty();
+                }
+
+                @Override
+                public ManifestRecord next() {
+                    Head head = queue.poll();
+                    ManifestRecord record = head.record;
+                    if(head.next()){
+                        queue.add(head);
+                    }
+                    return record;
+                }
+            }, sink, result);
+        } finally {
+            for(BinaryManifest run: open){
+                run.close();
+            }
+        }
+    }
+
+    /**
+     * Writes records in path order, dropping and counting repeated paths.
+     */
+    private static void write(Iterator<ManifestRecord> records, ManifestConverter.Sink sink, Result result)
+            throws IOException {
+        String last = null;
+        while(records.hasNext()){
+            ManifestRecord record = records.next();
+            if(record.getPath().equals(last)){
+                result.overlaps++;
+                int examples = result.overlapExamples.size();
+                if(examples<EXAMPLES && (examples==0 || !result.overlapExamples.get(examples-1).equals(last))){
+                    result.overlapExamples.add(last);
+                }
+                continue;
+            }
+            sink.visit(record);
+            result.records++;
+            last = record.getPath();
+        }
+    }
+}
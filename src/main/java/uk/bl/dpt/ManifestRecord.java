@@ -0,0 +1,357 @@
+/**
+ * Copyright 2016 Peter May
+ * Author: Peter May
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.bl.dpt;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The recorded size, modification time and checksums of one file in a manifest. Checksums that were not
+ * recorded are null.
+ */
+public final class ManifestRecord {
+
+    private final String        path;
+    private final long          size;
+    private final long          modified;
+    private final String        full;
+    private final String        remaining;
+    private final String[]      image;
+    private final String[]      ifd;
+    private final String[][]    strips;
+
+    /**
+     * Creates a record.
+     * @param path      the file's key (see {@link StripManifest#key})
+     * @param size      the file's size in bytes, or -1 if unknown
+     * @param modified  the file's modification time in milliseconds since the epoch, or -1 if unknown
+     * @param full      the full file checksum, or null
+     * @param remaining the non-image data checksum, or null
+     * @param image     the image checksum of each subfile, or null
+     * @param ifd       the IFD checksum of each subfile, or null
+     * @param strips    the checksum of each strip of each subfile, or null
+     */
+    public ManifestRecord(String path, long size, long modified, String full, String remaining, String[] image,
+                          String[] ifd, String[][] strips){
+        this.path = path;
+        this.size = size;
+        this.modified = modified;
+        this.full = full;
+        this.remaining = remaining;
+        this.image = image;
+        this.ifd = ifd;
+        this.strips = strips;
+    }
+
+    public String getPath(){
+        return path;
+    }
+
+    public long getSize(){
+        return size;
+    }
+
+    public long getModified(){
+        return modified;
+    }
+
+    public String getFullDigest(){
+        return full;
+    }
+
+    public String getRemainingDigest(){
+        return remaining;
+    }
+
+    /**
+     * Returns the number of subfiles with any recorded checksum.
+     * @return
+     */
+    public int numberOfSubfiles(){
+        return Math.max(length(image), Math.max(length(ifd), length(strips)));
+    }
+
+    /**
+     * Returns the image checksum of the specified subfile, or null if none was recorded.
+     * @param subFile   the subfile index (0 indexed)
+     * @return
+     */
+    public String getImageDigest(int subFile){
+        return image!=null && subFile<image.length ? image[subFile] : null;
+    }
+
+    /**
+     * Returns the IFD checksum of the specified subfile, or null if none was recorded.
+     * @param subFile   the subfile index (0 indexed)
+     * @return
+     */
+    public String getIFDDigest(int subFile){
+        return ifd!=null && subFile<ifd.length ? ifd[subFile] : null;
+    }
+
+    /**
+     * Returns the strip checksums of the specified subfile, or null if none were recorded.
+     * @param subFile   the subfile index (0 indexed)
+     * @return
+     */
+    public String[] getStripDigests(int subFile){
+        return strips!=null && subFile<strips.length ? strips[subFile] : null;
+    }
+
+    /**
+     * Returns a record of the checksums in a file's Tifixity output: the default ("Image MD5 [n]: ...") lines
+     * and, from a --strips run, the strip manifest lines.
+     * @param path      the file's key
+     * @param size      the file's size in bytes, or -1 if unknown
+     * @param modified  the file's modification time in milliseconds, or -1 if unknown
+     * @param output    the output
+     * @return
+     */
+    public static ManifestRecord fromOutput(String path, long size, long modified, String output){
+        String full = null;
+        String remaining = null;
+        List<String> image = new ArrayList<>();
+        List<String> ifd = new ArrayList<>();
+        List<List<String>> strips = new ArrayList<>();
+
+        for(String line: output.split("\n")){
+            if(line.startsWith("Full MD5: ")){
+                full = line.substring(10).trim();
+            } else if(line.startsWith("Remaining MD5: ")){
+                remaining = line.substring(15).trim();
+            } else if(line.startsWith("Image MD5 [")){
+                set(image, subFile(line, 11), digest(line));
+            } else if(line.startsWith("IFD MD5 [")){
+                set(ifd, subFile(line, 9), digest(line));
+            } else if(line.startsWith("ifd\t")){
+                String[] fields = line.split("\t", 4);
+                set(ifd, Integer.parseInt(fields[1]), fields[2]);
+            } else if(line.startsWith("strip\t")){
+                String[] fields = line.split("\t", 5);
+                int subFile = Integer.parseInt(fields[1]);
+                while(strips.size()<=subFile){
+                    strips.add(new ArrayList<String>());
+                }
+                set(strips.get(subFile), Integer.parseInt(fields[2]), fields[3]);
+            }
+        }
+
+        String[][] stripArray = null;
+        if(!strips.isEmpty()){
+            stripArray = new String[strips.size()][];
+            for(int i=0; i<stripArray.length; i++){
+                stripArray[i] = strips.get(i).toArray(new String[0]);
+            }
+        }
+        return new ManifestRecord(path, size, modified, full, remaining,
+                                  image.isEmpty() ? null : image.toArray(new String[0]),
+                                  ifd.isEmpty() ? null : ifd.toArray(new String[0]), stripArray);
+    }
+
+    private static int subFile(String line, int start){
+        return Integer.parseInt(line.substring(start, line.indexOf(']', start)));
+    }
+
+    private static String digest(String line){
+        return line.substring(line.indexOf("]: ")+3).trim();
+    }
+
+    private static void set(List<String> list, int index, String value){
+        while(list.size()<=index){
+            list.add(null);
+        }
+        list.set(index, value);
+    }
+
+    private static int length(Object[] array){
+        return array==null ? 0 : array.length;
+    }
+
+    /*
+     * Binary form, all big-endian (see BinaryManifest):
+     *   int      record length, excluding this field
+     *   int      path length, then the UTF-8 path
+     *   long     size, long modified
+     *   byte     flags: 1 full and remaining digests present
+     *   16 x 2   full and remaining digests, if present
+     *   int      number of subfiles, then for each:
+     *     16 x 2   image and IFD digests (all zero if not recorded)
+     *     int      number of strips (-1 if not recorded), then 16 bytes per strip
+     */
+
+    /**
+     * Returns the length of the binary form of this record, including its length field.
+     * @return
+     */
+    int binaryLength(){
+        int length = 4+4+path.getBytes(StandardCharsets.UTF_8).length+8+8+1+4;
+        if(full!=null || remaining!=null){
+            length += 32;
+        }
+        for(int i=0; i<numberOfSubfiles(); i++){
+            String[] s = getStripDigests(i);
+            length += 32+4+(s==null ? 0 : 16*s.length);
+        }
+        return length;
+    }
+
+    /**
+     * Writes the binary form of this record.
+     * @param buf   the buffer to write to, with at least {@link #binaryLength()} bytes remaining
+     */
+    void write(ByteBuffer buf){
+        byte[] name = path.getBytes(StandardCharsets.UTF_8);
+        buf.putInt(binaryLength()-4);
+        buf.putInt(name.length).put(name);
+        buf.putLong(size).putLong(modified);
+        boolean digests = full!=null || remaining!=null;
+        buf.put((byte) (digests ? 1 : 0));
+        if(digests){
+            putDigest(buf, full);
+            putDigest(buf, remaining);
+        }
+        buf.putInt(numberOfSubfiles());
+        for(int i=0; i<numberOfSubfiles(); i++){
+            putDigest(buf, getImageDigest(i));
+            putDigest(buf, getIFDDigest(i));
+            String[] s = getStripDigests(i);
+            buf.putInt(s==null ? -1 : s.length);
+            if(s!=null){
+                for(String digest: s){
+                    putDigest(buf, digest);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the binary form of a record.
+     * @param buf       the buffer to read from
+     * @param offset    the offset of the record's length field
+     * @return
+     */
+    static ManifestRecord read(ByteBuffer buf, int offset){
+        ByteBuffer in = buf.duplicate();
+        in.position(offset+4);
+        String path = readPath(in);
+        long size = in.getLong();
+        long modified = in.getLong();
+        String full = null;
+        String remaining = null;
+        if(in.get()!=0){
+            full = getDigest(in);
+            remaining = getDigest(in);
+        }
+        int subfiles = in.getInt();
+        String[] image = new String[subfiles];
+        String[] ifd = new String[subfiles];
+        String[][] strips = new String[subfiles][];
+        boolean anyImage = false, anyIFD = false, anyStrips = false;
+        for(int i=0; i<subfiles; i++){
+            image[i] = getDigest(in);
+            ifd[i] = getDigest(in);
+            int count = in.getInt();
+            if(count>=0){
+                strips[i] = new String[count];
+                for(int j=0; j<count; j++){
+                    strips[i][j] = getDigest(in);
+                }
+            }
+            anyImage |= image[i]!=null;
+            anyIFD |= ifd[i]!=null;
+            anyStrips |= strips[i]!=null;
+        }
+        return new ManifestRecord(path, size, modified, full, remaining, anyImage ? image : null,
+                                  anyIFD ? ifd : null, anyStrips ? strips : null);
+    }
+
+    /**
+     * Returns true if the binary record at the specified offset is for the specified path, without decoding it.
+     */
+    static boolean hasPath(ByteBuffer buf, int offset, byte[] path){
+        if(buf.getInt(offset+4)!=path.length){
+            return false;
+        }
+        for(int i=0; i<path.length; i++){
+            if(buf.get(offset+8+i)!=path[i]){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String readPath(ByteBuffer in){
+        byte[] name = new byte[in.getInt()];
+        in.get(name);
+        return new String(name, StandardCharsets.UTF_8);
+    }
+
+    private static void putDigest(ByteBuffer buf, String digest){
+        if(digest==null){
+            buf.putLong(0).putLong(0);
+        } else {
+            buf.putLong(Long.parseUnsignedLong(digest.substring(0, 16), 16));
+            buf.putLong(Long.parseUnsignedLong(digest.substring(16, 32), 16));
+        }
+    }
+
+    private static String getDigest(ByteBuffer in){
+        long high = in.getLong();
+        long low = in.getLong();
+        return high==0 && low==0 ? null : String.format("%016x%016x", high, low);
+    }
+
+    @Override
+    public boolean equals(Object obj){
+        if(obj==this){
+            return true;
+        }
+        if(!(obj instanceof ManifestRecord)){
+            return false;
+        }
+        ManifestRecord other = (ManifestRecord) obj;
+        if(!path.equals(other.path) || size!=other.size || modified!=other.modified || !equal(full, other.full)
+           || !equal(remaining, other.remaining)){
+            return false;
+        }
+        // compare by subfile, as a checksum that was not recorded may be held as a null or as a short array
+        for(int i=0; i<Math.max(numberOfSubfiles(), other.numberOfSubfiles()); i++){
+            if(!equal(getImageDigest(i), other.getImageDigest(i)) || !equal(getIFDDigest(i), other.getIFDDigest(i))
+               || !Arrays.equals(getStripDigests(i), other.getStripDigests(i))){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode(){
+        return path.hashCode()*31+Long.hashCode(size);
+    }
+
+    private static boolean equal(String a, String b){
+        return a==null ? b==null : a.equals(b);
+    }
+
+    @Override
+    public String toString(){
+        return path;
+    }
+}
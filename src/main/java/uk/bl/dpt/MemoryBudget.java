@@ -0,0 +1,299 @@
+/**
+ * Copyright 2016 Peter May
+ * Author: Peter May
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.bl.dpt;
+
+import java.io.Closeable;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A budget of heap memory shared by concurrent work, from which large allocations are reserved before they
+ * are made: parsed tag values, read buffers, windows of decoded strips and in-memory spill data.
+ *
+ * A reservation that does not fit blocks until other work releases enough memory, so a burst of large files
+ * waits its turn instead of exhausting the heap. Work that can manage with less asks for a range (see
+ * {@link #reserve(long, long)} and {@link Reservation#tryGrow(long)}) and degrades, e.g. to a smaller buffer,
+ * rather than wait. To avoid deadlock, a request never waits while no reservation is held, nor when every
+ * thread holding memory is itself waiting for more; it is then granted beyond the capacity. One instance,
+ * {@link #GLOBAL}, is shared by default.
+ */
+public final class MemoryBudget {
+
+    /** The budget shared by default; half the maximum heap until configured */
+    public static final MemoryBudget GLOBAL = new MemoryBudget(Runtime.getRuntime().maxMemory()/2);
+
+    private long    capacity;
+    private long    reserved = 0;
+    private long    peak = 0;
+    private long    waits = 0;
+    private long    overcommits = 0;
+
+    // bytes held by each thread that created a reservation, and how many of those threads are waiting
+    private final Map<Thread, Long> holders = new HashMap<>();
+    private int                     waitingHolders = 0;
+
+    /**
+     * Creates a budget.
+     * @param capacity  the number of bytes that may be reserved at once
+     */
+    public MemoryBudget(long capacity){
+        if(capacity<1){
+            throw new IllegalArgumentException("Memory budget must be positive");
+        }
+        this.capacity = capacity;
+    }
+
+    /**
+     * Reserves the specified number of bytes, blocking until they are available.
+     * @param bytes the number of bytes needed
+     * @return
+     * @throws InterruptedIOException   if interrupted while waiting
+     */
+    public Reservation reserve(long bytes) throws InterruptedIOException {
+        Reservation reservation = new Reservation();
+        reservation.grow(bytes);
+        return reservation;
+    }
+
+    /**
+     * Reserves up to the preferred number of bytes: as many as are available now, but blocking only until the
+     * minimum is available. Check {@link Reservation#getBytes()} for the number reserved.
+     * @param preferred the number of bytes wanted
+     * @param minimum   the number of bytes needed
+     * @return
+     * @throws InterruptedIOException   if interrupted while waiting
+     */
+    public Reservation reserve(long preferred, long minimum) throws InterruptedIOException {
+        Reservation reservation = new Reservation();
+        long available;
+        synchronized (this) {
+            available = Math.max(0, capacity-reserved);
+        }
+        if(reservation.tryGrow(Math.max(minimum, Math.min(preferred, available)))){
+            return reservation;
+        }
+        reservation.grow(minimum);
+        return reservation;
+    }
+
+    /**
+     * Returns the number of bytes that may be reserved at once.
+     * @return
+     */
+    public synchronized long getCapacity(){
+        return capacity;
+    }
+
+    /**
+     * Sets the number of bytes that may be reserved at once. Reservations already made are kept.
+     * @param capacity  the new capacity
+     */
+    public synchronized void setCapacity(long capacity){
+        if(capacity<1){
+            throw new IllegalArgumentException("Memory budget must be positive");
+        }
+        this.capacity = capacity;
+        notifyAll();
+    }
+
+    /**
+     * Returns the number of bytes reserved now.
+     * @return
+     */
+    public synchronized long getReserved(){
+        return reserved;
+    }
+
+    /**
+     * Returns the largest number of bytes reserved at once.
+     * @return
+     */
+    public synchronized long getPeakReserved(){
+        return peak;
+    }
+
+    /**
+     * Returns the number of requests that have had to wait.
+     * @return
+     */
+    public synchronized long getWaits(){
+        return waits;
+    }
+
+    /**
+     * Returns the number of requests granted beyond the capacity to avoid deadlock.
+     * @return
+     */
+    public synchronized long getOvercommits(){
+        return overcommits;
+    }
+
+    /**
+     * Takes bytes for the owner, if they fit or waiting could never end.
+     */
+    private synchronized boolean take(Thread owner, long bytes, boolean wait) throws InterruptedIOException {
+        if(reserved+bytes>capacity && !wait){
+            return false;
+        }
+        boolean holder = holders.containsKey(owner);
+        boolean waiting = false;
+        try {
+            while(reserved+bytes>capacity){
+                // a thread holding nothing leaves any deadlock to be broken by the holders themselves
+                int running = holders.size()-waitingHolders-(holder && !waiting ? 1 : 0);
+                if(reserved==0 || (holder && running<=0)){
+                    overcommits++;
+                    break;
+                }
+                if(!waiting){
+                    waits++;
+                    waiting = true;
+                    if(holder){
+                        waitingHolders++;
+                        // the holders still running may all be waiting now
+                        notifyAll();
+                    }
+                }
+                wait();
+            }
+        } catch (InterruptedException ie){
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for memory");
+        } finally {
+            if(waiting && holder){
+                waitingHolders--;
+            }
+        }
+        reserved += bytes;
+        peak = Math.max(peak, reserved);
+        Long held = holders.get(owner);
+        holders.put(owner, (held==null ? 0 : held)+bytes);
+        return true;
+    }
+
+    /**
+     * Returns bytes taken for the owner.
+     */
+    private synchronized void give(Thread owner, long bytes){
+        reserved -= bytes;
+        Long held = holders.get(owner);
+        if(held!=null){
+            if(held<=bytes){
+                holders.remove(owner);
+            } else {
+                holders.put(owner, held-bytes);
+            }
+        }
+        notifyAll();
+    }
+
+    /**
+     * Memory reserved from a {@link MemoryBudget}, which may grow and shrink while in use and is returned to
+     * the budget when closed. The reservation belongs to the thread that made it.
+     */
+    public final class Reservation implements Closeable {
+        private final Thread    owner = Thread.currentThread();
+        private long            bytes = 0;
+        private boolean         closed = false;
+
+        private Reservation(){
+        }
+
+        /**
+         * Returns the number of bytes reserved.
+         * @return
+         */
+        public synchronized long getBytes(){
+            return bytes;
+        }
+
+        /**
+         * Reserves more bytes, blocking until they are available.
+         * @param more  the number of bytes to add
+         * @throws InterruptedIOException   if interrupted while waiting
+         */
+        public void grow(long more) throws InterruptedIOException {
+            add(more, true);
+        }
+
+        /**
+         * Reserves more bytes if they are available now.
+         * @param more  the number of bytes to add
+         * @return  true if they were reserved
+         */
+        public boolean tryGrow(long more){
+            try {
+                return add(more, false);
+            } catch (InterruptedIOException e){
+                // never waits, so never interrupted
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private boolean add(long more, boolean wait) throws InterruptedIOException {
+            if(more<0){
+                throw new IllegalArgumentException("Negative reservation: "+more);
+            }
+            synchronized (this) {
+                if(closed){
+                    throw new IllegalStateException("Reservation closed");
+                }
+            }
+            if(more==0){
+                return true;
+            }
+            if(!take(owner, more, wait)){
+                return false;
+            }
+            synchronized (this) {
+                bytes += more;
+            }
+            return true;
+        }
+
+        /**
+         * Returns some of the reserved bytes to the budget.
+         * @param fewer the number of bytes to return, at most {@link #getBytes()}
+         */
+        public void release(long fewer){
+            synchronized (this) {
+                fewer = Math.max(0, Math.min(fewer, bytes));
+                bytes -= fewer;
+            }
+            if(fewer>0){
+                give(owner, fewer);
+            }
+        }
+
+        /**
+         * Returns all the reserved bytes to the budget. Closing more than once has no further effect.
+         */
+        @Override
+        public void close(){
+            long all;
+            synchronized (this) {
+                all = bytes;
+                bytes = 0;
+                closed = true;
+            }
+            if(all>0){
+                give(owner, all);
+            }
+        }
+    }
+}
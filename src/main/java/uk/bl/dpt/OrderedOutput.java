@@ -0,0 +1,143 @@
+/**
+ * Copyright 2016 Peter May
+ * Author: Peter May
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.bl.dpt;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Prints the outputs of a batch in the original order of its files, whatever order they complete in. Each
+ * output is printed as soon as every file before it has completed.
+ *
+ * Outputs waiting for an earlier file are held in a {@link SpillStore}: in memory up to a limit, and in a
+ * temporary file beyond it, so a batch whose first file completes last does not hold every output on the heap.
+ */
+class OrderedOutput implements Closeable {
+
+    /** Default number of bytes of waiting outputs held in memory before they are spilled */
+    static final long MEMORY_LIMIT = 16L*1024*1024;
+
+    private final PrintStream   out;
+    private final boolean[]     completed;
+    private final SpillStore    held;
+    private final long[]        heldAt;         // position of each waiting output in the store
+    private final int[]         heldLength;     // length of each waiting output, 0 if none
+    private long                heldEnd = 0;    // position after the last output stored
+    private int                 next = 0;       // first file whose output has not been printed
+
+    /**
+     * Creates an ordered output for a batch of files.
+     * @param out   the stream to print to
+     * @param count the number of files in the batch
+     */
+    OrderedOutput(PrintStream out, int count){
+        this(out, count, MEMORY_LIMIT);
+    }
+
+    /**
+     * Creates an ordered output for a batch of files.
+     * @param out           the stream to print to
+     * @param count         the number of files in the batch
+     * @param memoryLimit   the number of bytes of waiting outputs to hold in memory before spilling them
+     */
+    OrderedOutput(PrintStream out, int count, long memoryLimit){
+        this.out = out;
+        this.completed = new boolean[count];
+        this.held = new SpillStore(memoryLimit);
+        this.heldAt = new long[count];
+        this.heldLength = new int[count];
+    }
+
+    /**
+     * Records that a file has completed, and prints any outputs now in order.
+     * @param index     the file's index in the original order
+     * @param output    the file's output, or null if it has none (e.g. it failed or was skipped)
+     * @throws UncheckedIOException if a waiting output cannot be spilled or read back
+     */
+    synchronized void complete(int index, String output){
+        completed[index] = true;
+        if(index==next){
+            if(output!=null){
+                out.print(output);
+            }
+            next++;
+        } else if(output!=null){
+            byte[] bytes = output.getBytes(StandardCharsets.UTF_8);
+            try {
+                held.put(heldEnd, bytes, 0, bytes.length);
+            } catch (IOException ioe){
+                throw new UncheckedIOException("Unable to hold output", ioe);
+            }
+            heldAt[index] = heldEnd;
+            heldLength[index] = bytes.length;
+            heldEnd += bytes.length;
+        }
+        while(next<completed.length && completed[next]){
+            print(next++);
+        }
+    }
+
+    /**
+     * Prints the outputs of every completed file not yet printed, in order, skipping the files still pending.
+     * @throws UncheckedIOException if a waiting output cannot be read back
+     */
+    synchronized void flush(){
+        for(int i=next; i<completed.length; i++){
+            if(completed[i]){
+                print(i);
+            }
+        }
+        next = completed.length;
+        out.flush();
+    }
+
+    /**
+     * Returns the number of bytes of waiting outputs spilled to the temporary file.
+     * @return
+     */
+    synchronized long getSpilled(){
+        return held.getSpilled();
+    }
+
+    /**
+     * Discards any waiting outputs and deletes the temporary file.
+     * @throws IOException
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        held.close();
+    }
+
+    private void print(int index){
+        int length = heldLength[index];
+        if(length>0){
+            ByteBuffer buf = ByteBuffer.allocate(length);
+            try {
+                held.read(heldAt[index], buf);
+            } catch (IOException ioe){
+                throw new UncheckedIOException("Unable to read held output", ioe);
+            }
+            held.release(heldAt[index], heldAt[index]+length);
+            heldLength[index] = 0;
+            out.print(new String(buf.array(), 0, buf.position(), StandardCharsets.UTF_8));
+        }
+    }
+}
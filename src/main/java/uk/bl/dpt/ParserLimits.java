@@ -0,0 +1,77 @@
+/**
+ * Copyright 2016 Peter May
+ * Author: Peter May
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.bl.dpt;
+
+/**
+ * Limits on the resources the parser and decoders will spend on one TIFF file, so that a malformed or
+ * malicious file fails with a {@link TiffFormatException} instead of exhausting memory or looping forever.
+ */
+public final class ParserLimits {
+
+    /** Defaults generous enough for any well-formed TIFF in practice */
+    public static final ParserLimits DEFAULT = new ParserLimits(1024, 4096, 16L*1024*1024, 64L*1024*1024,
+                                                                256L*1024*1024);
+
+    // Estimated heap cost of each boxed tag value element, on top of its bytes in the file
+    static final int ELEMENT_OVERHEAD = 20;
+
+    private final int   maxIFDs;
+    private final int   maxEntries;
+    private final long  maxValueBytes;
+    private final long  maxAllocation;
+    private final long  maxBlockBytes;
+
+    /**
+     * Creates a set of limits.
+     * @param maxIFDs       the maximum number of IFDs in the IFD chain
+     * @param maxEntries    the maximum number of entries in one IFD
+     * @param maxValueBytes the maximum size (in bytes, in the file) of one tag's value
+     * @param maxAllocation the maximum estimated memory allocated while parsing one file
+     * @param maxBlockBytes the maximum size of one decoded strip or tile
+     */
+    public ParserLimits(int maxIFDs, int maxEntries, long maxValueBytes, long maxAllocation, long maxBlockBytes){
+        if(maxIFDs<1 || maxEntries<1 || maxValueBytes<1 || maxAllocation<1 || maxBlockBytes<1){
+            throw new IllegalArgumentException("Parser limits must be positive");
+        }
+        this.maxIFDs = maxIFDs;
+        this.maxEntries = maxEntries;
+        // arrays are indexed by int
+        this.maxValueBytes = Math.min(maxValueBytes, Integer.MAX_VALUE-8);
+        this.maxAllocation = maxAllocation;
+        this.maxBlockBytes = Math.min(maxBlockBytes, Integer.MAX_VALUE-8);
+    }
+
+    public int getMaxIFDs(){
+        return maxIFDs;
+    }
+
+    public int getMaxEntries(){
+        return maxEntries;
+    }
+
+    public long getMaxValueBytes(){
+        return maxValueBytes;
+    }
+
+    public long getMaxAllocation(){
+        return maxAllocation;
+    }
+
+    public long getMaxBlockBytes(){
+        return maxBlockBytes;
+    }
+}
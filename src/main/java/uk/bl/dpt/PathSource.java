@@ -0,0 +1,64 @@
+/**
+ * Copyright 2016 Peter May
+ * Author: Peter May
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.bl.dpt;
+
+import java.io.IOException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * A {@link ByteSource} reading a file.
+ */
+class PathSource implements ByteSource {
+
+    // set by ByteSource.setDirectIO
+    static volatile boolean directIO = false;
+
+    private final Path      path;
+    private final Boolean   direct;     // null to follow directIO
+
+    PathSource(Path path){
+        this(path, null);
+    }
+
+    PathSource(Path path, Boolean direct){
+        this.path = path;
+        this.direct = direct;
+    }
+
+    @Override
+    public SeekableByteChannel open() throws IOException {
+        boolean useDirect = direct!=null ? direct : directIO;
+        return useDirect ? DirectChannel.open(path, IOThrottle.GLOBAL) : IOThrottle.open(path);
+    }
+
+    @Override
+    public long size() throws IOException {
+        return Files.size(path);
+    }
+
+    @Override
+    public Path getPath(){
+        return path;
+    }
+
+    @Override
+    public String toString(){
+        return path.toString();
+    }
+}
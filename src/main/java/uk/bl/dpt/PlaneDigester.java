@@ -0,0 +1,210 @@
+/**
+ * Copyright 2016 Peter May
+ * Author: Peter May
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.bl.dpt;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Calculates the image checksum of a subfile together with the checksum of each of its sample planes, in one
+ * pass over the image data.
+ *
+ * With PlanarConfiguration=2 the StripOffsets hold the strips (or tiles) of each plane in turn, so plane p
+ * is the p-th run of StripOffsets/SamplesPerPixel strips. The data is read once, in StripOffsets order; the
+ * reading thread updates the image checksum, which must see the bytes in order, and hands each chunk to a
+ * worker thread that updates the checksum of the chunk's plane. Both checksums are therefore calculated
+ * together and the pass takes about as long as the image checksum alone. A chunky subfile has one plane,
+ * whose checksum is the image checksum.
+ */
+final class PlaneDigester {
+
+    private static final int    CHUNKS = 4;     // most chunks in flight between the reader and the worker
+
+    // not the common pool: the worker blocks waiting for chunks, and must not wait behind other tasks
+    private static final ExecutorService WORKERS = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "tifixity-planes");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * A chunk of one plane's data. A chunk with no data marks the end of the image.
+     */
+    private static final class Chunk {
+        final int           plane;
+        final ByteBuffer    data;
+        final boolean       pooled;
+
+        Chunk(int plane, ByteBuffer data, boolean pooled){
+            this.plane = plane;
+            this.data = data;
+            this.pooled = pooled;
+        }
+    }
+
+    private static final Chunk END = new Chunk(-1, null, false);
+
+    private PlaneDigester(){
+    }
+
+    /**
+     * Returns the number of sample planes in the specified subfile: SamplesPerPixel if the samples are stored
+     * in separate planes, otherwise 1.
+     * @param tiff      the TIFF file
+     * @param subFile   the subfile index (0 indexed)
+     * @return
+     */
+    static int numberOfPlanes(Tiff tiff, int subFile){
+        return tiff.getPlanarConfiguration(subFile)==2 ? Math.max(1, tiff.getSamplesPerPixel(subFile)) : 1;
+    }
+
+    /**
+     * Calculates the image checksum and plane checksums of the specified subfile.
+     * @param tiff      the TIFF file
+     * @param subFile   the subfile index (0 indexed)
+     * @return  the image checksum followed by the checksum of each plane
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    static String[] digest(Tiff tiff, int subFile) throws IOException, NoSuchAlgorithmException {
+        Integer[] offsets = tiff.getImageDataOffsets(subFile);
+        Integer[] lengths = tiff.getImageDataLengths(subFile);
+        int planes = numberOfPlanes(tiff, subFile);
+        if(offsets.length%planes!=0){
+            throw new TiffFormatException("Subfile "+subFile+" has "+offsets.length+" strips, not a multiple of its "
+                                          +planes+" planes");
+        }
+        int stripsPerPlane = offsets.length/planes;
+
+        MessageDigest image = MessageDigest.getInstance("MD5");
+        if(planes==1){
+            try (SeekableByteChannel sbc = tiff.getSource().open()) {
+                ByteBuffer buf = Buffers.read();
+                for(int j=0; j<offsets.length; j++){
+                    Tifixity.updateDigest(image, sbc, offsets[j] & 0xFFFFFFFFL, lengths[j] & 0xFFFFFFFFL, buf);
+                }
+            }
+            String checksum = Tifixity.checksumAsString(image.digest());
+            return new String[]{checksum, checksum};
+        }
+
+        // fewer chunks in flight, down to one, if the memory budget is short
+        MemoryBudget.Reservation memory = tiff.getMemoryBudget().reserve((long) CHUNKS*Buffers.READ_SIZE,
+                                                                          Buffers.READ_SIZE);
+        int chunks = (int) Math.max(1, memory.getBytes()/Buffers.READ_SIZE);
+        final BlockingQueue<ByteBuffer> free = new ArrayBlockingQueue<>(chunks);
+        for(int i=0; i<chunks; i++){
+            free.add(ByteBuffer.allocate(Buffers.READ_SIZE));
+        }
+        final BlockingQueue<Chunk> work = new ArrayBlockingQueue<>(chunks+1);
+        final MessageDigest[] planeDigests = new MessageDigest[planes];
+        for(int p=0; p<planes; p++){
+            planeDigests[p] = MessageDigest.getInstance("MD5");
+        }
+
+        Future<Void> worker = WORKERS.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws InterruptedException {
+                Chunk chunk;
+                while((chunk = work.take())!=END){
+                    planeDigests[chunk.plane].update(chunk.data);
+                    if(chunk.pooled){
+                        free.put(chunk.data);
+                    }
+                }
+                return null;
+            }
+        });
+
+        try {
+            try (SeekableByteChannel sbc = tiff.getSource().open()) {
+                for(int j=0; j<offsets.length; j++){
+                    read(sbc, offsets[j] & 0xFFFFFFFFL, lengths[j] & 0xFFFFFFFFL, j/stripsPerPlane, image, free, work);
+                }
+            } finally {
+                work.put(END);
+            }
+            worker.get();
+        } catch (InterruptedException e){
+            worker.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while calculating plane checksums");
+        } catch (ExecutionException e){
+            throw new IOException("Plane checksum failed", e.getCause());
+        } finally {
+            memory.close();
+        }
+
+        String[] checksums = new String[planes+1];
+        checksums[0] = Tifixity.checksumAsString(image.digest());
+        for(int p=0; p<planes; p++){
+            checksums[p+1] = Tifixity.checksumAsString(planeDigests[p].digest());
+        }
+        return checksums;
+    }
+
+    /**
+     * Reads one strip, updating the image checksum and passing its data to the plane worker. A strip extending
+     * past the end of the file is read up to the end of the file.
+     */
+    private static void read(SeekableByteChannel sbc, long offset, long length, int plane, MessageDigest image,
+                             BlockingQueue<ByteBuffer> free, BlockingQueue<Chunk> work)
+            throws IOException, InterruptedException {
+        ByteBuffer range = BufferSource.slice(sbc, offset, length);
+        if(range!=null){
+            // in memory already, so both threads read their own view of the same bytes
+            ByteBuffer view = range.duplicate();
+            image.update(range);
+            work.put(new Chunk(plane, view, false));
+            return;
+        }
+
+        sbc.position(offset);
+        long remaining = length;
+        while(remaining>0){
+            ByteBuffer buf = free.take();
+            buf.clear();
+            if(remaining<buf.capacity()){
+                buf.limit((int) remaining);
+            }
+            int bytesRead = sbc.read(buf);
+            if(bytesRead<0){
+                free.put(buf);
+                break;
+            }
+            buf.flip();
+            image.update(buf.array(), 0, bytesRead);
+            work.put(new Chunk(plane, buf, true));
+            remaining -= bytesRead;
+        }
+    }
+}
@@ -0,0 +1,255 @@
+/**
+ * Copyright 2016 Peter May
+ * Author: Peter May
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.bl.dpt;
+
+import java.io.IOException;
+import java.nio.channels.SeekableByteChannel;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Sampled quick check of TIFF files against a {@link StripManifest}, for fast triage of large collections.
+ *
+ * Every IFD is checked, together with a deterministic sample of strips from each subfile. The sample always
+ * includes the first and last strip of each subfile; further strips are chosen at random (seeded by the check's
+ * seed and the file's path) until the strips read reach the requested fraction of the file size. The same seed
+ * always selects the same strips of the same file.
+ */
+public class QuickCheck {
+
+    /**
+     * The outcome of checking one file.
+     */
+    public static class Result {
+        private final String        file;
+        private final boolean       inManifest;
+        private final List<String>  differences;
+        private final long          bytesRead;
+
+        Result(String file, boolean inManifest, List<String> differences, long bytesRead){
+            this.file = file;
+            this.inManifest = inManifest;
+            this.differences = differences;
+            this.bytesRead = bytesRead;
+        }
+
+        /**
+         * Returns true if the file is in the manifest and every sampled checksum matched.
+         * @return
+         */
+        public boolean isOK(){
+            return inManifest && differences.isEmpty();
+        }
+
+        /**
+         * Returns false if the file has no entry in the manifest.
+         * @return
+         */
+        public boolean isInManifest(){
+            return inManifest;
+        }
+
+        /**
+         * Returns a description of each sampled IFD or strip that did not match the manifest.
+         * @return
+         */
+        public List<String> getDifferences(){
+            return differences;
+        }
+
+        /**
+         * Returns the number of image data bytes read for the sample.
+         * @return
+         */
+        public long getBytesRead(){
+            return bytesRead;
+        }
+
+        @Override
+        public String toString(){
+            if(!inManifest){
+                return "UNKNOWN "+file;
+            }
+            if(differences.isEmpty()){
+                return "OK "+file;
+            }
+            StringBuilder sb = new StringBuilder("FAIL ").append(file);
+            for(String d: differences){
+                sb.append("\n  ").append(d);
+            }
+            return sb.toString();
+        }
+    }
+
+    private final StripManifest manifest;
+    private final double        fraction;
+    private final long          seed;
+
+    /**
+     * Creates a quick check against the specified manifest.
+     * @param manifest  the reference checksums
+     * @param fraction  the fraction of each file's size to read as sampled strips (0 to 1)
+     * @param seed      the seed for the random strip selection
+     */
+    public QuickCheck(StripManifest manifest, double fraction, long seed){
+        this.manifest = manifest;
+        this.fraction = fraction;
+        this.seed = seed;
+    }
+
+    /**
+     * Checks the IFDs and a sample of strips of the specified file.
+     * @param file  the TIFF file to check
+     * @return
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    public Result check(String file) throws IOException, NoSuchAlgorithmException {
+        StripManifest.Entry expected = manifest.get(file);
+        if(expected==null){
+            return new Result(file, false, Collections.<String>emptyList(), 0);
+        }
+
+        Tiff tiff = TiffFileHandler.loadTiffFromFile(file);
+        List<String> differences = new ArrayList<>();
+
+        for(int i=0; i<tiff.numberOfIFDs(); i++){
+            String cs = Tifixity.calculateIFDDigest(tiff, i);
+            if(!cs.equals(expected.getIFDDigest(i))){
+                differences.add("IFD ["+i+"] differs");
+            }
+        }
+        if(expected.getIFDDigest(tiff.numberOfIFDs())!=null){
+            differences.add("Subfiles missing after ["+(tiff.numberOfIFDs()-1)+"]");
+        }
+
+        long fileSize = tiff.getSource().size();
+        long budget = (long) (fraction*fileSize);
+        long[] sample = selectStrips(tiff, budget, seed ^ StripManifest.key(file).hashCode());
+
+        long bytesRead = 0;
+        try (SeekableByteChannel sbc = tiff.getSource().open()) {
+            for(long s: sample){
+                int subFile = (int) (s>>>32);
+                int strip = (int) s;
+                String cs = Tifixity.calculateStripDigest(tiff, sbc, subFile, strip);
+                bytesRead += tiff.getImageDataLengths(subFile)[strip] & 0xFFFFFFFFL;
+                if(!cs.equals(expected.getStripDigest(subFile, strip))){
+                    differences.add("Strip ["+subFile+"]["+strip+"] differs");
+                }
+            }
+        }
+
+        return new Result(file, true, differences, bytesRead);
+    }
+
+    /**
+     * Selects the strips to sample: the first and last strip of each subfile, then randomly chosen strips
+     * while they fit in the byte budget.
+     * @param tiff      the TIFF file
+     * @param budget    the number of image data bytes to aim for
+     * @param seed      the seed for the random selection
+     * @return  the selected strips, each encoded as (subfile &lt;&lt; 32 | strip), in ascending file offset order
+     */
+    static long[] selectStrips(Tiff tiff, long budget, long seed){
+        int subFiles = tiff.numberOfIFDs();
+        int[] firstStrip = new int[subFiles+1];     // global index of each subfile's first strip
+        for(int i=0; i<subFiles; i++){
+            firstStrip[i+1] = firstStrip[i]+tiff.getImageDataOffsets(i).length;
+        }
+        int total = firstStrip[subFiles];
+
+        boolean[] selected = new boolean[total];
+        long used = 0;
+        for(int i=0; i<subFiles; i++){
+            int n = firstStrip[i+1]-firstStrip[i];
+            if(n>0){
+                used += select(tiff, selected, firstStrip, i, 0);
+                used += select(tiff, selected, firstStrip, i, n-1);
+            }
+        }
+
+        // partial Fisher-Yates shuffle of the global strip indexes
+        Random random = new Random(seed);
+        int[] order = new int[total];
+        for(int k=0; k<total; k++){
+            order[k] = k;
+        }
+        for(int k=0; k<total && used<budget; k++){
+            int r = k+random.nextInt(total-k);
+            int g = order[r];
+            order[r] = order[k];
+            order[k] = g;
+
+            if(!selected[g]){
+                int subFile = Arrays.binarySearch(firstStrip, g);
+                subFile = subFile>=0 ? subFile : -subFile-2;
+                // skip to the last subfile starting at g (earlier subfiles may be empty)
+                while(subFile+1<subFiles && firstStrip[subFile+1]==g){
+                    subFile++;
+                }
+                long length = tiff.getImageDataLengths(subFile)[g-firstStrip[subFile]] & 0xFFFFFFFFL;
+                if(used+length<=budget){
+                    used += select(tiff, selected, firstStrip, subFile, g-firstStrip[subFile]);
+                }
+            }
+        }
+
+        // encode and order by file offset so the sample is read in one forward pass. Offsets are unsigned
+        // 32-bit values, so offset and position pack into one sortable long.
+        int count = 0;
+        for(boolean b: selected){
+            if(b) count++;
+        }
+        long[] keys = new long[count];
+        long[] strips = new long[count];
+        int n = 0;
+        for(int i=0; i<subFiles; i++){
+            Integer[] stripOffsets = tiff.getImageDataOffsets(i);
+            for(int j=0; j<stripOffsets.length; j++){
+                if(selected[firstStrip[i]+j]){
+                    keys[n] = ((stripOffsets[j] & 0xFFFFFFFFL)<<31) | n;
+                    strips[n] = ((long) i<<32) | j;
+                    n++;
+                }
+            }
+        }
+        Arrays.sort(keys);
+
+        long[] sample = new long[count];
+        for(int k=0; k<count; k++){
+            sample[k] = strips[(int) (keys[k] & 0x7FFFFFFF)];
+        }
+        return sample;
+    }
+
+    /**
+     * Marks a strip as selected and returns its length, or 0 if it was already selected.
+     */
+    private static long select(Tiff tiff, boolean[] selected, int[] firstStrip, int subFile, int strip){
+        int g = firstStrip[subFile]+strip;
+        if(selected[g]){
+            return 0;
+        }
+        selected[g] = true;
+        return tiff.getImageDataLengths(subFile)[strip] & 0xFFFFFFFFL;
+    }
+}
@@ -0,0 +1,152 @@
+/**
+ * Copyright 2016 Peter May
+ * Author: Peter May
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.bl.dpt;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Path;
+
+/**
+ * A {@link ByteSource} reading a byte range of another source, such as a member stored in an archive.
+ */
+class RangeSource implements ByteSource {
+
+    private final ByteSource    base;
+    private final long          offset;
+    private final long          length;
+
+    private RangeSource(ByteSource base, long offset, long length){
+        this.base = base;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    /**
+     * Returns a source reading the specified range of another source.
+     * @param base      the source holding the range
+     * @param offset    the start of the range in the base source
+     * @param length    the length of the range
+     * @return
+     */
+    static ByteSource of(ByteSource base, long offset, long length){
+        if(base instanceof BufferSource){
+            // keep in-memory ranges in memory, so they are still hashed without copying
+            return ((BufferSource) base).slice(offset, length);
+        }
+        return new RangeSource(base, offset, length);
+    }
+
+    @Override
+    public SeekableByteChannel open() throws IOException {
+        return new View(base.open());
+    }
+
+    @Override
+    public long size(){
+        return length;
+    }
+
+    @Override
+    public Path getPath(){
+        return null;
+    }
+
+    /**
+     * A channel over the range, reading through its own channel on the base source.
+     */
+    private class View implements SeekableByteChannel {
+        private final SeekableByteChannel channel;
+        private long position = 0;
+
+        View(SeekableByteChannel channel){
+            this.channel = channel;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            checkOpen();
+            if(position>=length){
+                return -1;
+            }
+            int limit = dst.limit();
+            if(dst.remaining()>length-position){
+                dst.limit(dst.position()+(int) (length-position));
+            }
+            try {
+                channel.position(offset+position);
+                int count = channel.read(dst);
+                if(count>0){
+                    position += count;
+                }
+                return count;
+            } finally {
+                dst.limit(limit);
+            }
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public long position() throws IOException {
+            checkOpen();
+            return position;
+        }
+
+        @Override
+        public SeekableByteChannel position(long newPosition) throws IOException {
+            checkOpen();
+            if(newPosition<0){
+                throw new IllegalArgumentException("Negative position: "+newPosition);
+            }
+            position = newPosition;
+            return this;
+        }
+
+        @Override
+        public long size() throws IOException {
+            checkOpen();
+            return length;
+        }
+
+        @Override
+        public SeekableByteChannel truncate(long size) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+
+        private void checkOpen() throws ClosedChannelException {
+            if(!isOpen()){
+                throw new ClosedChannelException();
+            }
+        }
+    }
+}
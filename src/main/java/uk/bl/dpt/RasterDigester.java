@@ -0,0 +1,168 @@
+/**
+ * Copyright 2016 Peter May
+ * Author: Peter May
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.bl.dpt;
+
+import java.io.IOException;
+import java.nio.channels.SeekableByteChannel;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * Calculates a digest of a subfile's pixels that does not depend on how they are laid out in the file.
+ *
+ * The canonical raster is the image rows from top to bottom, each row holding every pixel from left to right
+ * with its samples in order (i.e. chunky), with 16 and 32-bit samples in big-endian order. Changing
+ * RowsPerStrip, PlanarConfiguration, strips for tiles, byte order or a lossless compression does not change
+ * the digest.
+ *
+ * The raster is built one band of strips or tiles at a time, so memory use is bounded by one row of blocks
+ * (across all planes) rather than the whole image. Each band's memory is reserved from the TIFF's
+ * {@link MemoryBudget} before it is read.
+ */
+class RasterDigester {
+
+    private final BlockDecoder blocks;
+
+    RasterDigester(BlockDecoder blocks){
+        this.blocks = blocks;
+    }
+
+    /**
+     * Adds the canonical raster of the subfile to the digest.
+     * @param tiff  the TIFF file
+     * @param md    the digest to update
+     * @throws IOException  if the layout is not supported or the data cannot be decoded
+     */
+    void digest(Tiff tiff, MessageDigest md) throws IOException {
+        long width = blocks.getWidth();
+        long blockWidth = blocks.getBlockWidth();
+        int samples = blocks.getSamplesPerPixel();
+        int planes = blocks.isPlanar() ? samples : 1;
+        int across = blocks.getBlocksAcross();
+
+        // Sub-byte samples are only supported where each canonical row comes from one block; a tile may be
+        // wider than the image, so only the row's own bytes are taken from it
+        int sampleBits = blocks.isPlanar() ? uniformBits(blocks.getBitsPerSample()) : blocks.sampleBits(0);
+        boolean wholeRows = planes==1 && across==1;
+        if(!wholeRows && (sampleBits==0 || sampleBits%8!=0)){
+            throw new IOException("Unsupported BitsPerSample for raster digest");
+        }
+        int sampleBytes = sampleBits/8;
+        int pixelBytes = sampleBytes*samples;
+
+        long rowBytes = wholeRows ? (width*blocks.bitsPerPixel(0)+7)/8 : width*pixelBytes;
+        if(rowBytes>tiff.getLimits().getMaxBlockBytes()){
+            throw new TiffFormatException("Row too large: "+rowBytes+" bytes");
+        }
+        MemoryBudget.Reservation memory = tiff.getMemoryBudget().reserve(rowBytes);
+        byte[] row = new byte[(int) rowBytes];
+        byte[][] band = new byte[planes*across][];
+
+        try (SeekableByteChannel sbc = tiff.getSource().open()) {
+            for(int down=0; down<blocks.getBlocksDown(); down++){
+                // the band's decoded blocks, and the stored bytes of the one being decoded, held at once
+                long bandBytes = 0;
+                long storedBytes = 0;
+                for(int p=0; p<planes; p++){
+                    for(int a=0; a<across; a++){
+                        int block = blocks.blockIndex(p, down, a);
+                        if(block<blocks.numberOfBlocks()){
+                            bandBytes += blocks.decodedLength(block);
+                            storedBytes = Math.max(storedBytes, blocks.storedLength(block));
+                        }
+                    }
+                }
+                Arrays.fill(band, null);
+                memory.release(memory.getBytes()-rowBytes);
+                memory.grow(bandBytes+storedBytes);
+
+                // read every block in this band
+                for(int p=0; p<planes; p++){
+                    for(int a=0; a<across; a++){
+                        int block = blocks.blockIndex(p, down, a);
+                        if(block>=blocks.numberOfBlocks()){
+                            throw new IOException("Missing block "+block);
+                        }
+                        band[p*across+a] = blocks.decodeBlock(block, blocks.readBlock(sbc, block));
+                    }
+                }
+
+                long rows = Math.min(blocks.getBlockLength(), blocks.getHeight()-down*blocks.getBlockLength());
+                for(int r=0; r<rows; r++){
+                    if(wholeRows){
+                        copy(band[0], r*blocks.blockRowBytes(0), row, 0, row.length);
+                    } else {
+                        for(int a=0; a<across; a++){
+                            int x0 = (int) (a*blockWidth);
+                            int pixels = (int) Math.min(blockWidth, width-x0);
+                            if(planes==1){
+                                byte[] src = band[a];
+                                copy(src, r*blocks.blockRowBytes(blocks.blockIndex(0, down, a)),
+                                     row, x0*pixelBytes, pixels*pixelBytes);
+                            } else {
+                                for(int p=0; p<planes; p++){
+                                    byte[] src = band[p*across+a];
+                                    int srcRow = r*blocks.blockRowBytes(blocks.blockIndex(p, down, a));
+                                    interleave(src, srcRow, row, (x0*samples+p)*sampleBytes, pixels,
+                                               sampleBytes, pixelBytes);
+                                }
+                            }
+                        }
+                    }
+                    md.update(row);
+                }
+            }
+        } finally {
+            memory.close();
+        }
+    }
+
+    /**
+     * Copies bytes, zero filling anything beyond the end of a truncated source.
+     */
+    private static void copy(byte[] src, int srcPos, byte[] dst, int dstPos, int length){
+        int available = Math.max(0, Math.min(length, src.length-srcPos));
+        if(available>0){
+            System.arraycopy(src, srcPos, dst, dstPos, available);
+        }
+        for(int i=available; i<length; i++){
+            dst[dstPos+i] = 0;
+        }
+    }
+
+    /**
+     * Copies consecutive samples from a plane into every pixelBytes-th position of the row.
+     */
+    private static void interleave(byte[] src, int srcPos, byte[] dst, int dstPos, int pixels,
+                                   int sampleBytes, int pixelBytes){
+        for(int x=0; x<pixels; x++){
+            copy(src, srcPos+x*sampleBytes, dst, dstPos+x*pixelBytes, sampleBytes);
+        }
+    }
+
+    /**
+     * Returns the width of every sample if all samples are the same width, or 0 if they differ.
+     */
+    private static int uniformBits(int[] bitsPerSample){
+        for(int b: bitsPerSample){
+            if(b!=bitsPerSample[0]){
+                return 0;
+            }
+        }
+        return bitsPerSample[0];
+    }
+}
@@ -0,0 +1,145 @@
+/**
+ * Copyright 2016 Peter May
+ * Author: Peter May
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.bl.dpt;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One of n deterministic partitions of a set of files, so that several nodes can each process a share of a
+ * collection without coordinating.
+ *
+ * A file belongs to shard i of n if the 64-bit FNV-1a hash of its path relative to a root directory, with /
+ * separators, is i modulo n. The relative path keeps the assignment the same on nodes that mount the
+ * collection in different places; files outside the root are hashed by their absolute path. Manifests written
+ * under a shard key their records by the same path, so that the merge sorts and matches them.
+ */
+public final class Shard {
+
+    private final int index;
+    private final int count;
+
+    /**
+     * Creates a shard.
+     * @param index the shard index, 0 to count-1
+     * @param count the number of shards
+     */
+    public Shard(int index, int count){
+        if(count<1 || index<0 || index>=count){
+            throw new IllegalArgumentException("Invalid shard "+index+"/"+count);
+        }
+        this.index = index;
+        this.count = count;
+    }
+
+    /**
+     * Returns the shard described as "i/n", where 0 &lt;= i &lt; n.
+     * @param shard the description
+     * @return
+     */
+    public static Shard parse(String shard){
+        int slash = shard.indexOf('/');
+        try {
+            if(slash>0){
+                return new Shard(Integer.parseInt(shard.substring(0, slash).trim()),
+                                 Integer.parseInt(shard.substring(slash+1).trim()));
+            }
+        } catch (NumberFormatException nfe){
+            // reported below
+        }
+        throw new IllegalArgumentException("Invalid shard "+shard+" (expected i/n, with 0 <= i < n)");
+    }
+
+    public int getIndex(){
+        return index;
+    }
+
+    public int getCount(){
+        return count;
+    }
+
+    /**
+     * Returns the path a file is hashed by: its path relative to the root, with / separators, or its absolute
+     * path if it is not within the root.
+     * @param file  the file
+     * @param root  the root directory
+     * @return
+     */
+    public static String relativePath(String file, Path root){
+        Path path = Paths.get(file).toAbsolutePath().normalize();
+        Path base = root.toAbsolutePath().normalize();
+        if(path.startsWith(base)){
+            path = base.relativize(path);
+        }
+        return path.toString().replace(path.getFileSystem().getSeparator(), "/");
+    }
+
+    /**
+     * Returns the shard of the specified relative path, from 0 to count-1.
+     * @param relativePath  the path (see {@link #relativePath})
+     * @param count         the number of shards
+     * @return
+     */
+    public static int of(String relativePath, int count){
+        long hash = BinaryManifest.hash(relativePath.getBytes(StandardCharsets.UTF_8));
+        return (int) Long.remainderUnsigned(hash, count);
+    }
+
+    /**
+     * Returns true if the specified file belongs to this shard.
+     * @param file  the file
+     * @param root  the root directory paths are made relative to
+     * @return
+     */
+    public boolean contains(String file, Path root){
+        return of(relativePath(file, root), count)==index;
+    }
+
+    /**
+     * Returns the files that belong to this shard, in their original order.
+     * @param files the files
+     * @param root  the root directory paths are made relative to
+     * @return
+     */
+    public String[] select(String[] files, Path root){
+        List<String> selected = new ArrayList<>();
+        for(String file: files){
+            if(contains(file, root)){
+                selected.add(file);
+            }
+        }
+        return selected.toArray(new String[0]);
+    }
+
+    @Override
+    public boolean equals(Object obj){
+        return obj instanceof Shard && ((Shard) obj).index==index && ((Shard) obj).count==count;
+    }
+
+    @Override
+    public int hashCode(){
+        return index*31+count;
+    }
+
+    @Override
+    public String toString(){
+        return index+"/"+count;
+    }
+}
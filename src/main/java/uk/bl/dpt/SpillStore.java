@@ -0,0 +1,275 @@
+/**
+ * Copyright 2016 Peter May
+ * Author: Peter May
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.bl.dpt;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * A sparse store of byte ranges of a file, addressed by file offset, held in memory up to a limit and in a
+ * temporary file beyond it.
+ *
+ * Ranges are stored as they arrive and released once no longer needed, so memory is reused. Memory is counted
+ * by the arrays held, not the bytes still wanted: the parts of a partly released array keep it all counted
+ * until they are released too, or are copied out once they fill half of it or less. Space in the temporary
+ * file is not reused; it is deleted when the store is closed.
+ */
+class SpillStore implements Closeable {
+
+    /**
+     * An array of bytes held in memory, shared by the chunks left when parts of it are released.
+     */
+    private static final class Block {
+        final byte[]    data;
+        final long      offset;         // file offset of data[0]
+        int             live;           // bytes of data still stored
+
+        Block(byte[] data, long offset){
+            this.data = data;
+            this.offset = offset;
+            this.live = data.length;
+        }
+    }
+
+    /**
+     * A stored run of bytes starting at a file offset, either in memory (block) or in the temporary file.
+     */
+    private static final class Chunk {
+        final Block     block;          // null if spilled
+        final int       dataOffset;     // offset of the run in block.data
+        final long      spillOffset;    // offset of the run in the temporary file
+        final int       length;
+
+        Chunk(Block block, int dataOffset, long spillOffset, int length){
+            this.block = block;
+            this.dataOffset = dataOffset;
+            this.spillOffset = spillOffset;
+            this.length = length;
+        }
+
+        /**
+         * Returns the part of this chunk from the specified position (relative to its start) of the given length.
+         */
+        Chunk part(int from, int length){
+            return new Chunk(block, dataOffset+from, spillOffset+from, length);
+        }
+    }
+
+    private final long                  memoryLimit;
+    private final MemoryBudget.Reservation memory;
+    private final TreeMap<Long, Chunk>  chunks = new TreeMap<>();
+    private long                        memoryUsed = 0;
+
+    private Path        spillPath = null;
+    private FileChannel spill = null;
+    private long        spillEnd = 0;
+
+    /**
+     * Creates an empty store, reserving its memory from the {@link MemoryBudget#GLOBAL} budget.
+     * @param memoryLimit   the number of bytes to hold in memory before spilling to a temporary file
+     */
+    SpillStore(long memoryLimit){
+        this(memoryLimit, MemoryBudget.GLOBAL);
+    }
+
+    /**
+     * Creates an empty store. Bytes are spilled early, rather than waiting, if the budget cannot hold them.
+     * @param memoryLimit   the number of bytes to hold in memory before spilling to a temporary file
+     * @param budget        the budget to reserve memory from
+     */
+    SpillStore(long memoryLimit, MemoryBudget budget){
+        this.memoryLimit = memoryLimit;
+        try {
+            this.memory = budget.reserve(0);
+        } catch (InterruptedIOException e){
+            // an empty reservation never waits
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Stores bytes read from the specified file offset. The offset must not already be stored.
+     * @param offset    the file offset of the first byte
+     * @param b         the bytes
+     * @param off       the start of the bytes in b
+     * @param len       the number of bytes
+     * @throws IOException
+     */
+    void put(long offset, byte[] b, int off, int len) throws IOException {
+        if(len<=0){
+            return;
+        }
+        if(memoryUsed+len<=memoryLimit && memory.tryGrow(len)){
+            byte[] copy = new byte[len];
+            System.arraycopy(b, off, copy, 0, len);
+            chunks.put(offset, new Chunk(new Block(copy, offset), 0, -1, len));
+            memoryUsed += len;
+        } else {
+            if(spill==null){
+                spillPath = Files.createTempFile("tifixity", ".spill");
+                spill = FileChannel.open(spillPath, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                                         StandardOpenOption.DELETE_ON_CLOSE);
+            }
+            ByteBuffer buf = ByteBuffer.wrap(b, off, len);
+            long position = spillEnd;
+            while(buf.hasRemaining()){
+                position += spill.write(buf, position);
+            }
+            chunks.put(offset, new Chunk(null, 0, spillEnd, len));
+            spillEnd = position;
+        }
+    }
+
+    /**
+     * Copies the stored bytes starting at the specified offset, stopping at the first byte not stored.
+     * @param offset    the file offset to read from
+     * @param dst       the buffer to copy into
+     * @return  the number of bytes copied, 0 if the offset is not stored
+     * @throws IOException
+     */
+    int read(long offset, ByteBuffer dst) throws IOException {
+        int copied = 0;
+        long position = offset;
+        while(dst.hasRemaining()){
+            Map.Entry<Long, Chunk> entry = chunks.floorEntry(position);
+            if(entry==null || entry.getKey()+entry.getValue().length<=position){
+                break;
+            }
+            Chunk chunk = entry.getValue();
+            int from = (int) (position-entry.getKey());
+            int count = Math.min(dst.remaining(), chunk.length-from);
+            if(chunk.block!=null){
+                dst.put(chunk.block.data, chunk.dataOffset+from, count);
+            } else {
+                ByteBuffer part = dst.duplicate();
+                part.limit(part.position()+count);
+                long spillPosition = chunk.spillOffset+from;
+                while(part.hasRemaining()){
+                    spillPosition += spill.read(part, spillPosition);
+                }
+                dst.position(dst.position()+count);
+            }
+            copied += count;
+            position += count;
+        }
+        return copied;
+    }
+
+    /**
+     * Releases any stored bytes in the range [start, end).
+     * @param start the first file offset to release
+     * @param end   the file offset after the last to release
+     */
+    void release(long start, long end){
+        if(start>=end){
+            return;
+        }
+        Long from = chunks.floorKey(start);
+        List<Long> keys = new ArrayList<>(chunks.subMap(from==null ? start : from, true, end, false).keySet());
+
+        Set<Block> partial = new HashSet<>();
+        for(Long k: keys){
+            Chunk chunk = chunks.remove(k);
+            long chunkEnd = k+chunk.length;
+            int kept = 0;
+            if(k<start){
+                // keep the part before the range
+                Chunk head = chunk.part(0, (int) (Math.min(start, chunkEnd)-k));
+                chunks.put(k, head);
+                kept += head.length;
+            }
+            if(chunkEnd>end && end>k){
+                // keep the part after the range
+                Chunk tail = chunk.part((int) (end-k), (int) (chunkEnd-end));
+                chunks.put(end, tail);
+                kept += tail.length;
+            }
+            if(chunk.block!=null){
+                chunk.block.live -= chunk.length-kept;
+                partial.add(chunk.block);
+            }
+        }
+
+        for(Block block: partial){
+            if(block.live==0){
+                free(block.data.length);
+            } else if(block.live<=block.data.length/2){
+                compact(block);
+            }
+        }
+    }
+
+    /**
+     * Copies the parts of a block still stored into arrays of their own, so that the block can be collected.
+     */
+    private void compact(Block block){
+        for(Map.Entry<Long, Chunk> entry: chunks.subMap(block.offset, block.offset+block.data.length).entrySet()){
+            Chunk chunk = entry.getValue();
+            if(chunk.block==block){
+                byte[] copy = new byte[chunk.length];
+                System.arraycopy(block.data, chunk.dataOffset, copy, 0, chunk.length);
+                entry.setValue(new Chunk(new Block(copy, entry.getKey()), 0, -1, chunk.length));
+            }
+        }
+        free(block.data.length-block.live);
+    }
+
+    private void free(long bytes){
+        memoryUsed -= bytes;
+        memory.release(bytes);
+    }
+
+    /**
+     * Returns the number of bytes held in memory.
+     * @return
+     */
+    long getMemoryUsed(){
+        return memoryUsed;
+    }
+
+    /**
+     * Returns the number of bytes written to the temporary file.
+     * @return
+     */
+    long getSpilled(){
+        return spillEnd;
+    }
+
+    @Override
+    public void close() throws IOException {
+        chunks.clear();
+        memoryUsed = 0;
+        memory.close();
+        if(spill!=null){
+            spill.close();
+            Files.deleteIfExists(spillPath);
+            spill = null;
+        }
+    }
+}
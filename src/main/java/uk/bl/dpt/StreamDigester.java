@@ -0,0 +1,370 @@
+/**
+ * Copyright 2016 Peter May
+ * Author: Peter May
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.bl.dpt;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Calculates the full, non-image data, image and IFD checksums of a TIFF read once from a stream, such as
+ * standard input or a network connection, giving the same checksums as for the file.
+ *
+ * Until every IFD has been read, all bytes read are kept, since any of them may be image data or IFD values.
+ * The IFDs are parsed, and their checksums calculated, as soon as they have arrived. After that only image
+ * data is kept, and only until it can be hashed in strip order: strips that arrive in order pass straight
+ * through, while strips that arrive ahead of an earlier strip of the same subfile are held until it has been
+ * hashed. Kept bytes are held in memory up to a limit and in a temporary file beyond it.
+ */
+public class StreamDigester {
+
+    private static final int CHUNKSIZE = 64*1024;
+
+    /**
+     * The checksums of a stream.
+     */
+    public static class Result {
+        private final String    full;
+        private final String    remaining;
+        private final String[]  image;
+        private final String[]  ifd;
+
+        Result(String full, String remaining, String[] image, String[] ifd){
+            this.full = full;
+            this.remaining = remaining;
+            this.image = image;
+            this.ifd = ifd;
+        }
+
+        /**
+         * Returns the checksum of every byte of the stream.
+         * @return
+         */
+        public String getFullDigest(){
+            return full;
+        }
+
+        /**
+         * Returns the checksum of the non-image data.
+         * @return
+         */
+        public String getRemainingDigest(){
+            return remaining;
+        }
+
+        /**
+         * Returns the image checksum of each subfile.
+         * @return
+         */
+        public String[] getImageDigests(){
+            return image;
+        }
+
+        /**
+         * Returns the IFD checksum of each subfile.
+         * @return
+         */
+        public String[] getIFDDigests(){
+            return ifd;
+        }
+    }
+
+    private final InputStream   in;
+    private final SpillStore    store;
+    private final MessageDigest full;
+    private final MessageDigest remaining;
+    private final byte[]        chunk = new byte[CHUNKSIZE];
+    private long    position = 0;       // stream bytes read so far
+    private boolean eof = false;
+
+    // Set once the IFDs have been read; until then every byte is kept
+    private ImageDataIndex  index = null;
+    private int             cursor = 0;     // first image data range not yet passed by the stream
+    private long[][]        offsets;
+    private long[][]        lengths;
+    private MessageDigest[] image;
+    private int[]           next;       // next strip to hash, per subfile
+    private long[]          hashed;     // bytes of the next strip hashed so far, per subfile
+    private boolean         releasable; // false if strips overlap, so stored data may be needed twice
+    private final ByteBuffer buf = ByteBuffer.allocate(CHUNKSIZE);
+
+    private StreamDigester(InputStream in, long memoryLimit) throws NoSuchAlgorithmException {
+        this.in = in;
+        this.store = new SpillStore(memoryLimit);
+        this.full = MessageDigest.getInstance("MD5");
+        this.remaining = MessageDigest.getInstance("MD5");
+    }
+
+    /**
+     * Reads the TIFF from the stream to its end and returns its checksums. The stream is not closed.
+     * @param in            the stream holding the TIFF
+     * @param memoryLimit   the number of bytes to keep in memory before spilling to a temporary file
+     * @return
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    public static Result digest(InputStream in, long memoryLimit) throws IOException, NoSuchAlgorithmException {
+        StreamDigester digester = new StreamDigester(in, memoryLimit);
+        try {
+            return digester.digest();
+        } finally {
+            digester.store.close();
+        }
+    }
+
+    private Result digest() throws IOException, NoSuchAlgorithmException {
+        // parse the IFDs and calculate their checksums, reading as far into the stream as they need
+        Tiff tiff = TiffFileHandler.loadTiff(new StreamSource());
+        String[] ifd = new String[tiff.numberOfIFDs()];
+        for(int i=0; i<ifd.length; i++){
+            ifd[i] = Tifixity.calculateIFDDigest(tiff, i);
+        }
+
+        startImageData(tiff);
+        while(!eof){
+            readChunk();
+        }
+        hashStrips();
+
+        String[] imageCS = new String[image.length];
+        for(int i=0; i<image.length; i++){
+            imageCS[i] = Tifixity.checksumAsString(image[i].digest());
+        }
+        return new Result(Tifixity.checksumAsString(full.digest()), Tifixity.checksumAsString(remaining.digest()),
+                          imageCS, ifd);
+    }
+
+    /**
+     * Switches from keeping every byte to keeping only image data: hashes and releases the non-image data read
+     * so far, and hashes any strips already complete.
+     */
+    private void startImageData(Tiff tiff) throws NoSuchAlgorithmException, IOException {
+        int subFiles = tiff.numberOfIFDs();
+        offsets = new long[subFiles][];
+        lengths = new long[subFiles][];
+        image = new MessageDigest[subFiles];
+        next = new int[subFiles];
+        hashed = new long[subFiles];
+
+        long total = 0;
+        for(int i=0; i<subFiles; i++){
+            Integer[] o = tiff.getImageDataOffsets(i);
+            Integer[] l = tiff.getImageDataLengths(i);
+            offsets[i] = new long[o.length];
+            lengths[i] = new long[o.length];
+            for(int j=0; j<o.length; j++){
+                offsets[i][j] = o[j] & 0xFFFFFFFFL;
+                lengths[i][j] = l[j] & 0xFFFFFFFFL;
+                total += lengths[i][j];
+            }
+            image[i] = MessageDigest.getInstance("MD5");
+        }
+
+        index = tiff.getImageDataIndex();
+        long covered = 0;
+        for(int r=0; r<index.size(); r++){
+            covered += index.getEnd(r)-index.getStart(r);
+        }
+        releasable = covered==total;
+
+        index.forEachNonImageRange(position, new ImageDataIndex.RangeConsumer() {
+            @Override
+            public void accept(long start, long end) throws IOException {
+                ByteBuffer range = Buffers.read();
+                for(long s=start; s<end; s+=range.position()){
+                    range.clear();
+                    range.limit((int) Math.min(range.capacity(), end-s));
+                    store.read(s, range);
+                    remaining.update(range.array(), 0, range.position());
+                }
+                store.release(start, end);
+            }
+        });
+        hashStrips();
+    }
+
+    /**
+     * Reads the next chunk of the stream. Before the IFDs have been read the whole chunk is kept; afterwards
+     * only its image data is kept, and any strips it completes are hashed.
+     */
+    private void readChunk() throws IOException {
+        int count = in.read(chunk);
+        if(count<0){
+            eof = true;
+            return;
+        }
+        full.update(chunk, 0, count);
+
+        if(index==null){
+            store.put(position, chunk, 0, count);
+            position += count;
+            return;
+        }
+
+        long start = position;
+        long end = position+count;
+        // the stream only moves forward, so skip the ranges that end before this chunk once
+        while(cursor<index.size() && index.getEnd(cursor)<=start){
+            cursor++;
+        }
+        int r = cursor;
+        long p = start;
+        for(; r<index.size() && index.getStart(r)<end; r++){
+            long s = Math.max(p, index.getStart(r));
+            long e = Math.min(end, index.getEnd(r));
+            remaining.update(chunk, (int) (p-start), (int) (s-p));
+            store.put(s, chunk, (int) (s-start), (int) (e-s));
+            p = e;
+        }
+        remaining.update(chunk, (int) (p-start), (int) (end-p));
+
+        position = end;
+        hashStrips();
+    }
+
+    /**
+     * Hashes, in strip order, as much of each subfile's image data as is available.
+     */
+    private void hashStrips() throws IOException {
+        for(int i=0; i<image.length; i++){
+            while(next[i]<offsets[i].length){
+                int j = next[i];
+                long s = offsets[i][j]+hashed[i];
+                long e = offsets[i][j]+lengths[i][j];
+                if(s>=e || eof && s>=position){
+                    // strip complete, or truncated by the end of the file
+                    next[i]++;
+                    hashed[i] = 0;
+                    continue;
+                }
+
+                buf.clear();
+                buf.limit((int) Math.min(buf.capacity(), e-s));
+                int count = store.read(s, buf);
+                if(count==0){
+                    break;      // waiting for the stream
+                }
+                image[i].update(buf.array(), 0, count);
+                hashed[i] += count;
+                if(releasable){
+                    store.release(s, s+count);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads from the stream until the specified position (or the end of the stream) has been reached.
+     */
+    private void readTo(long target) throws IOException {
+        while(!eof && position<target){
+            readChunk();
+        }
+    }
+
+    /**
+     * The kept bytes of the stream as a {@link ByteSource} for the parser, reading further into the stream as
+     * needed. Only valid until the IFDs have been read.
+     */
+    private class StreamSource implements ByteSource {
+
+        @Override
+        public SeekableByteChannel open(){
+            return new View();
+        }
+
+        @Override
+        public long size() throws IOException {
+            readTo(Long.MAX_VALUE);
+            return position;
+        }
+
+        @Override
+        public Path getPath(){
+            return null;
+        }
+    }
+
+    private class View implements SeekableByteChannel {
+        private long    viewPosition = 0;
+        private boolean open = true;
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            checkOpen();
+            readTo(viewPosition+dst.remaining());
+            int count = store.read(viewPosition, dst);
+            if(count==0 && dst.hasRemaining()){
+                return -1;
+            }
+            viewPosition += count;
+            return count;
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public long position() throws IOException {
+            checkOpen();
+            return viewPosition;
+        }
+
+        @Override
+        public SeekableByteChannel position(long newPosition) throws IOException {
+            checkOpen();
+            viewPosition = newPosition;
+            return this;
+        }
+
+        @Override
+        public long size() throws IOException {
+            checkOpen();
+            readTo(Long.MAX_VALUE);
+            return position;
+        }
+
+        @Override
+        public SeekableByteChannel truncate(long size) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() {
+            open = false;
+        }
+
+        private void checkOpen() throws ClosedChannelException {
+            if(!open){
+                throw new ClosedChannelException();
+            }
+        }
+    }
+}
@@ -0,0 +1,189 @@
+/**
+ * Copyright 2016 Peter May
+ * Author: Peter May
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.bl.dpt;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Text manifest of the IFD and per-strip checksums of TIFF files, used as the reference for a quick check.
+ *
+ * Each line is tab separated, with the file's absolute path last:
+ * <pre>
+ *   ifd   &lt;subfile&gt; &lt;md5&gt; &lt;path&gt;
+ *   strip &lt;subfile&gt; &lt;strip&gt; &lt;md5&gt; &lt;path&gt;
+ * </pre>
+ */
+public class StripManifest {
+
+    private static final String IFD     = "ifd";
+    private static final String STRIP   = "strip";
+
+    /**
+     * The recorded checksums of one file.
+     */
+    public static class Entry {
+        private final Map<Integer, String> ifds     = new HashMap<>();
+        private final Map<Long, String>    strips   = new HashMap<>();
+
+        /**
+         * Returns the recorded checksum of the specified IFD, or null if none was recorded.
+         * @param subFile   the subfile index (0 indexed)
+         * @return
+         */
+        public String getIFDDigest(int subFile){
+            return ifds.get(subFile);
+        }
+
+        /**
+         * Returns the recorded checksum of the specified strip, or null if none was recorded.
+         * @param subFile   the subfile index (0 indexed)
+         * @param strip     the strip index (0 indexed)
+         * @return
+         */
+        public String getStripDigest(int subFile, int strip){
+            return strips.get(key(subFile, strip));
+        }
+
+        private static long key(int subFile, int strip){
+            return ((long) subFile<<32) | (strip & 0xFFFFFFFFL);
+        }
+    }
+
+    private final Map<String, Entry> entries = new HashMap<>();
+
+    /**
+     * Returns the key a file is recorded under in a manifest: its absolute, normalised path.
+     * @param file  the file
+     * @return
+     */
+    public static String key(String file){
+        return Paths.get(file).toAbsolutePath().normalize().toString();
+    }
+
+    /**
+     * Writes the manifest lines for one file.
+     * @param out       the stream to write to
+     * @param file      the TIFF file
+     * @param ifdCS     the IFD checksums, one per subfile
+     * @param stripCS   the strip checksums, per subfile and strip
+     */
+    public static void write(PrintStream out, String file, String[] ifdCS, String[][] stripCS){
+        out.print(format(file, ifdCS, stripCS));
+    }
+
+    /**
+     * Returns the manifest lines for one file.
+     * @param file      the TIFF file
+     * @param ifdCS     the IFD checksums, one per subfile
+     * @param stripCS   the strip checksums, per subfile and strip
+     * @return
+     */
+    public static String format(String file, String[] ifdCS, String[][] stripCS){
+        String path = key(file);
+        StringBuilder lines = new StringBuilder();
+        for(int i=0; i<ifdCS.length; i++){
+            lines.append(IFD).append('\t').append(i).append('\t').append(ifdCS[i]).append('\t').append(path).append('\n');
+        }
+        for(int i=0; i<stripCS.length; i++){
+            for(int j=0; j<stripCS[i].length; j++){
+                lines.append(STRIP).append('\t').append(i).append('\t').append(j).append('\t')
+                     .append(stripCS[i][j]).append('\t').append(path).append('\n');
+            }
+        }
+        return lines.toString();
+    }
+
+    /**
+     * Reads the entries for the specified files from a text or binary ({@link BinaryManifest}) manifest, ignoring
+     * all other files.
+     * @param manifest  the manifest to read
+     * @param wanted    the keys (see {@link #key}) of the files to load
+     * @return
+     * @throws IOException
+     */
+    public static StripManifest read(Path manifest, Set<String> wanted) throws IOException {
+        StripManifest result = new StripManifest();
+        if(BinaryManifest.isBinary(manifest)){
+            try (BinaryManifest binary = BinaryManifest.open(manifest)) {
+                for(String key: wanted){
+                    ManifestRecord record = binary.get(key);
+                    if(record!=null){
+                        result.add(record);
+                    }
+                }
+            }
+            return result;
+        }
+        try (BufferedReader in = Files.newBufferedReader(manifest, StandardCharsets.UTF_8)) {
+            String line;
+            while((line = in.readLine())!=null){
+                String[] fields = line.split("\t", 5);
+                try {
+                    if(fields.length==4 && IFD.equals(fields[0]) && wanted.contains(fields[3])){
+                        result.entry(fields[3]).ifds.put(Integer.parseInt(fields[1]), fields[2]);
+                    } else if(fields.length==5 && STRIP.equals(fields[0]) && wanted.contains(fields[4])){
+                        long k = Entry.key(Integer.parseInt(fields[1]), Integer.parseInt(fields[2]));
+                        result.entry(fields[4]).strips.put(k, fields[3]);
+                    }
+                } catch (NumberFormatException nfe){
+                    throw new IOException("Malformed manifest line: "+line);
+                }
+            }
+        }
+        return result;
+    }
+
+    private void add(ManifestRecord record){
+        Entry e = entry(record.getPath());
+        for(int i=0; i<record.numberOfSubfiles(); i++){
+            if(record.getIFDDigest(i)!=null){
+                e.ifds.put(i, record.getIFDDigest(i));
+            }
+            String[] strips = record.getStripDigests(i);
+            for(int j=0; strips!=null && j<strips.length; j++){
+                e.strips.put(Entry.key(i, j), strips[j]);
+            }
+        }
+    }
+
+    private Entry entry(String path){
+        Entry e = entries.get(path);
+        if(e==null){
+            e = new Entry();
+            entries.put(path, e);
+        }
+        return e;
+    }
+
+    /**
+     * Returns the recorded checksums of the specified file, or null if it is not in the manifest.
+     * @param file  the file
+     * @return
+     */
+    public Entry get(String file){
+        return entries.get(key(file));
+    }
+}
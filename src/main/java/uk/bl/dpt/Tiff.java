@@ -25,13 +25,16 @@ import java.util.*;
  */
 public class Tiff {
 
-    private Path        file        = null;
+    private ByteSource  source      = null;
     private ByteOrder   byteOrder   = null;
+    private ParserLimits limits     = ParserLimits.DEFAULT;
+    private MemoryBudget memory     = MemoryBudget.GLOBAL;
+    private MemoryBudget.Reservation reservation = null;   // held for the parsed values, if any
     ArrayList<IFD>      ifds        = null;
 
-    // An ordered index of byte offsets and whether they are the start of an image-data block (of bytes) or not.
-    // See {@link getStructure}
-    private TreeMap<Long, Boolean> structure = null;
+    // Cached index of the image data byte ranges. Rebuilt when the IFDs change.
+    // See {@link getImageDataIndex}
+    private ImageDataIndex imageDataIndex = null;
 
     /**
      * Default, no-arg constructor. Default to Little Endian Byte order.
@@ -39,7 +42,6 @@ public class Tiff {
     public Tiff(){
         this.ifds = new ArrayList<>();
         this.byteOrder = ByteOrder.LITTLE_ENDIAN;
-        this.structure = new TreeMap<>();
     }
 
     /**
@@ -59,21 +61,20 @@ public class Tiff {
      * @param byteOrder the {@link java.nio.ByteOrder} of the Tiff file
      */
     public Tiff(Path file, ByteOrder byteOrder){
-        this(byteOrder);
-        this.file = file;
+        this(ByteSource.of(file), byteOrder);
     }
 
     /**
-     * Tags the data at the specified offset onwards with
-     * @param offset    the byte offset in the file
-     * @param imageData the category of data at this portion of the file
+     * Construct a Tiff object read from the specified source, with the
+     * specified byte order representation.
+     * @param source    the {@link ByteSource} holding the Tiff bytes
+     * @param byteOrder the {@link java.nio.ByteOrder} of the Tiff file
      */
-    public void addStructuralElement(Long offset, Boolean imageData){
-        structure.put(offset, imageData);
+    public Tiff(ByteSource source, ByteOrder byteOrder){
+        this(byteOrder);
+        this.source = source;
     }
 
-
-
     /**
      * Sets the byte order of this TIFF file
      * @param byteOrder the {@link java.nio.ByteOrder} of the TIFF file
@@ -91,13 +92,65 @@ public class Tiff {
     }
 
     /**
-     * Returns the Path for the actual Tiff file
+     * Returns the Path for the actual Tiff file, or null if it was not read from a file
      * @return
      */
     public Path getFilePath(){
-        return this.file;
+        return source==null ? null : source.getPath();
+    }
+
+    /**
+     * Returns the source the Tiff bytes are read from
+     * @return
+     */
+    public ByteSource getSource(){
+        return this.source;
+    }
+
+
+    /**
+     * Returns the limits this TIFF was parsed within, which also bound the decoding of its image data
+     * @return
+     */
+    public ParserLimits getLimits(){
+        return this.limits;
     }
 
+    /**
+     * Sets the limits this TIFF was parsed within
+     * @param limits    the {@link ParserLimits}
+     */
+    void setLimits(ParserLimits limits){
+        this.limits = limits;
+    }
+
+    /**
+     * Returns the memory budget that reading and decoding this TIFF's image data reserves from
+     * @return
+     */
+    public MemoryBudget getMemoryBudget(){
+        return this.memory;
+    }
+
+    /**
+     * Sets the memory budget this TIFF was parsed within, and the reservation held for its parsed values
+     * @param memory        the {@link MemoryBudget}
+     * @param reservation   the reservation, or null if none
+     */
+    void setMemoryBudget(MemoryBudget memory, MemoryBudget.Reservation reservation){
+        this.memory = memory;
+        this.reservation = reservation;
+    }
+
+    /**
+     * Returns the memory reserved for this TIFF's parsed values to its budget. Call when finished with a
+     * TIFF loaded within a budget (see {@link TifixityEngine#load(ByteSource)}); the TIFF may still be used.
+     */
+    public void release(){
+        if(reservation!=null){
+            reservation.close();
+        }
+    }
 
     /**
      * Returns the number of IFDs in this TIFF file
@@ -130,59 +183,81 @@ public class Tiff {
         }
         if(ifd!=null) {
             ifds.add(ifd);
+            imageDataIndex = null;
         }
     }
 
     /**
-     * Constructs and returns an ordered index of byte offsets and whether they are the start of an image-data block
-     * (of bytes) or not.
-     * For example, &lt;0, false&gt; indicates that starting at byte offset 0, the data is not image-data. This continues
-     * until the next item in the TreeMap, e.g. &lt;8, true&gt;, which says that starting at byte 8, there is image data.
-     * And so on.
+     * Returns a sorted index of the byte ranges holding image data across all subfiles of this TIFF.
+     * Any byte not covered by a range in the index is non-image data.
+     * The index is built on first use and cached until another IFD is added.
      * @return
      */
-    public TreeMap<Long, Boolean> getStructure(){
-        TreeMap<Long, Integer> imgStructure = new TreeMap<>();
-
-        // Create a TreeMap of image data offsets and lengths
-        for(int i=0; i<this.numberOfIFDs(); i++) {
-            Integer[] imgData = this.getImageDataOffsets(i);
-            Integer[] imgLength = this.getImageDataLengths(i);
-
-            for(int j=0; j<imgData.length; j++){
-                imgStructure.put((long) imgData[j], imgLength[j]);
-            }
+    public ImageDataIndex getImageDataIndex(){
+        ImageDataIndex index = imageDataIndex;
+        if(index==null){
+            index = ImageDataIndex.build(this);
+            imageDataIndex = index;
         }
-
-        // now invert and add to structure
-        addStructuralElement(0L, false);
-
-        Iterator<Long> keys = imgStructure.navigableKeySet().iterator();
-        while(keys.hasNext()){
-            Long key = keys.next();
-            addStructuralElement(key, true);
-            addStructuralElement((key+imgStructure.get(key)), false);
-        }
-
-        return structure;
+        return index;
     }
 
     /**
      * Returns the offsets of the RGB data splits for the first subfile (IFD) within this TIFF.
+     * For tiled images these are the tile offsets.
      * @param subFile       the subfile index (IFD) to get the RGB offset from
      * @return  Integer[]   offsets of the RGB data for the first subfile
      */
     public Integer[] getImageDataOffsets(int subFile) throws IndexOutOfBoundsException {
-        return (Integer[]) getIFD(subFile).getDirectoryEntry(IFDTag.StripOffsets).getValue();
+        IFD ifd = getIFD(subFile);
+        IFD.DirectoryEntry entry = ifd.getDirectoryEntry(IFDTag.StripOffsets);
+        if(entry==null){
+            entry = ifd.getDirectoryEntry(IFDTag.TileOffsets);
+        }
+        return (Integer[]) entry.getValue();
     }
 
     /**
      * Returns the lengths of the RGB data splits for the first subfile (IFD) within this TIFF.
+     * For tiled images these are the tile byte counts.
      * @param subFile       the sub file index (IFD) to get the strip Length from
      * @return  Integer[]   lengths of the RGB data for the first subfile
      */
     public Integer[] getImageDataLengths(int subFile) throws IndexOutOfBoundsException {
-        return (Integer[]) getIFD(subFile).getDirectoryEntry(IFDTag.StripByteCounts).getValue();
+        IFD ifd = getIFD(subFile);
+        IFD.DirectoryEntry entry = ifd.getDirectoryEntry(IFDTag.StripByteCounts);
+        if(entry==null){
+            entry = ifd.getDirectoryEntry(IFDTag.TileByteCounts);
+        }
+        return (Integer[]) entry.getValue();
+    }
+
+    /**
+     * Returns true if the image data of the specified subfile is stored in tiles rather than strips
+     * @param subfile       the sub file index (IFD)
+     * @return
+     */
+    public boolean isTiled(int subfile){
+        return getIFD(subfile).getDirectoryEntry(IFDTag.StripOffsets)==null
+                && getIFD(subfile).getDirectoryEntry(IFDTag.TileOffsets)!=null;
+    }
+
+    /**
+     * Returns the width of each tile in the specified tiled subfile
+     * @param subfile       the sub file index (IFD)
+     * @return
+     */
+    public long getTileWidth(int subfile){
+        return getTagValue(subfile, IFDTag.TileWidth, 0);
+    }
+
+    /**
+     * Returns the length (number of rows) of each tile in the specified tiled subfile
+     * @param subfile       the sub file index (IFD)
+     * @return
+     */
+    public long getTileLength(int subfile){
+        return getTagValue(subfile, IFDTag.TileLength, 0);
     }
 
 
@@ -192,7 +267,98 @@ public class Tiff {
      * @return
      */
     public Integer getCompression(int subfile){
-        return (Integer) getIFD(0).getDirectoryEntry(IFDTag.Compression).getValue()[0];
+        return (int) getTagValue(subfile, IFDTag.Compression, 1);
+    }
+
+    /**
+     * Returns the width of the specified subfile's image in pixels
+     * @param subfile       the sub file index (IFD)
+     * @return
+     */
+    public long getImageWidth(int subfile){
+        return getTagValue(subfile, IFDTag.ImageWidth, 0);
+    }
+
+    /**
+     * Returns the length (number of rows) of the specified subfile's image
+     * @param subfile       the sub file index (IFD)
+     * @return
+     */
+    public long getImageLength(int subfile){
+        return getTagValue(subfile, IFDTag.ImageLength, 0);
+    }
+
+    /**
+     * Returns the number of samples per pixel in the specified subfile (default 1)
+     * @param subfile       the sub file index (IFD)
+     * @return
+     */
+    public int getSamplesPerPixel(int subfile){
+        return (int) getTagValue(subfile, IFDTag.SamplesPerPixel, 1);
+    }
+
+    /**
+     * Returns the number of bits in each sample of the specified subfile, one element per sample (default 1)
+     * @param subfile       the sub file index (IFD)
+     * @return
+     */
+    public int[] getBitsPerSample(int subfile){
+        int[] bits = new int[getSamplesPerPixel(subfile)];
+        IFD.DirectoryEntry entry = getIFD(subfile).getDirectoryEntry(IFDTag.BitsPerSample);
+        for(int i=0; i<bits.length; i++){
+            if(entry==null){
+                bits[i] = 1;
+            } else {
+                // some writers record a single value for all samples
+                Object[] values = entry.getValue();
+                bits[i] = (Integer) values[Math.min(i, values.length-1)];
+            }
+        }
+        return bits;
+    }
+
+    /**
+     * Returns the number of rows in each strip of the specified subfile (default: the whole image)
+     * @param subfile       the sub file index (IFD)
+     * @return
+     */
+    public long getRowsPerStrip(int subfile){
+        long rows = getTagValue(subfile, IFDTag.RowsPerStrip, 0xFFFFFFFFL);
+        return Math.min(rows, Math.max(1, getImageLength(subfile)));
+    }
+
+    /**
+     * Returns the planar configuration of the specified subfile: 1 = chunky (default), 2 = planar
+     * @param subfile       the sub file index (IFD)
+     * @return
+     */
+    public int getPlanarConfiguration(int subfile){
+        return (int) getTagValue(subfile, IFDTag.PlanarConfiguration, 1);
+    }
+
+    /**
+     * Returns the predictor applied before compression in the specified subfile: 1 = none (default),
+     * 2 = horizontal differencing
+     * @param subfile       the sub file index (IFD)
+     * @return
+     */
+    public int getPredictor(int subfile){
+        return (int) getTagValue(subfile, IFDTag.Predictor, 1);
+    }
+
+    /**
+     * Returns the first value of the specified tag as an unsigned number, or the default if the tag is absent.
+     * @param subfile       the sub file index (IFD)
+     * @param tag           the tag to read
+     * @param defaultValue  the value to return if the tag is absent
+     * @return
+     */
+    private long getTagValue(int subfile, IFDTag tag, long defaultValue){
+        IFD.DirectoryEntry entry = getIFD(subfile).getDirectoryEntry(tag);
+        if(entry==null || entry.getValue().length==0){
+            return defaultValue;
+        }
+        return ((Integer) entry.getValue()[0]) & 0xFFFFFFFFL;
     }
 
     @Override
@@ -0,0 +1,266 @@
+/**
+ * Copyright 2016 Peter May
+ * Author: Peter May
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.bl.dpt;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Compares two TIFF files, reporting which subfiles, IFD tags and strips (or tiles) differ.
+ *
+ * Strips are compared by content, in order, regardless of where they are stored, so two files with the same
+ * image data laid out differently compare equal (as their image checksums do). The StripOffsets and TileOffsets
+ * tags are therefore not compared. Matching strips of both files are read concurrently and the comparison of a
+ * strip stops at its first differing chunk; strips of different lengths are reported without being read.
+ */
+public class TiffComparison {
+
+    private static final int CHUNKSIZE = 64*1024;
+
+    /**
+     * The outcome of comparing two files.
+     */
+    public static class Result {
+        private final String        first;
+        private final String        second;
+        private final List<String>  differences;
+
+        Result(String first, String second, List<String> differences){
+            this.first = first;
+            this.second = second;
+            this.differences = differences;
+        }
+
+        /**
+         * Returns true if no differences were found.
+         * @return
+         */
+        public boolean isSame(){
+            return differences.isEmpty();
+        }
+
+        /**
+         * Returns a description of each difference found, in file order.
+         * @return
+         */
+        public List<String> getDifferences(){
+            return differences;
+        }
+
+        @Override
+        public String toString(){
+            StringBuilder sb = new StringBuilder(isSame() ? "SAME " : "DIFFERENT ");
+            sb.append(first).append(" ").append(second);
+            for(String d: differences){
+                sb.append("\n  ").append(d);
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * Thrown internally to stop the comparison once the first difference has been found.
+     */
+    private static class FirstDifference extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        FirstDifference(){
+            super(null, null, false, false);
+        }
+    }
+
+    private final boolean       stopAtFirst;
+    private final List<String>  differences = new ArrayList<>();
+
+    private TiffComparison(boolean stopAtFirst){
+        this.stopAtFirst = stopAtFirst;
+    }
+
+    /**
+     * Compares the specified files.
+     * @param first         the first TIFF file
+     * @param second        the second TIFF file
+     * @param stopAtFirst   true to stop at the first difference found
+     * @return
+     * @throws IOException
+     */
+    public static Result compare(String first, String second, boolean stopAtFirst) throws IOException {
+        Tiff a = TiffFileHandler.loadTiffFromFile(first);
+        Tiff b = TiffFileHandler.loadTiffFromFile(second);
+
+        TiffComparison comparison = new TiffComparison(stopAtFirst);
+        try {
+            comparison.compare(a, b);
+        } catch (FirstDifference fd){
+            // differences holds the first difference
+        }
+        return new Result(first, second, Collections.unmodifiableList(comparison.differences));
+    }
+
+    private void difference(String description) throws FirstDifference {
+        differences.add(description);
+        if(stopAtFirst){
+            throw new FirstDifference();
+        }
+    }
+
+    private void compare(Tiff a, Tiff b) throws IOException, FirstDifference {
+        if(a.getByteOrder()!=b.getByteOrder()){
+            difference("Byte order differs ("+a.getByteOrder()+", "+b.getByteOrder()+")");
+        }
+
+        int subFiles = Math.min(a.numberOfIFDs(), b.numberOfIFDs());
+        for(int i=0; i<subFiles; i++){
+            compareTags(a, b, i);
+        }
+
+        try (SeekableByteChannel sbcA = a.getSource().open();
+             SeekableByteChannel sbcB = b.getSource().open()) {
+            for(int i=0; i<subFiles; i++){
+                compareStrips(a, sbcA, b, sbcB, i);
+            }
+        }
+
+        if(a.numberOfIFDs()!=b.numberOfIFDs()){
+            difference("Number of subfiles differs ("+a.numberOfIFDs()+", "+b.numberOfIFDs()+")");
+        }
+    }
+
+    /**
+     * Compares the type, count and value of each tag of the specified subfile, other than the strip and tile
+     * offsets.
+     */
+    private void compareTags(Tiff a, Tiff b, int subFile) throws FirstDifference {
+        IFD ifdA = a.getIFD(subFile);
+        IFD ifdB = b.getIFD(subFile);
+
+        TreeSet<Integer> tags = new TreeSet<>(ifdA.getDirectoryKeys());
+        tags.addAll(ifdB.getDirectoryKeys());
+        tags.remove(IFDTag.StripOffsets.getTagValue());
+        tags.remove(IFDTag.TileOffsets.getTagValue());
+
+        for(Integer tag: tags){
+            IFD.DirectoryEntry entryA = ifdA.getDirectoryEntry(tag);
+            IFD.DirectoryEntry entryB = ifdB.getDirectoryEntry(tag);
+            if(entryA==null || entryB==null){
+                difference("IFD ["+subFile+"] tag "+tagName(tag)+" only in "+(entryA==null ? "second" : "first"));
+            } else if(entryA.getType()!=entryB.getType() || entryA.getCount()!=entryB.getCount()
+                      || !Arrays.equals(entryA.getValue(), entryB.getValue())){
+                difference("IFD ["+subFile+"] tag "+tagName(tag)+" differs");
+            }
+        }
+    }
+
+    private static String tagName(Integer tag){
+        IFDTag known = IFDTag.getTag(tag);
+        return known==IFDTag.UNKNOWN ? String.valueOf(tag) : tag+" ("+known+")";
+    }
+
+    /**
+     * Compares the content of each strip (or tile) of the specified subfile with the matching strip of the
+     * other file.
+     */
+    private void compareStrips(Tiff a, SeekableByteChannel sbcA, Tiff b, SeekableByteChannel sbcB, int subFile)
+            throws IOException, FirstDifference {
+        Integer[] offsetsA = a.getImageDataOffsets(subFile);
+        Integer[] lengthsA = a.getImageDataLengths(subFile);
+        Integer[] offsetsB = b.getImageDataOffsets(subFile);
+        Integer[] lengthsB = b.getImageDataLengths(subFile);
+
+        int strips = Math.min(offsetsA.length, offsetsB.length);
+        for(int j=0; j<strips; j++){
+            long lengthA = lengthsA[j] & 0xFFFFFFFFL;
+            long lengthB = lengthsB[j] & 0xFFFFFFFFL;
+            if(lengthA!=lengthB){
+                difference("Strip ["+subFile+"]["+j+"] differs (length "+lengthA+", "+lengthB+")");
+            } else if(!sameContent(sbcA, offsetsA[j] & 0xFFFFFFFFL, sbcB, offsetsB[j] & 0xFFFFFFFFL, lengthA)){
+                difference("Strip ["+subFile+"]["+j+"] differs");
+            }
+        }
+
+        if(offsetsA.length!=offsetsB.length){
+            difference("Number of strips in subfile ["+subFile+"] differs ("+offsetsA.length+", "+offsetsB.length+")");
+        }
+    }
+
+    /**
+     * Compares two byte ranges chunk by chunk, reading the second range on another thread while the first is
+     * read. Returns false at the first differing chunk.
+     */
+    private static boolean sameContent(SeekableByteChannel sbcA, long offsetA,
+                                       final SeekableByteChannel sbcB, final long offsetB, long length)
+            throws IOException {
+        int size = (int) Math.min(CHUNKSIZE, length);
+        ByteBuffer bufA = ByteBuffer.allocate(size);
+        final ByteBuffer bufB = ByteBuffer.allocate(size);
+
+        for(long done=0; done<length; done+=size){
+            final int chunk = (int) Math.min(size, length-done);
+            final long positionB = offsetB+done;
+            Future<Integer> readB = ForkJoinPool.commonPool().submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws IOException {
+                    return readFully(sbcB, positionB, bufB, chunk);
+                }
+            });
+
+            int readA = readFully(sbcA, offsetA+done, bufA, chunk);
+            int countB;
+            try {
+                countB = readB.get();
+            } catch (InterruptedException ie){
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while comparing");
+            } catch (ExecutionException ee){
+                throw ee.getCause() instanceof IOException ? (IOException) ee.getCause() : new IOException(ee.getCause());
+            }
+
+            // a range running past the end of one file (but not the other) also differs
+            if(readA!=countB || !bufA.equals(bufB)){
+                return false;
+            }
+            if(readA<chunk){
+                return true;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads up to count bytes at the specified position, stopping early at the end of the file. On return the
+     * buffer holds the bytes read, ready to be compared.
+     */
+    private static int readFully(SeekableByteChannel sbc, long position, ByteBuffer buf, int count) throws IOException {
+        buf.clear();
+        buf.limit(count);
+        sbc.position(position);
+        while(buf.hasRemaining() && sbc.read(buf)>-1);
+        buf.flip();
+        return buf.limit();
+    }
+}
@@ -19,19 +19,23 @@ package uk.bl.dpt;
 import uk.bl.dpt.types.Rational;
 
 import java.io.IOException;
+import java.io.PrintStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.channels.SeekableByteChannel;
-import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.HashSet;
+import java.util.Set;
 
 /**
  * TIFF File Handler for loading a TIFF into the Tifixity TIFF data model.
  */
 public class TiffFileHandler {
 
+    private static volatile ParserLimits limits = ParserLimits.DEFAULT;
+
     /**
      * Loads a TIFF file into the Tifixity data model.
      * @param file  the TIFF file to load
@@ -50,142 +54,339 @@ public class TiffFileHandler {
      * @throws IOException
      */
     public static Tiff loadTiffFromFile(Path filepath) throws IOException {
-        Tiff tiff = new Tiff(filepath, ByteOrder.LITTLE_ENDIAN);
+        return loadTiff(ByteSource.of(filepath));
+    }
+
+    /**
+     * Loads a TIFF from the specified source into the Tifixity data model, within the current limits.
+     * @param source    the {@link ByteSource} holding the TIFF
+     * @return
+     * @throws IOException
+     * @throws TiffFormatException  if the TIFF is malformed or exceeds the limits
+     */
+    public static Tiff loadTiff(ByteSource source) throws IOException {
+        return loadTiff(source, limits);
+    }
+
+    /**
+     * Loads a TIFF from the specified source into the Tifixity data model.
+     * @param source    the {@link ByteSource} holding the TIFF
+     * @param limits    the limits on the resources spent parsing the TIFF
+     * @return
+     * @throws IOException
+     * @throws TiffFormatException  if the TIFF is malformed or exceeds the limits
+     */
+    public static Tiff loadTiff(ByteSource source, ParserLimits limits) throws IOException {
+        return loadTiff(source, limits, null);
+    }
+
+    /**
+     * Loads a TIFF from the specified source into the Tifixity data model, printing each IFD's offset and
+     * entries as they are read.
+     * @param source    the {@link ByteSource} holding the TIFF
+     * @param limits    the limits on the resources spent parsing the TIFF
+     * @param trace     the stream to print the IFDs to, or null for none
+     * @return
+     * @throws IOException
+     * @throws TiffFormatException  if the TIFF is malformed or exceeds the limits
+     */
+    public static Tiff loadTiff(ByteSource source, ParserLimits limits, PrintStream trace) throws IOException {
+        return loadTiff(source, limits, trace, null);
+    }
+
+    /**
+     * Loads a TIFF from the specified source into the Tifixity data model, reserving the memory for its parsed
+     * values from the specified budget. The reservation is held until {@link Tiff#release()}, and parsing
+     * blocks while the budget is exhausted.
+     * @param source    the {@link ByteSource} holding the TIFF
+     * @param limits    the limits on the resources spent parsing the TIFF
+     * @param trace     the stream to print the IFDs to, or null for none
+     * @param memory    the budget to reserve memory from, or null to reserve none while parsing
+     * @return
+     * @throws IOException
+     * @throws TiffFormatException  if the TIFF is malformed or exceeds the limits
+     */
+    public static Tiff loadTiff(ByteSource source, ParserLimits limits, PrintStream trace, MemoryBudget memory)
+            throws IOException {
+        Events.Parse event = new Events.Parse();
+        event.begin();
+        Tiff tiff = new Tiff(source, ByteOrder.LITTLE_ENDIAN);
+        tiff.setLimits(limits);
+        Budget budget = new Budget(limits, trace, memory==null ? null : memory.reserve(0));
+        if(memory!=null){
+            tiff.setMemoryBudget(memory, budget.reservation);
+        }
 
-        try (SeekableByteChannel sbc = Files.newByteChannel(filepath)) {
-            ByteBuffer buf = ByteBuffer.allocate(8);
+        boolean loaded = false;
+        try (SeekableByteChannel sbc = source.open()) {
+            ByteBuffer buf = Buffers.structure(8);
 
             // read TIFF header
-            int count = sbc.read(buf);
+            readFully(sbc, 0, buf, "TIFF header");
+            budget.read += 8;
 
             // check byte ordering
-            buf.rewind();
-            if(buf.get()==0x4D && buf.get()==0x4D){
+            if(buf.get(0)==0x4D && buf.get(1)==0x4D){
                 tiff.setByteOrder(ByteOrder.BIG_ENDIAN);
+            } else if(buf.get(0)!=0x49 || buf.get(1)!=0x49){
+                throw new TiffFormatException("Not a TIFF file (invalid byte order)");
+            }
+            buf.order(tiff.getByteOrder());
+            if(buf.getShort(2)!=42){
+                throw new TiffFormatException("Not a TIFF file (version "+buf.getShort(2)+")");
             }
 
-            // read IFD offset
-            buf.position(4);
-            int ifdoffset = 0;
-
-            while((ifdoffset=buf.order(tiff.getByteOrder()).getInt())!=0) {
-                if (Tifixity.verbose) System.out.println("IFD Offset: " + ifdoffset);
+            // follow the IFD chain, which ends with a 0 offset
+            long ifdoffset = buf.getInt(4) & 0xFFFFFFFFL;
+            Set<Long> visited = new HashSet<>();
+            while(ifdoffset!=0) {
+                if(!visited.add(ifdoffset)){
+                    throw new TiffFormatException("IFD chain loops back to offset "+ifdoffset);
+                }
+                if(visited.size()>limits.getMaxIFDs()){
+                    throw new TiffFormatException("More than "+limits.getMaxIFDs()+" IFDs");
+                }
+                if (trace!=null) trace.println("IFD Offset: " + ifdoffset);
 
                 // read the IFD starting at the specified offset and add to the specified tiff
-                readIFD(sbc, ifdoffset, tiff);
-
-                // read the next IFD offset. Will be 0 if no more
-                buf.flip();
-                sbc.read(buf);
-                buf.rewind();
+                ifdoffset = readIFD(sbc, ifdoffset, tiff, budget);
+            }
+            loaded = true;
+        } finally {
+            if(!loaded){
+                tiff.release();
             }
         }
+        Events.commit(event, tiff, budget.read);
         return tiff;
     }
 
+    /**
+     * Returns the limits applied by {@link #loadTiff(ByteSource)}, and so by the decoders of the TIFFs it loads.
+     * @return
+     */
+    public static ParserLimits getLimits(){
+        return limits;
+    }
+
+    /**
+     * Sets the limits applied by {@link #loadTiff(ByteSource)}, and so by the decoders of the TIFFs it loads.
+     * @param parserLimits  the new limits
+     */
+    public static void setLimits(ParserLimits parserLimits){
+        limits = parserLimits;
+    }
+
     /**
      * Reads the IFD from the specified channel and loads it into the specified TIFF object.
      * @param sbc       the {@link java.nio.channels.SeekableByteChannel} to read the IFD from
      * @param offset    the offset (in bytes) from the start of the file where the IFD is
      * @param tiff      the {@link Tiff} object to load results into
+     * @param budget    the allocation budget for the file
+     * @return  the offset of the next IFD, or 0 if none
      * @throws IOException
      */
-    private static void readIFD(SeekableByteChannel sbc, long offset, Tiff tiff) throws IOException {
+    private static long readIFD(SeekableByteChannel sbc, long offset, Tiff tiff, Budget budget) throws IOException {
         IFD ifd = new IFD(offset);
+        ByteOrder byteOrder = tiff.getByteOrder();
+
+        // 2 byte count + 12 bytes per directory + 4 byte next IFD offset
+        ByteBuffer buf = Buffers.structure(2).order(byteOrder);
+        readFully(sbc, offset, buf, "IFD entry count");
+        int dircount = buf.getShort(0) & 0xFFFF;
+        if(budget.trace!=null) budget.trace.println("Dir count: "+dircount);
+        if(dircount>budget.limits.getMaxEntries()){
+            throw new TiffFormatException("IFD at "+offset+" has "+dircount+" entries (limit "
+                                          +budget.limits.getMaxEntries()+")");
+        }
 
-        ByteBuffer buf = ByteBuffer.allocate(8);
-        sbc.position(offset);   // set the offset
-
-        int count = sbc.read(buf);
-        buf.rewind();
-        // 2 byte count + 12 bytes per directory
-        short dircount = buf.order(tiff.getByteOrder()).getShort();
-        if(Tifixity.verbose) System.out.println("Dir count: "+dircount);
+        budget.allocate(12L*dircount+4);
+        ByteBuffer entries = Buffers.structure(12*dircount+4).order(byteOrder);
+        readFully(sbc, offset+2, entries, "IFD entries");
+        budget.read += 2+entries.limit();
 
         // read each DirectoryEntry
-        sbc.position(offset+2);
         for(int i=0; i<dircount; i++){
-            readDirectory(sbc, tiff.getByteOrder(), ifd);
+            readDirectory(sbc, entries, 12*i, offset+2+12*i, byteOrder, ifd, budget);
         }
 
+        validate(ifd, offset);
         tiff.addIFD(ifd);
+        return entries.getInt(12*dircount) & 0xFFFFFFFFL;
     }
 
+    // Tags read as numbers by the Tiff model, which must hold at least one SHORT or LONG value if present
+    private static final IFDTag[] NUMERIC_TAGS = { IFDTag.ImageWidth, IFDTag.ImageLength, IFDTag.BitsPerSample,
+            IFDTag.Compression, IFDTag.SamplesPerPixel, IFDTag.RowsPerStrip, IFDTag.TileWidth, IFDTag.TileLength,
+            IFDTag.PlanarConfiguration, IFDTag.Predictor };
+
     /**
-     * Reads each directory from the specified byte channel and loads into the specified IFD object.
-     * @param sbc       the {@link java.nio.channels.SeekableByteChannel} to read the Directory from
+     * Checks that the IFD locates its image data, with offsets and byte counts of integer type and equal length,
+     * and that the tags describing the image are numbers.
+     */
+    private static void validate(IFD ifd, long offset) throws TiffFormatException {
+        for(IFDTag tag: NUMERIC_TAGS){
+            IFD.DirectoryEntry entry = ifd.getDirectoryEntry(tag);
+            if(entry!=null && (!(entry.getValue() instanceof Integer[]) || entry.getValue().length==0)){
+                throw new TiffFormatException("IFD at "+offset+" has an invalid "+tag+" value");
+            }
+        }
+        IFD.DirectoryEntry offsets = ifd.getDirectoryEntry(IFDTag.StripOffsets);
+        IFD.DirectoryEntry counts = ifd.getDirectoryEntry(IFDTag.StripByteCounts);
+        if(offsets==null && counts==null){
+            offsets = ifd.getDirectoryEntry(IFDTag.TileOffsets);
+            counts = ifd.getDirectoryEntry(IFDTag.TileByteCounts);
+        }
+        if(offsets==null || counts==null){
+            throw new TiffFormatException("IFD at "+offset+" does not locate its image data");
+        }
+        if(!(offsets.getValue() instanceof Integer[]) || !(counts.getValue() instanceof Integer[])){
+            throw new TiffFormatException("IFD at "+offset+" has image data offsets or counts of the wrong type");
+        }
+        if(offsets.getValue().length!=counts.getValue().length){
+            throw new TiffFormatException("IFD at "+offset+" has "+offsets.getValue().length+" image data offsets but "
+                                          +counts.getValue().length+" byte counts");
+        }
+    }
+
+    /**
+     * Reads a directory entry and its value, and loads it into the specified IFD object.
+     * @param sbc       the {@link java.nio.channels.SeekableByteChannel} to read the value from
+     * @param entries   the IFD's entries
+     * @param index     the position of the entry in entries
+     * @param position  the file offset of the entry
      * @param byteOrder the byte order of the bytes within the file
      * @param ifd       the {@link IFD} to load the read data into
+     * @param budget    the allocation budget for the file
      * @throws IOException
      */
-    private static void readDirectory(SeekableByteChannel sbc, ByteOrder byteOrder, IFD ifd) throws IOException {
-        ByteBuffer buf = ByteBuffer.allocate(12);
-        sbc.read(buf);
-        buf.rewind();
+    private static void readDirectory(SeekableByteChannel sbc, ByteBuffer entries, int index, long position,
+                                      ByteOrder byteOrder, IFD ifd, Budget budget) throws IOException {
         // bytes:
         //  0-1  Tag
         //  2-3  Type
         //  4-7  Count of indicated type
         //  8-11 Value offset
-        int tagval = buf.order(byteOrder).getShort();
+        int tagval = entries.getShort(index);
 
-        short typeval = buf.order(byteOrder).getShort();
+        short typeval = entries.getShort(index+2);
         IFDType type = IFDType.getType(typeval);
+        if(type==null){
+            throw new TiffFormatException("Unknown field type "+typeval+" for tag "+(tagval & 0xFFFF));
+        }
 
-        int count = buf.order(byteOrder).getInt();
-
-        // get the current position within the file
-        long curPosition = sbc.position();
+        long count = entries.getInt(index+4) & 0xFFFFFFFFL;
+        long size = count*type.getNumBytes();
+        if(size>budget.limits.getMaxValueBytes()){
+            throw new TiffFormatException("Value of tag "+(tagval & 0xFFFF)+" is "+size+" bytes (limit "
+                                          +budget.limits.getMaxValueBytes()+")");
+        }
+        budget.allocate(size+count*ParserLimits.ELEMENT_OVERHEAD);
 
-        // if value fits within the value offset field, then the IFDs valueOffset = curPosition
+        // if value fits within the value offset field, then the IFDs valueOffset is bytes 8-11 of the entry
         // if it does not, then the IFDs valueOffset = bytes 8-11
-        long offset = curPosition-4;        // curPosition is after reading in the 12byte IFD, so -4
-        if (count*type.getNumBytes()>4){
+        long offset = position+8;
+        if (size>4){
             // value does not fit, so bytes 8-11 are a pointer
-            offset = buf.order(byteOrder).getInt();
+            offset = entries.getInt(index+8) & 0xFFFFFFFFL;
+        }
+
+        // now read the value, from the entry itself if it fits, else from the file
+        ByteBuffer data = Buffers.value((int) size);
+        if(size<=4){
+            for(int i=0; i<size; i++){
+                data.put(entries.get(index+8+i));
+            }
+        } else {
+            readFully(sbc, offset, data, "tag value");
+            budget.read += size;
         }
+        data.flip();
+        data.order(byteOrder);
 
-        // now read the value at the specified offset in the file
-        // Note: this currently means bytes 8-11 are re-read if the value fits there.
         Object[] values;
         switch(type){
             case BYTE:
             case ASCII:
-                values = readArrayChar(sbc.position(offset), byteOrder, count);
+                values = readArrayChar(data, (int) count);
                 break;
             case SHORT:
-                values = readArrayShort(sbc.position(offset), byteOrder, type, count);
+                values = readArrayShort(data, (int) count);
                 break;
             case RATIONAL:
-                values = readArrayRational(sbc.position(offset), byteOrder, type, count);
+                values = readArrayRational(data, (int) count);
                 break;
             case LONG:
             default:
-                values = readArrayLong(sbc.position(offset), byteOrder, type, count);
+                values = readArrayLong(data, type, (int) count);
                 break;
         }
         // add directory to IFD object
-        ifd.addDirectoryEntry(tagval, type, count, offset, values);
+        ifd.addDirectoryEntry(tagval, type, (int) count, offset, values);
 
-        if(Tifixity.verbose) System.out.println(ifd.getDirectoryEntry(tagval).toString());
+        if(budget.trace!=null) budget.trace.println(ifd.getDirectoryEntry(tagval).toString());
+    }
 
-        // reset position in channel
-        sbc.position(curPosition);
+    /**
+     * Fills the buffer from the specified position.
+     * @throws TiffFormatException  if the file ends first
+     */
+    private static void readFully(SeekableByteChannel sbc, long position, ByteBuffer buf, String what) throws IOException {
+        sbc.position(position);
+        readFully(sbc, buf, what);
     }
 
     /**
-     * Reads a TIFF ASCII array from the specified byte channel and returns an array of Characters.
-     * @param sbc       the {@link java.nio.channels.SeekableByteChannel} to read the character array from
-     * @param byteOrder the byte order of the bytes within the file
+     * Fills the buffer from the channel's position.
+     * @throws TiffFormatException  if the file ends first
+     */
+    private static void readFully(SeekableByteChannel sbc, ByteBuffer buf, String what) throws IOException {
+        long position = sbc.position();
+        while(buf.hasRemaining()){
+            if(sbc.read(buf)<0){
+                throw new TiffFormatException("Truncated "+what+" at offset "+position);
+            }
+        }
+    }
+
+    /**
+     * The estimated memory allocated, and the bytes read, so far while parsing one file, and where the parse
+     * is traced to. The memory is reserved from a {@link MemoryBudget}, if any, in steps of at least
+     * {@link #RESERVE_STEP} bytes, so small values do not each contend for the budget.
+     */
+    private static final class Budget {
+        private static final long   RESERVE_STEP = 64*1024;
+
+        private final ParserLimits  limits;
+        private final PrintStream   trace;
+        private final MemoryBudget.Reservation reservation;
+        private long                allocated = 0;
+        private long                read = 0;
+
+        Budget(ParserLimits limits, PrintStream trace, MemoryBudget.Reservation reservation){
+            this.limits = limits;
+            this.trace = trace;
+            this.reservation = reservation;
+        }
+
+        void allocate(long bytes) throws IOException {
+            allocated += bytes;
+            if(allocated>limits.getMaxAllocation()){
+                throw new TiffFormatException("Parsing needs more than "+limits.getMaxAllocation()+" bytes");
+            }
+            if(reservation!=null && allocated>reservation.getBytes()){
+                reservation.grow(Math.max(allocated-reservation.getBytes(), RESERVE_STEP));
+            }
+        }
+    }
+
+    /**
+     * Reads a TIFF ASCII array from the specified buffer and returns an array of Characters.
+     * @param buf       the buffer holding the value, in the file's byte order
      * @param length    the number of elements in the character array
      * @return
-     * @throws IOException
      */
-    private static Character[] readArrayChar(SeekableByteChannel sbc, ByteOrder byteOrder, int length) throws IOException {
-        ByteBuffer buf = ByteBuffer.allocate(length);
-        sbc.read(buf);
-        buf.rewind();
-
+    private static Character[] readArrayChar(ByteBuffer buf, int length) {
         Character[] desc = new Character[length];
 
         for(int i=0; i<length; i++){
@@ -197,68 +398,63 @@ public class TiffFileHandler {
 
     /**
      * Reads a TIFF short array (16-bit unsigned integer) and returns an array of Integers
-     * @param sbc       the {@link java.nio.channels.SeekableByteChannel} to read the short array from
-     * @param byteOrder the byte order of the bytes within the file
-     * @param type      the IFDType of the elements in the array
+     * @param buf       the buffer holding the value, in the file's byte order
      * @param length    the number of elements in the short array
      * @return
-     * @throws IOException
      */
-    private static Integer[] readArrayShort(SeekableByteChannel sbc, ByteOrder byteOrder, IFDType type, int length) throws IOException {
-        ByteBuffer buf = ByteBuffer.allocate(length*2);
-        sbc.read(buf);
-        buf.rewind();
-
+    private static Integer[] readArrayShort(ByteBuffer buf, int length) {
         Integer[] values = new Integer[length];
 
         for(int i=0; i<length; i++){
-            values[i] = new Integer(buf.order(byteOrder).getShort());
+            values[i] = buf.getShort() & 0xFFFF;
         }
 
         return values;
     }
 
     /**
-     * Reads a TIFF Long array (32-bit unsigned integer) and returns an array of Integers
-     * @param sbc       the {@link java.nio.channels.SeekableByteChannel} to read the Long array from
-     * @param byteOrder the byte order of the bytes within the file
+     * Reads a TIFF Long array (32-bit unsigned integer) and returns an array of Integers. Other integer types
+     * are read at their own width; 8-byte DOUBLEs are read as the first 4 bytes of each.
+     * @param buf       the buffer holding the value, in the file's byte order
      * @param type      the IFDType of the elements in the array
      * @param length    the number of elements in the Long array
      * @return
-     * @throws IOException
      */
-    private static Integer[] readArrayLong(SeekableByteChannel sbc, ByteOrder byteOrder, IFDType type, int length) throws IOException {
-        ByteBuffer buf = ByteBuffer.allocate(length*4);
-        sbc.read(buf);
-        buf.rewind();
-
+    private static Integer[] readArrayLong(ByteBuffer buf, IFDType type, int length) {
         Integer[] values = new Integer[length];
 
         for(int i=0; i<length; i++){
-            values[i] = buf.order(byteOrder).getInt();
+            switch(type.getNumBytes()){
+                case 1:
+                    values[i] = buf.get() & 0xFF;
+                    break;
+                case 2:
+                    values[i] = buf.getShort() & 0xFFFF;
+                    break;
+                case 4:
+                    values[i] = buf.getInt();
+                    break;
+                default:
+                    values[i] = buf.getInt();
+                    buf.getInt();
+                    break;
+            }
         }
 
         return values;
     }
 
     /**
-     *
-     * @param sbc       the {@link java.nio.channels.SeekableByteChannel} to read the Rational array from
-     * @param byteOrder the byte order of the bytes within the file
-     * @param type      the IFDType of the elements in the array
+     * Reads a TIFF Rational array (pairs of 32-bit unsigned integers) and returns an array of Rationals
+     * @param buf       the buffer holding the value, in the file's byte order
      * @param length    the number of elements in the Rational array
      * @return
-     * @throws IOException
      */
-    private static Rational[] readArrayRational(SeekableByteChannel sbc, ByteOrder byteOrder, IFDType type, int length) throws IOException {
-        ByteBuffer buf = ByteBuffer.allocate(length*8); //Rational = 2*Long
-        sbc.read(buf);
-        buf.rewind();
-
+    private static Rational[] readArrayRational(ByteBuffer buf, int length) {
         Rational[] values = new Rational[length];
 
         for(int i=0; i<length; i++){
-            values[i] = new Rational(buf.order(byteOrder).getInt(), buf.order(byteOrder).getInt());
+            values[i] = new Rational(buf.getInt(), buf.getInt());
         }
 
         return values;
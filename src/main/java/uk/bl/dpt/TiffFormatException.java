@@ -0,0 +1,31 @@
+/**
+ * Copyright 2016 Peter May
+ * Author: Peter May
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.bl.dpt;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a TIFF file is malformed, or exceeds the {@link ParserLimits} in force.
+ */
+public class TiffFormatException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    public TiffFormatException(String message){
+        super(message);
+    }
+}
@@ -20,29 +20,42 @@ import org.apache.commons.cli.*;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
 import java.nio.ByteBuffer;
 import java.nio.channels.SeekableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.security.DigestInputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.Properties;
-import java.util.TreeMap;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 /**
  * Main application and Tifixity API.
+ *
+ * The static methods parse and read files with the process-wide settings ({@link TiffFileHandler#setLimits},
+ * {@link ByteSource#setDirectIO}); a {@link TifixityEngine} carries its own settings.
  */
 public class Tifixity {
 
-    protected static boolean allChecksums   = false;               // calculate full and non-image data checksums
-    protected static boolean verbose        = false;               // Verbose output required
+    protected static boolean verbose        = false;               // Verbose command line output required
     private static Properties properties    = new Properties();    // Default properties. Contain details from POM.
 
-    private static int BUFFERSIZE = 100;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
 
     /**
      * Calculates the full and non-image-data checksum for the specified file.
@@ -52,7 +65,18 @@ public class Tifixity {
      * @throws IOException
      */
     public static String[] checksumFile(String file) throws NoSuchAlgorithmException, IOException{
-        Tiff tiff = TiffFileHandler.loadTiffFromFile(file); //Paths.get(file));
+        return checksumFile(ByteSource.of(Paths.get(file)));
+    }
+
+    /**
+     * Calculates the full and non-image-data checksum for the specified file.
+     * @param source    the TIFF to checksum
+     * @return  String[] first element is the full digest, 2nd element is the partial non-image data checksum
+     * @throws NoSuchAlgorithmException
+     * @throws IOException
+     */
+    public static String[] checksumFile(ByteSource source) throws NoSuchAlgorithmException, IOException{
+        Tiff tiff = TiffFileHandler.loadTiff(source);
 
         // get the full and partial digests
         return calculateFileDigest(tiff);
@@ -66,30 +90,48 @@ public class Tifixity {
      * @throws IOException
      * @throws NoSuchAlgorithmException
      */
-    private static String[] calculateFileDigest(Tiff tiff) throws IOException, NoSuchAlgorithmException {
+    static String[] calculateFileDigest(Tiff tiff) throws IOException, NoSuchAlgorithmException {
+        Events.Digest event = new Events.Digest();
+        event.begin();
 
+        long position = 0;     // file offset of the start of the buffer
         MessageDigest md = MessageDigest.getInstance("MD5");            // full checksum
         MessageDigest md_rem = MessageDigest.getInstance("MD5");        // non-image-data checksum
 
-        try (InputStream is = Files.newInputStream(tiff.getFilePath())){
-            DigestInputStream dis = new DigestInputStream(is, md);
-            DigestInputStream pdis = new DigestInputStream(dis, md_rem);
-
-            TreeMap<Long, Boolean> structure = tiff.getStructure();
-            Iterator<Long> indexes = structure.navigableKeySet().iterator();
-            Long index = indexes.next();    // first index = 0
-
-            int count=0;
-            do {
-                // check if DigestInputStream should be on or off then increment count
-                if(count==index){
-                    pdis.on(!structure.get(index));  // turn on if not image data
-                    if (indexes.hasNext()) {
-                        index = indexes.next();
+        ImageDataIndex index = tiff.getImageDataIndex();
+
+        try (SeekableByteChannel sbc = tiff.getSource().open()) {
+            ByteBuffer buf = Buffers.read();
+            byte[] data = buf.array();
+
+            int range = 0;         // first image data range ending after position
+            int bytesRead;
+
+            while((bytesRead = sbc.read(buf)) > -1){
+                md.update(data, 0, bytesRead);
+
+                // feed only the non-image portions of this buffer to the partial digest
+                int i = 0;
+                while(i < bytesRead){
+                    long current = position + i;
+                    while(range < index.size() && index.getEnd(range) <= current){
+                        range++;
+                    }
+
+                    if(range < index.size() && index.getStart(range) <= current){
+                        // inside image data; skip to the end of the range
+                        i = (int) Math.min(bytesRead, index.getEnd(range) - position);
+                    } else {
+                        long next = range < index.size() ? index.getStart(range) : Long.MAX_VALUE;
+                        int stop = (int) Math.min(bytesRead, next - position);
+                        md_rem.update(data, i, stop - i);
+                        i = stop;
                     }
                 }
-                count++;
-            } while (pdis.read() > -1);
+
+                position += bytesRead;
+                buf.clear();
+            }
         }
 
         // Format to String[]
@@ -97,6 +139,7 @@ public class Tifixity {
         checksums[0] = checksumAsString(md.digest());
         checksums[1] = checksumAsString(md_rem.digest());
 
+        Events.commit(event, tiff, "file", -1, position);
         return checksums;
     }
 
@@ -108,8 +151,18 @@ public class Tifixity {
      * @throws NoSuchAlgorithmException
      */
     public static String[] checksumImage(String file) throws IOException, NoSuchAlgorithmException {
-        //Path p = Paths.get(file);
-        Tiff tiff = TiffFileHandler.loadTiffFromFile(file); //Paths.get(file));
+        return checksumImage(ByteSource.of(Paths.get(file)));
+    }
+
+    /**
+     * Returns image payload checksums for each subfile within the specified TIFF
+     * @param source    the TIFF to checksum
+     * @return
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    public static String[] checksumImage(ByteSource source) throws IOException, NoSuchAlgorithmException {
+        Tiff tiff = TiffFileHandler.loadTiff(source);
 
         String[] checksums = new String[tiff.numberOfIFDs()];
 
@@ -130,7 +183,20 @@ public class Tifixity {
      */
     public static String checksumImage(String file, int subFile)
             throws IOException, NoSuchAlgorithmException {
-        Tiff tiff = TiffFileHandler.loadTiffFromFile(file); //Paths.get(file));
+        return checksumImage(ByteSource.of(Paths.get(file)), subFile);
+    }
+
+    /**
+     * Returns the image payload checksum of the specified file's subfile.
+     * @param source    the TIFF to checksum
+     * @param subFile   the subfile index (0 indexed)
+     * @return
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    public static String checksumImage(ByteSource source, int subFile)
+            throws IOException, NoSuchAlgorithmException {
+        Tiff tiff = TiffFileHandler.loadTiff(source);
         return calculateImageDigest(tiff, subFile);
     }
 
@@ -142,13 +208,15 @@ public class Tifixity {
      * @throws IOException
      * @throws NoSuchAlgorithmException
      */
-    private static String calculateImageDigest(Tiff tiff, int subFile)
+    static String calculateImageDigest(Tiff tiff, int subFile)
             throws IOException, NoSuchAlgorithmException {
         if (tiff==null){
-            System.err.println("No TIFF file");
-            System.exit(-2);
+            throw new IllegalArgumentException("No TIFF file");
         }
 
+        Events.Digest event = new Events.Digest();
+        event.begin();
+
         Integer[] imageIndexes = tiff.getImageDataOffsets(subFile);
         Integer[] imageLengths = tiff.getImageDataLengths(subFile);
 
@@ -157,36 +225,429 @@ public class Tifixity {
         // Message Digests
         MessageDigest md = MessageDigest.getInstance("MD5");
 
-        try (SeekableByteChannel sbc = Files.newByteChannel(tiff.getFilePath())) {
-            ByteBuffer buf = ByteBuffer.allocate(BUFFERSIZE);
-
-            int totalBytesRead;
-            int bytesRead;
+        try (SeekableByteChannel sbc = tiff.getSource().open()) {
+            ByteBuffer buf = Buffers.read();
 
             for(int j=0; j<imageIndexes.length; j++){
                 // Do not assume split data is in sequential order in the file.
                 // jump to next position and read the data in
-                sbc.position(imageIndexes[j]);
-                buf.clear();
+                Events.StripRead read = new Events.StripRead();
+                read.begin();
+                long offset = imageIndexes[j] & 0xFFFFFFFFL;
+                long length = imageLengths[j] & 0xFFFFFFFFL;
+                updateDigest(md, sbc, offset, length, buf);
+                Events.commit(read, tiff, subFile, j, offset, length);
+            }
+        }
 
-                totalBytesRead=0;
-                while(totalBytesRead < imageLengths[j]){
-                    bytesRead = sbc.read(buf);
-                    buf.flip();
+        String checksum = checksumAsString(md.digest());
+        Events.commit(event, tiff, "image", subFile, -1);
+        return checksum;
+    }
 
-                    if(totalBytesRead+bytesRead>=imageLengths[j]){
-                        md.update(buf.array(), buf.position(), (imageLengths[j]-totalBytesRead));
-                    } else {
-                        md.update(buf);
-                    }
+    /**
+     * Returns the checksum of each sample plane of each subfile within the specified TIFF. A subfile with
+     * PlanarConfiguration=2 has one plane per sample; any other subfile has one plane, whose checksum is its
+     * image checksum.
+     * @param file  the TIFF file to checksum
+     * @return  String[subfile][plane]
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    public static String[][] checksumPlanes(String file) throws IOException, NoSuchAlgorithmException {
+        return checksumPlanes(ByteSource.of(Paths.get(file)));
+    }
 
-                    totalBytesRead += bytesRead;
-                    buf.rewind();
+    /**
+     * Returns the checksum of each sample plane of each subfile within the specified TIFF. A subfile with
+     * PlanarConfiguration=2 has one plane per sample; any other subfile has one plane, whose checksum is its
+     * image checksum.
+     * @param source    the TIFF to checksum
+     * @return  String[subfile][plane]
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    public static String[][] checksumPlanes(ByteSource source) throws IOException, NoSuchAlgorithmException {
+        Tiff tiff = TiffFileHandler.loadTiff(source);
+
+        String[][] checksums = new String[tiff.numberOfIFDs()][];
+
+        for(int i=0; i<tiff.numberOfIFDs(); i++){
+            String[] digests = calculatePlaneDigests(tiff, i);
+            checksums[i] = Arrays.copyOfRange(digests, 1, digests.length);
+        }
+
+        return checksums;
+    }
+
+    /**
+     * Returns the checksum of each sample plane of the specified file's subfile.
+     * @param file      the TIFF file to checksum
+     * @param subFile   the subfile index (0 indexed)
+     * @return
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    public static String[] checksumPlanes(String file, int subFile) throws IOException, NoSuchAlgorithmException {
+        return checksumPlanes(ByteSource.of(Paths.get(file)), subFile);
+    }
+
+    /**
+     * Returns the checksum of each sample plane of the specified file's subfile.
+     * @param source    the TIFF to checksum
+     * @param subFile   the subfile index (0 indexed)
+     * @return
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    public static String[] checksumPlanes(ByteSource source, int subFile) throws IOException, NoSuchAlgorithmException {
+        Tiff tiff = TiffFileHandler.loadTiff(source);
+        String[] digests = calculatePlaneDigests(tiff, subFile);
+        return Arrays.copyOfRange(digests, 1, digests.length);
+    }
+
+    /**
+     * Calculates the image checksum and the checksum of each sample plane of the specified subfile, in one
+     * pass over the image data (see {@link PlaneDigester}).
+     * @param tiff      the TIFF file to checksum
+     * @param subFile   the subfile index (0 indexed)
+     * @return  the image checksum followed by the plane checksums
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    static String[] calculatePlaneDigests(Tiff tiff, int subFile)
+            throws IOException, NoSuchAlgorithmException {
+        if (tiff==null){
+            throw new IllegalArgumentException("No TIFF file");
+        }
+
+        Events.Digest event = new Events.Digest();
+        event.begin();
+        String[] checksums = PlaneDigester.digest(tiff, subFile);
+        Events.commit(event, tiff, "planes", subFile, -1);
+        return checksums;
+    }
+
+    /**
+     * Returns the checksum of every strip (or tile) of every subfile within the specified TIFF, in
+     * StripOffsets order.
+     * @param file  the TIFF file to checksum
+     * @return  String[subfile][strip]
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    public static String[][] checksumStrips(String file) throws IOException, NoSuchAlgorithmException {
+        return checksumStrips(ByteSource.of(Paths.get(file)));
+    }
+
+    /**
+     * Returns the checksum of every strip (or tile) of every subfile within the specified TIFF, in
+     * StripOffsets order.
+     * @param source    the TIFF to checksum
+     * @return  String[subfile][strip]
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    public static String[][] checksumStrips(ByteSource source) throws IOException, NoSuchAlgorithmException {
+        Tiff tiff = TiffFileHandler.loadTiff(source);
+
+        String[][] checksums = new String[tiff.numberOfIFDs()][];
+
+        try (SeekableByteChannel sbc = tiff.getSource().open()) {
+            for(int i=0; i<tiff.numberOfIFDs(); i++){
+                Integer[] imageIndexes = tiff.getImageDataOffsets(i);
+                Integer[] imageLengths = tiff.getImageDataLengths(i);
+
+                checksums[i] = new String[imageIndexes.length];
+                for(int j=0; j<imageIndexes.length; j++){
+                    checksums[i][j] = calculateStripDigest(tiff, sbc, i, j);
+                }
+            }
+        }
+
+        return checksums;
+    }
+
+    /**
+     * Calculates the checksum of one strip (or tile) through an open channel. A strip extending past the end
+     * of the file is hashed up to the end of the file.
+     * @param tiff      the TIFF file
+     * @param sbc       the channel to read from
+     * @param subFile   the subfile index (0 indexed)
+     * @param strip     the strip index within the subfile
+     * @return
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    static String calculateStripDigest(Tiff tiff, SeekableByteChannel sbc, int subFile, int strip)
+            throws IOException, NoSuchAlgorithmException {
+        Events.Digest event = new Events.Digest();
+        event.begin();
+        Events.StripRead read = new Events.StripRead();
+        read.begin();
+
+        long offset = tiff.getImageDataOffsets(subFile)[strip] & 0xFFFFFFFFL;
+        long length = tiff.getImageDataLengths(subFile)[strip] & 0xFFFFFFFFL;
+        MessageDigest md = MessageDigest.getInstance("MD5");
+        updateDigest(md, sbc, offset, length, Buffers.read());
+        Events.commit(read, tiff, subFile, strip, offset, length);
+
+        String checksum = checksumAsString(md.digest());
+        Events.commit(event, tiff, "strip", subFile, length);
+        return checksum;
+    }
+
+    /**
+     * Updates a digest with a byte range of an open channel, up to the end of the file. A range of an in-memory
+     * {@link ByteSource} is hashed straight from its buffer.
+     * @param md        the digest to update
+     * @param sbc       the channel to read from
+     * @param offset    the start of the range
+     * @param length    the length of the range
+     * @param buf       the buffer to read through
+     * @throws IOException
+     */
+    static void updateDigest(MessageDigest md, SeekableByteChannel sbc, long offset, long length, ByteBuffer buf)
+            throws IOException {
+        ByteBuffer range = BufferSource.slice(sbc, offset, length);
+        if(range!=null){
+            md.update(range);
+            return;
+        }
+
+        sbc.position(offset);
+        long remaining = length;
+        while(remaining>0){
+            buf.clear();
+            if(remaining<buf.capacity()){
+                buf.limit((int) remaining);
+            }
+            int bytesRead = sbc.read(buf);
+            if(bytesRead<0){
+                break;
+            }
+            md.update(buf.array(), 0, bytesRead);
+            remaining -= bytesRead;
+        }
+    }
+
+    /**
+     * Returns decoded pixel checksums for each subfile within the specified TIFF. Unlike the image checksum,
+     * these are unchanged by a lossless change of compression or predictor.
+     * @param file  the TIFF file to checksum
+     * @return
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    public static String[] checksumPixels(String file) throws IOException, NoSuchAlgorithmException {
+        return checksumPixels(ByteSource.of(Paths.get(file)));
+    }
+
+    /**
+     * Returns decoded pixel checksums for each subfile within the specified TIFF. Unlike the image checksum,
+     * these are unchanged by a lossless change of compression or predictor.
+     * @param source    the TIFF to checksum
+     * @return
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    public static String[] checksumPixels(ByteSource source) throws IOException, NoSuchAlgorithmException {
+        Tiff tiff = TiffFileHandler.loadTiff(source);
+
+        String[] checksums = new String[tiff.numberOfIFDs()];
+
+        for(int i=0; i<tiff.numberOfIFDs(); i++){
+            checksums[i] = calculatePixelDigest(tiff, i);
+        }
+
+        return checksums;
+    }
+
+    /**
+     * Returns the decoded pixel checksum of the specified file's subfile.
+     * @param file      the TIFF file to checksum
+     * @param subFile   the subfile index (0 indexed)
+     * @return
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    public static String checksumPixels(String file, int subFile) throws IOException, NoSuchAlgorithmException {
+        return checksumPixels(ByteSource.of(Paths.get(file)), subFile);
+    }
+
+    /**
+     * Returns the decoded pixel checksum of the specified file's subfile.
+     * @param source    the TIFF to checksum
+     * @param subFile   the subfile index (0 indexed)
+     * @return
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    public static String checksumPixels(ByteSource source, int subFile) throws IOException, NoSuchAlgorithmException {
+        Tiff tiff = TiffFileHandler.loadTiff(source);
+        return calculatePixelDigest(tiff, subFile);
+    }
+
+    /**
+     * Calculates the checksum of the decoded samples of the specified subfile.
+     *
+     * Each strip (or tile) is read and decompressed (PackBits, LZW or Deflate), any horizontal predictor is
+     * reversed and 16 and 32-bit samples are put into big-endian order before hashing, in stored order. Strips
+     * are decoded in parallel, with at most a small window of decoded strips held in memory at once. The
+     * window's memory is reserved from the TIFF's {@link MemoryBudget}; while the budget is short the window
+     * shrinks, down to one strip, rather than waiting.
+     * @param tiff      the TIFF file to checksum
+     * @param subFile   the subfile index (0 indexed)
+     * @return
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    static String calculatePixelDigest(Tiff tiff, int subFile)
+            throws IOException, NoSuchAlgorithmException {
+        Events.Digest event = new Events.Digest();
+        event.begin();
+        final BlockDecoder blocks = new BlockDecoder(tiff, subFile);
+
+        MessageDigest md = MessageDigest.getInstance("MD5");
+        int window = 2*Runtime.getRuntime().availableProcessors();
+        ArrayDeque<Future<byte[]>> pending = new ArrayDeque<>();
+        ArrayDeque<Long> pendingBytes = new ArrayDeque<>();
+        MemoryBudget.Reservation memory = tiff.getMemoryBudget().reserve(0);
+
+        try (SeekableByteChannel sbc = tiff.getSource().open()) {
+            for(int j=0; j<blocks.numberOfBlocks(); j++){
+                final int block = j;
+                long bytes = blocks.storedLength(block)+blocks.decodedLength(block);
+
+                // hash the oldest strips until this one fits, only waiting for memory once none are pending
+                boolean reserved = false;
+                while(!pending.isEmpty() && (pending.size()>=window || !(reserved = memory.tryGrow(bytes)))){
+                    updateDecoded(md, pending.removeFirst());
+                    memory.release(pendingBytes.removeFirst());
                 }
+                if(!reserved){
+                    memory.grow(bytes);
+                }
+                pendingBytes.addLast(bytes);
+
+                final byte[] stored = blocks.readBlock(sbc, block);
+                pending.addLast(ForkJoinPool.commonPool().submit(new Callable<byte[]>() {
+                    @Override
+                    public byte[] call() throws IOException {
+                        return blocks.decodeBlock(block, stored);
+                    }
+                }));
+            }
+
+            while(!pending.isEmpty()){
+                updateDecoded(md, pending.removeFirst());
             }
+        } finally {
+            for(Future<byte[]> f: pending){
+                f.cancel(true);
+            }
+            memory.close();
         }
 
-        return checksumAsString(md.digest());
+        String checksum = checksumAsString(md.digest());
+        Events.commit(event, tiff, "pixel", subFile, -1);
+        return checksum;
+    }
+
+    /**
+     * Returns layout-invariant raster checksums for each subfile within the specified TIFF. These are
+     * unchanged by re-striping, tiling or a change of PlanarConfiguration.
+     * @param file  the TIFF file to checksum
+     * @return
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    public static String[] checksumRaster(String file) throws IOException, NoSuchAlgorithmException {
+        return checksumRaster(ByteSource.of(Paths.get(file)));
+    }
+
+    /**
+     * Returns layout-invariant raster checksums for each subfile within the specified TIFF. These are
+     * unchanged by re-striping, tiling or a change of PlanarConfiguration.
+     * @param source    the TIFF to checksum
+     * @return
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    public static String[] checksumRaster(ByteSource source) throws IOException, NoSuchAlgorithmException {
+        Tiff tiff = TiffFileHandler.loadTiff(source);
+
+        String[] checksums = new String[tiff.numberOfIFDs()];
+
+        for(int i=0; i<tiff.numberOfIFDs(); i++){
+            checksums[i] = calculateRasterDigest(tiff, i);
+        }
+
+        return checksums;
+    }
+
+    /**
+     * Returns the layout-invariant raster checksum of the specified file's subfile.
+     * @param file      the TIFF file to checksum
+     * @param subFile   the subfile index (0 indexed)
+     * @return
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    public static String checksumRaster(String file, int subFile) throws IOException, NoSuchAlgorithmException {
+        return checksumRaster(ByteSource.of(Paths.get(file)), subFile);
+    }
+
+    /**
+     * Returns the layout-invariant raster checksum of the specified file's subfile.
+     * @param source    the TIFF to checksum
+     * @param subFile   the subfile index (0 indexed)
+     * @return
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    public static String checksumRaster(ByteSource source, int subFile) throws IOException, NoSuchAlgorithmException {
+        Tiff tiff = TiffFileHandler.loadTiff(source);
+        return calculateRasterDigest(tiff, subFile);
+    }
+
+    /**
+     * Calculates the checksum of the canonical raster of the specified subfile. See {@link RasterDigester}.
+     * @param tiff      the TIFF file to checksum
+     * @param subFile   the subfile index (0 indexed)
+     * @return
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    static String calculateRasterDigest(Tiff tiff, int subFile)
+            throws IOException, NoSuchAlgorithmException {
+        Events.Digest event = new Events.Digest();
+        event.begin();
+        MessageDigest md = MessageDigest.getInstance("MD5");
+        new RasterDigester(new BlockDecoder(tiff, subFile)).digest(tiff, md);
+        String checksum = checksumAsString(md.digest());
+        Events.commit(event, tiff, "raster", subFile, -1);
+        return checksum;
+    }
+
+    /**
+     * Waits for a decoded strip and adds it to the digest.
+     * @param md        the digest to update
+     * @param strip     the decoded strip
+     * @throws IOException  if the strip could not be decoded
+     */
+    private static void updateDecoded(MessageDigest md, Future<byte[]> strip) throws IOException {
+        try {
+            md.update(strip.get());
+        } catch (InterruptedException ie){
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while decoding strips");
+        } catch (ExecutionException ee){
+            if(ee.getCause() instanceof IOException){
+                throw (IOException) ee.getCause();
+            }
+            throw new IOException("Failed to decode strip", ee.getCause());
+        }
     }
 
     /**
@@ -198,7 +659,19 @@ public class Tifixity {
      */
     public static String[] checksumIFDs(String file)
             throws IOException, NoSuchAlgorithmException {
-        Tiff tiff = TiffFileHandler.loadTiffFromFile(file); //Paths.get(file));
+        return checksumIFDs(ByteSource.of(Paths.get(file)));
+    }
+
+    /**
+     * Calculates the checksums for each IFD
+     * @param source    the TIFF to checksum
+     * @return
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    public static String[] checksumIFDs(ByteSource source)
+            throws IOException, NoSuchAlgorithmException {
+        Tiff tiff = TiffFileHandler.loadTiff(source);
 
         String[] checksums = new String[tiff.numberOfIFDs()];
 
@@ -219,7 +692,20 @@ public class Tifixity {
      */
     public static String checksumIFD(String file, int subFile)
             throws IOException, NoSuchAlgorithmException {
-        Tiff tiff = TiffFileHandler.loadTiffFromFile(file); //Paths.get(file));
+        return checksumIFD(ByteSource.of(Paths.get(file)), subFile);
+    }
+
+    /**
+     * Calculates the checksum for the specified IFD
+     * @param source    the TIFF to checksum
+     * @param subFile   the subfile index (0 indexed)
+     * @return
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    public static String checksumIFD(ByteSource source, int subFile)
+            throws IOException, NoSuchAlgorithmException {
+        Tiff tiff = TiffFileHandler.loadTiff(source);
         return calculateIFDDigest(tiff, subFile);
     }
 
@@ -231,12 +717,14 @@ public class Tifixity {
      * @throws IOException
      * @throws NoSuchAlgorithmException
      */
-    private static String calculateIFDDigest(Tiff tiff, int subFile)
+    static String calculateIFDDigest(Tiff tiff, int subFile)
             throws IOException, NoSuchAlgorithmException {
         if (tiff==null){
-            System.err.println("No TIFF file");
-            System.exit(-2);
+            throw new IllegalArgumentException("No TIFF file");
         }
+        Events.Digest event = new Events.Digest();
+        event.begin();
+        long hashed = 0;
 
         // Get the IFD
         IFD ifd = tiff.getIFD(subFile);
@@ -246,18 +734,16 @@ public class Tifixity {
         // Message Digests
         MessageDigest md = MessageDigest.getInstance("MD5");
 
-        try (SeekableByteChannel sbc = Files.newByteChannel(tiff.getFilePath())) {
+        try (SeekableByteChannel sbc = tiff.getSource().open()) {
             // jump to the IFD offset
             sbc.position(ifdoffset);
 
             // read the IFD
-            ByteBuffer buf = ByteBuffer.allocate(2+(numDirs*12)+4);
-            buf.clear();
-            int bytesRead;
-            if((bytesRead=sbc.read(buf))>-1){
-                buf.flip();
-                md.update(buf);
-            }
+            ByteBuffer buf = Buffers.structure(2+(numDirs*12)+4);
+            int bytesRead = readFully(sbc, buf);
+            buf.flip();
+            md.update(buf);
+            hashed += bytesRead;
 
             // now read the pointed to data for each IFD
             Iterator<Integer> directoryIterator = ifd.getDirectoryKeys().iterator();
@@ -266,17 +752,38 @@ public class Tifixity {
                 if(entry.isValuePointer()){
                     // jump to the pointer value
                     sbc.position(entry.getValueOffset());
-                    buf = ByteBuffer.allocate(entry.getCount()*entry.getType().getNumBytes());
-                    buf.clear();
-                    if((bytesRead=sbc.read(buf))>-1){
-                        buf.flip();
-                        md.update(buf);
-                    }
+                    buf = Buffers.value(entry.getCount()*entry.getType().getNumBytes());
+                    bytesRead = readFully(sbc, buf);
+                    buf.flip();
+                    md.update(buf);
+                    hashed += bytesRead;
                 }
             }
         }
 
-        return checksumAsString(md.digest());
+        String checksum = checksumAsString(md.digest());
+        Events.commit(event, tiff, "ifd", subFile, hashed);
+        return checksum;
+    }
+
+    /**
+     * Reads from the channel's position until the buffer is full or the channel ends, as a channel may return
+     * fewer bytes than asked for.
+     * @param sbc   the channel to read
+     * @param buf   the buffer to fill
+     * @return  the number of bytes read
+     * @throws IOException
+     */
+    private static int readFully(SeekableByteChannel sbc, ByteBuffer buf) throws IOException {
+        int total = 0;
+        while(buf.hasRemaining()){
+            int bytesRead = sbc.read(buf);
+            if(bytesRead<0){
+                break;
+            }
+            total += bytesRead;
+        }
+        return total;
     }
 
 
@@ -285,22 +792,107 @@ public class Tifixity {
      * @param checksum  the byte array checksum
      * @return
      */
-    private static String checksumAsString(byte[] checksum){
-        StringBuilder digest = new StringBuilder();
-        for (byte b: checksum){
-            digest.append(String.format("%02x", b));
+    static String checksumAsString(byte[] checksum){
+        char[] digest = new char[checksum.length*2];
+        for (int i=0; i<checksum.length; i++){
+            digest[2*i] = HEX[(checksum[i]>>4) & 0xF];
+            digest[2*i+1] = HEX[checksum[i] & 0xF];
         }
 
-        return digest.toString();
+        return new String(digest);
+    }
+
+    /**
+     * Calculates the requested checksums for the specified file and returns them formatted as for the CLI.
+     * @param file  the TIFF file to checksum
+     * @param all     true to additionally calculate full, non-image data and IFD checksums
+     * @param pixels  true to additionally calculate decoded pixel checksums
+     * @param raster  true to additionally calculate layout-invariant raster checksums
+     * @return
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    static String checksumAsOutput(String file, boolean all, boolean pixels, boolean raster)
+            throws IOException, NoSuchAlgorithmException {
+        return checksumAsOutput(ByteSource.of(Paths.get(file)), all, pixels, raster);
+    }
+
+    /**
+     * Calculates the requested checksums for the specified source and returns them formatted as for the CLI.
+     * @param source  the TIFF to checksum
+     * @param all     true to additionally calculate full, non-image data and IFD checksums
+     * @param pixels  true to additionally calculate decoded pixel checksums
+     * @param raster  true to additionally calculate layout-invariant raster checksums
+     * @return
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    static String checksumAsOutput(ByteSource source, boolean all, boolean pixels, boolean raster)
+            throws IOException, NoSuchAlgorithmException {
+        TifixityConfig config = TifixityConfig.builder().all(all).pixels(pixels).raster(raster)
+                                              .limits(TiffFileHandler.getLimits()).build();
+        return new TifixityEngine(config).checksum(source);
+    }
+
+    /**
+     * Calculates the checksums of a TIFF read once from a stream and returns them formatted as for the CLI.
+     * Decoded pixel and raster checksums need random access, so are not available.
+     * @param in      the stream holding the TIFF
+     * @param all     true to additionally calculate full, non-image data and IFD checksums
+     * @param decoded true if pixel or raster checksums were requested
+     * @return
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    static String checksumStreamAsOutput(InputStream in, boolean all, boolean decoded)
+            throws IOException, NoSuchAlgorithmException {
+        if(decoded){
+            System.err.println("Pixel and raster checksums are not available for standard input");
+        }
+        StreamDigester.Result result = StreamDigester.digest(in, Archive.DEFAULT_MEMORY_LIMIT);
+        return formatOutput(result.getFullDigest(), result.getRemainingDigest(), result.getImageDigests(), null,
+                            result.getIFDDigests(), null, null, all, "String");
+    }
+
+    /**
+     * Checksums each TIFF member of a TAR or ZIP archive, printing the output for each member as it is read.
+     * @param archive the archive file, or - to read a TAR stream from standard input
+     * @param all     true to additionally calculate full, non-image data and IFD checksums
+     * @param pixels  true to additionally calculate decoded pixel checksums
+     * @param raster  true to additionally calculate layout-invariant raster checksums
+     * @param out     the stream to print each member's output to
+     * @return  the output for all members
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    static String checksumArchive(final String archive, final boolean all, final boolean pixels, final boolean raster,
+                                  final PrintStream out) throws IOException, NoSuchAlgorithmException {
+        final StringBuilder output = new StringBuilder();
+        Archive.MemberVisitor visitor = new Archive.MemberVisitor() {
+            @Override
+            public void visit(String name, ByteSource member) throws IOException, NoSuchAlgorithmException {
+                String memberOutput = "File: "+archive+"!"+name+"\n"+checksumAsOutput(member, all, pixels, raster)+"\n";
+                out.print(memberOutput);
+                output.append(memberOutput);
+            }
+        };
+
+        if(archive.equals("-")){
+            Archive.readTar(System.in, Archive.DEFAULT_MEMORY_LIMIT, visitor);
+        } else {
+            Archive.read(Paths.get(archive), Archive.DEFAULT_MEMORY_LIMIT, visitor);
+        }
+        return output.toString();
     }
 
     /**
      * Formats the output depending on user request. Default is to output string with just the checksum
      * @return
      */
-    private static String formatOutput(String fullCS, String partialCS, String[] imageCS, String[] ifdCS, String format){
+    static String formatOutput(String fullCS, String partialCS, String[] imageCS, String[][] planeCS, String[] ifdCS,
+                                       String[] pixelCS, String[] rasterCS, boolean all, String format){
         StringBuilder output = new StringBuilder();
-        if(allChecksums) {
+        if(all) {
             output.append("Full MD5: ").append(fullCS).append("\n");
             output.append("Remaining MD5: ").append(partialCS).append("\n");
         }
@@ -310,7 +902,30 @@ public class Tifixity {
             output.append(imageCS[i]).append("\n");
         }
 
-        if(allChecksums) {
+        if(planeCS!=null) {
+            for (int i = 0; i < planeCS.length; i++) {
+                for (int p = 0; planeCS[i] != null && p < planeCS[i].length; p++) {
+                    output.append("Plane MD5 [").append(i).append(".").append(p).append("]: ");
+                    output.append(planeCS[i][p]).append("\n");
+                }
+            }
+        }
+
+        if(pixelCS!=null) {
+            for (int i = 0; i < pixelCS.length; i++) {
+                output.append("Pixel MD5 [").append(i).append("]: ");
+                output.append(pixelCS[i]).append("\n");
+            }
+        }
+
+        if(rasterCS!=null) {
+            for (int i = 0; i < rasterCS.length; i++) {
+                output.append("Raster MD5 [").append(i).append("]: ");
+                output.append(rasterCS[i]).append("\n");
+            }
+        }
+
+        if(all) {
             for (int i = 0; i < ifdCS.length; i++) {
                 output.append("IFD MD5 [").append(i).append("]: ");
                 output.append(ifdCS[i]).append("\n");
@@ -341,7 +956,10 @@ public class Tifixity {
         // Load Properties file containing references to version/filenames
         ClassLoader classloader = Thread.currentThread().getContextClassLoader();
         try (InputStream in = classloader.getResourceAsStream(".properties")){
-            properties.load(in);
+            // missing if the resource was not included in the build (e.g. a native image without resource config)
+            if (in!=null){
+                properties.load(in);
+            }
         } catch (IOException ioe){
             System.err.println("Problem reading properties: "+ioe);
         }
@@ -350,17 +968,82 @@ public class Tifixity {
         Options options = new Options();
         options.addOption("h", "help", false, "Print this message");
         options.addOption("a", "all", false, "Additionally, calculate full and partial checksums (non-image data, IFDs)");
+        options.addOption("x", "pixels", false, "Additionally, calculate checksums of the decoded (decompressed) pixels");
+        options.addOption("r", "raster", false, "Additionally, calculate layout-invariant checksums of the pixel raster");
+        options.addOption(null, "strips", false, "Output IFD and per-strip checksums as manifest lines for --quick-check");
+        options.addOption(Option.builder("q").longOpt("quick-check").hasArg().argName("manifest")
+                .desc("Check the IFDs and a sample of strips against a --strips manifest").build());
+        options.addOption(Option.builder().longOpt("sample").hasArg().argName("fraction")
+                .desc("Fraction of each file's size to read in --quick-check (default 0.01)").build());
+        options.addOption(Option.builder().longOpt("seed").hasArg().argName("seed")
+                .desc("Seed for the --quick-check strip sample (default 0)").build());
+        options.addOption(null, "embed", false, "Write each file's image checksums into a private tag ("+EmbeddedDigest.TAG
+                          +") of its IFDs, appending new IFDs rather than rewriting the file");
+        options.addOption(null, "verify-embedded", false, "Check each file's image data against its embedded checksums");
+        options.addOption(Option.builder().longOpt("compare").numberOfArgs(2).argName("first> <second")
+                .desc("Compare two TIFF files, reporting the subfiles, IFD tags and strips that differ").build());
+        options.addOption(null, "stop-at-first", false, "Stop a --compare at the first difference");
+        options.addOption(null, "archive", false, "Treat the files as TAR or ZIP archives and checksum each TIFF member"
+                          +" without extracting it (- reads a TAR stream from standard input)");
+        options.addOption(Option.builder("j").longOpt("journal").hasArg().argName("file")
+                .desc("Append each completed file's output to a crash-safe journal").build());
+        options.addOption(null, "resume", false, "Skip files already recorded in the --journal");
+        options.addOption(Option.builder().longOpt("max-bytes-per-second").hasArg().argName("bytes")
+                .desc("Limit the rate at which files are read (default unlimited)").build());
+        options.addOption(Option.builder().longOpt("max-iops").hasArg().argName("operations")
+                .desc("Limit the number of read operations per second (default unlimited)").build());
+        options.addOption(Option.builder().longOpt("throttle-control").hasArg().argName("file")
+                .desc("Properties file of read limits ("+IOThrottle.BYTES_PER_SECOND+", "+IOThrottle.OPERATIONS_PER_SECOND
+                      +"), re-read whenever it changes").build());
+        options.addOption(Option.builder().longOpt("duplicates").hasArg().argName("file")
+                .desc("Index the image checksums and write the groups of duplicate images to the file at the end").build());
+        options.addOption(Option.builder().longOpt("duplicates-dir").hasArg().argName("dir")
+                .desc("Directory for the --duplicates index files (default the temporary directory)").build());
+        options.addOption(Option.builder().longOpt("binary-manifest").hasArg().argName("file")
+                .desc("Write each file's size, modification time and checksums to a sorted binary manifest").build());
+        options.addOption(Option.builder().longOpt("convert").numberOfArgs(2).argName("in> <out")
+                .desc("Convert a manifest between the binary (.bin), NDJSON (.ndjson, .jsonl) and text forms").build());
+        options.addOption(Option.builder().longOpt("shard").hasArg().argName("i/n")
+                .desc("Process only the files in shard i (0 to n-1) of n, chosen by a hash of each path").build());
+        options.addOption(Option.builder().longOpt("shard-root").hasArg().argName("dir")
+                .desc("Directory --shard paths are relative to (default the current directory)").build());
+        options.addOption(Option.builder().longOpt("merge").hasArg().argName("out")
+                .desc("Merge the shards' --binary-manifest files into one manifest sorted by path, checking for gaps"
+                      +" and overlaps").build());
+        options.addOption(Option.builder().longOpt("order").hasArg().argName("policy")
+                .desc("Process the files in arguments (default), inode or directory order; output stays in"
+                      +" argument order").build());
+        options.addOption(null, "direct-io", false, "Read files with direct I/O, bypassing the operating system's"
+                          +" page cache, where supported");
+        options.addOption(Option.builder().longOpt("max-ifds").hasArg().argName("count")
+                .desc("Reject files with more IFDs (default "+ParserLimits.DEFAULT.getMaxIFDs()+")").build());
+        options.addOption(Option.builder().longOpt("max-ifd-entries").hasArg().argName("count")
+                .desc("Reject files with more entries in one IFD (default "+ParserLimits.DEFAULT.getMaxEntries()+")").build());
+        options.addOption(Option.builder().longOpt("max-tag-bytes").hasArg().argName("bytes")
+                .desc("Reject files with a larger tag value (default "+ParserLimits.DEFAULT.getMaxValueBytes()+")").build());
+        options.addOption(Option.builder().longOpt("max-parse-bytes").hasArg().argName("bytes")
+                .desc("Reject files needing more memory to parse (default "+ParserLimits.DEFAULT.getMaxAllocation()+")").build());
+        options.addOption(Option.builder().longOpt("max-block-bytes").hasArg().argName("bytes")
+                .desc("Reject files with a larger strip or tile to decode (default "
+                      +ParserLimits.DEFAULT.getMaxBlockBytes()+")").build());
         options.addOption("v", "verbose", false, "Print verbose output");
         options.addOption("version", "Print version");
+        options.addOption("S", "server", false, "Run as a resident server accepting checksum requests on localhost");
+        options.addOption("c", "connect", false, "Send the checksum requests to a running Tifixity server");
+        options.addOption(Option.builder().longOpt("max-memory").hasArg().argName("bytes")
+                .desc("Memory that large buffers and parsed values of files processed at once may use; work waits"
+                      +" or uses smaller buffers beyond it (default "+MemoryBudget.GLOBAL.getCapacity()+")").build());
+        options.addOption(Option.builder("p").longOpt("port").hasArg().argName("port")
+                .desc("Server port (default "+TifixityServer.DEFAULT_PORT+")").build());
 
         // Parse the command line arguments
         CommandLineParser parser = new DefaultParser();
         CommandLine cmd = parser.parse(options, args);
 
         // Process arguments
-        if (cmd.hasOption("a")){
-            allChecksums=true;
-        }
+        boolean all = cmd.hasOption("a");
+        boolean pixels = cmd.hasOption("x");
+        boolean raster = cmd.hasOption("r");
 
         // Verbose output
         if (cmd.hasOption("v")){
@@ -377,32 +1060,317 @@ public class Tifixity {
             System.exit(0);
         }
 
+        // Read limits, shared by all reader threads and adjustable through JMX or the control file
+        if (cmd.hasOption("max-bytes-per-second")){
+            IOThrottle.GLOBAL.setBytesPerSecond(Long.parseLong(cmd.getOptionValue("max-bytes-per-second")));
+        }
+        if (cmd.hasOption("max-iops")){
+            IOThrottle.GLOBAL.setOperationsPerSecond(Long.parseLong(cmd.getOptionValue("max-iops")));
+        }
+        if (cmd.hasOption("throttle-control")){
+            IOThrottle.GLOBAL.watch(Paths.get(cmd.getOptionValue("throttle-control")), 1000);
+        }
+        try {
+            IOThrottle.GLOBAL.registerMBean();
+        } catch (Exception e){
+            // JMX unavailable (e.g. a native image); the command line and control file limits still apply
+            if(verbose) System.err.println("Unable to register throttle MBean: "+e);
+        }
+
+        if (cmd.hasOption("direct-io")){
+            ByteSource.setDirectIO(true);
+        }
+
+        // Parser limits, applied to each file
+        ParserLimits limits = ParserLimits.DEFAULT;
+        limits = new ParserLimits(
+                Integer.parseInt(cmd.getOptionValue("max-ifds", ""+limits.getMaxIFDs())),
+                Integer.parseInt(cmd.getOptionValue("max-ifd-entries", ""+limits.getMaxEntries())),
+                Long.parseLong(cmd.getOptionValue("max-tag-bytes", ""+limits.getMaxValueBytes())),
+                Long.parseLong(cmd.getOptionValue("max-parse-bytes", ""+limits.getMaxAllocation())),
+                Long.parseLong(cmd.getOptionValue("max-block-bytes", ""+limits.getMaxBlockBytes())));
+        TiffFileHandler.setLimits(limits);
+        if (cmd.hasOption("max-memory")){
+            MemoryBudget.GLOBAL.setCapacity(Long.parseLong(cmd.getOptionValue("max-memory")));
+        }
+
+        TifixityEngine engine = new TifixityEngine(TifixityConfig.builder().all(all).pixels(pixels).raster(raster)
+                .limits(limits).directIO(cmd.hasOption("direct-io")).trace(verbose ? System.out : null).build());
+
+        int port = TifixityServer.DEFAULT_PORT;
+        if (cmd.hasOption("p")){
+            port = Integer.parseInt(cmd.getOptionValue("p"));
+        }
+
+        if (cmd.hasOption("S")){
+            try (TifixityServer server = new TifixityServer(port, Runtime.getRuntime().availableProcessors())){
+                System.err.println("Tifixity server listening on localhost:"+server.getPort());
+                server.serve();
+            } catch (IOException ioe){
+                System.err.println("Server error: "+ioe);
+                System.exit(-3);
+            }
+            return;
+        }
+
+        if (cmd.hasOption("compare")){
+            String[] pair = cmd.getOptionValues("compare");
+            try {
+                TiffComparison.Result result = TiffComparison.compare(pair[0], pair[1], cmd.hasOption("stop-at-first"));
+                System.out.println(result);
+                System.exit(result.isSame() ? 0 : 1);
+            } catch (NoSuchFileException nsfe){
+                System.err.println("No such file: "+nsfe.getFile());
+                System.exit(-1);
+            } catch (IOException ioe){
+                System.err.println("Unable to compare "+pair[0]+" and "+pair[1]+": "+ioe);
+                System.exit(-1);
+            }
+        }
+
+        if (cmd.hasOption("convert")){
+            String[] pair = cmd.getOptionValues("convert");
+            try {
+                long records = ManifestConverter.convert(Paths.get(pair[0]), Paths.get(pair[1]));
+                if(verbose) System.out.println("Converted "+records+" records");
+                System.exit(0);
+            } catch (IOException ioe){
+                System.err.println("Unable to convert "+pair[0]+" to "+pair[1]+": "+ioe);
+                System.exit(-1);
+            }
+        }
+
+        if (cmd.hasOption("merge")){
+            List<Path> inputs = new ArrayList<>();
+            for(String input: cmd.getArgs()){
+                inputs.add(Paths.get(input));
+            }
+            try {
+                ManifestMerge.Result result = ManifestMerge.merge(inputs, Paths.get(cmd.getOptionValue("merge")));
+                System.out.println(result);
+                System.exit(result.isClean() ? 0 : 1);
+            } catch (IOException ioe){
+                System.err.println("Unable to merge manifests: "+ioe);
+                System.exit(-1);
+            }
+        }
+
         // Remaining arguments should be filenames
         String[] files = cmd.getArgs();
         if (files.length==0) {
             printHelp(options);
         }
 
-        for(int i=0; i<files.length; i++){
+        Shard shard = null;
+        Path shardRoot = Paths.get(cmd.getOptionValue("shard-root", ""));
+        if (cmd.hasOption("shard")){
             try {
-                String[] cs = new String[2];
-                String[] ifdCS = null;
+                shard = Shard.parse(cmd.getOptionValue("shard"));
+            } catch (IllegalArgumentException iae){
+                System.err.println(iae.getMessage());
+                System.exit(-1);
+            }
+            files = shard.select(files, shardRoot);
+            if(verbose) System.out.println("Shard "+shard+": "+files.length+" of "+cmd.getArgs().length+" files");
+        }
+
+        QuickCheck quickCheck = null;
+        if (cmd.hasOption("q")){
+            double fraction = Double.parseDouble(cmd.getOptionValue("sample", "0.01"));
+            long seed = Long.parseLong(cmd.getOptionValue("seed", "0"));
+            Set<String> wanted = new HashSet<>();
+            for(String file: files){
+                wanted.add(StripManifest.key(file));
+            }
+            try {
+                quickCheck = new QuickCheck(StripManifest.read(Paths.get(cmd.getOptionValue("q")), wanted), fraction, seed);
+            } catch (IOException ioe){
+                System.err.println("Unable to read manifest "+cmd.getOptionValue("q")+": "+ioe);
+                System.exit(-1);
+            }
+        }
 
-                if(allChecksums){
-                    cs = checksumFile(files[i]);
-                    ifdCS = checksumIFDs(files[i]);
+        if (cmd.hasOption("resume") && !cmd.hasOption("j")){
+            System.err.println("--resume needs a --journal to resume from");
+            System.exit(-1);
+        }
+
+        Journal journal = null;
+        Set<String> completed = new HashSet<>();
+        if (cmd.hasOption("j")){
+            Path journalPath = Paths.get(cmd.getOptionValue("j"));
+            try {
+                if (cmd.hasOption("resume")){
+                    completed = Journal.readCompleted(journalPath);
                 }
+                journal = new Journal(journalPath);
+
+                // keep what has completed if the run is terminated (e.g. SIGTERM)
+                final Journal hookJournal = journal;
+                Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        closeJournal(hookJournal);
+                    }
+                }));
+            } catch (IOException ioe){
+                System.err.println("Unable to open journal "+journalPath+": "+ioe);
+                System.exit(-1);
+            }
+        }
 
-                String[] imageCS = checksumImage(files[i]);
-                System.out.println(formatOutput(cs[0], cs[1], imageCS, ifdCS, "String"));
+        TifixityClient client = null;
+        if (cmd.hasOption("c")){
+            try {
+                client = new TifixityClient(port);
+            } catch (IOException ioe){
+                System.err.println("Unable to connect to Tifixity server on port "+port+": "+ioe);
+                System.exit(-3);
+            }
+        }
 
+        WorkOrder order = WorkOrder.arguments();
+        if (cmd.hasOption("order")){
+            try {
+                order = WorkOrder.forName(cmd.getOptionValue("order"));
+            } catch (IllegalArgumentException iae){
+                System.err.println(iae.getMessage());
+                System.exit(-1);
+            }
+        }
+        OrderedOutput ordered = new OrderedOutput(System.out, files.length);
 
+        DuplicateIndex duplicates = null;
+        if (cmd.hasOption("duplicates")){
+            try {
+                duplicates = new DuplicateIndex(Paths.get(cmd.getOptionValue("duplicates-dir",
+                        System.getProperty("java.io.tmpdir"))), files.length);
+            } catch (IOException ioe){
+                System.err.println("Unable to create duplicate index: "+ioe);
+                System.exit(-1);
+            }
+        }
+
+        BinaryManifest.Writer manifest = null;
+        if (cmd.hasOption("binary-manifest")){
+            try {
+                manifest = BinaryManifest.create(Paths.get(cmd.getOptionValue("binary-manifest")));
+                manifest.setShard(shard);
+            } catch (IOException ioe){
+                System.err.println("Unable to create manifest "+cmd.getOptionValue("binary-manifest")+": "+ioe);
+                System.exit(-1);
+            }
+        }
+
+        for(int i: order.order(files)){
+            if(!completed.isEmpty() && completed.contains(Journal.key(files[i]))){
+                ordered.complete(i, verbose ? "Already journaled: "+files[i]+"\n" : null);
+                continue;
+            }
+
+            String output = null;
+            boolean printed = false;
+            try {
+                if(quickCheck!=null){
+                    QuickCheck.Result result = quickCheck.check(files[i]);
+                    output = result+"\n";
+                    if(verbose) output += "Sampled bytes: "+result.getBytesRead()+"\n";
+                } else if(cmd.hasOption("embed")){
+                    output = EmbeddedDigest.embed(files[i])+"\n";
+                } else if(cmd.hasOption("verify-embedded")){
+                    output = EmbeddedDigest.verify(files[i])+"\n";
+                } else if(cmd.hasOption("strips")){
+                    output = StripManifest.format(files[i], checksumIFDs(files[i]), checksumStrips(files[i]));
+                } else if(cmd.hasOption("archive")){
+                    // printed member by member as the archive is read, unless it must wait for earlier archives
+                    printed = order==WorkOrder.arguments();
+                    output = checksumArchive(files[i], all, pixels, raster,
+                                             printed ? System.out : new PrintStream(OutputStream.nullOutputStream()));
+                } else if(files[i].equals("-")){
+                    output = checksumStreamAsOutput(System.in, all, pixels || raster)+"\n";
+                } else if(client!=null){
+                    output = client.checksum(files[i], all, pixels, raster)+"\n";
+                } else {
+                    output = engine.checksum(files[i])+"\n";
+                }
+                if(journal!=null){
+                    journal.append(files[i], output);
+                }
+                if(duplicates!=null){
+                    duplicates.addOutput(files[i], output);
+                }
+                if(manifest!=null && !cmd.hasOption("archive") && !files[i].equals("-")){
+                    // shards are keyed by the path their nodes agree on, so the merge sorts and matches them
+                    Path path = Paths.get(files[i]);
+                    String key = shard!=null ? Shard.relativePath(files[i], shardRoot) : StripManifest.key(files[i]);
+                    manifest.add(ManifestRecord.fromOutput(key, Files.size(path),
+                                                           Files.getLastModifiedTime(path).toMillis(), output));
+                }
             } catch (NoSuchFileException nsfe){
                 System.err.println("No such file: "+files[i]);
+                ordered.flush();
+                closeJournal(journal);
                 System.exit(-1);
+            } catch (TiffFormatException tfe){
+                // a malformed file fails on its own; carry on with the rest
+                System.err.println("Invalid TIFF: "+files[i]+": "+tfe.getMessage());
             } catch (Exception e){
                 e.printStackTrace();
             }
+            ordered.complete(i, printed ? null : output);
+        }
+        try {
+            ordered.close();
+        } catch (IOException ioe){
+            // temporary file only
+        }
+
+        if(client!=null){
+            try {
+                client.close();
+            } catch (IOException ioe){
+                // nothing left to send
+            }
+        }
+
+        closeJournal(journal);
+
+        if(manifest!=null){
+            try {
+                manifest.close();
+            } catch (IOException ioe){
+                System.err.println("Unable to write manifest "+cmd.getOptionValue("binary-manifest")+": "+ioe);
+            }
+        }
+
+        if(duplicates!=null){
+            Path report = Paths.get(cmd.getOptionValue("duplicates"));
+            try (PrintStream out = new PrintStream(Files.newOutputStream(report), false, "UTF-8")) {
+                long groups = duplicates.report(out);
+                if(verbose) System.out.println("Duplicate groups: "+groups+" of "+duplicates.distinct()+" images");
+            } catch (IOException ioe){
+                System.err.println("Unable to write duplicate report "+report+": "+ioe);
+            } finally {
+                try {
+                    duplicates.close();
+                } catch (IOException ioe){
+                    // temporary files only
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes any buffered journal records and closes the journal.
+     * @param journal   the journal, or null if none is in use
+     */
+    private static void closeJournal(Journal journal){
+        if(journal!=null){
+            try {
+                journal.close();
+            } catch (IOException ioe){
+                System.err.println("Unable to write journal: "+ioe);
+            }
         }
     }
 }
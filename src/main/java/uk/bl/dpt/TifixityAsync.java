@@ -0,0 +1,348 @@
+/**
+ * Copyright 2016 Peter May
+ * Author: Peter May
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.bl.dpt;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+/**
+ * Asynchronous front end to a {@link TifixityEngine}: single files return a {@link CompletableFuture}, and a
+ * batch of files is a {@link Flow.Publisher} of per-file results.
+ *
+ * A batch publisher only reads and hashes files that subscribers have asked for. Each subscription starts a
+ * file's checksum only while fewer results are outstanding (in progress, or ready but not yet delivered) than
+ * both the subscriber's unmet demand and the batch parallelism. A subscriber that stops requesting therefore
+ * stops the reading, and no more than the parallelism's worth of results is ever held in memory.
+ */
+public final class TifixityAsync {
+
+    /**
+     * The outcome of checksumming one file of a batch: its output, or the exception that stopped it.
+     */
+    public static final class FileResult {
+        private final int       index;
+        private final String    file;
+        private final String    output;
+        private final Throwable error;
+
+        FileResult(int index, String file, String output, Throwable error){
+            this.index = index;
+            this.file = file;
+            this.output = output;
+            this.error = error;
+        }
+
+        /**
+         * Returns the position of the file in the batch (0 indexed).
+         * @return
+         */
+        public int getIndex(){
+            return index;
+        }
+
+        public String getFile(){
+            return file;
+        }
+
+        /**
+         * Returns the file's output (see {@link TifixityEngine#checksum(String)}), or null if it failed.
+         * @return
+         */
+        public String getOutput(){
+            return output;
+        }
+
+        /**
+         * Returns the exception that stopped the file's checksum, or null if it succeeded.
+         * @return
+         */
+        public Throwable getError(){
+            return error;
+        }
+
+        public boolean isOK(){
+            return error==null;
+        }
+
+        @Override
+        public String toString(){
+            return file+": "+(error==null ? "OK" : error.toString());
+        }
+    }
+
+    /**
+     * A blocking checksum of one file.
+     */
+    private interface Task<T> {
+        T run() throws Exception;
+    }
+
+    private final TifixityEngine    engine;
+    private final Executor          executor;
+
+    /**
+     * Creates an asynchronous front end running checksums on the common fork/join pool.
+     * @param engine    the engine calculating the checksums
+     */
+    public TifixityAsync(TifixityEngine engine){
+        this(engine, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Creates an asynchronous front end running checksums on the specified executor. Checksums block on file
+     * reads, so an executor sized for I/O suits better than the common pool when reading slow storage.
+     * @param engine    the engine calculating the checksums
+     * @param executor  the executor to run the checksums on
+     */
+    public TifixityAsync(TifixityEngine engine, Executor executor){
+        if(engine==null || executor==null){
+            throw new IllegalArgumentException("No engine or executor");
+        }
+        this.engine = engine;
+        this.executor = executor;
+    }
+
+    /**
+     * Returns the engine calculating the checksums.
+     * @return
+     */
+    public TifixityEngine getEngine(){
+        return engine;
+    }
+
+    private <T> CompletableFuture<T> submit(final Task<T> task){
+        return CompletableFuture.supplyAsync(new Supplier<T>() {
+            @Override
+            public T get() {
+                try {
+                    return task.run();
+                } catch (RuntimeException e){
+                    throw e;
+                } catch (Exception e){
+                    throw new CompletionException(e);
+                }
+            }
+        }, executor);
+    }
+
+    /**
+     * Returns the configured checksums of the specified file, formatted as for the command line (see
+     * {@link TifixityEngine#checksum(String)}). The future completes exceptionally with the cause of a failure,
+     * e.g. a {@link TiffFormatException}.
+     * @param file  the TIFF file to checksum
+     * @return
+     */
+    public CompletableFuture<String> checksum(final String file){
+        return submit(new Task<String>() {
+            @Override
+            public String run() throws Exception {
+                return engine.checksum(file);
+            }
+        });
+    }
+
+    /**
+     * Returns the configured checksums of the specified TIFF, formatted as for the command line.
+     * @param source    the TIFF to checksum
+     * @return
+     */
+    public CompletableFuture<String> checksum(final ByteSource source){
+        return submit(new Task<String>() {
+            @Override
+            public String run() throws Exception {
+                return engine.checksum(source);
+            }
+        });
+    }
+
+    /**
+     * Returns the image payload checksum of each subfile of the specified file.
+     * @param file  the TIFF file to checksum
+     * @return
+     */
+    public CompletableFuture<String[]> checksumImage(final String file){
+        return submit(new Task<String[]>() {
+            @Override
+            public String[] run() throws Exception {
+                return engine.checksumImage(file);
+            }
+        });
+    }
+
+    /**
+     * Returns the image payload checksum of each subfile of the specified TIFF.
+     * @param source    the TIFF to checksum
+     * @return
+     */
+    public CompletableFuture<String[]> checksumImage(final ByteSource source){
+        return submit(new Task<String[]>() {
+            @Override
+            public String[] run() throws Exception {
+                return engine.checksumImage(source);
+            }
+        });
+    }
+
+    /**
+     * Returns a publisher of the configured checksums of each of the specified files. Each subscriber gets its
+     * own pass over the files, with results delivered in the order they complete (see
+     * {@link FileResult#getIndex()}). A file that fails is delivered as a result holding its exception; the
+     * stream completes once every file has been delivered.
+     * @param files         the TIFF files to checksum
+     * @param parallelism   the maximum number of files checksummed at once for each subscriber
+     * @return
+     */
+    public Flow.Publisher<FileResult> publish(List<String> files, final int parallelism){
+        if(parallelism<1){
+            throw new IllegalArgumentException("Parallelism must be at least 1");
+        }
+        final List<String> batch = new ArrayList<>(files);
+        return new Flow.Publisher<FileResult>() {
+            @Override
+            public void subscribe(Flow.Subscriber<? super FileResult> subscriber) {
+                if(subscriber==null){
+                    throw new NullPointerException("No subscriber");
+                }
+                BatchSubscription subscription = new BatchSubscription(batch, parallelism, subscriber);
+                subscriber.onSubscribe(subscription);
+                subscription.drain();
+            }
+        };
+    }
+
+    /**
+     * One subscriber's pass over a batch. All signals to the subscriber are made from {@link #drain()}, which
+     * only one thread runs at a time, so they are never concurrent.
+     */
+    private final class BatchSubscription implements Flow.Subscription {
+        private final List<String>                      files;
+        private final int                               parallelism;
+        private final Flow.Subscriber<? super FileResult> subscriber;
+
+        private final AtomicLong                        requested = new AtomicLong();   // total, capped at Long.MAX_VALUE
+        private final AtomicInteger                     wip = new AtomicInteger();      // drain passes pending
+        private final Queue<FileResult>                 ready = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean                     done = new AtomicBoolean();
+        private volatile Throwable                      invalidRequest = null;
+        private volatile boolean                        cancelled = false;
+
+        // only touched within drain()
+        private long                                    started = 0;
+        private long                                    emitted = 0;
+
+        BatchSubscription(List<String> files, int parallelism, Flow.Subscriber<? super FileResult> subscriber){
+            this.files = files;
+            this.parallelism = parallelism;
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if(n<=0){
+                invalidRequest = new IllegalArgumentException("Non-positive request: "+n);
+            } else {
+                long current, next;
+                do {
+                    current = requested.get();
+                    next = current+n<0 ? Long.MAX_VALUE : current+n;
+                } while(!requested.compareAndSet(current, next));
+            }
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            drain();
+        }
+
+        void drain(){
+            if(wip.getAndIncrement()!=0){
+                return;         // the running pass will go round again
+            }
+            int missed = 1;
+            do {
+                if(!done.get()){
+                    if(cancelled){
+                        done.set(true);
+                        ready.clear();
+                    } else if(invalidRequest!=null){
+                        done.set(true);
+                        ready.clear();
+                        subscriber.onError(invalidRequest);
+                    } else {
+                        step();
+                    }
+                }
+                missed = wip.addAndGet(-missed);
+            } while(missed!=0);
+        }
+
+        private void step(){
+            long demand = requested.get();
+
+            FileResult result;
+            while(emitted<demand && !cancelled && (result = ready.poll())!=null){
+                emitted++;
+                subscriber.onNext(result);
+            }
+            if(cancelled){
+                return;
+            }
+            if(emitted==files.size()){
+                done.set(true);
+                subscriber.onComplete();
+                return;
+            }
+
+            // start files only for demand not already covered by outstanding results
+            while(started<files.size() && started<demand && started-emitted<parallelism){
+                final int index = (int) started++;
+                final String file = files.get(index);
+                CompletableFuture<String> future;
+                try {
+                    future = checksum(file);
+                } catch (RuntimeException e){
+                    // e.g. the executor was shut down; reported as this file's result
+                    future = CompletableFuture.failedFuture(e);
+                }
+                future.whenComplete(new BiConsumer<String, Throwable>() {
+                    @Override
+                    public void accept(String output, Throwable error) {
+                        if(error instanceof CompletionException && error.getCause()!=null){
+                            error = error.getCause();
+                        }
+                        ready.offer(new FileResult(index, file, output, error));
+                        drain();
+                    }
+                });
+            }
+        }
+    }
+}
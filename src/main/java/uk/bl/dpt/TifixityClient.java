@@ -0,0 +1,98 @@
+/**
+ * Copyright 2016 Peter May
+ * Author: Peter May
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.bl.dpt;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+
+/**
+ * Client for a {@link TifixityServer} running on localhost. See {@link TifixityServer} for the protocol.
+ */
+public class TifixityClient implements Closeable {
+
+    private final Socket            socket;
+    private final BufferedReader    in;
+    private final Writer            out;
+
+    /**
+     * Connects to a Tifixity server on the specified localhost port.
+     * @param port  the port the server is listening on
+     * @throws IOException
+     */
+    public TifixityClient(int port) throws IOException {
+        this.socket = new Socket(InetAddress.getLoopbackAddress(), port);
+        this.in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        this.out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Requests the checksums of the specified file and returns them formatted as for the CLI.
+     * @param file  the TIFF file to checksum; resolved against this process' working directory
+     * @param all     true to additionally calculate full, non-image data and IFD checksums
+     * @param pixels  true to additionally calculate decoded pixel checksums
+     * @param raster  true to additionally calculate layout-invariant raster checksums
+     * @return
+     * @throws NoSuchFileException  if the server could not find the file
+     * @throws IOException          if the request failed
+     */
+    public String checksum(String file, boolean all, boolean pixels, boolean raster) throws IOException {
+        String path = Paths.get(file).toAbsolutePath().toString();
+        out.write(all ? TifixityServer.MODE_ALL : TifixityServer.MODE_IMAGE);
+        if(pixels){
+            out.write(',');
+            out.write(TifixityServer.MODE_PIXELS);
+        }
+        if(raster){
+            out.write(',');
+            out.write(TifixityServer.MODE_RASTER);
+        }
+        out.write('\t');
+        out.write(path);
+        out.write('\n');
+        out.flush();
+
+        String status = in.readLine();
+        if(status==null){
+            throw new EOFException("Server closed the connection");
+        }
+        if(status.equals(TifixityServer.STATUS_NOFILE)){
+            throw new NoSuchFileException(file);
+        }
+        if(!status.equals(TifixityServer.STATUS_OK)){
+            throw new IOException(status);
+        }
+
+        StringBuilder output = new StringBuilder();
+        String line;
+        while((line = in.readLine())!=null && !line.equals(TifixityServer.END_OF_OUTPUT)){
+            output.append(line).append("\n");
+        }
+        if(line==null){
+            throw new EOFException("Server closed the connection");
+        }
+        return output.toString();
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
@@ -0,0 +1,227 @@
+/**
+ * Copyright 2016 Peter May
+ * Author: Peter May
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.bl.dpt;
+
+import java.io.PrintStream;
+
+/**
+ * Immutable settings of a {@link TifixityEngine}: which checksums to calculate and how files are read and
+ * parsed. Created with a {@link Builder}:
+ * <pre>
+ *   TifixityConfig config = TifixityConfig.builder().all(true).limits(limits).build();
+ * </pre>
+ */
+public final class TifixityConfig {
+
+    /**
+     * The default settings: image checksums only, default parser limits, ordinary reads, no trace and the
+     * global memory budget.
+     */
+    public static final TifixityConfig DEFAULT = builder().build();
+
+    private final boolean       all;
+    private final boolean       pixels;
+    private final boolean       raster;
+    private final ParserLimits  limits;
+    private final boolean       directIO;
+    private final PrintStream   trace;
+    private final MemoryBudget  memory;
+
+    private TifixityConfig(Builder builder){
+        this.all = builder.all;
+        this.pixels = builder.pixels;
+        this.raster = builder.raster;
+        this.limits = builder.limits;
+        this.directIO = builder.directIO;
+        this.trace = builder.trace;
+        this.memory = builder.memory;
+    }
+
+    /**
+     * Returns a builder with the default settings.
+     * @return
+     */
+    public static Builder builder(){
+        return new Builder();
+    }
+
+    /**
+     * Returns a builder starting from these settings.
+     * @return
+     */
+    public Builder toBuilder(){
+        return new Builder().all(all).pixels(pixels).raster(raster).limits(limits).directIO(directIO).trace(trace)
+                            .memoryBudget(memory);
+    }
+
+    /**
+     * Returns true if full, non-image data, plane and IFD checksums are calculated as well as image checksums.
+     * @return
+     */
+    public boolean isAll(){
+        return all;
+    }
+
+    /**
+     * Returns true if decoded pixel checksums are calculated.
+     * @return
+     */
+    public boolean isPixels(){
+        return pixels;
+    }
+
+    /**
+     * Returns true if layout-invariant raster checksums are calculated.
+     * @return
+     */
+    public boolean isRaster(){
+        return raster;
+    }
+
+    /**
+     * Returns the limits files are parsed and decoded within.
+     * @return
+     */
+    public ParserLimits getLimits(){
+        return limits;
+    }
+
+    /**
+     * Returns true if files named by path are read with direct I/O, where supported.
+     * @return
+     */
+    public boolean isDirectIO(){
+        return directIO;
+    }
+
+    /**
+     * Returns the stream each file's IFDs are printed to as they are parsed, or null for none.
+     * @return
+     */
+    public PrintStream getTrace(){
+        return trace;
+    }
+
+    /**
+     * Returns the budget that large allocations reserve memory from.
+     * @return
+     */
+    public MemoryBudget getMemoryBudget(){
+        return memory;
+    }
+
+    /**
+     * Builds a {@link TifixityConfig}. Not thread-safe; the configurations it builds are.
+     */
+    public static final class Builder {
+        private boolean         all         = false;
+        private boolean         pixels      = false;
+        private boolean         raster      = false;
+        private ParserLimits    limits      = ParserLimits.DEFAULT;
+        private boolean         directIO    = false;
+        private PrintStream     trace       = null;
+        private MemoryBudget    memory      = MemoryBudget.GLOBAL;
+
+        private Builder(){
+        }
+
+        /**
+         * Sets whether full, non-image data, plane and IFD checksums are calculated (default false).
+         * @param all   true to calculate them
+         * @return
+         */
+        public Builder all(boolean all){
+            this.all = all;
+            return this;
+        }
+
+        /**
+         * Sets whether decoded pixel checksums are calculated (default false).
+         * @param pixels    true to calculate them
+         * @return
+         */
+        public Builder pixels(boolean pixels){
+            this.pixels = pixels;
+            return this;
+        }
+
+        /**
+         * Sets whether layout-invariant raster checksums are calculated (default false).
+         * @param raster    true to calculate them
+         * @return
+         */
+        public Builder raster(boolean raster){
+            this.raster = raster;
+            return this;
+        }
+
+        /**
+         * Sets the limits files are parsed and decoded within (default {@link ParserLimits#DEFAULT}).
+         * @param limits    the limits
+         * @return
+         */
+        public Builder limits(ParserLimits limits){
+            if(limits==null){
+                throw new IllegalArgumentException("No parser limits");
+            }
+            this.limits = limits;
+            return this;
+        }
+
+        /**
+         * Sets whether files named by path are read with direct I/O, where supported (default false).
+         * @param directIO  true to bypass the page cache
+         * @return
+         */
+        public Builder directIO(boolean directIO){
+            this.directIO = directIO;
+            return this;
+        }
+
+        /**
+         * Sets the stream each file's IFDs are printed to as they are parsed (default null, for none).
+         * @param trace the stream, or null
+         * @return
+         */
+        public Builder trace(PrintStream trace){
+            this.trace = trace;
+            return this;
+        }
+
+        /**
+         * Sets the budget that large allocations reserve memory from (default {@link MemoryBudget#GLOBAL}).
+         * Engines sharing a budget share its capacity.
+         * @param memory    the budget
+         * @return
+         */
+        public Builder memoryBudget(MemoryBudget memory){
+            if(memory==null){
+                throw new IllegalArgumentException("No memory budget");
+            }
+            this.memory = memory;
+            return this;
+        }
+
+        /**
+         * Returns the configuration.
+         * @return
+         */
+        public TifixityConfig build(){
+            return new TifixityConfig(this);
+        }
+    }
+}
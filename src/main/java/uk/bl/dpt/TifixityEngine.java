@@ -0,0 +1,379 @@
+/**
+ * Copyright 2016 Peter May
+ * Author: Peter May
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.bl.dpt;
+
+import java.io.IOException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Paths;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Calculates checksums with the settings of a {@link TifixityConfig}.
+ *
+ * An engine is immutable and keeps no state between calls, so one engine can be shared by any number of
+ * threads, and engines with different settings can run side by side in one JVM. Problems with a file are
+ * reported as exceptions ({@link TiffFormatException} for a malformed file), never by exiting. Large
+ * allocations are reserved from the configured {@link MemoryBudget}, so threads sharing a budget wait for
+ * memory rather than exhaust the heap.
+ */
+public final class TifixityEngine {
+
+    private final TifixityConfig config;
+
+    /**
+     * Creates an engine with the default settings.
+     */
+    public TifixityEngine(){
+        this(TifixityConfig.DEFAULT);
+    }
+
+    /**
+     * Creates an engine with the specified settings.
+     * @param config    the settings
+     */
+    public TifixityEngine(TifixityConfig config){
+        if(config==null){
+            throw new IllegalArgumentException("No configuration");
+        }
+        this.config = config;
+    }
+
+    /**
+     * Returns the settings of this engine.
+     * @return
+     */
+    public TifixityConfig getConfig(){
+        return config;
+    }
+
+    /**
+     * Returns a source reading the specified file as configured.
+     * @param file  the TIFF file
+     * @return
+     */
+    private ByteSource source(String file){
+        return ByteSource.of(Paths.get(file), config.isDirectIO());
+    }
+
+    /**
+     * Loads a TIFF within the configured limits, reserving the memory for its parsed values from the configured
+     * budget. Call {@link Tiff#release()} when finished with the TIFF.
+     * @param source    the TIFF
+     * @return
+     * @throws IOException
+     * @throws TiffFormatException  if the TIFF is malformed or exceeds the limits
+     */
+    public Tiff load(ByteSource source) throws IOException {
+        return TiffFileHandler.loadTiff(source, config.getLimits(), config.getTrace(), config.getMemoryBudget());
+    }
+
+    /**
+     * Returns the checksums configured (see {@link TifixityConfig}) of the specified file, formatted as for
+     * the command line.
+     * @param file  the TIFF file to checksum
+     * @return
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    public String checksum(String file) throws IOException, NoSuchAlgorithmException {
+        return checksum(source(file));
+    }
+
+    /**
+     * Returns the checksums configured (see {@link TifixityConfig}) of the specified TIFF, formatted as for
+     * the command line. The TIFF is parsed once for all of them.
+     * @param source    the TIFF to checksum
+     * @return
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    public String checksum(ByteSource source) throws IOException, NoSuchAlgorithmException {
+        Tiff tiff = load(source);
+        try {
+            int subfiles = tiff.numberOfIFDs();
+
+            String[] cs = new String[2];
+            String[] imageCS = new String[subfiles];
+            String[][] planeCS = null;
+            String[] ifdCS = null;
+            String[] pixelCS = null;
+            String[] rasterCS = null;
+
+            if(config.isAll()){
+                cs = Tifixity.calculateFileDigest(tiff);
+                ifdCS = new String[subfiles];
+                planeCS = new String[subfiles][];
+                for(int i=0; i<subfiles; i++){
+                    ifdCS[i] = Tifixity.calculateIFDDigest(tiff, i);
+
+                    // the image and plane checksums of planar subfiles come from one pass
+                    String[] digests = Tifixity.calculatePlaneDigests(tiff, i);
+                    imageCS[i] = digests[0];
+                    if(digests.length>2){
+                        planeCS[i] = Arrays.copyOfRange(digests, 1, digests.length);
+                    }
+                }
+            } else {
+                for(int i=0; i<subfiles; i++){
+                    imageCS[i] = Tifixity.calculateImageDigest(tiff, i);
+                }
+            }
+
+            if(config.isPixels()){
+                pixelCS = new String[subfiles];
+                for(int i=0; i<subfiles; i++){
+                    pixelCS[i] = Tifixity.calculatePixelDigest(tiff, i);
+                }
+            }
+            if(config.isRaster()){
+                rasterCS = new String[subfiles];
+                for(int i=0; i<subfiles; i++){
+                    rasterCS[i] = Tifixity.calculateRasterDigest(tiff, i);
+                }
+            }
+
+            return Tifixity.formatOutput(cs[0], cs[1], imageCS, planeCS, ifdCS, pixelCS, rasterCS, config.isAll(),
+                                         "String");
+        } finally {
+            tiff.release();
+        }
+    }
+
+    /**
+     * Returns the full and non-image data checksums of the specified file.
+     * @param file  the TIFF file to checksum
+     * @return  String[]{full, non-image data}
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    public String[] checksumFile(String file) throws IOException, NoSuchAlgorithmException {
+        return checksumFile(source(file));
+    }
+
+    /**
+     * Returns the full and non-image data checksums of the specified TIFF.
+     * @param source    the TIFF to checksum
+     * @return  String[]{full, non-image data}
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    public String[] checksumFile(ByteSource source) throws IOException, NoSuchAlgorithmException {
+        Tiff tiff = load(source);
+        try {
+            return Tifixity.calculateFileDigest(tiff);
+        } finally {
+            tiff.release();
+        }
+    }
+
+    /**
+     * Returns the image payload checksum of each subfile of the specified file.
+     * @param file  the TIFF file to checksum
+     * @return
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    public String[] checksumImage(String file) throws IOException, NoSuchAlgorithmException {
+        return checksumImage(source(file));
+    }
+
+    /**
+     * Returns the image payload checksum of each subfile of the specified TIFF.
+     * @param source    the TIFF to checksum
+     * @return
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    public String[] checksumImage(ByteSource source) throws IOException, NoSuchAlgorithmException {
+        Tiff tiff = load(source);
+        try {
+            String[] checksums = new String[tiff.numberOfIFDs()];
+            for(int i=0; i<checksums.length; i++){
+                checksums[i] = Tifixity.calculateImageDigest(tiff, i);
+            }
+            return checksums;
+        } finally {
+            tiff.release();
+        }
+    }
+
+    /**
+     * Returns the checksum of each sample plane of each subfile of the specified file (see
+     * {@link Tifixity#checksumPlanes(ByteSource)}).
+     * @param file  the TIFF file to checksum
+     * @return  String[subfile][plane]
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    public String[][] checksumPlanes(String file) throws IOException, NoSuchAlgorithmException {
+        return checksumPlanes(source(file));
+    }
+
+    /**
+     * Returns the checksum of each sample plane of each subfile of the specified TIFF (see
+     * {@link Tifixity#checksumPlanes(ByteSource)}).
+     * @param source    the TIFF to checksum
+     * @return  String[subfile][plane]
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    public String[][] checksumPlanes(ByteSource source) throws IOException, NoSuchAlgorithmException {
+        Tiff tiff = load(source);
+        try {
+            String[][] checksums = new String[tiff.numberOfIFDs()][];
+            for(int i=0; i<checksums.length; i++){
+                String[] digests = Tifixity.calculatePlaneDigests(tiff, i);
+                checksums[i] = Arrays.copyOfRange(digests, 1, digests.length);
+            }
+            return checksums;
+        } finally {
+            tiff.release();
+        }
+    }
+
+    /**
+     * Returns the IFD checksum of each subfile of the specified file.
+     * @param file  the TIFF file to checksum
+     * @return
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    public String[] checksumIFDs(String file) throws IOException, NoSuchAlgorithmException {
+        return checksumIFDs(source(file));
+    }
+
+    /**
+     * Returns the IFD checksum of each subfile of the specified TIFF.
+     * @param source    the TIFF to checksum
+     * @return
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    public String[] checksumIFDs(ByteSource source) throws IOException, NoSuchAlgorithmException {
+        Tiff tiff = load(source);
+        try {
+            String[] checksums = new String[tiff.numberOfIFDs()];
+            for(int i=0; i<checksums.length; i++){
+                checksums[i] = Tifixity.calculateIFDDigest(tiff, i);
+            }
+            return checksums;
+        } finally {
+            tiff.release();
+        }
+    }
+
+    /**
+     * Returns the decoded pixel checksum of each subfile of the specified file.
+     * @param file  the TIFF file to checksum
+     * @return
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    public String[] checksumPixels(String file) throws IOException, NoSuchAlgorithmException {
+        return checksumPixels(source(file));
+    }
+
+    /**
+     * Returns the decoded pixel checksum of each subfile of the specified TIFF.
+     * @param source    the TIFF to checksum
+     * @return
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    public String[] checksumPixels(ByteSource source) throws IOException, NoSuchAlgorithmException {
+        Tiff tiff = load(source);
+        try {
+            String[] checksums = new String[tiff.numberOfIFDs()];
+            for(int i=0; i<checksums.length; i++){
+                checksums[i] = Tifixity.calculatePixelDigest(tiff, i);
+            }
+            return checksums;
+        } finally {
+            tiff.release();
+        }
+    }
+
+    /**
+     * Returns the layout-invariant raster checksum of each subfile of the specified file.
+     * @param file  the TIFF file to checksum
+     * @return
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    public String[] checksumRaster(String file) throws IOException, NoSuchAlgorithmException {
+        return checksumRaster(source(file));
+    }
+
+    /**
+     * Returns the layout-invariant raster checksum of each subfile of the specified TIFF.
+     * @param source    the TIFF to checksum
+     * @return
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    public String[] checksumRaster(ByteSource source) throws IOException, NoSuchAlgorithmException {
+        Tiff tiff = load(source);
+        try {
+            String[] checksums = new String[tiff.numberOfIFDs()];
+            for(int i=0; i<checksums.length; i++){
+                checksums[i] = Tifixity.calculateRasterDigest(tiff, i);
+            }
+            return checksums;
+        } finally {
+            tiff.release();
+        }
+    }
+
+    /**
+     * Returns the checksum of every strip (or tile) of every subfile of the specified file, in StripOffsets
+     * order.
+     * @param file  the TIFF file to checksum
+     * @return  String[subfile][strip]
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    public String[][] checksumStrips(String file) throws IOException, NoSuchAlgorithmException {
+        return checksumStrips(source(file));
+    }
+
+    /**
+     * Returns the checksum of every strip (or tile) of every subfile of the specified TIFF, in StripOffsets
+     * order.
+     * @param source    the TIFF to checksum
+     * @return  String[subfile][strip]
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    public String[][] checksumStrips(ByteSource source) throws IOException, NoSuchAlgorithmException {
+        Tiff tiff = load(source);
+        try {
+            String[][] checksums = new String[tiff.numberOfIFDs()][];
+            try (SeekableByteChannel sbc = tiff.getSource().open()) {
+                for(int i=0; i<checksums.length; i++){
+                    checksums[i] = new String[tiff.getImageDataOffsets(i).length];
+                    for(int j=0; j<checksums[i].length; j++){
+                        checksums[i][j] = Tifixity.calculateStripDigest(tiff, sbc, i, j);
+                    }
+                }
+            }
+            return checksums;
+        } finally {
+            tiff.release();
+        }
+    }
+}
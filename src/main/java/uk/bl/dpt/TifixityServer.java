@@ -0,0 +1,172 @@
+/**
+ * Copyright 2016 Peter May
+ * Author: Peter May
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.bl.dpt;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Resident Tifixity server that accepts checksum requests over a localhost TCP socket, so that
+ * many requests are served by one warm JVM rather than paying JVM startup per file.
+ *
+ * The protocol is line based (UTF-8). Each request is a single line:
+ * <pre>
+ *   &lt;mode&gt;[,&lt;mode&gt;] TAB &lt;absolute path&gt;
+ * </pre>
+ * where mode is "image" (image checksums only), "all" (as the -a CLI option), "pixels" (as the -x CLI
+ * option) or "raster" (as the -r CLI option). Each response
+ * starts with a status line, one of:
+ * <pre>
+ *   OK            followed by the CLI output lines and a terminating "." line
+ *   NOFILE        the file does not exist
+ *   ERR message   the file could not be checksummed
+ * </pre>
+ * Requests on one connection are answered in order; separate connections are served concurrently.
+ */
+public class TifixityServer implements Closeable {
+
+    public static final int DEFAULT_PORT = 7878;
+
+    static final String MODE_IMAGE  = "image";
+    static final String MODE_ALL    = "all";
+    static final String MODE_PIXELS = "pixels";
+    static final String MODE_RASTER = "raster";
+    static final String STATUS_OK       = "OK";
+    static final String STATUS_NOFILE   = "NOFILE";
+    static final String STATUS_ERROR    = "ERR";
+    static final String END_OF_OUTPUT   = ".";
+
+    private final ServerSocket      serverSocket;
+    private final ExecutorService   workers;
+
+    /**
+     * Creates a server bound to the loopback interface.
+     * @param port      the port to listen on, or 0 for any free port
+     * @param threads   the maximum number of connections served concurrently
+     * @throws IOException
+     */
+    public TifixityServer(int port, int threads) throws IOException {
+        this.serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        this.workers = Executors.newFixedThreadPool(threads);
+    }
+
+    /**
+     * Returns the port the server is listening on.
+     * @return
+     */
+    public int getPort(){
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Accepts and serves connections until the server is closed.
+     * @throws IOException
+     */
+    public void serve() throws IOException {
+        while(!serverSocket.isClosed()){
+            Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (SocketException se){
+                if(serverSocket.isClosed()){
+                    break;
+                }
+                throw se;
+            }
+            workers.execute(new Connection(socket));
+        }
+    }
+
+    /**
+     * Stops accepting connections and interrupts any in progress.
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        workers.shutdownNow();
+    }
+
+    /**
+     * Serves the requests received on a single client connection.
+     */
+    private static class Connection implements Runnable {
+        private final Socket socket;
+
+        Connection(Socket socket){
+            this.socket = socket;
+        }
+
+        @Override
+        public void run(){
+            try (Socket s = socket;
+                 BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+                 Writer out = new BufferedWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8))) {
+                String request;
+                while((request = in.readLine())!=null){
+                    out.write(respond(request));
+                    out.flush();
+                }
+            } catch (IOException ioe){
+                if(Tifixity.verbose) System.err.println("Connection closed: "+ioe);
+            }
+        }
+
+        /**
+         * Processes a single request line and returns the full response.
+         * @param request   the request line
+         * @return
+         */
+        private String respond(String request){
+            int tab = request.indexOf('\t');
+            if(tab<0){
+                return STATUS_ERROR+" Malformed request\n";
+            }
+            boolean all = false;
+            boolean pixels = false;
+            boolean raster = false;
+            for(String mode: request.substring(0, tab).split(",")){
+                if(MODE_ALL.equals(mode)){
+                    all = true;
+                } else if(MODE_PIXELS.equals(mode)){
+                    pixels = true;
+                } else if(MODE_RASTER.equals(mode)){
+                    raster = true;
+                } else if(!MODE_IMAGE.equals(mode)){
+                    return STATUS_ERROR+" Unknown mode: "+mode+"\n";
+                }
+            }
+            String file = request.substring(tab+1);
+
+            try {
+                String output = Tifixity.checksumAsOutput(file, all, pixels, raster);
+                return STATUS_OK+"\n"+output+END_OF_OUTPUT+"\n";
+            } catch (NoSuchFileException nsfe){
+                return STATUS_NOFILE+"\n";
+            } catch (Exception e){
+                return STATUS_ERROR+" "+String.valueOf(e).replace('\n', ' ')+"\n";
+            }
+        }
+    }
+}
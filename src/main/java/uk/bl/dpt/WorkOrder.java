@@ -0,0 +1,77 @@
+/**
+ * Copyright 2016 Peter May
+ * Author: Peter May
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.bl.dpt;
+
+/**
+ * A policy for the order in which a batch of files is processed. Reordering by physical locality reduces
+ * seeking between files on spinning disks and tape-backed storage; results are still reported in the original
+ * order (see {@link OrderedOutput}).
+ */
+public interface WorkOrder {
+
+    /**
+     * Returns the indexes of the specified files in the order they should be processed.
+     * @param files the files, in their original order
+     * @return  a permutation of 0..files.length-1
+     */
+    int[] order(String[] files);
+
+    /**
+     * Returns the policy processing files in their original (argument) order.
+     * @return
+     */
+    static WorkOrder arguments(){
+        return KeyedOrder.ARGUMENTS;
+    }
+
+    /**
+     * Returns the policy processing files in device and inode order, which on most filesystems approximates
+     * their order on disk. Files whose inode cannot be read are processed last, in their original order.
+     * @return
+     */
+    static WorkOrder inode(){
+        return KeyedOrder.INODE;
+    }
+
+    /**
+     * Returns the policy processing files grouped by directory, directories in path order and files within a
+     * directory in their original order.
+     * @return
+     */
+    static WorkOrder directory(){
+        return KeyedOrder.DIRECTORY;
+    }
+
+    /**
+     * Returns the policy with the specified name: arguments, inode or directory.
+     * @param name  the policy name
+     * @return
+     * @throws IllegalArgumentException if the name is not recognised
+     */
+    static WorkOrder forName(String name){
+        switch(name){
+            case "arguments":
+                return arguments();
+            case "inode":
+                return inode();
+            case "directory":
+                return directory();
+            default:
+                throw new IllegalArgumentException("Unknown order: "+name+" (expected arguments, inode or directory)");
+        }
+    }
+}
@@ -0,0 +1,48 @@
+/**
+ * Copyright 2016 Peter May
+ * Author: Peter May
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.bl.dpt.codec;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decoder for Deflate (Compression = 8 or 32946) strips, which hold a zlib stream.
+ */
+class DeflateDecoder extends StripDecoder {
+
+    @Override
+    public int decode(byte[] in, int length, byte[] out) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(in, 0, length);
+            int o = 0;
+            while(o<out.length && !inflater.finished()){
+                int n = inflater.inflate(out, o, out.length-o);
+                if(n==0 && (inflater.needsInput() || inflater.needsDictionary())){
+                    break;      // truncated strip
+                }
+                o += n;
+            }
+            return o;
+        } catch (DataFormatException dfe){
+            throw new IOException("Corrupt Deflate strip: "+dfe.getMessage(), dfe);
+        } finally {
+            inflater.end();
+        }
+    }
+}
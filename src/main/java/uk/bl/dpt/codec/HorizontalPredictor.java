@@ -0,0 +1,89 @@
+/**
+ * Copyright 2016 Peter May
+ * Author: Peter May
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.bl.dpt.codec;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+
+/**
+ * Reverses TIFF Predictor = 2 (horizontal differencing) on decoded strip data.
+ *
+ * TIFF v6, pg 64: each sample after the first in a row is stored as the difference from the
+ * same sample of the previous pixel.
+ */
+public class HorizontalPredictor {
+
+    /**
+     * Reverses horizontal differencing in place.
+     * @param data              the decoded strip
+     * @param length            the number of valid bytes in the strip
+     * @param rowBytes          the number of bytes in each row
+     * @param samplesPerPixel   the number of samples per pixel in the strip (1 for planar strips)
+     * @param bitsPerSample     the width of every sample in the strip: 8, 16 or 32
+     * @param byteOrder         the byte order of multi-byte samples
+     * @throws IOException  if the sample width is not supported
+     */
+    public static void undo(byte[] data, int length, int rowBytes, int samplesPerPixel, int bitsPerSample,
+                            ByteOrder byteOrder) throws IOException {
+        boolean big = byteOrder==ByteOrder.BIG_ENDIAN;
+        for(int row=0; row+rowBytes<=length; row+=rowBytes){
+            switch(bitsPerSample){
+                case 8:
+                    for(int i=row+samplesPerPixel; i<row+rowBytes; i++){
+                        data[i] += data[i-samplesPerPixel];
+                    }
+                    break;
+                case 16: {
+                    int stride = samplesPerPixel*2;
+                    for(int i=row+stride; i+1<row+rowBytes; i+=2){
+                        int v = get16(data, i, big)+get16(data, i-stride, big);
+                        put16(data, i, v, big);
+                    }
+                    break;
+                }
+                case 32: {
+                    int stride = samplesPerPixel*4;
+                    for(int i=row+stride; i+3<row+rowBytes; i+=4){
+                        int v = get32(data, i, big)+get32(data, i-stride, big);
+                        put32(data, i, v, big);
+                    }
+                    break;
+                }
+                default:
+                    throw new IOException("Unsupported BitsPerSample for horizontal predictor: "+bitsPerSample);
+            }
+        }
+    }
+
+    private static int get16(byte[] b, int i, boolean big){
+        return big ? ((b[i]&0xFF)<<8)|(b[i+1]&0xFF) : ((b[i+1]&0xFF)<<8)|(b[i]&0xFF);
+    }
+
+    private static void put16(byte[] b, int i, int v, boolean big){
+        b[big ? i : i+1] = (byte) (v>>>8);
+        b[big ? i+1 : i] = (byte) v;
+    }
+
+    private static int get32(byte[] b, int i, boolean big){
+        return big ? (get16(b, i, true)<<16)|get16(b, i+2, true) : (get16(b, i+2, false)<<16)|get16(b, i, false);
+    }
+
+    private static void put32(byte[] b, int i, int v, boolean big){
+        put16(b, big ? i : i+2, v>>>16, big);
+        put16(b, big ? i+2 : i, v, big);
+    }
+}
@@ -0,0 +1,121 @@
+/**
+ * Copyright 2016 Peter May
+ * Author: Peter May
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.bl.dpt.codec;
+
+/**
+ * Decoder for LZW (Compression = 5) strips.
+ *
+ * TIFF v6, pg 57: codes are 9 to 12 bits, packed most significant bit first. Code 256 clears the table and
+ * code 257 ends the strip. The code width grows one code early, i.e. when the table reaches 511, 1023 and 2047
+ * entries.
+ */
+class LZWDecoder extends StripDecoder {
+
+    private static final int CLEAR_CODE = 256;
+    private static final int EOI_CODE   = 257;
+    private static final int FIRST_CODE = 258;
+    private static final int TABLE_SIZE = 4096;
+
+    @Override
+    public int decode(byte[] in, int length, byte[] out) {
+        // String table: each entry is its prefix entry plus one final byte
+        int[]  prefix    = new int[TABLE_SIZE];
+        byte[] suffix    = new byte[TABLE_SIZE];
+        byte[] first     = new byte[TABLE_SIZE];
+        int[]  entryLen  = new int[TABLE_SIZE];
+        for(int i=0; i<256; i++){
+            suffix[i] = (byte) i;
+            first[i] = (byte) i;
+            entryLen[i] = 1;
+        }
+
+        int next = FIRST_CODE;
+        int codeLen = 9;
+        int oldCode = -1;
+
+        int bitBuffer = 0;
+        int bitCount = 0;
+        int i = 0;
+        int o = 0;
+
+        while(o<out.length){
+            // read the next code
+            while(bitCount<codeLen && i<length){
+                bitBuffer = (bitBuffer<<8) | (in[i++] & 0xFF);
+                bitCount += 8;
+            }
+            if(bitCount<codeLen){
+                break;
+            }
+            int code = (bitBuffer>>>(bitCount-codeLen)) & ((1<<codeLen)-1);
+            bitCount -= codeLen;
+
+            if(code==EOI_CODE){
+                break;
+            }
+            if(code==CLEAR_CODE){
+                next = FIRST_CODE;
+                codeLen = 9;
+                oldCode = -1;
+                continue;
+            }
+
+            if(oldCode==-1){
+                if(code>=256){
+                    break;      // corrupt: first code after a clear must be a literal
+                }
+                out[o++] = (byte) code;
+                oldCode = code;
+                continue;
+            }
+
+            byte firstByte;
+            if(code<next){
+                firstByte = first[code];
+            } else if(code==next){
+                firstByte = first[oldCode];
+            } else {
+                break;          // corrupt: code not yet in the table
+            }
+
+            if(next<TABLE_SIZE){
+                prefix[next] = oldCode;
+                suffix[next] = firstByte;
+                first[next] = first[oldCode];
+                entryLen[next] = entryLen[oldCode]+1;
+                next++;
+                if(next+1==(1<<codeLen) && codeLen<12){
+                    codeLen++;
+                }
+            }
+
+            // write the entry for code, last byte first
+            int len = entryLen[code];
+            int end = o+len;
+            int c = code;
+            for(int p=end-1; p>=o; p--){
+                if(p<out.length){
+                    out[p] = suffix[c];
+                }
+                c = prefix[c];
+            }
+            o = Math.min(end, out.length);
+            oldCode = code;
+        }
+        return o;
+    }
+}
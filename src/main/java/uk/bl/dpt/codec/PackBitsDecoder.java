@@ -0,0 +1,48 @@
+/**
+ * Copyright 2016 Peter May
+ * Author: Peter May
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.bl.dpt.codec;
+
+/**
+ * Decoder for PackBits (Compression = 32773) strips.
+ *
+ * TIFF v6, pg 42: each run starts with a header byte n. For 0 to 127 the next n+1 bytes are copied literally;
+ * for -1 to -127 the next byte is repeated -n+1 times; -128 is a no-op.
+ */
+class PackBitsDecoder extends StripDecoder {
+
+    @Override
+    public int decode(byte[] in, int length, byte[] out) {
+        int i = 0;
+        int o = 0;
+        while(i<length && o<out.length){
+            int n = in[i++];
+            if(n>=0){
+                int count = Math.min(Math.min(n+1, length-i), out.length-o);
+                System.arraycopy(in, i, out, o, count);
+                i += n+1;
+                o += count;
+            } else if(n!=-128 && i<length){
+                int count = Math.min(-n+1, out.length-o);
+                byte b = in[i++];
+                for(int k=0; k<count; k++){
+                    out[o++] = b;
+                }
+            }
+        }
+        return o;
+    }
+}
@@ -0,0 +1,74 @@
+/**
+ * Copyright 2016 Peter May
+ * Author: Peter May
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.bl.dpt.codec;
+
+import java.io.IOException;
+
+/**
+ * Decoder for a single compressed TIFF strip.
+ *
+ * Implementations hold no state between calls, so a single instance can decode strips on several threads.
+ */
+public abstract class StripDecoder {
+
+    public static final int COMPRESSION_NONE        = 1;
+    public static final int COMPRESSION_LZW         = 5;
+    public static final int COMPRESSION_DEFLATE     = 8;
+    public static final int COMPRESSION_PACKBITS    = 32773;
+    public static final int COMPRESSION_DEFLATE_OLD = 32946;   // pre-TIFF 6.0 code for Deflate
+
+    private static final StripDecoder NONE = new StripDecoder() {
+        @Override
+        public int decode(byte[] in, int length, byte[] out) {
+            int n = Math.min(length, out.length);
+            System.arraycopy(in, 0, out, 0, n);
+            return n;
+        }
+    };
+
+    /**
+     * Returns the decoder for the specified TIFF Compression tag value.
+     * @param compression   the Compression tag value
+     * @return
+     * @throws IOException  if the compression scheme is not supported
+     */
+    public static StripDecoder forCompression(int compression) throws IOException {
+        switch(compression){
+            case COMPRESSION_NONE:
+                return NONE;
+            case COMPRESSION_LZW:
+                return new LZWDecoder();
+            case COMPRESSION_DEFLATE:
+            case COMPRESSION_DEFLATE_OLD:
+                return new DeflateDecoder();
+            case COMPRESSION_PACKBITS:
+                return new PackBitsDecoder();
+            default:
+                throw new IOException("Unsupported compression: "+compression);
+        }
+    }
+
+    /**
+     * Decodes a compressed strip. Output beyond the size of the output array is discarded.
+     * @param in        the compressed strip bytes
+     * @param length    the number of compressed bytes in the input array
+     * @param out       the array to receive the decoded bytes, sized to the expected strip size
+     * @return  the number of decoded bytes written to the output array
+     * @throws IOException  if the compressed data is corrupt
+     */
+    public abstract int decode(byte[] in, int length, byte[] out) throws IOException;
+}
@@ -43,7 +43,12 @@ public class Rational {
 
         Rational rational = (Rational) o;
 
-        if(numerator!=rational.numerator) return false;
-        return (denominator==rational.denominator);
+        if(!numerator.equals(rational.numerator)) return false;
+        return denominator.equals(rational.denominator);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31*numerator.hashCode()+denominator.hashCode();
     }
 }
@@ -0,0 +1,210 @@
+/**
+ * Copyright 2016 Peter May
+ * Author: Peter May
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.bl.dpt;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests relating to the Archive Class.
+ *
+ * Each archive holds T_two_strips_seq.tiff as a.tif, T_raster_planar_tiles.tiff as sub/b.tif and a text file.
+ * The TAR files also hold a copy of a.tif with a path longer than 100 characters.
+ *
+ * Tests for:
+ *  1) TIFF members of a TAR file are read in place, including GNU long names
+ *  2) TIFF members of a TAR file with POSIX extended headers
+ *  3) TIFF members of a gzipped TAR file, read through the throttle, and a TAR stream
+ *  4) Stored and deflated ZIP entries
+ *  5) Members larger than the memory limit are buffered in a temporary file
+ *  6) Oversized and negative TAR header sizes are rejected before anything is allocated
+ */
+public class ArchiveTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final String LONG_NAME = "dir_with_a_rather_long_name_to_exceed_the_one_hundred_character_limit_"
+                                            +"of_the_tar_header_name_field/c.tif";
+
+    private Path resource(String name) throws Exception {
+        return Paths.get(getClass().getResource(name).toURI());
+    }
+
+    /**
+     * Collects the image checksums of each member visited.
+     */
+    private static class Collector implements Archive.MemberVisitor {
+        final Map<String, String> checksums = new LinkedHashMap<>();
+
+        @Override
+        public void visit(String name, ByteSource member) throws IOException, NoSuchAlgorithmException {
+            checksums.put(name, Tifixity.checksumImage(member, 0));
+        }
+    }
+
+    private void assertMembers(Map<String, String> checksums, boolean longName) throws Exception {
+        String a = Tifixity.checksumImage(resource("/T_two_strips_seq.tiff").toString(), 0);
+        String b = Tifixity.checksumImage(resource("/T_raster_planar_tiles.tiff").toString(), 0);
+
+        assertEquals(longName ? 3 : 2, checksums.size());
+        assertEquals(a, checksums.get("a.tif"));
+        assertEquals(b, checksums.get("sub/b.tif"));
+        if(longName){
+            assertEquals(a, checksums.get(LONG_NAME));
+        }
+    }
+
+    /**
+     * 1: TAR file, GNU format
+     */
+    @Test
+    public void tar() throws Exception {
+        Collector collector = new Collector();
+        Archive.read(resource("/T_archive.tar"), Archive.DEFAULT_MEMORY_LIMIT, collector);
+        assertMembers(collector.checksums, true);
+    }
+
+    /**
+     * 2: TAR file, POSIX (pax) format
+     */
+    @Test
+    public void paxTar() throws Exception {
+        Collector collector = new Collector();
+        Archive.read(resource("/T_archive_pax.tar"), Archive.DEFAULT_MEMORY_LIMIT, collector);
+        assertEquals(1, collector.checksums.size());
+        assertEquals(Tifixity.checksumImage(resource("/T_two_strips_seq.tiff").toString(), 0),
+                     collector.checksums.get(LONG_NAME));
+    }
+
+    /**
+     * 3: Gzipped TAR file, read through the throttle, and TAR stream
+     */
+    @Test
+    public void tarStream() throws Exception {
+        Collector collector = new Collector();
+        Archive.read(resource("/T_archive.tar.gz"), Archive.DEFAULT_MEMORY_LIMIT, collector);
+        assertMembers(collector.checksums, true);
+
+        // the compressed file is read through the throttle, even when no member is
+        long throttled = IOThrottle.GLOBAL.getBytesRead();
+        Archive.read(resource("/T_archive.tar.gz"), Archive.DEFAULT_MEMORY_LIMIT, new Archive.MemberVisitor() {
+            @Override
+            public void visit(String name, ByteSource member) {
+                // members unread
+            }
+        });
+        assertTrue(IOThrottle.GLOBAL.getBytesRead()-throttled>=Files.size(resource("/T_archive.tar.gz")));
+
+        collector = new Collector();
+        try (InputStream in = Files.newInputStream(resource("/T_archive.tar"))){
+            Archive.readTar(in, Archive.DEFAULT_MEMORY_LIMIT, collector);
+        }
+        assertMembers(collector.checksums, true);
+    }
+
+    /**
+     * 4: Stored and deflated ZIP files
+     */
+    @Test
+    public void zip() throws Exception {
+        Collector collector = new Collector();
+        Archive.read(resource("/T_archive_stored.zip"), Archive.DEFAULT_MEMORY_LIMIT, collector);
+        assertMembers(collector.checksums, false);
+
+        collector = new Collector();
+        Archive.read(resource("/T_archive_deflated.zip"), Archive.DEFAULT_MEMORY_LIMIT, collector);
+        assertMembers(collector.checksums, false);
+    }
+
+    /**
+     * 5: With no memory, compressed members are spilled to (and removed from) a temporary file
+     */
+    @Test
+    public void spilled() throws Exception {
+        final Map<String, Path> paths = new LinkedHashMap<>();
+        Collector collector = new Collector(){
+            @Override
+            public void visit(String name, ByteSource member) throws IOException, NoSuchAlgorithmException {
+                assertNotNull(member.getPath());
+                paths.put(name, member.getPath());
+                super.visit(name, member);
+            }
+        };
+        Archive.read(resource("/T_archive_deflated.zip"), 0, collector);
+        assertMembers(collector.checksums, false);
+        for(Path p: paths.values()){
+            assertFalse(Files.exists(p));
+        }
+    }
+
+    /**
+     * Returns a TAR header block of the specified type whose size field is filled with the specified bytes.
+     */
+    private static byte[] tarHeader(char type, byte[] size){
+        byte[] block = new byte[1024];
+        byte[] name = "././@LongLink".getBytes(StandardCharsets.US_ASCII);
+        System.arraycopy(name, 0, block, 0, name.length);
+        System.arraycopy(size, 0, block, 124, size.length);
+        block[156] = (byte) type;
+        return block;
+    }
+
+    /**
+     * 6: A GNU long name or pax header claiming gigabytes, or a negative size, fails with an IOException
+     */
+    @Test
+    public void oversizedHeaders() throws Exception {
+        byte[] negative = new byte[12];
+        Arrays.fill(negative, (byte) 0xFF);
+        byte[][] blocks = {tarHeader('L', "77777777777\0".getBytes(StandardCharsets.US_ASCII)),
+                           tarHeader('x', "00010000001\0".getBytes(StandardCharsets.US_ASCII)),
+                           tarHeader('L', negative),
+                           tarHeader('0', negative)};
+        for(byte[] block: blocks){
+            Path tar = folder.newFile().toPath();
+            Files.write(tar, block);
+            for(int pass=0; pass<2; pass++){
+                try {
+                    if(pass==0){
+                        Archive.read(tar, Archive.DEFAULT_MEMORY_LIMIT, new Collector());
+                    } else {
+                        Archive.readTar(new ByteArrayInputStream(block), Archive.DEFAULT_MEMORY_LIMIT, new Collector());
+                    }
+                    fail("Read a header of type "+(char) block[156]);
+                } catch (IOException expected){
+                    // refused
+                }
+            }
+        }
+    }
+}
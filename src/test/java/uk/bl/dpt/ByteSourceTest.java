@@ -0,0 +1,183 @@
+/**
+ * Copyright 2016 Peter May
+ * Author: Peter May
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.bl.dpt;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests relating to the ByteSource implementations.
+ *
+ * Tests for:
+ *  1) File, image and IFD checksums of a file channel source match those of the file
+ *  2) Checksums of a seekable (non-file) channel source match those of the file, even if its reads are short
+ *  3) Checksums of heap and direct buffer sources match those of the file
+ *  4) A buffer source starts at the buffer's position and leaves the buffer unchanged
+ *  5) Decoded pixel and raster checksums of a buffer source match those of the file
+ */
+public class ByteSourceTest {
+
+    private Path resource(String name) throws Exception {
+        return Paths.get(getClass().getResource(name).toURI());
+    }
+
+    private static void assertSameChecksums(Path file, ByteSource source) throws Exception {
+        assertArrayEquals(Tifixity.checksumFile(file.toString()), Tifixity.checksumFile(source));
+        assertArrayEquals(Tifixity.checksumImage(file.toString()), Tifixity.checksumImage(source));
+        assertArrayEquals(Tifixity.checksumIFDs(file.toString()), Tifixity.checksumIFDs(source));
+        assertArrayEquals(Tifixity.checksumStrips(file.toString()), Tifixity.checksumStrips(source));
+    }
+
+    /**
+     * Returns a channel that reads at most 3 bytes at a time from the specified channel.
+     */
+    private static SeekableByteChannel shortReads(final SeekableByteChannel channel){
+        return new SeekableByteChannel() {
+            @Override
+            public int read(ByteBuffer dst) throws IOException {
+                ByteBuffer part = dst.duplicate();
+                part.limit(Math.min(dst.limit(), dst.position()+3));
+                int n = channel.read(part);
+                if(n>0){
+                    dst.position(dst.position()+n);
+                }
+                return n;
+            }
+
+            @Override
+            public int write(ByteBuffer src) throws IOException {
+                return channel.write(src);
+            }
+
+            @Override
+            public long position() throws IOException {
+                return channel.position();
+            }
+
+            @Override
+            public SeekableByteChannel position(long newPosition) throws IOException {
+                channel.position(newPosition);
+                return this;
+            }
+
+            @Override
+            public long size() throws IOException {
+                return channel.size();
+            }
+
+            @Override
+            public SeekableByteChannel truncate(long size) throws IOException {
+                channel.truncate(size);
+                return this;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return channel.isOpen();
+            }
+
+            @Override
+            public void close() throws IOException {
+                channel.close();
+            }
+        };
+    }
+
+    /**
+     * 1: A file channel is read without moving its position
+     */
+    @Test
+    public void fileChannel() throws Exception {
+        Path file = resource("/T_two_subfile_single_strip.tiff");
+        try (FileChannel channel = FileChannel.open(file)){
+            channel.position(5);
+            assertSameChecksums(file, ByteSource.of(channel));
+            assertEquals(5, channel.position());
+            assertTrue(channel.isOpen());
+        }
+    }
+
+    /**
+     * 2: A channel that is not a file channel, and one that returns short reads
+     */
+    @Test
+    public void seekableChannel() throws Exception {
+        Path file = resource("/T_two_strips_non_seq.tiff");
+        try (SeekableByteChannel channel = ByteSource.of(ByteBuffer.wrap(Files.readAllBytes(file))).open()){
+            assertFalse(channel instanceof FileChannel);
+            assertSameChecksums(file, ByteSource.of(channel));
+        }
+        ByteSource buffer = ByteSource.of(ByteBuffer.wrap(Files.readAllBytes(file)));
+        try (SeekableByteChannel channel = shortReads(buffer.open())){
+            assertSameChecksums(file, ByteSource.of(channel));
+        }
+    }
+
+    /**
+     * 3: Heap and direct buffers
+     */
+    @Test
+    public void buffers() throws Exception {
+        Path file = resource("/T_two_subfile_single_strip.tiff");
+        byte[] data = Files.readAllBytes(file);
+        assertSameChecksums(file, ByteSource.of(ByteBuffer.wrap(data)));
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+        direct.put(data).flip();
+        assertSameChecksums(file, ByteSource.of(direct));
+    }
+
+    /**
+     * 4: Position 0 of a buffer source is the buffer's position
+     */
+    @Test
+    public void bufferPosition() throws Exception {
+        Path file = resource("/T_two_strips_seq.tiff");
+        byte[] data = Files.readAllBytes(file);
+        ByteBuffer buffer = ByteBuffer.allocate(data.length+10);
+        buffer.position(10);
+        buffer.put(data);
+        buffer.position(10);
+
+        ByteSource source = ByteSource.of(buffer);
+        assertEquals(data.length, source.size());
+        assertNull(source.getPath());
+        assertSameChecksums(file, source);
+        assertEquals(10, buffer.position());
+        assertEquals(buffer.capacity(), buffer.limit());
+    }
+
+    /**
+     * 5: Decoded checksums of a planar, tiled file held in memory
+     */
+    @Test
+    public void decodedBuffer() throws Exception {
+        Path file = resource("/T_raster_planar_tiles.tiff");
+        ByteSource source = ByteSource.of(ByteBuffer.wrap(Files.readAllBytes(file)));
+        assertArrayEquals(Tifixity.checksumPixels(file.toString()), Tifixity.checksumPixels(source));
+        assertArrayEquals(Tifixity.checksumRaster(file.toString()), Tifixity.checksumRaster(source));
+    }
+}
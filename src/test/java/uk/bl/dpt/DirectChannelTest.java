@@ -0,0 +1,134 @@
+/**
+ * Copyright 2016 Peter May
+ * Author: Peter May
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.bl.dpt;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests relating to direct (page cache bypassing) reads.
+ *
+ * Tests for:
+ *  1) Unaligned reads of any length, within and across read windows, return the file's bytes
+ *  2) Reads at and past the end of the file, and after closing
+ *  3) Checksums with direct I/O enabled match those read through the page cache
+ */
+public class DirectChannelTest {
+
+    private static final String[] tiffs = { "/T_one_strip.tiff", "/T_two_strips_non_seq_reverse.tiff",
+            "/T_two_subfile_single_strip.tiff", "/T_one_strip_with_exif.tiff", "/T_raster_planar_tiles.tiff" };
+
+    @After
+    public void reset(){
+        ByteSource.setDirectIO(false);
+    }
+
+    private static Path randomFile(int length, long seed) throws Exception {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        Path file = Files.createTempFile("direct", ".bin");
+        Files.write(file, data);
+        return file;
+    }
+
+    /**
+     * 1: Tests random unaligned reads against a small window, so that reads start, end and span window
+     * boundaries and the block over-read either side of each range.
+     */
+    @Test
+    public void unalignedReads() throws Exception {
+        Path file = randomFile(50000, 1);
+        byte[] expected = Files.readAllBytes(file);
+        Random random = new Random(2);
+        try (SeekableByteChannel sbc = DirectChannel.open(file, new IOThrottle(0, 0), 8192)) {
+            assertEquals(expected.length, sbc.size());
+            for(int i=0; i<500; i++){
+                int offset = random.nextInt(expected.length);
+                int length = 1+random.nextInt(20000);
+                ByteBuffer buf = ByteBuffer.allocate(length);
+                sbc.position(offset);
+                while(buf.hasRemaining() && sbc.read(buf)>-1){
+                    // read to the end of the range or the file
+                }
+                int read = Math.min(length, expected.length-offset);
+                assertEquals(read, buf.position());
+                assertEquals(offset+read, sbc.position());
+                assertArrayEquals(Arrays.copyOfRange(expected, offset, offset+read),
+                                  Arrays.copyOf(buf.array(), read));
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    /**
+     * 2: Tests reads at and past the end of the file return -1, and reads after closing throw.
+     */
+    @Test
+    public void endOfFile() throws Exception {
+        Path file = randomFile(10000, 3);
+        SeekableByteChannel sbc = DirectChannel.open(file, new IOThrottle(0, 0));
+        try {
+            ByteBuffer buf = ByteBuffer.allocate(100);
+            sbc.position(9950);
+            assertEquals(50, sbc.read(buf));
+            assertEquals(-1, sbc.read(buf.clear()));
+            sbc.position(20000);
+            assertEquals(-1, sbc.read(buf.clear()));
+            assertEquals(0, sbc.read(ByteBuffer.allocate(0)));
+        } finally {
+            sbc.close();
+            Files.delete(file);
+        }
+        try {
+            sbc.read(ByteBuffer.allocate(10));
+            fail("Expected ClosedChannelException");
+        } catch (ClosedChannelException e){
+            // expected
+        }
+    }
+
+    /**
+     * 3: Tests that file, image, strip and IFD checksums are unchanged by direct I/O.
+     */
+    @Test
+    public void checksumsMatch() throws Exception {
+        for(String tiff: tiffs){
+            String path = new File(getClass().getResource(tiff).toURI()).getPath();
+            ByteSource.setDirectIO(false);
+            String expected = Tifixity.checksumAsOutput(path, true, false, false)
+                              +Arrays.deepToString(Tifixity.checksumStrips(path));
+
+            ByteSource.setDirectIO(true);
+            String direct = Tifixity.checksumAsOutput(path, true, false, false)
+                            +Arrays.deepToString(Tifixity.checksumStrips(path));
+            assertEquals(tiff, expected, direct);
+        }
+    }
+}
@@ -0,0 +1,169 @@
+/**
+ * Copyright 2016 Peter May
+ * Author: Peter May
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.bl.dpt;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests relating to the duplicate image index.
+ *
+ * Tests for:
+ *  1) Subfiles with the same digest are grouped, in the order added, and unique digests are not reported
+ *  2) Groups survive the table growing many times
+ *  3) Image digests are read from Tifixity output, including archive output and very long names
+ *  4) The report format, and the index files are deleted on close
+ */
+public class DuplicateIndexTest {
+
+    private static final String A = "1d4808fbbc37c098520c4e927cccf332";
+    private static final String B = "a3c1f7e8b21fe5d45c0b69b3d3a8e6f0";
+    private static final String C = "ffffffffffffffff0000000000000001";
+
+    private Path dir;
+
+    @Before
+    public void createDir() throws IOException {
+        dir = Files.createTempDirectory("duplicates");
+    }
+
+    @After
+    public void deleteDir() throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for(Path file: files){
+                Files.delete(file);
+            }
+        }
+        Files.delete(dir);
+    }
+
+    private static Map<String, List<String>> groups(DuplicateIndex index) throws IOException {
+        final Map<String, List<String>> groups = new HashMap<>();
+        index.forEachGroup(new DuplicateIndex.GroupVisitor() {
+            @Override
+            public void visit(String digest, List<DuplicateIndex.Member> members) {
+                List<String> names = new ArrayList<>();
+                for(DuplicateIndex.Member member: members){
+                    names.add(member.toString());
+                }
+                groups.put(digest, names);
+            }
+        });
+        return groups;
+    }
+
+    /**
+     * 1: Tests grouping of equal digests.
+     */
+    @Test
+    public void groups() throws IOException {
+        try (DuplicateIndex index = new DuplicateIndex(dir, 10)) {
+            assertEquals(1, index.add(A, "a.tif", 0));
+            assertEquals(1, index.add(B, "b.tif", 0));
+            assertEquals(2, index.add(A, "copy of a.tif", 0));
+            assertEquals(1, index.add(C, "c.tif", 1));
+            assertEquals(3, index.add(A, "c.tif", 0));
+
+            assertEquals(5, index.size());
+            assertEquals(3, index.distinct());
+            Map<String, List<String>> groups = groups(index);
+            assertEquals(1, groups.size());
+            assertEquals(Arrays.asList("a.tif [0]", "copy of a.tif [0]", "c.tif [0]"), groups.get(A));
+        }
+    }
+
+    /**
+     * 2: Tests that groups are intact after the table has doubled several times.
+     */
+    @Test
+    public void growth() throws IOException {
+        Random random = new Random(5);
+        List<String> digests = new ArrayList<>();
+        try (DuplicateIndex index = new DuplicateIndex(dir, 0)) {
+            for(int i=0; i<20000; i++){
+                String digest = String.format("%016x%016x", random.nextLong(), random.nextLong());
+                digests.add(digest);
+                index.add(digest, "file"+i, 0);
+                if(i%1000==0){
+                    index.add(digest, "dup"+i, 0);
+                }
+            }
+            assertEquals(20020, index.size());
+            assertEquals(20000, index.distinct());
+
+            Map<String, List<String>> groups = groups(index);
+            assertEquals(20, groups.size());
+            for(int i=0; i<20000; i+=1000){
+                assertEquals(Arrays.asList("file"+i+" [0]", "dup"+i+" [0]"), groups.get(digests.get(i)));
+            }
+        }
+    }
+
+    /**
+     * 3: Tests digests are read from plain and archive output, and that names longer than the log buffer are kept.
+     */
+    @Test
+    public void fromOutput() throws IOException {
+        char[] longName = new char[100000];
+        Arrays.fill(longName, 'x');
+        try (DuplicateIndex index = new DuplicateIndex(dir, 10)) {
+            index.addOutput("one.tif", "Full MD5: "+C+"\nImage MD5 [0]: "+A+"\nImage MD5 [1]: "+B+"\nIFD MD5 [0]: "+C+"\n");
+            index.addOutput("set.tar", "File: set.tar!a.tif\nImage MD5 [0]: "+A+"\n\nFile: set.tar!b.tif\nImage MD5 [0]: "
+                                       +B+"\n");
+            index.addOutput(new String(longName), "Image MD5 [0]: "+B+"\n");
+
+            Map<String, List<String>> groups = groups(index);
+            assertEquals(2, groups.size());
+            assertEquals(Arrays.asList("one.tif [0]", "set.tar!a.tif [0]"), groups.get(A));
+            assertEquals(Arrays.asList("one.tif [1]", "set.tar!b.tif [0]", new String(longName)+" [0]"), groups.get(B));
+        }
+    }
+
+    /**
+     * 4: Tests the report, and that closing the index deletes its files.
+     */
+    @Test
+    public void report() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DuplicateIndex index = new DuplicateIndex(dir, 10)) {
+            index.add(A, "a.tif", 0);
+            index.add(A, "b.tif", 0);
+            index.add(B, "c.tif", 0);
+            assertEquals(1, index.report(new PrintStream(bytes, true, "UTF-8")));
+        }
+        assertEquals("Duplicate image "+A+" (2 subfiles):\n  a.tif [0]\n  b.tif [0]\n", bytes.toString("UTF-8"));
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            assertFalse(files.iterator().hasNext());
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/**
+ * Copyright 2016 Peter May
+ * Author: Peter May
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.bl.dpt;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests relating to the EmbeddedDigest Class.
+ *
+ * Tests for:
+ *  1) Embedding appends IFDs without changing the image checksums or the existing bytes
+ *  2) A file without embedded checksums is reported as unknown
+ *  3) A change to the image data is detected, and embedding then leaves the file alone
+ *  4) Embedding in a big-endian, multi-subfile file keeps every original tag
+ */
+public class EmbeddedDigestTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path copy(String resource) throws Exception {
+        Path file = folder.getRoot().toPath().resolve(resource.substring(1));
+        Files.copy(Paths.get(getClass().getResource(resource).toURI()), file, StandardCopyOption.REPLACE_EXISTING);
+        return file;
+    }
+
+    /**
+     * 1: Tests that embedding leaves the image checksums and every original byte but the IFD offset in the
+     * header unchanged, verifies, and is not repeated.
+     */
+    @Test
+    public void embed() throws Exception {
+        Path file = copy("/T_two_subfile_single_strip.tiff");
+        byte[] before = Files.readAllBytes(file);
+        String[] images = Tifixity.checksumImage(file.toString());
+
+        EmbeddedDigest.Result result = EmbeddedDigest.embed(file.toString());
+        assertTrue(result.isWritten());
+        assertTrue(result.isOK());
+        assertEquals("EMBEDDED "+file, result.toString());
+
+        byte[] after = Files.readAllBytes(file);
+        assertTrue(after.length>before.length);
+        assertArrayEquals(Arrays.copyOfRange(before, 0, 4), Arrays.copyOfRange(after, 0, 4));
+        assertArrayEquals(Arrays.copyOfRange(before, 8, before.length), Arrays.copyOfRange(after, 8, before.length));
+        assertArrayEquals(images, Tifixity.checksumImage(file.toString()));
+
+        Tiff tiff = TiffFileHandler.loadTiffFromFile(file);
+        for(int i=0; i<images.length; i++){
+            assertEquals(images[i], EmbeddedDigest.getEmbedded(tiff, i));
+            assertTrue(tiff.getIFD(i).getOffset()>=before.length);
+        }
+
+        result = EmbeddedDigest.verify(file.toString());
+        assertTrue(result.isOK());
+        assertFalse(result.isWritten());
+        assertEquals("OK "+file, result.toString());
+
+        result = EmbeddedDigest.embed(file.toString());
+        assertFalse(result.isWritten());
+        assertArrayEquals(after, Files.readAllBytes(file));
+    }
+
+    /**
+     * 2: Tests that a file without embedded checksums is not verified.
+     */
+    @Test
+    public void notEmbedded() throws Exception {
+        Path file = copy("/T_one_strip.tiff");
+        EmbeddedDigest.Result result = EmbeddedDigest.verify(file.toString());
+        assertFalse(result.isEmbedded());
+        assertFalse(result.isOK());
+        assertNull(result.getEmbedded(0));
+        assertEquals(Tifixity.checksumImage(file.toString())[0], result.getComputed(0));
+        assertEquals("UNKNOWN "+file, result.toString());
+    }
+
+    /**
+     * 3: Tests that a changed image byte fails verification, and that embedding then keeps the old checksum.
+     */
+    @Test
+    public void tampered() throws Exception {
+        Path file = copy("/T_one_strip.tiff");
+        EmbeddedDigest.embed(file.toString());
+        String embedded = EmbeddedDigest.verify(file.toString()).getEmbedded(0);
+
+        Tiff tiff = TiffFileHandler.loadTiffFromFile(file);
+        int strip = tiff.getImageDataOffsets(0)[0];
+        byte[] bytes = Files.readAllBytes(file);
+        bytes[strip] ^= 0x01;
+        Files.write(file, bytes);
+
+        EmbeddedDigest.Result result = EmbeddedDigest.verify(file.toString());
+        assertFalse(result.isOK());
+        assertEquals(embedded, result.getEmbedded(0));
+        assertNotEquals(embedded, result.getComputed(0));
+        assertTrue(result.toString().startsWith("FAIL "+file+"\n  Image MD5 [0]: embedded "+embedded));
+
+        result = EmbeddedDigest.embed(file.toString());
+        assertFalse(result.isWritten());
+        assertArrayEquals(bytes, Files.readAllBytes(file));
+    }
+
+    /**
+     * 4: Tests that every original tag of a big-endian file survives embedding, with the new tag in order.
+     */
+    @Test
+    public void bigEndian() throws Exception {
+        ByteSource original = ByteSource.of(Paths.get(getClass().getResource("/T_16bit_uncompressed_be.tiff").toURI()));
+        Path file = copy("/T_16bit_uncompressed_be.tiff");
+        Tiff before = TiffFileHandler.loadTiffFromFile(file);
+
+        assertTrue(EmbeddedDigest.embed(file.toString()).isWritten());
+        Tiff after = TiffFileHandler.loadTiffFromFile(file);
+        assertTrue(EmbeddedDigest.verify(file.toString()).isOK());
+
+        assertEquals(before.numberOfIFDs(), after.numberOfIFDs());
+        for(int i=0; i<before.numberOfIFDs(); i++){
+            IFD a = before.getIFD(i);
+            IFD b = after.getIFD(i);
+            assertEquals(a.numberOfDirectoryEntries()+1, b.numberOfDirectoryEntries());
+            for(Integer tag: a.getDirectoryKeys()){
+                assertArrayEquals(a.getDirectoryEntry(tag).getValue(), b.getDirectoryEntry(tag).getValue());
+                if(a.getDirectoryEntry(tag).isValuePointer()){
+                    // values are shared with the original IFD, not copied
+                    assertEquals(a.getDirectoryEntry(tag).getValueOffset(), b.getDirectoryEntry(tag).getValueOffset());
+                }
+            }
+        }
+        assertArrayEquals(Tifixity.checksumImage(original), Tifixity.checksumImage(file.toString()));
+        assertEquals(Tifixity.checksumPixels(original, 0), Tifixity.checksumPixels(file.toString(), 0));
+    }
+}
@@ -0,0 +1,105 @@
+/**
+ * Copyright 2016 Peter May
+ * Author: Peter May
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.bl.dpt;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests relating to the Java Flight Recorder events.
+ *
+ * Tests for:
+ *  1) Parse, strip read and digest events are recorded with their file, offsets and sizes
+ */
+public class EventsTest {
+
+    private static final String twoStrips = "/T_two_strips_non_seq.tiff";
+
+    /**
+     * 1: Tests that checksumming a two strip TIFF records one parse event, a strip read event per strip and a
+     * digest event per checksum.
+     */
+    @Test
+    public void recordedEvents() throws Exception {
+        Path tiff = Paths.get(getClass().getResource(twoStrips).toURI());
+        Path dump = Files.createTempFile("tifixity", ".jfr");
+
+        List<RecordedEvent> events = new ArrayList<>();
+        try (Recording recording = new Recording()) {
+            recording.enable("uk.bl.dpt.Parse");
+            recording.enable("uk.bl.dpt.StripRead");
+            recording.enable("uk.bl.dpt.Digest");
+            recording.start();
+            Tifixity.checksumImage(tiff.toString(), 0);
+            recording.stop();
+            recording.dump(dump);
+
+            for(RecordedEvent event: RecordingFile.readAllEvents(dump)){
+                if(tiff.toString().equals(event.getString("path"))){
+                    events.add(event);
+                }
+            }
+        } finally {
+            Files.delete(dump);
+        }
+
+        Tiff parsed = TiffFileHandler.loadTiffFromFile(tiff);
+        List<RecordedEvent> reads = new ArrayList<>();
+        RecordedEvent parse = null;
+        RecordedEvent digest = null;
+        for(RecordedEvent event: events){
+            switch(event.getEventType().getName()){
+                case "uk.bl.dpt.Parse":
+                    parse = event;
+                    break;
+                case "uk.bl.dpt.StripRead":
+                    reads.add(event);
+                    break;
+                case "uk.bl.dpt.Digest":
+                    digest = event;
+                    break;
+            }
+        }
+
+        assertNotNull(parse);
+        assertEquals(1, parse.getInt("ifds"));
+        assertTrue(parse.getLong("bytes")>0);
+
+        assertEquals(2, reads.size());
+        for(int j=0; j<2; j++){
+            assertEquals(j, reads.get(j).getInt("strip"));
+            assertEquals(parsed.getImageDataOffsets(0)[j].longValue(), reads.get(j).getLong("offset"));
+            assertEquals(parsed.getImageDataLengths(0)[j].longValue(), reads.get(j).getLong("length"));
+        }
+
+        assertNotNull(digest);
+        assertEquals("image", digest.getString("kind"));
+        assertEquals(0, digest.getInt("subFile"));
+        assertEquals(parsed.getImageDataLengths(0)[0]+parsed.getImageDataLengths(0)[1], digest.getLong("bytes"));
+        assertFalse(digest.getDuration().isNegative());
+    }
+}
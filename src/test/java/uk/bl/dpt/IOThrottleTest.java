@@ -0,0 +1,138 @@
+/**
+ * Copyright 2016 Peter May
+ * Author: Peter May
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.bl.dpt;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests relating to the IOThrottle Class.
+ *
+ * Tests for:
+ *  1) An unlimited throttle never waits
+ *  2) Reads beyond the bytes per second budget wait
+ *  3) Reads beyond the operations per second budget wait, until the limit is removed at runtime
+ *  4) Limits are loaded from a control file
+ *  5) A throttled channel reads the same bytes as the file, charging only the bytes read
+ */
+public class IOThrottleTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static long elapsedMillis(long start){
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime()-start);
+    }
+
+    /**
+     * 1: An unlimited throttle never waits
+     */
+    @Test
+    public void unlimited() throws Exception {
+        IOThrottle throttle = new IOThrottle(0, 0);
+        long start = System.nanoTime();
+        for(int i=0; i<10000; i++){
+            throttle.acquire(1<<20);
+        }
+        assertTrue(elapsedMillis(start)<1000);
+        assertEquals(10000L<<20, throttle.getBytesRead());
+        assertEquals(10000, throttle.getOperations());
+    }
+
+    /**
+     * 2: The first second of bytes is allowed immediately, the excess waits
+     */
+    @Test
+    public void bytesPerSecond() throws Exception {
+        IOThrottle throttle = new IOThrottle(1000000, 0);
+        long start = System.nanoTime();
+        throttle.acquire(1000000);
+        assertTrue(elapsedMillis(start)<100);
+
+        throttle.acquire(200000);
+        assertTrue(elapsedMillis(start)>=150);
+    }
+
+    /**
+     * 3: Operations beyond the IOPS budget wait, until the limit is removed
+     */
+    @Test
+    public void operationsPerSecond() throws Exception {
+        IOThrottle throttle = new IOThrottle(0, 50);
+        long start = System.nanoTime();
+        for(int i=0; i<60; i++){
+            throttle.acquire(1);
+        }
+        assertTrue(elapsedMillis(start)>=150);
+
+        throttle.setOperationsPerSecond(0);
+        start = System.nanoTime();
+        for(int i=0; i<1000; i++){
+            throttle.acquire(1);
+        }
+        assertTrue(elapsedMillis(start)<100);
+    }
+
+    /**
+     * 4: Limits are loaded from a control file; missing keys are unchanged
+     */
+    @Test
+    public void controlFile() throws Exception {
+        IOThrottle throttle = new IOThrottle(10, 20);
+        Path control = folder.newFile("throttle.properties").toPath();
+
+        Files.write(control, (IOThrottle.BYTES_PER_SECOND+"=5000000\n").getBytes(StandardCharsets.ISO_8859_1));
+        throttle.load(control);
+        assertEquals(5000000, throttle.getBytesPerSecond());
+        assertEquals(20, throttle.getOperationsPerSecond());
+
+        Files.write(control, (IOThrottle.OPERATIONS_PER_SECOND+"=0\n").getBytes(StandardCharsets.ISO_8859_1));
+        throttle.load(control);
+        assertEquals(5000000, throttle.getBytesPerSecond());
+        assertEquals(0, throttle.getOperationsPerSecond());
+    }
+
+    /**
+     * 5: A throttled channel returns the file's bytes, and is charged for them rather than for the larger buffer
+     */
+    @Test
+    public void throttledChannel() throws Exception {
+        Path path = Paths.get(getClass().getResource("/T_two_strips_seq.tiff").toURI());
+        byte[] expected = Files.readAllBytes(path);
+
+        IOThrottle throttle = new IOThrottle(100000000, 1000000);
+        ByteBuffer buf = ByteBuffer.allocate(expected.length+(1<<20));
+        try (SeekableByteChannel sbc = new ThrottledChannel(Files.newByteChannel(path), throttle)){
+            assertEquals(expected.length, sbc.size());
+            while(buf.hasRemaining() && sbc.read(buf)>-1);
+        }
+        assertArrayEquals(expected, Arrays.copyOf(buf.array(), buf.position()));
+        assertEquals(expected.length, throttle.getBytesRead());
+    }
+}
@@ -0,0 +1,130 @@
+/**
+ * Copyright 2016 Peter May
+ * Author: Peter May
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.bl.dpt;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests relating to the ImageDataIndex Class.
+ *
+ * Tests for:
+ *  1) Index of unsorted, non-overlapping strips
+ *  2) Merging of overlapping, touching and empty strips
+ *  3) Lookup of the range containing an offset
+ *  4) Iteration over the non-image ranges of a file
+ *  5) Index built from a TIFF with two subfiles is cached until an IFD is added
+ */
+public class ImageDataIndexTest {
+
+    /**
+     * 1: Tests that unsorted strips are returned in ascending order.
+     */
+    @Test
+    public void unsortedStrips(){
+        ImageDataIndex index = ImageDataIndex.build(new long[]{0x1e8, 8}, new long[]{150, 150}, 2);
+
+        assertEquals(2, index.size());
+        assertEquals(8, index.getStart(0));
+        assertEquals(158, index.getEnd(0));
+        assertEquals(0x1e8, index.getStart(1));
+        assertEquals(0x1e8+150, index.getEnd(1));
+    }
+
+    /**
+     * 2: Tests that overlapping and touching strips are merged and empty strips are ignored.
+     */
+    @Test
+    public void mergedStrips(){
+        ImageDataIndex index = ImageDataIndex.build(new long[]{100, 8, 50, 20, 300},
+                                                    new long[]{50, 42, 10, 10, 0}, 5);
+
+        assertEquals(2, index.size());
+        assertEquals(8, index.getStart(0));
+        assertEquals(60, index.getEnd(0));
+        assertEquals(100, index.getStart(1));
+        assertEquals(150, index.getEnd(1));
+    }
+
+    /**
+     * 3: Tests lookup of the range containing an offset.
+     */
+    @Test
+    public void lookup(){
+        ImageDataIndex index = ImageDataIndex.build(new long[]{8, 100}, new long[]{10, 50}, 2);
+
+        assertEquals(-1, index.indexOf(0));
+        assertEquals(0, index.indexOf(8));
+        assertEquals(0, index.indexOf(17));
+        assertEquals(-1, index.indexOf(18));
+        assertEquals(1, index.indexOf(149));
+        assertEquals(-1, index.indexOf(150));
+        assertFalse(index.isImageData(7));
+        assertTrue(index.isImageData(100));
+    }
+
+    /**
+     * 4: Tests iteration over the non-image ranges of a file.
+     */
+    @Test
+    public void nonImageRanges() throws Exception {
+        ImageDataIndex index = ImageDataIndex.build(new long[]{8, 100}, new long[]{10, 50}, 2);
+
+        final List<long[]> ranges = new ArrayList<>();
+        index.forEachNonImageRange(200, new ImageDataIndex.RangeConsumer() {
+            @Override
+            public void accept(long start, long end) {
+                ranges.add(new long[]{start, end});
+            }
+        });
+
+        assertEquals(3, ranges.size());
+        assertArrayEquals(new long[]{0, 8}, ranges.get(0));
+        assertArrayEquals(new long[]{18, 100}, ranges.get(1));
+        assertArrayEquals(new long[]{150, 200}, ranges.get(2));
+    }
+
+    /**
+     * 5: Tests that the index covers all subfiles and is rebuilt when an IFD is added.
+     */
+    @Test
+    public void tiffIndexCached(){
+        Tiff tiff = new Tiff();
+        IFD ifd1 = new IFD();
+        ifd1.addDirectoryEntry(IFDTag.StripOffsets, IFDType.LONG, 1, 0L, new Integer[]{8});
+        ifd1.addDirectoryEntry(IFDTag.StripByteCounts, IFDType.LONG, 1, 0L, new Integer[]{30});
+        tiff.addIFD(ifd1);
+
+        ImageDataIndex index = tiff.getImageDataIndex();
+        assertSame(index, tiff.getImageDataIndex());
+        assertEquals(1, index.size());
+
+        IFD ifd2 = new IFD();
+        ifd2.addDirectoryEntry(IFDTag.StripOffsets, IFDType.LONG, 1, 0L, new Integer[]{100});
+        ifd2.addDirectoryEntry(IFDTag.StripByteCounts, IFDType.LONG, 1, 0L, new Integer[]{40});
+        tiff.addIFD(ifd2);
+
+        index = tiff.getImageDataIndex();
+        assertEquals(2, index.size());
+        assertEquals(100, index.getStart(1));
+        assertEquals(140, index.getEnd(1));
+    }
+}
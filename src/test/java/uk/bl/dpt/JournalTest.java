@@ -0,0 +1,142 @@
+/**
+ * Copyright 2016 Peter May
+ * Author: Peter May
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.bl.dpt;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests relating to the batch journal.
+ *
+ * Tests for:
+ *  1) Completed records are read back by key
+ *  2) Records are buffered until the sync batch size is reached
+ *  3) A partial record left by a crash is ignored and removed before appending
+ *  4) Multi-line output is stored as a single record
+ *  5) Long records are read back, and a partial last record cut inside a character is ignored
+ */
+public class JournalTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * 1: Completed records are read back
+     */
+    @Test
+    public void readCompleted() throws Exception {
+        Path path = folder.getRoot().toPath().resolve("journal");
+        assertTrue(Journal.readCompleted(path).isEmpty());
+
+        try (Journal journal = new Journal(path)){
+            journal.append("a.tiff", "Image MD5 [0]: 00\n");
+            journal.append("b.tiff", "Image MD5 [0]: 11\n");
+        }
+
+        Set<String> completed = Journal.readCompleted(path);
+        assertEquals(2, completed.size());
+        assertTrue(completed.contains(Journal.key("a.tiff")));
+        assertTrue(completed.contains(Journal.key("b.tiff")));
+    }
+
+    /**
+     * 2: Records are only written once the batch size is reached
+     */
+    @Test
+    public void batchedSync() throws Exception {
+        Path path = folder.getRoot().toPath().resolve("journal");
+        try (Journal journal = new Journal(path, 2, Long.MAX_VALUE)){
+            journal.append("a.tiff", "x");
+            assertEquals(0, Journal.readCompleted(path).size());
+            journal.append("b.tiff", "y");
+            assertEquals(2, Journal.readCompleted(path).size());
+            journal.append("c.tiff", "z");
+            assertEquals(2, Journal.readCompleted(path).size());
+        }
+        assertEquals(3, Journal.readCompleted(path).size());
+    }
+
+    /**
+     * 3: A partial last record is ignored and then replaced
+     */
+    @Test
+    public void partialRecord() throws Exception {
+        Path path = folder.getRoot().toPath().resolve("journal");
+        try (Journal journal = new Journal(path)){
+            journal.append("a.tiff", "x");
+        }
+        Files.write(path, (Journal.key("b.tiff")+"\tpartial").getBytes(StandardCharsets.UTF_8),
+                    StandardOpenOption.APPEND);
+
+        Set<String> completed = Journal.readCompleted(path);
+        assertEquals(1, completed.size());
+        assertFalse(completed.contains(Journal.key("b.tiff")));
+
+        try (Journal journal = new Journal(path)){
+            journal.append("c.tiff", "y");
+        }
+        String contents = new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+        assertFalse(contents.contains("partial"));
+        assertEquals(2, Journal.readCompleted(path).size());
+    }
+
+    /**
+     * 4: Newlines and backslashes in the output are escaped
+     */
+    @Test
+    public void escapedOutput() throws Exception {
+        Path path = folder.getRoot().toPath().resolve("journal");
+        try (Journal journal = new Journal(path)){
+            journal.append("a.tiff", "line 1\\\nline 2\n");
+        }
+        String contents = new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+        assertEquals(Journal.key("a.tiff")+"\tline 1\\\\\\nline 2\\n\n", contents);
+    }
+
+    /**
+     * 5: Long records are read back by key, and a partial last record ending mid-character is ignored
+     */
+    @Test
+    public void longRecords() throws Exception {
+        Path path = folder.getRoot().toPath().resolve("journal");
+        StringBuilder output = new StringBuilder();
+        for(int i=0; i<100000; i++){
+            output.append("Strip MD5 [0.").append(i).append("]: 00\n");
+        }
+        try (Journal journal = new Journal(path)){
+            journal.append("a.tiff", output.toString());
+            journal.append("b.tiff", output.toString());
+        }
+        byte[] partial = (Journal.key("c.tiff")+"\tx\u00e9").getBytes(StandardCharsets.UTF_8);
+        Files.write(path, Arrays.copyOf(partial, partial.length-1), StandardOpenOption.APPEND);
+
+        Set<String> completed = Journal.readCompleted(path);
+        assertEquals(2, completed.size());
+        assertTrue(completed.contains(Journal.key("a.tiff")));
+        assertTrue(completed.contains(Journal.key("b.tiff")));
+    }
+}
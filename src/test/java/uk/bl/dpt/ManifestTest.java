@@ -0,0 +1,229 @@
+/**
+ * Copyright 2016 Peter May
+ * Author: Peter May
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.bl.dpt;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests relating to the binary manifest and the manifest converters.
+ *
+ * Tests for:
+ *  1) Records are read from Tifixity output, including strip manifest lines
+ *  2) Lookup in a binary manifest built with an external merge of many index runs, and with runs grown in memory
+ *  3) Lookup of missing paths and of a repeated path; text files are not opened as binary
+ *  4) Round trips between the binary, text and NDJSON forms
+ *  5) A quick check manifest is read from the binary form
+ */
+public class ManifestTest {
+
+    private static final String A = "1d4808fbbc37c098520c4e927cccf332";
+    private static final String B = "a3c1f7e8b21fe5d45c0b69b3d3a8e6f0";
+    private static final String C = "ffffffffffffffff0000000000000001";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static ManifestRecord record(int n){
+        String[] image = n%3==0 ? null : new String[]{A, n%2==0 ? null : B};
+        String[][] strips = n%5==0 ? new String[][]{{C, A}, {B}} : null;
+        return new ManifestRecord("/data/file"+n+".tif", n, 1000L*n, n%2==0 ? C : null, n%2==0 ? A : null,
+                                  image, n%4==0 ? new String[]{B} : null, strips);
+    }
+
+    /**
+     * 1: Tests reading a record from default, --all and --strips output.
+     */
+    @Test
+    public void fromOutput(){
+        String output = "File: /data/a.tif\nFull MD5: "+A+"\nRemaining MD5: "+B+"\nImage MD5 [0]: "+C
+                        +"\nImage MD5 [1]: "+A+"\nIFD MD5 [1]: "+B+"\n"
+                        +StripManifest.format("/data/a.tif", new String[]{C, A}, new String[][]{{A, B}, {C}});
+        ManifestRecord record = ManifestRecord.fromOutput("/data/a.tif", 10, 20, output);
+
+        assertEquals(2, record.numberOfSubfiles());
+        assertEquals(A, record.getFullDigest());
+        assertEquals(B, record.getRemainingDigest());
+        assertEquals(C, record.getImageDigest(0));
+        assertEquals(A, record.getImageDigest(1));
+        assertEquals(C, record.getIFDDigest(0));
+        assertEquals(A, record.getIFDDigest(1));
+        assertArrayEquals(new String[]{A, B}, record.getStripDigests(0));
+        assertArrayEquals(new String[]{C}, record.getStripDigests(1));
+        assertNull(record.getStripDigests(2));
+    }
+
+    /**
+     * 2: Tests lookup of every record when the index is sorted in many runs and merged, and when the run is
+     * grown as records are added, up to and beyond its limit.
+     */
+    @Test
+    public void externalMerge() throws Exception {
+        Path file = folder.newFile("manifest.bin").toPath();
+        try (BinaryManifest.Writer writer = new BinaryManifest.Writer(file, 7)) {
+            for(int i=1000; i>0; i--){
+                writer.add(record(i));
+            }
+        }
+        assertEquals(0, folder.getRoot().list().length-1);
+
+        try (BinaryManifest manifest = BinaryManifest.open(file)) {
+            assertEquals(1000, manifest.size());
+            for(int i=1; i<=1000; i++){
+                assertEquals(record(i), manifest.get("/data/file"+i+".tif"));
+            }
+            assertNull(manifest.get("/data/file0.tif"));
+            assertNull(manifest.get("/data/file1001.tif"));
+
+            final List<String> order = new ArrayList<>();
+            manifest.forEach(new BinaryManifest.RecordVisitor() {
+                @Override
+                public void visit(ManifestRecord record) {
+                    order.add(record.getPath());
+                }
+            });
+            assertEquals(1000, order.size());
+            assertEquals("/data/file1000.tif", order.get(0));
+            assertEquals("/data/file1.tif", order.get(999));
+        }
+
+        for(int runSize: new int[]{3000, 1500}){
+            Path grown = folder.getRoot().toPath().resolve("grown"+runSize+".bin");
+            try (BinaryManifest.Writer writer = BinaryManifest.create(grown, runSize)) {
+                for(int i=2500; i>0; i--){
+                    writer.add(record(i));
+                }
+            }
+            try (BinaryManifest manifest = BinaryManifest.open(grown)) {
+                assertEquals(2500, manifest.size());
+                for(int i=1; i<=2500; i++){
+                    assertEquals(record(i), manifest.get("/data/file"+i+".tif"));
+                }
+            }
+        }
+    }
+
+    /**
+     * 3: Tests that a missing path is not found, a repeated path returns the first record and a text manifest
+     * is not opened as binary.
+     */
+    @Test
+    public void collisionsAndRepeats() throws Exception {
+        Path file = folder.newFile("manifest.bin").toPath();
+        ManifestRecord first = new ManifestRecord("/data/x.tif", 1, 2, null, null, new String[]{A}, null, null);
+        ManifestRecord second = new ManifestRecord("/data/x.tif", 3, 4, null, null, new String[]{B}, null, null);
+        ManifestRecord other = new ManifestRecord("/data/y.tif", 5, 6, null, null, new String[]{C}, null, null);
+        try (BinaryManifest.Writer writer = BinaryManifest.create(file)) {
+            writer.add(first);
+            writer.add(other);
+            writer.add(second);
+        }
+
+        try (BinaryManifest manifest = BinaryManifest.open(file)) {
+            assertEquals(3, manifest.size());
+            assertEquals(first, manifest.get("/data/x.tif"));
+            assertEquals(other, manifest.get("/data/y.tif"));
+            assertNull(manifest.get("/data/z.tif"));
+        }
+
+        assertTrue(BinaryManifest.isBinary(file));
+        Path text = folder.newFile("manifest.txt").toPath();
+        Files.write(text, "ifd\t0\t".concat(A).concat("\t/data/x.tif\n").getBytes("UTF-8"));
+        assertFalse(BinaryManifest.isBinary(text));
+        try {
+            BinaryManifest.open(text);
+            fail("Opened a text manifest as binary");
+        } catch (IOException expected){
+            // not a binary manifest
+        }
+    }
+
+    /**
+     * 4: Tests that records survive conversion from binary to text to NDJSON and back to binary.
+     */
+    @Test
+    public void roundTrips() throws Exception {
+        Path bin = folder.getRoot().toPath().resolve("a.bin");
+        try (BinaryManifest.Writer writer = BinaryManifest.create(bin)) {
+            for(int i=1; i<=50; i++){
+                writer.add(record(i));
+            }
+        }
+        Path text = folder.getRoot().toPath().resolve("a.txt");
+        Path json = folder.getRoot().toPath().resolve("a.ndjson");
+        Path bin2 = folder.getRoot().toPath().resolve("b.bin");
+        assertEquals(50, ManifestConverter.convert(bin, text));
+        assertEquals(50, ManifestConverter.convert(text, json));
+        assertEquals(50, ManifestConverter.convert(json, bin2));
+        assertEquals(ManifestConverter.Format.NDJSON, ManifestConverter.formatOf(json));
+        assertEquals(ManifestConverter.Format.BINARY, ManifestConverter.formatOf(bin2));
+
+        try (BinaryManifest manifest = BinaryManifest.open(bin2)) {
+            for(int i=1; i<=50; i++){
+                assertEquals(record(i), manifest.get("/data/file"+i+".tif"));
+            }
+        }
+
+        ManifestRecord quoted = new ManifestRecord("/data/\"odd\"\\name\u0001.tif", -1, -1, null, null,
+                                                   new String[]{A}, null, null);
+        assertEquals(quoted, ManifestConverter.fromJSON(ManifestConverter.toJSON(quoted).trim()));
+
+        for(String malformed: new String[]{"{\"path\":", "[\"/data/x.tif\"]", "{\"path\":\"/data/x.tif\"} x",
+                                           "{\"path\":\"/data/x.tif\",\"size\":1.5}", "{\"path\":7}"}){
+            try {
+                ManifestConverter.fromJSON(malformed);
+                fail("Parsed "+malformed);
+            } catch (IOException expected){
+                // not a manifest record
+            }
+        }
+    }
+
+    /**
+     * 5: Tests that a quick check reads IFD and strip checksums from a binary manifest.
+     */
+    @Test
+    public void quickCheckFromBinary() throws Exception {
+        String file = Paths.get(getClass().getResource("/T_raster_chunky_strips.tiff").toURI()).toString();
+        String key = StripManifest.key(file);
+        String output = StripManifest.format(file, Tifixity.checksumIFDs(file), Tifixity.checksumStrips(file));
+
+        File bin = folder.newFile("strips.bin");
+        try (BinaryManifest.Writer writer = BinaryManifest.create(bin.toPath())) {
+            writer.add(ManifestRecord.fromOutput(key, -1, -1, output));
+        }
+        StripManifest manifest = StripManifest.read(bin.toPath(), Collections.singleton(key));
+        assertNotNull(manifest.get(file));
+        assertEquals(Tifixity.checksumIFDs(file)[0], manifest.get(file).getIFDDigest(0));
+        assertEquals(Tifixity.checksumStrips(file)[0][2], manifest.get(file).getStripDigest(0, 2));
+
+        QuickCheck.Result result = new QuickCheck(manifest, 1.0, 0).check(file);
+        assertTrue(result.toString(), result.isOK());
+    }
+}
@@ -0,0 +1,269 @@
+/**
+ * Copyright 2016 Peter May
+ * Author: Peter May
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.bl.dpt;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests relating to the MemoryBudget Class.
+ *
+ * Tests for:
+ *  1) Reserving, growing and releasing memory
+ *  2) A reservation that does not fit waits until memory is released
+ *  3) A ranged reservation degrades to what is available
+ *  4) Holders all waiting for more memory are not deadlocked
+ *  5) An engine with a tiny budget gives the same checksums and releases everything it reserved
+ *  6) A spill store spills early when the budget is short
+ *  7) A spill store counts partly released arrays whole, until their remaining parts are copied out
+ */
+public class MemoryBudgetTest {
+
+    private String path(String resource) throws Exception {
+        return Paths.get(getClass().getResource(resource).toURI()).toString();
+    }
+
+    /**
+     * 1: Tests the reserved, peak and per-reservation totals as reservations grow, shrink and close.
+     */
+    @Test
+    public void reserveAndRelease() throws Exception {
+        MemoryBudget budget = new MemoryBudget(100);
+        MemoryBudget.Reservation a = budget.reserve(30);
+        MemoryBudget.Reservation b = budget.reserve(20);
+        assertEquals(50, budget.getReserved());
+
+        b.grow(40);
+        assertEquals(60, b.getBytes());
+        assertEquals(90, budget.getReserved());
+        assertFalse(a.tryGrow(20));
+        assertTrue(a.tryGrow(10));
+
+        b.release(50);
+        assertEquals(10, b.getBytes());
+        a.close();
+        a.close();
+        b.close();
+        assertEquals(0, budget.getReserved());
+        assertEquals(100, budget.getPeakReserved());
+        assertEquals(0, budget.getWaits());
+        assertEquals(0, budget.getOvercommits());
+
+        try {
+            a.grow(1);
+            fail("Grew a closed reservation");
+        } catch (IllegalStateException e){
+            // expected
+        }
+        try {
+            new MemoryBudget(0);
+            fail("Accepted an empty budget");
+        } catch (IllegalArgumentException e){
+            // expected
+        }
+    }
+
+    /**
+     * 2: Tests that a reservation blocks while the budget is exhausted and proceeds once memory is released.
+     */
+    @Test
+    public void waitsForMemory() throws Exception {
+        final MemoryBudget budget = new MemoryBudget(100);
+        MemoryBudget.Reservation held = budget.reserve(80);
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Long> waiting = executor.submit(new Callable<Long>() {
+                @Override
+                public Long call() throws Exception {
+                    try (MemoryBudget.Reservation r = budget.reserve(50)) {
+                        return r.getBytes();
+                    }
+                }
+            });
+
+            // still waiting while the memory is held
+            long deadline = System.currentTimeMillis()+5000;
+            while(budget.getWaits()==0 && System.currentTimeMillis()<deadline){
+                Thread.sleep(10);
+            }
+            assertEquals(1, budget.getWaits());
+            assertFalse(waiting.isDone());
+
+            held.close();
+            assertEquals(50, (long) waiting.get(5, TimeUnit.SECONDS));
+            assertEquals(0, budget.getReserved());
+            assertEquals(0, budget.getOvercommits());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * 3: Tests that a ranged reservation takes what is available without waiting, and the preferred amount
+     * when it is available.
+     */
+    @Test
+    public void degrades() throws Exception {
+        MemoryBudget budget = new MemoryBudget(100);
+        MemoryBudget.Reservation held = budget.reserve(70);
+
+        MemoryBudget.Reservation partial = budget.reserve(64, 16);
+        assertEquals(30, partial.getBytes());
+        partial.close();
+
+        held.close();
+        MemoryBudget.Reservation full = budget.reserve(64, 16);
+        assertEquals(64, full.getBytes());
+        full.close();
+        assertEquals(0, budget.getWaits());
+    }
+
+    /**
+     * 4: Tests that two threads each holding half the budget and both waiting to grow are not deadlocked: one
+     * is granted memory beyond the capacity and the other proceeds when it finishes.
+     */
+    @Test
+    public void noDeadlock() throws Exception {
+        final MemoryBudget budget = new MemoryBudget(100);
+        final CountDownLatch holding = new CountDownLatch(2);
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Callable<Long> task = new Callable<Long>() {
+                @Override
+                public Long call() throws Exception {
+                    try (MemoryBudget.Reservation r = budget.reserve(50)) {
+                        holding.countDown();
+                        holding.await();
+                        r.grow(30);
+                        return r.getBytes();
+                    }
+                }
+            };
+            Future<Long> first = executor.submit(task);
+            Future<Long> second = executor.submit(task);
+
+            assertEquals(80, (long) first.get(10, TimeUnit.SECONDS));
+            assertEquals(80, (long) second.get(10, TimeUnit.SECONDS));
+            assertEquals(0, budget.getReserved());
+            assertTrue(budget.getOvercommits()>=1);
+            assertTrue(budget.getPeakReserved()<=130);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * 5: Tests that an engine whose budget is smaller than any file's needs gives the same checksums, with
+     * pixel and raster windows reduced, and leaves nothing reserved.
+     */
+    @Test
+    public void tinyBudget() throws Exception {
+        MemoryBudget budget = new MemoryBudget(1);
+        TifixityEngine small = new TifixityEngine(TifixityConfig.builder().all(true).pixels(true).raster(true)
+                                                          .memoryBudget(budget).build());
+        TifixityEngine normal = new TifixityEngine(small.getConfig().toBuilder()
+                                                          .memoryBudget(new MemoryBudget(1L<<30)).build());
+
+        for(String file: new String[]{"/T_raster_planar_strips.tiff", "/T_two_strips_compressed_lzw_predictor.tiff"}){
+            assertEquals(normal.checksum(path(file)), small.checksum(path(file)));
+        }
+        assertEquals(0, budget.getReserved());
+        assertTrue(budget.getPeakReserved()>1);
+        assertEquals(0, budget.getWaits());
+
+        // a TIFF loaded by the engine holds its reservation until released
+        Tiff tiff = small.load(ByteSource.of(Paths.get(path("/T_one_strip.tiff"))));
+        assertTrue(budget.getReserved()>0);
+        tiff.release();
+        assertEquals(0, budget.getReserved());
+    }
+
+    /**
+     * 6: Tests that a spill store writes to its temporary file, rather than waiting, once the budget is exhausted.
+     */
+    @Test
+    public void spillsEarly() throws Exception {
+        MemoryBudget budget = new MemoryBudget(100);
+        byte[] data = new byte[60];
+        try (SpillStore store = new SpillStore(1024, budget)) {
+            store.put(0, data, 0, data.length);
+            assertEquals(60, store.getMemoryUsed());
+            assertEquals(0, store.getSpilled());
+
+            store.put(60, data, 0, data.length);
+            assertEquals(60, store.getMemoryUsed());
+            assertEquals(60, store.getSpilled());
+            assertEquals(60, budget.getReserved());
+
+            store.release(0, 60);
+            assertEquals(0, budget.getReserved());
+        }
+        assertEquals(0, budget.getWaits());
+    }
+
+    /**
+     * 7: Tests that releasing parts of a stored range keeps its whole array counted, and that once half of it
+     * or less remains the rest is copied out and the array released.
+     */
+    @Test
+    public void partialRelease() throws Exception {
+        MemoryBudget budget = new MemoryBudget(4096);
+        byte[] data = new byte[1000];
+        for(int i=0; i<data.length; i++){
+            data[i] = (byte) i;
+        }
+        try (SpillStore store = new SpillStore(4096, budget)) {
+            store.put(0, data, 0, data.length);
+            store.release(0, 100);
+            assertEquals(1000, store.getMemoryUsed());
+            assertEquals(1000, budget.getReserved());
+
+            store.release(200, 600);
+            assertEquals(500, store.getMemoryUsed());
+            assertEquals(500, budget.getReserved());
+            assertEquals(0, store.getSpilled());
+
+            ByteBuffer buf = ByteBuffer.allocate(500);
+            assertEquals(0, store.read(0, buf));
+            assertEquals(100, store.read(100, buf));
+            assertEquals(0, store.read(200, buf));
+            assertEquals(400, store.read(600, buf));
+            byte[] expected = new byte[500];
+            System.arraycopy(data, 100, expected, 0, 100);
+            System.arraycopy(data, 600, expected, 100, 400);
+            assertArrayEquals(expected, buf.array());
+
+            store.release(100, 200);
+            assertEquals(400, store.getMemoryUsed());
+            store.release(600, 1000);
+            assertEquals(0, store.getMemoryUsed());
+            assertEquals(0, budget.getReserved());
+        }
+    }
+}
@@ -0,0 +1,218 @@
+/**
+ * Copyright 2016 Peter May
+ * Author: Peter May
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.bl.dpt;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests relating to the parser's handling of malformed TIFFs and its {@link ParserLimits}.
+ *
+ * Tests for:
+ *  1) An IFD chain that loops back on itself is rejected
+ *  2) An IFD with more entries than the limit is rejected
+ *  3) A tag value extending past the end of the file is rejected
+ *  4) An unknown field type is rejected
+ *  5) A file whose tag values exceed the allocation budget is rejected
+ *  6) Randomly corrupted files fail cleanly with an IOException, in bounded time
+ */
+public class ParserLimitsTest {
+
+    private static final String[] fuzzTiffs = {
+            "/T_one_strip.tiff", "/T_two_subfile_single_strip.tiff", "/T_one_strip_compressed_lzw.tiff",
+            "/T_two_strips_compressed_lzw_predictor.tiff", "/T_two_strips_compressed_packbits.tiff",
+            "/T_16bit_compressed_deflate_predictor_le.tiff", "/T_raster_planar_tiles.tiff",
+            "/T_raster_chunky_tiles.tiff" };
+
+    @After
+    public void resetLimits(){
+        TiffFileHandler.setLimits(ParserLimits.DEFAULT);
+    }
+
+    /**
+     * Builds a little-endian TIFF with one IFD at offset 8 holding the specified entries.
+     * @param entries   each entry as {tag, type, count, value}
+     * @param nextIFD   the offset of the next IFD
+     * @param extra     number of zero bytes to append after the IFD
+     * @return
+     */
+    private static ByteBuffer tiff(int[][] entries, int nextIFD, int extra){
+        ByteBuffer buf = ByteBuffer.allocate(8+2+12*entries.length+4+extra).order(ByteOrder.LITTLE_ENDIAN);
+        buf.put((byte) 'I').put((byte) 'I').putShort((short) 42).putInt(8);
+        buf.putShort((short) entries.length);
+        for(int[] entry: entries){
+            buf.putShort((short) entry[0]).putShort((short) entry[1]).putInt(entry[2]).putInt(entry[3]);
+        }
+        buf.putInt(nextIFD);
+        buf.rewind();
+        return buf;
+    }
+
+    private static int[][] stripEntries(){
+        return new int[][]{ {273, 4, 1, 8}, {279, 4, 1, 0} };
+    }
+
+    private static void assertRejected(ByteBuffer tiff, String message){
+        try {
+            TiffFileHandler.loadTiff(ByteSource.of(tiff));
+            fail("Expected TiffFormatException");
+        } catch (TiffFormatException e){
+            assertTrue(e.getMessage(), e.getMessage().contains(message));
+        } catch (IOException e){
+            fail(e.toString());
+        }
+    }
+
+    /**
+     * 1: Tests that an IFD whose next IFD offset points back to itself is rejected.
+     */
+    @Test
+    public void ifdLoop() throws IOException {
+        // a well-formed single IFD loads
+        assertEquals(1, TiffFileHandler.loadTiff(ByteSource.of(tiff(stripEntries(), 0, 0))).numberOfIFDs());
+
+        assertRejected(tiff(stripEntries(), 8, 0), "loops back to offset 8");
+    }
+
+    /**
+     * 2: Tests that an IFD with more entries than the limit is rejected before its entries are read.
+     */
+    @Test
+    public void tooManyEntries(){
+        TiffFileHandler.setLimits(new ParserLimits(10, 1, 1024, 1024, 1024));
+        assertRejected(tiff(stripEntries(), 0, 0), "has 2 entries (limit 1)");
+    }
+
+    /**
+     * 3: Tests that a tag value extending past the end of the file is rejected.
+     */
+    @Test
+    public void truncatedValue(){
+        int[][] entries = { {273, 4, 1, 8}, {279, 4, 1, 0}, {270, 2, 100, 30} };
+        assertRejected(tiff(entries, 0, 0), "Truncated tag value");
+    }
+
+    /**
+     * 4: Tests that an unknown field type is rejected.
+     */
+    @Test
+    public void unknownType(){
+        int[][] entries = { {273, 4, 1, 8}, {279, 4, 1, 0}, {305, 99, 1, 0} };
+        assertRejected(tiff(entries, 0, 0), "Unknown field type 99 for tag 305");
+    }
+
+    /**
+     * 5: Tests that huge value counts are rejected without allocating them, both singly and in total.
+     */
+    @Test
+    public void allocationBudget(){
+        int[][] huge = { {273, 4, 1, 8}, {279, 4, 1, 0}, {270, 2, 0x7FFFFFFF, 8} };
+        assertRejected(tiff(huge, 0, 0), "Value of tag 270");
+
+        TiffFileHandler.setLimits(new ParserLimits(10, 100, 1024, 4000, 1024));
+        int[][] many = { {273, 4, 1, 8}, {279, 4, 1, 0}, {270, 1, 1000, 8}, {305, 1, 1000, 8} };
+        assertRejected(tiff(many, 0, 2000), "Parsing needs more than 4000 bytes");
+    }
+
+    /**
+     * 6: Tests that randomly corrupted files either checksum or fail with an IOException, and that the whole
+     * run completes in bounded time with allocations held to the limits.
+     */
+    @Test
+    public void fuzz() throws Exception {
+        TiffFileHandler.setLimits(new ParserLimits(64, 1024, 1024*1024, 4*1024*1024, 4*1024*1024));
+        Random random = new Random(20160301L);
+        List<String> failures = new ArrayList<>();
+        long start = System.nanoTime();
+        int rejected = 0;
+
+        for(String name: fuzzTiffs){
+            URL url = getClass().getResource(name);
+            byte[] original = Files.readAllBytes(Paths.get(url.toURI()));
+
+            for(int iteration=0; iteration<500; iteration++){
+                byte[] data = mutate(original, random);
+                ByteSource source = ByteSource.of(ByteBuffer.wrap(data));
+                try {
+                    Tifixity.checksumImage(source);
+                    Tifixity.checksumIFDs(source);
+                    Tifixity.checksumStrips(source);
+                    Tifixity.checksumPixels(source);
+                    Tifixity.checksumRaster(source);
+                    StreamDigester.digest(new ByteArrayInputStream(data), 64*1024);
+                } catch (IOException e){
+                    rejected++;
+                } catch (Exception | Error e){
+                    failures.add(name+" #"+iteration+": "+e);
+                }
+            }
+        }
+
+        assertTrue(failures.toString(), failures.isEmpty());
+        assertTrue(rejected>0);
+        assertTrue((System.nanoTime()-start)/1000000000L<60);
+    }
+
+    /**
+     * Corrupts a few bytes of the specified file, favouring the header and IFD bytes that drive the parser.
+     */
+    private static byte[] mutate(byte[] original, Random random){
+        byte[] data = original.clone();
+        int mutations = 1+random.nextInt(8);
+        for(int i=0; i<mutations; i++){
+            int position;
+            switch(random.nextInt(3)){
+                case 0:
+                    position = random.nextInt(Math.min(16, data.length));
+                    break;
+                case 1:
+                    // the last IFD is usually near the end of these fixtures
+                    position = Math.max(0, data.length-1-random.nextInt(Math.min(400, data.length)));
+                    break;
+                default:
+                    position = random.nextInt(data.length);
+                    break;
+            }
+            switch(random.nextInt(3)){
+                case 0:
+                    data[position] = (byte) random.nextInt(256);
+                    break;
+                case 1:
+                    data[position] = (byte) 0xFF;
+                    break;
+                default:
+                    data[position] ^= (byte) (1<<random.nextInt(8));
+                    break;
+            }
+        }
+        return data;
+    }
+}
@@ -0,0 +1,127 @@
+/**
+ * Copyright 2016 Peter May
+ * Author: Peter May
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.bl.dpt;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests relating to the sampled quick check.
+ *
+ * Tests for:
+ *  1) A zero sample fraction still selects the first and last strip of each subfile
+ *  2) The sample is deterministic for a seed and respects the byte budget
+ *  3) An unchanged file passes against its manifest
+ *  4) A damaged strip is reported when it is sampled
+ *  5) A file not in the manifest is reported as unknown
+ */
+public class QuickCheckTest {
+
+    private static final String chunkyStrips = "/T_raster_chunky_strips.tiff";     // 3 strips: 840, 840, 720 bytes
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path resource(String name) throws Exception {
+        return Paths.get(getClass().getResource(name).toURI());
+    }
+
+    private StripManifest manifestFor(String file) throws Exception {
+        File manifest = folder.newFile();
+        try (PrintStream out = new PrintStream(manifest)){
+            StripManifest.write(out, file, Tifixity.checksumIFDs(file), Tifixity.checksumStrips(file));
+        }
+        return StripManifest.read(manifest.toPath(), Collections.singleton(StripManifest.key(file)));
+    }
+
+    /**
+     * 1: The first and last strips are always sampled
+     */
+    @Test
+    public void firstAndLastStrips() throws Exception {
+        Tiff tiff = TiffFileHandler.loadTiffFromFile(resource(chunkyStrips));
+        long[] sample = QuickCheck.selectStrips(tiff, 0, 0);
+        assertArrayEquals(new long[]{0, 2}, sample);
+    }
+
+    /**
+     * 2: The same seed selects the same strips, within the byte budget
+     */
+    @Test
+    public void deterministicSample() throws Exception {
+        Tiff tiff = TiffFileHandler.loadTiffFromFile(resource(chunkyStrips));
+        assertArrayEquals(QuickCheck.selectStrips(tiff, 1600, 42), QuickCheck.selectStrips(tiff, 1600, 42));
+        assertEquals(2, QuickCheck.selectStrips(tiff, 1600, 42).length);
+        assertArrayEquals(new long[]{0, 1, 2}, QuickCheck.selectStrips(tiff, 2400, 42));
+    }
+
+    /**
+     * 3: An unchanged file passes
+     */
+    @Test
+    public void unchangedFile() throws Exception {
+        String file = resource(chunkyStrips).toString();
+        QuickCheck.Result result = new QuickCheck(manifestFor(file), 1.0, 0).check(file);
+        assertTrue(result.toString(), result.isOK());
+        assertEquals(2400, result.getBytesRead());
+    }
+
+    /**
+     * 4: A damaged strip is reported
+     */
+    @Test
+    public void damagedStrip() throws Exception {
+        File copy = folder.newFile("damaged.tiff");
+        Files.copy(resource(chunkyStrips), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        StripManifest manifest = manifestFor(copy.getPath());
+
+        try (RandomAccessFile raf = new RandomAccessFile(copy, "rw")){
+            raf.seek(1000);                 // within the second strip
+            raf.write(raf.read()^0xFF);
+        }
+
+        QuickCheck.Result result = new QuickCheck(manifest, 1.0, 0).check(copy.getPath());
+        assertFalse(result.isOK());
+        assertEquals(Collections.singletonList("Strip [0][1] differs"), result.getDifferences());
+
+        // the middle strip is not sampled with a zero budget
+        assertTrue(new QuickCheck(manifest, 0, 0).check(copy.getPath()).isOK());
+    }
+
+    /**
+     * 5: A file missing from the manifest is unknown
+     */
+    @Test
+    public void unknownFile() throws Exception {
+        String file = resource(chunkyStrips).toString();
+        QuickCheck.Result result = new QuickCheck(manifestFor(file), 1.0, 0).check(resource("/T_one_strip.tiff").toString());
+        assertFalse(result.isInManifest());
+        assertFalse(result.isOK());
+    }
+}
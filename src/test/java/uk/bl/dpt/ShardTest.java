@@ -0,0 +1,271 @@
+/**
+ * Copyright 2016 Peter May
+ * Author: Peter May
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.bl.dpt;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests relating to sharding and the merge of shard manifests.
+ *
+ * Tests for:
+ *  1) Parsing of shard descriptions, and paths relative to the shard root
+ *  2) Every file belongs to exactly one shard, the same under any root, with the shards evenly filled
+ *  3) Shard manifests merge into one manifest sorted by path, through sorted runs on disk
+ *  4) Missing, duplicate and inconsistent shards and overlapping paths are reported
+ *  5) Shards run as separate processes, with the collection in different places, merge into a manifest of the
+ *     whole collection keyed by root-relative paths
+ */
+public class ShardTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final String A = "1d4808fbbc37c098520c4e927cccf332";
+
+    private static ManifestRecord record(String path){
+        return new ManifestRecord(path, path.length(), 0, null, null, new String[]{A}, null, null);
+    }
+
+    /**
+     * Writes a manifest of the files of a shard, out of path order.
+     */
+    private Path shardManifest(String name, Shard shard, List<String> paths) throws Exception {
+        Path file = folder.getRoot().toPath().resolve(name);
+        try (BinaryManifest.Writer writer = BinaryManifest.create(file)) {
+            writer.setShard(shard);
+            for(int i=paths.size()-1; i>=0; i--){
+                if(shard==null || Shard.of(paths.get(i), shard.getCount())==shard.getIndex()){
+                    writer.add(record(paths.get(i)));
+                }
+            }
+        }
+        return file;
+    }
+
+    private static List<String> paths(int count){
+        List<String> paths = new ArrayList<>();
+        for(int i=0; i<count; i++){
+            paths.add("/collection/box"+(i%17)+"/image"+i+".tif");
+        }
+        return paths;
+    }
+
+    /**
+     * 1: Tests parsing shard descriptions and making paths relative to the root.
+     */
+    @Test
+    public void parse(){
+        assertEquals(new Shard(2, 5), Shard.parse("2/5"));
+        assertEquals(new Shard(0, 1), Shard.parse(" 0 / 1 "));
+        for(String invalid: new String[]{"5/5", "-1/2", "1", "a/b", "1/0", "/3"}){
+            try {
+                Shard.parse(invalid);
+                fail("Parsed "+invalid);
+            } catch (IllegalArgumentException expected){
+                // not a shard
+            }
+        }
+
+        Path root = Paths.get("/data/collection");
+        assertEquals("box1/a.tif", Shard.relativePath("/data/collection/box1/a.tif", root));
+        assertEquals("box1/a.tif", Shard.relativePath("/data/collection/box2/../box1/a.tif", root));
+        assertEquals(Paths.get("/data/other/a.tif").toString().replace(File.separator, "/"),
+                     Shard.relativePath("/data/other/a.tif", root));
+    }
+
+    /**
+     * 2: Tests that each file is in exactly one shard, whichever root the collection is under, and that the
+     * shards are evenly filled.
+     */
+    @Test
+    public void partition(){
+        int shards = 4;
+        String[] files = new String[4000];
+        String[] moved = new String[files.length];
+        for(int i=0; i<files.length; i++){
+            files[i] = "/mnt/a/collection/box"+(i%13)+"/image"+i+".tif";
+            moved[i] = "/srv/b/collection/box"+(i%13)+"/image"+i+".tif";
+        }
+
+        int total = 0;
+        for(int i=0; i<shards; i++){
+            Shard shard = new Shard(i, shards);
+            String[] selected = shard.select(files, Paths.get("/mnt/a/collection"));
+            String[] selectedMoved = shard.select(moved, Paths.get("/srv/b/collection"));
+            assertEquals(selected.length, selectedMoved.length);
+            for(int j=0; j<selected.length; j++){
+                assertEquals(selected[j].substring(6), selectedMoved[j].substring(6));
+            }
+            assertTrue("Shard "+i+": "+selected.length, Math.abs(selected.length-files.length/shards)<files.length/20);
+            total += selected.length;
+        }
+        assertEquals(files.length, total);
+    }
+
+    /**
+     * 3: Tests that shard manifests merge into one manifest sorted by path, with and without runs on disk.
+     */
+    @Test
+    public void merge() throws Exception {
+        List<String> paths = paths(500);
+        List<Path> inputs = new ArrayList<>();
+        for(int i=0; i<3; i++){
+            inputs.add(shardManifest("shard"+i+".bin", new Shard(i, 3), paths));
+        }
+
+        for(int runSize: new int[]{7, 1000}){
+            Path out = folder.getRoot().toPath().resolve("merged"+runSize+".bin");
+            ManifestMerge.Result result = ManifestMerge.merge(inputs, out, runSize);
+            assertTrue(result.toString(), result.isClean());
+            assertEquals(3, result.getShardCount());
+            assertEquals(paths.size(), result.getRecords());
+
+            List<String> sorted = new ArrayList<>(paths);
+            Collections.sort(sorted);
+            try (BinaryManifest merged = BinaryManifest.open(out)) {
+                assertNull(merged.getShard());
+                assertEquals(paths.size(), merged.size());
+                Iterator<ManifestRecord> records = merged.iterator();
+                for(String path: sorted){
+                    assertEquals(record(path), records.next());
+                }
+                assertEquals(record(paths.get(42)), merged.get(paths.get(42)));
+            }
+        }
+        assertEquals(3+2, folder.getRoot().list().length);
+    }
+
+    /**
+     * 4: Tests the reports of missing, duplicate and inconsistent shards and of overlapping paths.
+     */
+    @Test
+    public void gapsAndOverlaps() throws Exception {
+        List<String> paths = paths(200);
+        Path shard0 = shardManifest("shard0.bin", new Shard(0, 3), paths);
+        Path shard2 = shardManifest("shard2.bin", new Shard(2, 3), paths);
+        Path shard2again = shardManifest("shard2again.bin", new Shard(2, 3), paths);
+        Path other = shardManifest("other.bin", new Shard(1, 2), paths);
+        Path whole = shardManifest("whole.bin", null, paths.subList(0, 5));
+
+        ManifestMerge.Result result = ManifestMerge.merge(Arrays.asList(shard0, shard2, shard2again, other, whole),
+                                                          folder.getRoot().toPath().resolve("merged.txt"), 50);
+        assertFalse(result.isClean());
+        assertEquals(3, result.getShardCount());
+        assertEquals(Arrays.asList(1), result.getMissingShards());
+        assertEquals(1, result.getDuplicateShards().size());
+        assertTrue(result.getDuplicateShards().get(0).startsWith("2/3 "));
+        assertEquals(2, result.getInconsistentInputs().size());
+        assertTrue(result.getOverlaps()>0);
+        assertFalse(result.getOverlapExamples().isEmpty());
+        assertTrue(result.toString(), result.toString().contains("Missing shard: 1/3"));
+
+        // every distinct path is written once
+        Set<String> distinct = new HashSet<>();
+        for(Path input: Arrays.asList(shard0, shard2, other, whole)){
+            try (BinaryManifest manifest = BinaryManifest.open(input)) {
+                Iterator<ManifestRecord> records = manifest.iterator();
+                while(records.hasNext()){
+                    distinct.add(records.next().getPath());
+                }
+            }
+        }
+        assertEquals(distinct.size(), result.getRecords());
+    }
+
+    /**
+     * 5: Tests that shards run as separate processes together cover the collection exactly once, when the nodes
+     * mount the collection in different places.
+     */
+    @Test
+    public void separateProcesses() throws Exception {
+        Path resources = Paths.get(getClass().getResource("/T_one_strip.tiff").toURI()).getParent();
+        String[] tiffs = {"T_one_strip.tiff", "T_one_strip_bilevel.tiff", "T_one_strip_with_exif.tiff",
+                          "T_raster_chunky_strips.tiff", "T_raster_planar_tiles.tiff", "T_two_strips_seq.tiff",
+                          "T_two_strips_non_seq.tiff", "T_two_subfile_single_strip.tiff", "rgbstrips.tiff"};
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+
+        // the even shards see the collection in one place, the odd ones in another
+        Path[] mounts = {folder.newFolder("mnt", "a", "collection").toPath(),
+                         folder.newFolder("srv", "b", "collection").toPath()};
+        for(Path mount: mounts){
+            Files.createDirectory(mount.resolve("box"));
+            for(String tiff: tiffs){
+                Files.copy(resources.resolve(tiff), mount.resolve("box").resolve(tiff));
+            }
+        }
+
+        int shards = 3;
+        List<Path> inputs = new ArrayList<>();
+        for(int i=0; i<shards; i++){
+            Path manifest = folder.getRoot().toPath().resolve("shard"+i+".bin");
+            inputs.add(manifest);
+            Path mount = mounts[i%2];
+            List<String> command = new ArrayList<>(Arrays.asList(java, "-cp", System.getProperty("java.class.path"),
+                    "uk.bl.dpt.Tifixity", "-a", "--shard", i+"/"+shards, "--shard-root", mount.toString(),
+                    "--binary-manifest", manifest.toString()));
+            for(String tiff: tiffs){
+                command.add(mount.resolve("box").resolve(tiff).toString());
+            }
+            Process process = new ProcessBuilder(command).redirectErrorStream(true)
+                    .redirectOutput(folder.newFile("shard"+i+".out")).start();
+            assertTrue(process.waitFor(60, TimeUnit.SECONDS));
+            assertEquals(0, process.exitValue());
+        }
+
+        Path out = folder.getRoot().toPath().resolve("merged.bin");
+        ManifestMerge.Result result = ManifestMerge.merge(inputs, out);
+        assertTrue(result.toString(), result.isClean());
+        assertEquals(tiffs.length, result.getRecords());
+        try (BinaryManifest merged = BinaryManifest.open(out)) {
+            List<String> sorted = new ArrayList<>(Arrays.asList(tiffs));
+            Collections.sort(sorted);
+            Iterator<ManifestRecord> records = merged.iterator();
+            for(String tiff: sorted){
+                assertEquals("box/"+tiff, records.next().getPath());
+            }
+            for(String tiff: tiffs){
+                String file = resources.resolve(tiff).toString();
+                ManifestRecord record = merged.get(mounts[1].resolve("box").resolve(tiff).toString(), mounts[1]);
+                assertNotNull(tiff, record);
+                assertEquals(record, merged.get(mounts[0].resolve("box").resolve(tiff).toString(), mounts[0]));
+                String[] images = Tifixity.checksumImage(file);
+                assertEquals(tiff, images.length, record.numberOfSubfiles());
+                for(int j=0; j<images.length; j++){
+                    assertEquals(tiff, images[j], record.getImageDigest(j));
+                }
+                assertEquals(Tifixity.checksumFile(file)[0], record.getFullDigest());
+            }
+        }
+    }
+}
@@ -0,0 +1,165 @@
+/**
+ * Copyright 2016 Peter May
+ * Author: Peter May
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.bl.dpt;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests relating to the StreamDigester Class.
+ *
+ * Tests for:
+ *  1) Checksums of a stream match those of the file, for every test TIFF
+ *  2) Checksums match when the IFD follows the image data and the strips are in reverse order
+ *  3) Checksums match when the kept data spills to a temporary file
+ *  4) Checksums match when strips overlap
+ */
+public class StreamDigesterTest {
+
+    /**
+     * Returns at most a few bytes from each read, as a network stream may.
+     */
+    private static class TrickleInputStream extends FilterInputStream {
+        TrickleInputStream(InputStream in){
+            super(in);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return super.read(b, off, Math.min(len, 1000));
+        }
+    }
+
+    private static void assertSameChecksums(byte[] tiff, long memoryLimit) throws Exception {
+        ByteSource source = ByteSource.of(ByteBuffer.wrap(tiff));
+        StreamDigester.Result result = StreamDigester.digest(new TrickleInputStream(new ByteArrayInputStream(tiff)),
+                                                             memoryLimit);
+
+        String[] file = Tifixity.checksumFile(source);
+        assertEquals(file[0], result.getFullDigest());
+        assertEquals(file[1], result.getRemainingDigest());
+        assertArrayEquals(Tifixity.checksumImage(source), result.getImageDigests());
+        assertArrayEquals(Tifixity.checksumIFDs(source), result.getIFDDigests());
+    }
+
+    /**
+     * Builds an 8-bit greyscale TIFF of the specified strips, written in reverse order after the header and
+     * followed by the IFD.
+     * @param strips    the number of strips
+     * @param length    the length of each strip
+     * @param overlap   true to store the last strip over the first
+     */
+    private static byte[] reversedTiff(int strips, int length, boolean overlap){
+        int dataLength = strips*length;
+        int ifdOffset = 8+dataLength;
+        int entries = 9;
+        int arrays = ifdOffset+2+entries*12+4;
+        ByteBuffer buf = ByteBuffer.allocate(arrays+8*strips).order(ByteOrder.LITTLE_ENDIAN);
+        buf.put((byte) 'I').put((byte) 'I').putShort((short) 42).putInt(ifdOffset);
+
+        byte[] data = new byte[dataLength];
+        new Random(strips).nextBytes(data);
+        buf.put(data);
+
+        buf.putShort((short) entries);
+        entry(buf, 256, 3, 1, length);                  // ImageWidth
+        entry(buf, 257, 3, 1, strips);                  // ImageLength
+        entry(buf, 258, 3, 1, 8);                       // BitsPerSample
+        entry(buf, 259, 3, 1, 1);                       // Compression
+        entry(buf, 262, 3, 1, 1);                       // PhotometricInterpretation
+        entry(buf, 273, 4, strips, arrays);             // StripOffsets
+        entry(buf, 277, 3, 1, 1);                       // SamplesPerPixel
+        entry(buf, 278, 3, 1, 1);                       // RowsPerStrip
+        entry(buf, 279, 4, strips, arrays+4*strips);    // StripByteCounts
+        buf.putInt(0);
+
+        for(int j=0; j<strips; j++){
+            int offset = 8+(strips-1-j)*length;
+            if(overlap && j==strips-1){
+                offset = 8+(strips-1)*length;
+            }
+            buf.putInt(offset);
+        }
+        for(int j=0; j<strips; j++){
+            buf.putInt(length);
+        }
+        return buf.array();
+    }
+
+    private static void entry(ByteBuffer buf, int tag, int type, int count, int value){
+        buf.putShort((short) tag).putShort((short) type).putInt(count);
+        if(type==3 && count==1){
+            buf.putShort((short) value).putShort((short) 0);
+        } else {
+            buf.putInt(value);
+        }
+    }
+
+    /**
+     * 1: Every test TIFF
+     */
+    @Test
+    public void resources() throws Exception {
+        Path dir = Paths.get(getClass().getResource("/T_one_strip.tiff").toURI()).getParent();
+        int count = 0;
+        try (DirectoryStream<Path> tiffs = Files.newDirectoryStream(dir, "*.tiff")){
+            for(Path tiff: tiffs){
+                assertSameChecksums(Files.readAllBytes(tiff), Archive.DEFAULT_MEMORY_LIMIT);
+                count++;
+            }
+        }
+        assertTrue(count>20);
+    }
+
+    /**
+     * 2: IFD at the end of the file and strips in reverse order
+     */
+    @Test
+    public void reversed() throws Exception {
+        assertSameChecksums(reversedTiff(64, 4000, false), Archive.DEFAULT_MEMORY_LIMIT);
+    }
+
+    /**
+     * 3: Kept data larger than the memory limit
+     */
+    @Test
+    public void spilled() throws Exception {
+        assertSameChecksums(reversedTiff(64, 4000, false), 10000);
+        assertSameChecksums(reversedTiff(64, 4000, false), 0);
+    }
+
+    /**
+     * 4: Two strips stored at the same offset
+     */
+    @Test
+    public void overlapping() throws Exception {
+        assertSameChecksums(reversedTiff(16, 3000, true), 5000);
+    }
+}
@@ -0,0 +1,99 @@
+/**
+ * Copyright 2016 Peter May
+ * Author: Peter May
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.bl.dpt;
+
+import org.junit.Test;
+
+import java.nio.file.Paths;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests relating to the TiffComparison Class.
+ *
+ * Tests for:
+ *  1) Identical strips at different offsets compare equal
+ *  2) Every differing strip is reported
+ *  3) The comparison stops at the first difference when requested
+ *  4) Differing strip lengths and subfile counts are reported
+ *  5) A file compares equal to itself
+ */
+public class TiffComparisonTest {
+
+    private String resource(String name) throws Exception {
+        return Paths.get(getClass().getResource(name).toURI()).toString();
+    }
+
+    /**
+     * 1: The same strips stored at different offsets
+     */
+    @Test
+    public void relocatedStrips() throws Exception {
+        TiffComparison.Result result = TiffComparison.compare(resource("/T_two_strips_seq_reverse.tiff"),
+                                                              resource("/T_two_strips_non_seq.tiff"), false);
+        assertTrue(result.toString(), result.isSame());
+        assertTrue(result.toString().startsWith("SAME "));
+    }
+
+    /**
+     * 2: Differing strip content
+     */
+    @Test
+    public void differences() throws Exception {
+        TiffComparison.Result result = TiffComparison.compare(resource("/T_two_strips_seq.tiff"),
+                                                              resource("/T_two_strips_non_seq.tiff"), false);
+        assertFalse(result.isSame());
+        assertEquals(2, result.getDifferences().size());
+        assertEquals("Strip [0][0] differs", result.getDifferences().get(0));
+        assertEquals("Strip [0][1] differs", result.getDifferences().get(1));
+    }
+
+    /**
+     * 3: Only the first difference is reported
+     */
+    @Test
+    public void stopAtFirst() throws Exception {
+        TiffComparison.Result result = TiffComparison.compare(resource("/T_two_strips_seq.tiff"),
+                                                              resource("/T_two_strips_non_seq.tiff"), true);
+        assertFalse(result.isSame());
+        assertEquals(1, result.getDifferences().size());
+        assertEquals("Strip [0][0] differs", result.getDifferences().get(0));
+    }
+
+    /**
+     * 4: Different strip layout and number of subfiles
+     */
+    @Test
+    public void structure() throws Exception {
+        TiffComparison.Result result = TiffComparison.compare(resource("/T_two_strips_seq.tiff"),
+                                                              resource("/T_two_subfile_single_strip.tiff"), false);
+        assertTrue(result.getDifferences().contains("IFD [0] tag 278 (RowsPerStrip) differs"));
+        assertTrue(result.getDifferences().contains("Strip [0][0] differs (length 150, 300)"));
+        assertTrue(result.getDifferences().contains("Number of strips in subfile [0] differs (2, 1)"));
+        assertEquals("Number of subfiles differs (1, 2)",
+                     result.getDifferences().get(result.getDifferences().size()-1));
+    }
+
+    /**
+     * 5: A tiled file compares equal to itself
+     */
+    @Test
+    public void self() throws Exception {
+        String file = resource("/T_raster_planar_tiles.tiff");
+        assertTrue(TiffComparison.compare(file, file, false).isSame());
+    }
+}
@@ -0,0 +1,249 @@
+/**
+ * Copyright 2016 Peter May
+ * Author: Peter May
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.bl.dpt;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests relating to the asynchronous API.
+ *
+ * Tests for:
+ *  1) Futures complete with the engine's results, or exceptionally with the cause of a failure
+ *  2) A batch publisher starts no more files than the subscriber has requested
+ *  3) A batch publisher checksums at most its parallelism of files at once and delivers every file once
+ *  4) Failed files are delivered as results; cancelling stops delivery; a non-positive request is an error
+ */
+public class TifixityAsyncTest {
+
+    private static final String[] FILES = {"/T_one_strip.tiff", "/T_two_subfile_single_strip.tiff",
+                                           "/T_raster_planar_strips.tiff", "/T_two_strips_compressed_lzw_predictor.tiff"};
+
+    private ExecutorService pool;
+    private final AtomicInteger submitted = new AtomicInteger();
+
+    // counts the checksums started
+    private final Executor counting = new Executor() {
+        @Override
+        public void execute(Runnable task) {
+            submitted.incrementAndGet();
+            pool.execute(task);
+        }
+    };
+
+    @Before
+    public void createPool(){
+        pool = Executors.newFixedThreadPool(8);
+    }
+
+    @After
+    public void shutdownPool(){
+        pool.shutdownNow();
+    }
+
+    private String path(String resource) throws Exception {
+        return Paths.get(getClass().getResource(resource).toURI()).toString();
+    }
+
+    private List<String> batch(int copies) throws Exception {
+        List<String> files = new ArrayList<>();
+        for(int i=0; i<copies; i++){
+            for(String file: FILES){
+                files.add(path(file));
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Records the signals received, requesting a fixed number of results when subscribed.
+     */
+    private static class Recorder implements Flow.Subscriber<TifixityAsync.FileResult> {
+        final List<TifixityAsync.FileResult>    results = Collections.synchronizedList(new ArrayList<TifixityAsync.FileResult>());
+        final CountDownLatch                    finished = new CountDownLatch(1);
+        final long                              initial;
+        volatile Flow.Subscription              subscription;
+        volatile Throwable                      error;
+        volatile boolean                        completed;
+
+        Recorder(long initial){
+            this.initial = initial;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            subscription.request(initial);
+        }
+
+        @Override
+        public void onNext(TifixityAsync.FileResult item) {
+            results.add(item);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            error = throwable;
+            finished.countDown();
+        }
+
+        @Override
+        public void onComplete() {
+            completed = true;
+            finished.countDown();
+        }
+    }
+
+    /**
+     * 1: Tests that futures complete with the engine's results, or exceptionally with the cause of a failure.
+     */
+    @Test
+    public void futures() throws Exception {
+        TifixityEngine engine = new TifixityEngine(TifixityConfig.builder().all(true).build());
+        TifixityAsync async = new TifixityAsync(engine, counting);
+
+        for(String resource: FILES){
+            String file = path(resource);
+            assertEquals(resource, engine.checksum(file), async.checksum(file).get());
+            assertArrayEquals(resource, engine.checksumImage(file), async.checksumImage(file).get());
+        }
+
+        try {
+            async.checksumImage("/missingfile.tiff").get();
+            fail("Checksummed a missing file");
+        } catch (ExecutionException e){
+            assertTrue(e.getCause().toString(), e.getCause() instanceof NoSuchFileException);
+        }
+    }
+
+    /**
+     * 2: Tests that files are only read when requested.
+     */
+    @Test
+    public void demand() throws Exception {
+        TifixityAsync async = new TifixityAsync(new TifixityEngine(), counting);
+        Recorder recorder = new Recorder(1);
+        async.publish(batch(5), 4).subscribe(recorder);
+
+        long deadline = System.currentTimeMillis()+10000;
+        while(recorder.results.size()<1 && System.currentTimeMillis()<deadline){
+            Thread.sleep(5);
+        }
+        Thread.sleep(100);
+        assertEquals(1, recorder.results.size());
+        assertEquals(1, submitted.get());
+
+        recorder.subscription.request(2);
+        while(recorder.results.size()<3 && System.currentTimeMillis()<deadline){
+            Thread.sleep(5);
+        }
+        Thread.sleep(100);
+        assertEquals(3, recorder.results.size());
+        assertEquals(3, submitted.get());
+        assertFalse(recorder.completed);
+    }
+
+    /**
+     * 3: Tests that no more than the parallelism of files are checksummed at once, and that every file is
+     * delivered once with its engine output.
+     */
+    @Test
+    public void parallelism() throws Exception {
+        TifixityEngine engine = new TifixityEngine();
+        TifixityAsync async = new TifixityAsync(engine, counting);
+        List<String> files = batch(25);
+        final AtomicInteger maxOutstanding = new AtomicInteger();
+        Recorder recorder = new Recorder(Long.MAX_VALUE) {
+            @Override
+            public void onNext(TifixityAsync.FileResult item) {
+                super.onNext(item);
+                // files are only started between deliveries, so this sees every peak
+                maxOutstanding.set(Math.max(maxOutstanding.get(), submitted.get()-results.size()+1));
+            }
+        };
+        async.publish(files, 3).subscribe(recorder);
+
+        assertTrue(recorder.finished.await(60, TimeUnit.SECONDS));
+        assertTrue(recorder.completed);
+        assertNull(recorder.error);
+        assertEquals(files.size(), recorder.results.size());
+        assertEquals(3, maxOutstanding.get());
+
+        boolean[] seen = new boolean[files.size()];
+        for(TifixityAsync.FileResult result: recorder.results){
+            assertTrue(result.toString(), result.isOK());
+            assertFalse(seen[result.getIndex()]);
+            seen[result.getIndex()] = true;
+            assertEquals(files.get(result.getIndex()), result.getFile());
+            assertEquals(engine.checksum(result.getFile()), result.getOutput());
+        }
+    }
+
+    /**
+     * 4: Tests that a failed file is delivered as a result, that cancelling stops delivery and that a
+     * non-positive request ends the stream with an error.
+     */
+    @Test
+    public void errorsAndCancel() throws Exception {
+        TifixityAsync async = new TifixityAsync(new TifixityEngine(), counting);
+        List<String> files = Arrays.asList(path(FILES[0]), "/missingfile.tiff", path(FILES[1]));
+        Recorder recorder = new Recorder(Long.MAX_VALUE);
+        async.publish(files, 2).subscribe(recorder);
+        assertTrue(recorder.finished.await(60, TimeUnit.SECONDS));
+        assertTrue(recorder.completed);
+        assertEquals(3, recorder.results.size());
+        for(TifixityAsync.FileResult result: recorder.results){
+            assertEquals(result.getIndex()!=1, result.isOK());
+            if(result.getIndex()==1){
+                assertTrue(result.getError() instanceof NoSuchFileException);
+                assertNull(result.getOutput());
+            }
+        }
+
+        Recorder cancelled = new Recorder(1);
+        async.publish(batch(5), 2).subscribe(cancelled);
+        cancelled.subscription.cancel();
+        cancelled.subscription.request(10);
+        Thread.sleep(200);
+        assertTrue(cancelled.results.size()<=1);
+        assertFalse(cancelled.completed);
+
+        Recorder invalid = new Recorder(0);
+        async.publish(batch(1), 2).subscribe(invalid);
+        assertTrue(invalid.finished.await(10, TimeUnit.SECONDS));
+        assertTrue(invalid.error instanceof IllegalArgumentException);
+        assertTrue(invalid.results.isEmpty());
+    }
+}
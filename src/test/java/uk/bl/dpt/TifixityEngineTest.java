@@ -0,0 +1,193 @@
+/**
+ * Copyright 2016 Peter May
+ * Author: Peter May
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.bl.dpt;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests relating to the instance engine and its configuration.
+ *
+ * Tests for:
+ *  1) Configuration defaults, copying and validation
+ *  2) Engine output matches the static API for the same settings
+ *  3) Engines with different limits run concurrently without affecting each other or the static API
+ *  4) A malformed file raises an exception
+ *  5) The parse trace goes to the configured stream only
+ */
+public class TifixityEngineTest {
+
+    private static final String[] FILES = {"/T_one_strip.tiff", "/T_two_subfile_single_strip.tiff",
+                                           "/T_raster_planar_strips.tiff", "/T_two_strips_compressed_lzw_predictor.tiff"};
+
+    private String path(String resource) throws Exception {
+        return Paths.get(getClass().getResource(resource).toURI()).toString();
+    }
+
+    /**
+     * 1: Tests the configuration defaults, that toBuilder copies every setting and that null limits are rejected.
+     */
+    @Test
+    public void configuration(){
+        TifixityConfig config = TifixityConfig.DEFAULT;
+        assertFalse(config.isAll());
+        assertFalse(config.isPixels());
+        assertFalse(config.isRaster());
+        assertFalse(config.isDirectIO());
+        assertSame(ParserLimits.DEFAULT, config.getLimits());
+        assertNull(config.getTrace());
+
+        ParserLimits limits = new ParserLimits(1, 2, 3, 4, 5);
+        TifixityConfig custom = TifixityConfig.builder().all(true).raster(true).limits(limits).directIO(true)
+                                              .trace(System.err).build();
+        TifixityConfig copy = custom.toBuilder().pixels(true).build();
+        assertTrue(copy.isAll());
+        assertTrue(copy.isPixels());
+        assertTrue(copy.isRaster());
+        assertTrue(copy.isDirectIO());
+        assertSame(limits, copy.getLimits());
+        assertSame(System.err, copy.getTrace());
+        assertFalse(custom.isPixels());
+
+        try {
+            TifixityConfig.builder().limits(null);
+            fail("Accepted null limits");
+        } catch (IllegalArgumentException expected){
+            // limits are required
+        }
+    }
+
+    /**
+     * 2: Tests that the engine gives the same output and checksums as the static API.
+     */
+    @Test
+    public void matchesStaticAPI() throws Exception {
+        TifixityEngine plain = new TifixityEngine();
+        TifixityEngine everything = new TifixityEngine(TifixityConfig.builder().all(true).pixels(true).raster(true).build());
+        for(String resource: FILES){
+            String file = path(resource);
+            assertEquals(resource, Tifixity.checksumAsOutput(file, false, false, false), plain.checksum(file));
+            assertEquals(resource, Tifixity.checksumAsOutput(file, true, true, true), everything.checksum(file));
+            assertArrayEquals(resource, Tifixity.checksumImage(file), plain.checksumImage(file));
+            assertArrayEquals(resource, Tifixity.checksumFile(file), plain.checksumFile(file));
+            assertArrayEquals(resource, Tifixity.checksumIFDs(file), plain.checksumIFDs(file));
+            assertArrayEquals(resource, Tifixity.checksumPixels(file), plain.checksumPixels(file));
+            assertArrayEquals(resource, Tifixity.checksumRaster(file), plain.checksumRaster(file));
+            assertArrayEquals(resource, Tifixity.checksumPlanes(file), plain.checksumPlanes(file));
+            assertArrayEquals(resource, Tifixity.checksumStrips(file), plain.checksumStrips(file));
+        }
+    }
+
+    /**
+     * 3: Tests that a strict engine rejects files while a default engine on other threads checksums them, and
+     * that neither changes the limits of the static API.
+     */
+    @Test
+    public void concurrentEngines() throws Exception {
+        final TifixityEngine strict = new TifixityEngine(TifixityConfig.builder()
+                .limits(new ParserLimits(10, 1, 1024, 1024, 1024)).build());
+        final TifixityEngine lenient = new TifixityEngine(TifixityConfig.builder().pixels(true).build());
+
+        final List<String> expected = new ArrayList<>();
+        for(String resource: FILES){
+            expected.add(Tifixity.checksumAsOutput(path(resource), false, true, false));
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Boolean>> results = new ArrayList<>();
+            for(int n=0; n<200; n++){
+                final int i = n%FILES.length;
+                final boolean useStrict = n%2==0;
+                final String file = path(FILES[i]);
+                results.add(pool.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws Exception {
+                        if(useStrict){
+                            try {
+                                strict.checksum(file);
+                                return false;
+                            } catch (TiffFormatException expected){
+                                return true;
+                            }
+                        }
+                        return lenient.checksum(file).equals(expected.get(i));
+                    }
+                }));
+            }
+            for(Future<Boolean> result: results){
+                assertTrue(result.get());
+            }
+        } finally {
+            pool.shutdown();
+        }
+        assertSame(ParserLimits.DEFAULT, TiffFileHandler.getLimits());
+    }
+
+    /**
+     * 4: Tests that a truncated file raises an exception.
+     */
+    @Test
+    public void malformedFile() throws Exception {
+        byte[] data = Files.readAllBytes(Paths.get(path("/T_one_strip.tiff")));
+        ByteSource truncated = ByteSource.of(ByteBuffer.wrap(Arrays.copyOf(data, 12)));
+        try {
+            new TifixityEngine().checksum(truncated);
+            fail("Checksummed a truncated file");
+        } catch (TiffFormatException expected){
+            // reported, not fatal
+        }
+    }
+
+    /**
+     * 5: Tests that the parse trace is printed to the configured stream, and not otherwise.
+     */
+    @Test
+    public void trace() throws Exception {
+        String file = path("/T_one_strip.tiff");
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(bytes, true, "UTF-8");
+        new TifixityEngine(TifixityConfig.builder().trace(out).build()).checksum(file);
+        String trace = bytes.toString("UTF-8");
+        assertTrue(trace, trace.startsWith("IFD Offset: "));
+        assertTrue(trace, trace.contains("Dir count: "));
+
+        PrintStream stdout = System.out;
+        ByteArrayOutputStream captured = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(captured));
+        try {
+            new TifixityEngine().checksum(file);
+        } finally {
+            System.setOut(stdout);
+        }
+        assertEquals(0, captured.size());
+    }
+}
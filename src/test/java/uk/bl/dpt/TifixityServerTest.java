@@ -0,0 +1,110 @@
+/**
+ * Copyright 2016 Peter May
+ * Author: Peter May
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.bl.dpt;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.URL;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests relating to the resident Tifixity server and its client.
+ *
+ * Tests for:
+ *  1) Image checksum output matches the CLI output
+ *  2) Full checksum output (-a) matches the CLI output
+ *  3) Missing file is reported as NoSuchFileException
+ */
+public class TifixityServerTest {
+
+    private static final String twoSubfileSingleStrip = "/T_two_subfile_single_strip.tiff";
+
+    private TifixityServer server;
+
+    @Before
+    public void startServer() throws IOException {
+        server = new TifixityServer(0, 2);
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    server.serve();
+                } catch (IOException ioe){
+                    ioe.printStackTrace();
+                }
+            }
+        });
+        t.setDaemon(true);
+        t.start();
+    }
+
+    @After
+    public void stopServer() throws IOException {
+        server.close();
+    }
+
+    /**
+     * 1: Image checksum output from the server matches the CLI output
+     */
+    @Test
+    public void imageChecksums() throws Exception {
+        String file = Paths.get(getClass().getResource(twoSubfileSingleStrip).toURI()).toString();
+
+        try (TifixityClient client = new TifixityClient(server.getPort())){
+            assertEquals(Tifixity.checksumAsOutput(file, false, false, false), client.checksum(file, false, false, false));
+        }
+    }
+
+    /**
+     * 2: Full checksum output from the server matches the CLI output, over repeated requests
+     */
+    @Test
+    public void allChecksums() throws Exception {
+        String file = Paths.get(getClass().getResource(twoSubfileSingleStrip).toURI()).toString();
+        String expected = Tifixity.checksumAsOutput(file, true, false, false);
+        assertTrue(expected.startsWith("Full MD5: "));
+
+        try (TifixityClient client = new TifixityClient(server.getPort())){
+            assertEquals(expected, client.checksum(file, true, false, false));
+            assertEquals(expected, client.checksum(file, true, false, false));
+        }
+    }
+
+    /**
+     * 3: A missing file is reported as a NoSuchFileException and the connection remains usable
+     */
+    @Test
+    public void missingFile() throws Exception {
+        String file = Paths.get(getClass().getResource(twoSubfileSingleStrip).toURI()).toString();
+
+        try (TifixityClient client = new TifixityClient(server.getPort())){
+            try {
+                client.checksum("/missingfile.tiff", false, false, false);
+                fail("Expected NoSuchFileException");
+            } catch (NoSuchFileException nsfe){
+                // expected
+            }
+            assertEquals(Tifixity.checksumAsOutput(file, false, false, false), client.checksum(file, false, false, false));
+        }
+    }
+}
@@ -23,9 +23,14 @@ import org.junit.rules.ExpectedException;
 import java.io.File;
 import java.io.IOException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.NoSuchFileException;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
 
 import static org.junit.Assert.*;
 
@@ -47,6 +52,16 @@ import static org.junit.Assert.*;
  *  11) Image MD5 check for single strip TIFF with exif metadata.
  *  12) IFD MD5 single strip Tiff
  *  13) IFD MD5 of two subfile
+ *  14) Pixel MD5 of compressed single strip TIFFs (LZW, Deflate with predictor) matches uncompressed image MD5
+ *  15) Pixel MD5 of compressed two strip TIFFs (PackBits, big-endian LZW with predictor)
+ *  16) Pixel MD5 of 16-bit samples is independent of byte order, compression and predictor
+ *  17) Pixel MD5 of two subfile
+ *  18) Raster MD5 is the same for chunky/planar, re-striped and tiled layouts of the same image
+ *  19) Raster MD5 of compressed TIFFs matches the uncompressed image MD5
+ *  20) Hex encoding of digests, and repeated checksums on one thread reusing its buffers
+ *  21) Plane MD5s of planar strip and tile TIFFs, from a file and from memory; a chunky TIFF has one plane
+ *  22) Changing one plane's data changes only that plane's MD5
+ *  23) Raster MD5 of an image narrower than its one tile matches the same image in a strip
  */
 public class TifixityTest {
 
@@ -349,5 +364,250 @@ public class TifixityTest {
         }
     }
 
+    // 14: Pixel MD5 of compressed single strip TIFFs
+    private static String deflatePredictorSingleStrip = "/T_one_strip_compressed_deflate_predictor.tiff";
 
+    /**
+     * Check that decoding LZW and Deflate (with horizontal predictor) gives the uncompressed image MD5
+     */
+    @Test
+    public void checkSingleStripCompressedPixel_MD5() {
+        try {
+            URL url = getClass().getResource(compressedSingleStrip);
+            File f = Paths.get(url.toURI()).toFile();
+            assertEquals(singleStrip_CS_RGB, Tifixity.checksumPixels(f.getPath(), 0));
+
+            url = getClass().getResource(deflatePredictorSingleStrip);
+            f = Paths.get(url.toURI()).toFile();
+            assertEquals(singleStrip_CS_RGB, Tifixity.checksumPixels(f.getPath(), 0));
+        } catch (Exception e) {
+            fail("Exception "+e);
+        }
+    }
+
+    // 15: Pixel MD5 of compressed two strip TIFFs
+    private static String packbitsTwoStrips = "/T_two_strips_compressed_packbits.tiff";
+    private static String lzwPredictorTwoStrips = "/T_two_strips_compressed_lzw_predictor.tiff";
+
+    /**
+     * Check that decoding PackBits and big-endian LZW (with horizontal predictor) strips gives the
+     * uncompressed image MD5
+     */
+    @Test
+    public void checkTwoStripCompressedPixel_MD5() {
+        try {
+            URL url = getClass().getResource(packbitsTwoStrips);
+            File f = Paths.get(url.toURI()).toFile();
+            assertEquals(singleStrip_CS_RGB, Tifixity.checksumPixels(f.getPath(), 0));
+
+            url = getClass().getResource(lzwPredictorTwoStrips);
+            f = Paths.get(url.toURI()).toFile();
+            assertEquals(singleStrip_CS_RGB, Tifixity.checksumPixels(f.getPath(), 0));
+        } catch (Exception e) {
+            fail("Exception "+e);
+        }
+    }
+
+    // 16: Pixel MD5 of 16-bit samples
+    private static String sixteenBitLittleEndian = "/T_16bit_compressed_deflate_predictor_le.tiff";
+    private static String sixteenBitBigEndian = "/T_16bit_uncompressed_be.tiff";
+    private static String sixteenBit_CS_pixels = "b65b8b699a076190e74ee3b2594bbebf";
+
+    /**
+     * Check that the same 16-bit samples give the same pixel MD5 whether stored little-endian, Deflate
+     * compressed with predictor, or big-endian uncompressed
+     */
+    @Test
+    public void checkSixteenBitPixel_MD5() {
+        try {
+            URL url = getClass().getResource(sixteenBitLittleEndian);
+            File f = Paths.get(url.toURI()).toFile();
+            assertEquals(sixteenBit_CS_pixels, Tifixity.checksumPixels(f.getPath(), 0));
+
+            url = getClass().getResource(sixteenBitBigEndian);
+            f = Paths.get(url.toURI()).toFile();
+            assertEquals(sixteenBit_CS_pixels, Tifixity.checksumPixels(f.getPath(), 0));
+        } catch (Exception e) {
+            fail("Exception "+e);
+        }
+    }
+
+    // 17: Pixel MD5 of two subfile
+
+    /**
+     * Checks the pixel MD5s of an uncompressed TIFF containing two subfile images match the image MD5s
+     */
+    @Test
+    public void checkTwoSubfileSingleStrip_Pixel_MD5(){
+        try{
+            URL url = getClass().getResource(twoSubfileSingleStrip);
+            File f = Paths.get(url.toURI()).toFile();
+            String[] jtifcs = Tifixity.checksumPixels(f.getPath());
+
+            assertArrayEquals(twoSubfileSingleStrip_CS_image, jtifcs);
+        } catch (Exception e) {
+            fail("Exception "+e);
+        }
+    }
+
+    // 18: Raster MD5 across layouts of the same 40x20 RGB image
+    private static String[] rasterLayouts = new String[]{"/T_raster_chunky_one_strip.tiff",
+                                                         "/T_raster_chunky_strips.tiff",
+                                                         "/T_raster_planar_strips.tiff",
+                                                         "/T_raster_chunky_tiles.tiff",
+                                                         "/T_raster_planar_tiles.tiff"};
+    private static String raster_CS = "02c459e7603ecbc3e6356bd08257eca6";
+
+    /**
+     * Check the raster MD5 is unchanged by RowsPerStrip, PlanarConfiguration, tiling and byte order
+     */
+    @Test
+    public void checkRasterLayouts_MD5() {
+        try {
+            for(String layout: rasterLayouts){
+                URL url = getClass().getResource(layout);
+                File f = Paths.get(url.toURI()).toFile();
+                assertEquals(layout, raster_CS, Tifixity.checksumRaster(f.getPath(), 0));
+            }
+        } catch (Exception e) {
+            fail("Exception "+e);
+        }
+    }
+
+    // 19: Raster MD5 of compressed TIFFs
+
+    /**
+     * Check the raster MD5 of compressed single and two strip TIFFs matches the uncompressed image MD5
+     */
+    @Test
+    public void checkCompressedRaster_MD5() {
+        try {
+            for(String file: new String[]{compressedSingleStrip, deflatePredictorSingleStrip,
+                                          packbitsTwoStrips, lzwPredictorTwoStrips}){
+                URL url = getClass().getResource(file);
+                File f = Paths.get(url.toURI()).toFile();
+                assertEquals(file, singleStrip_CS_RGB, Tifixity.checksumRaster(f.getPath(), 0));
+            }
+        } catch (Exception e) {
+            fail("Exception "+e);
+        }
+    }
+
+    // 20: Hex encoding and buffer reuse
+
+    /**
+     * Check digests are hex encoded in lower case, and that checksumming different files in turn on one thread
+     * (reusing its buffers) gives the same results as the first time
+     */
+    @Test
+    public void checkHexAndBufferReuse() throws Exception {
+        assertEquals("00017f80ff", Tifixity.checksumAsString(new byte[]{0x00, 0x01, 0x7f, (byte) 0x80, (byte) 0xff}));
+        assertEquals("", Tifixity.checksumAsString(new byte[0]));
+
+        String[] files = { singleStripExif, twoStrips_nonseq_reverse, twoSubfileSingleStrip, singleStrip };
+        String[][] first = new String[files.length][];
+        for(int round=0; round<2; round++){
+            for(int i=0; i<files.length; i++){
+                String path = Paths.get(getClass().getResource(files[i]).toURI()).toString();
+                String[] checksums = Tifixity.checksumIFDs(path);
+                checksums = Arrays.copyOf(checksums, checksums.length+1);
+                checksums[checksums.length-1] = Tifixity.checksumImage(path)[0];
+                if(round==0){
+                    first[i] = checksums;
+                } else {
+                    assertArrayEquals(files[i], first[i], checksums);
+                }
+            }
+        }
+    }
+
+    // 21: Plane MD5s of the planar layouts of the 40x20 RGB image
+
+    /**
+     * Returns the MD5 of the image data of each plane, read strip by strip
+     */
+    private static String[] planeMD5s(Path file) throws Exception {
+        Tiff tiff = TiffFileHandler.loadTiffFromFile(file);
+        Integer[] offsets = tiff.getImageDataOffsets(0);
+        Integer[] lengths = tiff.getImageDataLengths(0);
+        int planes = tiff.getSamplesPerPixel(0);
+        byte[] data = Files.readAllBytes(file);
+
+        String[] checksums = new String[planes];
+        for(int p=0; p<planes; p++){
+            MessageDigest md = MessageDigest.getInstance("MD5");
+            for(int j=p*offsets.length/planes; j<(p+1)*offsets.length/planes; j++){
+                md.update(data, offsets[j], lengths[j]);
+            }
+            checksums[p] = Tifixity.checksumAsString(md.digest());
+        }
+        return checksums;
+    }
+
+    /**
+     * Check the plane MD5s of planar TIFFs are the MD5s of each plane's strips or tiles, the same whether read
+     * from a file or memory, and that a chunky TIFF has one plane with the image MD5
+     */
+    @Test
+    public void checkPlanes_MD5() throws Exception {
+        for(String file: new String[]{"/T_raster_planar_strips.tiff", "/T_raster_planar_tiles.tiff"}){
+            Path path = Paths.get(getClass().getResource(file).toURI());
+            String[] expected = planeMD5s(path);
+            assertEquals(3, expected.length);
+
+            assertArrayEquals(file, expected, Tifixity.checksumPlanes(path.toString(), 0));
+            ByteSource memory = ByteSource.of(ByteBuffer.wrap(Files.readAllBytes(path)));
+            assertArrayEquals(file, expected, Tifixity.checksumPlanes(memory, 0));
+
+            String output = Tifixity.checksumAsOutput(path.toString(), true, false, false);
+            assertTrue(output, output.contains("Image MD5 [0]: "+Tifixity.checksumImage(path.toString(), 0)+"\n"));
+            for(int p=0; p<expected.length; p++){
+                assertTrue(output, output.contains("Plane MD5 [0."+p+"]: "+expected[p]+"\n"));
+            }
+        }
+
+        String chunky = Paths.get(getClass().getResource("/T_raster_chunky_strips.tiff").toURI()).toString();
+        assertArrayEquals(new String[][]{{raster_CS}}, Tifixity.checksumPlanes(chunky));
+        assertFalse(Tifixity.checksumAsOutput(chunky, true, false, false).contains("Plane MD5"));
+    }
+
+    // 22: A change to one plane
+
+    /**
+     * Check that changing a byte of the second plane changes only the second plane's MD5
+     */
+    @Test
+    public void checkChangedPlane_MD5() throws Exception {
+        Path original = Paths.get(getClass().getResource("/T_raster_planar_strips.tiff").toURI());
+        Tiff tiff = TiffFileHandler.loadTiffFromFile(original);
+        Integer[] offsets = tiff.getImageDataOffsets(0);
+
+        byte[] data = Files.readAllBytes(original);
+        data[offsets[offsets.length/3]] ^= 0x01;
+        Path changed = Files.createTempFile("planar", ".tiff");
+        try {
+            Files.write(changed, data);
+            String[] before = Tifixity.checksumPlanes(original.toString(), 0);
+            String[] after = Tifixity.checksumPlanes(changed.toString(), 0);
+            assertEquals(before[0], after[0]);
+            assertNotEquals(before[1], after[1]);
+            assertEquals(before[2], after[2]);
+        } finally {
+            Files.delete(changed);
+        }
+    }
+
+    // 23: Raster MD5 of a 10x4 RGB image in one strip and in one 16x16 tile (with padding that is not zero)
+    private static String narrowRaster_CS = "e4e05f384e5e67b2da54d6556d4213dc";
+
+    /**
+     * Check the raster MD5 leaves out the padding to the right of an image narrower than its tile
+     */
+    @Test
+    public void checkRasterNarrowTile_MD5() throws Exception {
+        for(String layout: new String[]{"/T_raster_chunky_narrow_strip.tiff", "/T_raster_chunky_narrow_tile.tiff"}){
+            String file = Paths.get(getClass().getResource(layout).toURI()).toString();
+            assertEquals(layout, narrowRaster_CS, Tifixity.checksumRaster(file, 0));
+        }
+    }
 }
@@ -0,0 +1,141 @@
+/**
+ * Copyright 2016 Peter May
+ * Author: Peter May
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.bl.dpt;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Tests relating to batch work ordering and ordered output.
+ *
+ * Tests for:
+ *  1) Argument order and policy lookup by name
+ *  2) Directory order groups files by directory, keeping their order within a directory
+ *  3) Inode order sorts by inode, with unreadable files last
+ *  4) Outputs are printed in the original order whatever order files complete in
+ *  5) Outputs waiting beyond the memory limit are spilled and printed in order
+ */
+public class WorkOrderTest {
+
+    /**
+     * 1: Tests the argument order is the identity, and that policies are found by name.
+     */
+    @Test
+    public void argumentsAndNames(){
+        assertArrayEquals(new int[]{0, 1, 2}, WorkOrder.arguments().order(new String[]{"c", "b", "a"}));
+        assertSame(WorkOrder.arguments(), WorkOrder.forName("arguments"));
+        assertSame(WorkOrder.inode(), WorkOrder.forName("inode"));
+        assertSame(WorkOrder.directory(), WorkOrder.forName("directory"));
+        try {
+            WorkOrder.forName("size");
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException e){
+            assertTrue(e.getMessage().contains("size"));
+        }
+    }
+
+    /**
+     * 2: Tests directory order.
+     */
+    @Test
+    public void directoryOrder(){
+        String[] files = { "/data/b/x.tif", "/data/a/y.tif", "/data/b/z.tif", "/data/a/w.tif", "/data/b/../a/v.tif" };
+        assertArrayEquals(new int[]{1, 3, 4, 0, 2}, WorkOrder.directory().order(files));
+    }
+
+    /**
+     * 3: Tests inode order against the inodes of the files, with a missing file last.
+     */
+    @Test
+    public void inodeOrder() throws Exception {
+        Path dir = Files.createTempDirectory("order");
+        Path[] paths = new Path[4];
+        try {
+            for(int i=0; i<paths.length; i++){
+                paths[i] = Files.createFile(dir.resolve("f"+i));
+            }
+            assumeTrue(Files.getFileStore(dir).supportsFileAttributeView("unix"));
+
+            String[] files = { dir.resolve("missing").toString(), paths[2].toString(), paths[0].toString(),
+                               paths[3].toString(), paths[1].toString() };
+            int[] order = WorkOrder.inode().order(files);
+
+            assertEquals(0, order[order.length-1]);
+            for(int i=1; i<order.length-1; i++){
+                long previous = ((Number) Files.getAttribute(dir.resolve(files[order[i-1]]), "unix:ino")).longValue();
+                long current = ((Number) Files.getAttribute(dir.resolve(files[order[i]]), "unix:ino")).longValue();
+                assertTrue(previous<current);
+            }
+        } finally {
+            for(Path path: paths){
+                if(path!=null){
+                    Files.delete(path);
+                }
+            }
+            Files.delete(dir);
+        }
+    }
+
+    /**
+     * 4: Tests outputs completing out of order are printed in order, and that a flush prints what has completed
+     * and skips what has not.
+     */
+    @Test
+    public void orderedOutput() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        OrderedOutput output = new OrderedOutput(new PrintStream(bytes, true, "UTF-8"), 5);
+
+        output.complete(2, "c\n");
+        output.complete(1, "b\n");
+        assertEquals("", bytes.toString("UTF-8"));
+        output.complete(0, "a\n");
+        assertEquals("a\nb\nc\n", bytes.toString("UTF-8"));
+
+        output.complete(4, "e\n");
+        output.flush();
+        assertEquals("a\nb\nc\ne\n", bytes.toString("UTF-8"));
+    }
+
+    /**
+     * 5: Tests that when the first file completes last, the waiting outputs beyond the memory limit are spilled
+     * to the temporary file and still printed in order.
+     */
+    @Test
+    public void spilledOutput() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        StringBuilder expected = new StringBuilder();
+        try (OrderedOutput output = new OrderedOutput(new PrintStream(bytes, true, "UTF-8"), 100, 1000)) {
+            for(int i=99; i>=0; i--){
+                output.complete(i, i%10==0 ? null : "Image MD5 [0]: \u00e9 "+i+"\n");
+            }
+            assertTrue(output.getSpilled()>0);
+        }
+        for(int i=0; i<100; i++){
+            if(i%10!=0){
+                expected.append("Image MD5 [0]: \u00e9 ").append(i).append("\n");
+            }
+        }
+        assertEquals(expected.toString(), bytes.toString("UTF-8"));
+    }
+}